@@ -0,0 +1,151 @@
+package fr.umrae.matsim_noisemodelling;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exposure of each agent activity : energetic mean of the levels of its receiver over the time bins the activity covers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExposureLookupBenchmark {
+
+    static final int BIN_SIZE = 900;
+
+    @Param({"100000"})
+    int receivers;
+
+    @Param({"100000"})
+    int agents;
+
+    @Param({"96"})
+    int timeBins;
+
+    @Param({"4"})
+    int activitiesPerAgent;
+
+    // activity receiver primary keys, sparse like the receiver table PKs
+    long[] activityReceiverPk;
+    int[] activityReceiverIndex;
+    int[] activityStart;
+    int[] activityEnd;
+
+    // levels in linear energy, receiver x time bin
+    Map<Long, double[]> levelsByPk;
+    double[] levels;
+    // same levels in the exposure engine store, with prefix sums
+    ReceiverLevelStore store;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        long[] receiverPks = new long[receivers];
+        levelsByPk = new HashMap<>();
+        levels = new double[receivers * timeBins];
+        for (int receiver = 0; receiver < receivers; receiver++) {
+            receiverPks[receiver] = receiver * 3L + random.nextInt(3);
+            double[] receiverLevels = new double[timeBins];
+            for (int bin = 0; bin < timeBins; bin++) {
+                receiverLevels[bin] = Math.pow(10, (30 + random.nextDouble() * 50) / 10);
+                levels[receiver * timeBins + bin] = receiverLevels[bin];
+            }
+            levelsByPk.put(receiverPks[receiver], receiverLevels);
+        }
+        store = new ReceiverLevelStore(BIN_SIZE, 0, timeBins * BIN_SIZE);
+        for (int receiver = 0; receiver < receivers; receiver++) {
+            int row = store.addRow(receiver);
+            for (int bin = 0; bin < timeBins; bin++) {
+                store.set(row, bin, (float) levels[receiver * timeBins + bin]);
+            }
+        }
+        store.computePrefixSums();
+        int activities = agents * activitiesPerAgent;
+        activityReceiverPk = new long[activities];
+        activityReceiverIndex = new int[activities];
+        activityStart = new int[activities];
+        activityEnd = new int[activities];
+        int day = timeBins * BIN_SIZE;
+        for (int agent = 0; agent < agents; agent++) {
+            int time = 0;
+            for (int a = 0; a < activitiesPerAgent; a++) {
+                int i = agent * activitiesPerAgent + a;
+                int receiver = random.nextInt(receivers);
+                activityReceiverIndex[i] = receiver;
+                activityReceiverPk[i] = receiverPks[receiver];
+                activityStart[i] = time;
+                time = a == activitiesPerAgent - 1 ? day : Math.min(day, time + random.nextInt(2 * day / activitiesPerAgent));
+                activityEnd[i] = time;
+            }
+        }
+    }
+
+    /**
+     * Levels looked up by receiver primary key, one boxed key per activity.
+     */
+    @Benchmark
+    public double[] hashLookup() {
+        double[] exposure = new double[activityStart.length];
+        for (int i = 0; i < exposure.length; i++) {
+            double[] receiverLevels = levelsByPk.get(activityReceiverPk[i]);
+            exposure[i] = meanLevel(receiverLevels, 0, activityStart[i], activityEnd[i]);
+        }
+        return exposure;
+    }
+
+    /**
+     * Receivers resolved once to a dense index, levels read from a flat receiver x bin array.
+     */
+    @Benchmark
+    public double[] denseIndex() {
+        double[] exposure = new double[activityStart.length];
+        for (int i = 0; i < exposure.length; i++) {
+            exposure[i] = meanLevel(levels, activityReceiverIndex[i] * timeBins, activityStart[i], activityEnd[i]);
+        }
+        return exposure;
+    }
+
+    /**
+     * Dense index and prefix sums of the energies : constant time per activity whatever its duration.
+     */
+    @Benchmark
+    public double[] prefixSums() {
+        double[] exposure = new double[activityStart.length];
+        for (int i = 0; i < exposure.length; i++) {
+            int start = activityStart[i];
+            int end = activityEnd[i];
+            exposure[i] = end > start ? 10 * Math.log10(store.energy(activityReceiverIndex[i], start, end) / (end - start)) : 0;
+        }
+        return exposure;
+    }
+
+    static double meanLevel(double[] levels, int offset, int start, int end) {
+        if (end <= start) {
+            return 0;
+        }
+        double energy = 0;
+        for (int bin = start / BIN_SIZE; bin * BIN_SIZE < end; bin++) {
+            int overlap = Math.min(end, (bin + 1) * BIN_SIZE) - Math.max(start, bin * BIN_SIZE);
+            energy += levels[offset + bin] * overlap;
+        }
+        return 10 * Math.log10(energy / (end - start));
+    }
+
+}
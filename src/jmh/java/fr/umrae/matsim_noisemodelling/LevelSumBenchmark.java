@@ -0,0 +1,91 @@
+package fr.umrae.matsim_noisemodelling;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static fr.umrae.matsim_noisemodelling.SparseNoiseMap.A_WEIGHTING;
+import static fr.umrae.matsim_noisemodelling.SparseNoiseMap.BANDS;
+
+/**
+ * Energetic summation of the 8 octave band levels of each receiver into LEQ and LEQA, in dB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LevelSumBenchmark {
+
+    @Param({"100000", "1000000"})
+    int receivers;
+
+    double[] bandLevels;
+    double[] leq;
+    double[] leqa;
+    double[] aWeightingFactors;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        bandLevels = new double[receivers * BANDS];
+        for (int i = 0; i < bandLevels.length; i++) {
+            bandLevels[i] = 20 + random.nextDouble() * 60;
+        }
+        leq = new double[receivers];
+        leqa = new double[receivers];
+        aWeightingFactors = new double[BANDS];
+        for (int band = 0; band < BANDS; band++) {
+            aWeightingFactors[band] = Math.pow(10, A_WEIGHTING[band] / 10);
+        }
+    }
+
+    @Benchmark
+    public double[] pow() {
+        for (int row = 0; row < receivers; row++) {
+            double sum = 0;
+            double sumA = 0;
+            for (int band = 0; band < BANDS; band++) {
+                double level = bandLevels[row * BANDS + band];
+                sum += Math.pow(10, level / 10);
+                sumA += Math.pow(10, (level + A_WEIGHTING[band]) / 10);
+            }
+            leq[row] = 10 * Math.log10(sum);
+            leqa[row] = 10 * Math.log10(sumA);
+        }
+        return leqa;
+    }
+
+    /**
+     * One exponential per band, the A weighting applied as a precomputed linear factor.
+     */
+    @Benchmark
+    public double[] expWithLinearWeighting() {
+        final double dbToNeper = Math.log(10) / 10;
+        for (int row = 0; row < receivers; row++) {
+            double sum = 0;
+            double sumA = 0;
+            for (int band = 0; band < BANDS; band++) {
+                double energy = Math.exp(bandLevels[row * BANDS + band] * dbToNeper);
+                sum += energy;
+                sumA += energy * aWeightingFactors[band];
+            }
+            leq[row] = 10 * Math.log10(sum);
+            leqa[row] = 10 * Math.log10(sumA);
+        }
+        return leqa;
+    }
+
+}
@@ -0,0 +1,151 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.json.JsonSlurper;
+import org.apache.commons.cli.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Scaling curve of the pipeline : for each size factor k, a {@link SyntheticScenario} with k times the links, agents
+ * and buildings over k times the area is generated, then computed by RunCli in a new JVM, so that the runs do not
+ * share caches or JIT state. The stage metrics of each run_metrics.json are collected in scaling.csv, and the growth
+ * of each stage between the smallest and the largest size is printed as an exponent : 1 for a stage that scales
+ * linearly with the scenario, above for one that will stop scaling first.
+ * ./gradlew scaling -Pscaling.args="--sizes 1,2,4,8 --conf base.properties"
+ */
+public class ScalingHarness {
+
+    static final List<String> COLUMNS = List.of("stage", "status", "wallTimeMs", "cpuTimeMs", "peakHeapBytes", "gcTimeMs", "inputRows", "outputRows");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Options options = new Options();
+        options.addOption("folder", "folder", true, "Folder of the scenarios and of scaling.csv (default: build/scaling)");
+        options.addOption("sizes", "sizes", true, "Size factors of the scenarios (default: 1,2,4,8)");
+        options.addOption("links", "links", true, "Links at size 1 (default: 200)");
+        options.addOption("agents", "agents", true, "Agents at size 1 (default: 500)");
+        options.addOption("buildings", "buildings", true, "Buildings at size 1 (default: 300)");
+        options.addOption("side", "side", true, "Side of the area in meters at size 1 (default: 1000)");
+        options.addOption("conf", "configFile", true, "Config file whose settings are used by every run, the paths excepted");
+        options.addOption("jvm", "jvmArgs", true, "Options of the JVM of the runs, space separated (example: -Xmx8g)");
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        }
+        catch (ParseException e) {
+            System.out.println("Options error: " + e.getMessage());
+            new HelpFormatter().printHelp("gradlew scaling -Pscaling.args=\"...\"", options);
+            return;
+        }
+        Path folder = Paths.get(cmd.getOptionValue("folder", "build/scaling")).toAbsolutePath();
+        int links = Integer.parseInt(cmd.getOptionValue("links", "200"));
+        int agents = Integer.parseInt(cmd.getOptionValue("agents", "500"));
+        int buildings = Integer.parseInt(cmd.getOptionValue("buildings", "300"));
+        double side = Double.parseDouble(cmd.getOptionValue("side", "1000"));
+        Properties base = new Properties();
+        if (cmd.hasOption("configFile")) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(cmd.getOptionValue("configFile")), StandardCharsets.UTF_8)) {
+                base.load(reader);
+            }
+        }
+        List<String> jvmArgs = cmd.hasOption("jvmArgs") ? Arrays.asList(cmd.getOptionValue("jvmArgs").trim().split("\\s+")) : List.of();
+
+        Files.createDirectories(folder);
+        Path csv = folder.resolve("scaling.csv");
+        // stage -> wall time of each size
+        Map<String, Map<Integer, Long>> wallTimes = new LinkedHashMap<>();
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(csv, StandardCharsets.UTF_8))) {
+            out.println("size,links,agents,buildings,side," + String.join(",", COLUMNS));
+            for (String value : cmd.getOptionValue("sizes", "1,2,4,8").split(",")) {
+                int size = Integer.parseInt(value.trim());
+                SyntheticScenario scenario = new SyntheticScenario(links * size, agents * size, buildings * size, side * Math.sqrt(size));
+                Path sizeFolder = folder.resolve("size_" + size);
+                Path matsim = sizeFolder.resolve("matsim");
+                scenario.write(matsim);
+
+                Properties config = new Properties();
+                config.putAll(base);
+                config.setProperty("DB_NAME", sizeFolder.resolve("noisemodelling").toUri().toString());
+                config.setProperty("OSM_FILE_PATH", matsim.resolve(SyntheticScenario.OSM_FILE).toString());
+                config.setProperty("MATSIM_DIR", matsim.toString());
+                config.setProperty("INPUTS_DIR", sizeFolder.resolve("inputs").toString());
+                config.setProperty("RESULTS_DIR", sizeFolder.resolve("results").toString());
+                config.setProperty("SRID", Integer.toString(scenario.srid));
+                config.putIfAbsent("POPULATION_FACTOR", "1.0");
+                config.putIfAbsent("DO_CLEAN_DB", "True");
+                config.putIfAbsent("DO_IMPORT_OSM", "True");
+                config.putIfAbsent("DO_RUN_NOISEMODELLING", "True");
+                Path configFile = sizeFolder.resolve("scaling.properties");
+                try (Writer writer = Files.newBufferedWriter(configFile, StandardCharsets.UTF_8)) {
+                    config.store(writer, "scaling run, size " + size);
+                }
+                Files.deleteIfExists(sizeFolder.resolve("results").resolve("run_metrics.json"));
+
+                List<String> command = new ArrayList<>();
+                command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+                command.addAll(jvmArgs);
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(RunCli.class.getName());
+                command.add("--conf");
+                command.add(configFile.toString());
+                Path log = sizeFolder.resolve("run.log");
+                System.out.println("Size " + size + " : " + scenario.linkCount() + " links, " + scenario.agents + " agents, "
+                        + scenario.buildings + " buildings, running RunCli, output in " + log);
+                long start = System.currentTimeMillis();
+                int exit = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log.toFile()).start().waitFor();
+                System.out.println("Size " + size + " done in " + (System.currentTimeMillis() - start) + " ms, exit code " + exit);
+
+                Path metricsFile = sizeFolder.resolve("results").resolve("run_metrics.json");
+                if (!Files.exists(metricsFile)) {
+                    System.out.println("No run_metrics.json for size " + size + ", see " + log);
+                    continue;
+                }
+                Map<?, ?> metrics = (Map<?, ?>) new JsonSlurper().parseText(Files.readString(metricsFile));
+                for (Object item : (List<?>) metrics.get("stages")) {
+                    Map<?, ?> stage = (Map<?, ?>) item;
+                    StringBuilder row = new StringBuilder();
+                    row.append(size).append(',').append(scenario.linkCount()).append(',').append(scenario.agents).append(',')
+                            .append(scenario.buildings).append(',').append(String.format(Locale.ROOT, "%.1f", scenario.side));
+                    for (String column : COLUMNS) {
+                        row.append(',').append(stage.get(column) == null ? "" : stage.get(column));
+                    }
+                    out.println(row);
+                    if (stage.get("wallTimeMs") instanceof Number) {
+                        wallTimes.computeIfAbsent(stage.get("stage").toString(), key -> new TreeMap<>())
+                                .merge(size, ((Number) stage.get("wallTimeMs")).longValue(), Long::sum);
+                    }
+                }
+                out.flush();
+            }
+        }
+        printSummary(wallTimes);
+        System.out.println("Stage metrics per size in " + csv);
+    }
+
+    /**
+     * Wall time of each stage per size, and the exponent e of time ~ size^e between the smallest and the largest size.
+     */
+    static void printSummary(Map<String, Map<Integer, Long>> wallTimes) {
+        System.out.println(String.format(Locale.ROOT, "%-28s %-48s %s", "stage", "wall time (ms) per size", "exponent"));
+        for (Map.Entry<String, Map<Integer, Long>> stage : wallTimes.entrySet()) {
+            TreeMap<Integer, Long> times = new TreeMap<>(stage.getValue());
+            StringBuilder values = new StringBuilder();
+            for (Map.Entry<Integer, Long> time : times.entrySet()) {
+                values.append(values.length() > 0 ? "  " : "").append(time.getKey()).append(':').append(time.getValue());
+            }
+            String exponent = "";
+            if (times.size() > 1 && times.firstEntry().getValue() > 0 && times.lastKey() > times.firstKey()) {
+                double e = Math.log((double) times.lastEntry().getValue() / times.firstEntry().getValue())
+                        / Math.log((double) times.lastKey() / times.firstKey());
+                exponent = String.format(Locale.ROOT, "%.2f%s", e, e > 1.2 ? "  superlinear" : "");
+            }
+            System.out.println(String.format(Locale.ROOT, "%-28s %-48s %s", stage.getKey(), values, exponent));
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+package fr.umrae.matsim_noisemodelling;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static fr.umrae.matsim_noisemodelling.SparseNoiseMap.BANDS;
+
+/**
+ * Attenuation x emission combination of one time bin, with the CSR kernel of {@link SparseNoiseMap}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SparseMultiplyBenchmark {
+
+    @Param({"100000"})
+    int receivers;
+
+    @Param({"10000"})
+    int sources;
+
+    // average number of sources reaching a receiver
+    @Param({"50"})
+    int sourcesPerReceiver;
+
+    @Param({"false", "true"})
+    boolean offHeap;
+
+    long[] rowStart;
+    SparseNoiseMap.IntBlocks columns;
+    SparseNoiseMap.FloatBlocks attenuation;
+    float[] emission;
+    double[] levels;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        rowStart = new long[receivers + 1];
+        for (int row = 0; row < receivers; row++) {
+            rowStart[row + 1] = rowStart[row] + 1 + random.nextInt(2 * sourcesPerReceiver - 1);
+        }
+        columns = new SparseNoiseMap.IntBlocks(offHeap);
+        attenuation = new SparseNoiseMap.FloatBlocks(offHeap);
+        for (int row = 0; row < receivers; row++) {
+            for (long k = rowStart[row]; k < rowStart[row + 1]; k++) {
+                columns.add(random.nextInt(sources));
+                for (int band = 0; band < BANDS; band++) {
+                    attenuation.add((float) Math.pow(10, -(20 + random.nextDouble() * 60) / 10));
+                }
+            }
+        }
+        emission = new float[sources * BANDS];
+        for (int i = 0; i < emission.length; i++) {
+            emission[i] = (float) Math.pow(10, (60 + random.nextDouble() * 40) / 10);
+        }
+        levels = new double[receivers * BANDS];
+    }
+
+    @Benchmark
+    public double[] multiply() {
+        Arrays.fill(levels, 0);
+        SparseNoiseMap.multiply(rowStart, columns, attenuation, emission, levels, 0, receivers);
+        return levels;
+    }
+
+}
@@ -0,0 +1,96 @@
+package fr.umrae.matsim_noisemodelling;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting of the noise map rows into one partition per time bin, as the contouring does before processing each bin.
+ * The rows are shuffled receiver x time pairs, like the output of the noise map computation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimeBinPartitionBenchmark {
+
+    @Param({"100000"})
+    int receivers;
+
+    // 15 minutes bins over a day
+    @Param({"96"})
+    int timeBins;
+
+    int[] times;
+    float[] leqa;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        int rows = receivers * timeBins;
+        times = new int[rows];
+        leqa = new float[rows];
+        for (int i = 0; i < rows; i++) {
+            times[i] = (i % timeBins) * 900;
+            leqa[i] = 30 + random.nextFloat() * 50;
+        }
+        for (int i = rows - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int time = times[i];
+            times[i] = times[j];
+            times[j] = time;
+        }
+    }
+
+    /**
+     * One scan of every row per bin, the cost of a per-bin WHERE TIME = ? without an index.
+     */
+    @Benchmark
+    public void scanPerBin(Blackhole blackhole) {
+        for (int bin = 0; bin < timeBins; bin++) {
+            int time = bin * 900;
+            float[] partition = new float[receivers];
+            int size = 0;
+            for (int i = 0; i < times.length; i++) {
+                if (times[i] == time) {
+                    partition[size++] = leqa[i];
+                }
+            }
+            blackhole.consume(partition);
+        }
+    }
+
+    /**
+     * A counting sort on the bin index : one pass to count, one pass to scatter.
+     */
+    @Benchmark
+    public float[] countingSort() {
+        int[] offsets = new int[timeBins + 1];
+        for (int time : times) {
+            offsets[time / 900 + 1]++;
+        }
+        for (int bin = 0; bin < timeBins; bin++) {
+            offsets[bin + 1] += offsets[bin];
+        }
+        float[] sorted = new float[leqa.length];
+        for (int i = 0; i < times.length; i++) {
+            sorted[offsets[times[i] / 900]++] = leqa[i];
+        }
+        return sorted;
+    }
+
+}
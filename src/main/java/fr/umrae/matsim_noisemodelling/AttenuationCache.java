@@ -0,0 +1,138 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.GroovyRowResult;
+import groovy.sql.Sql;
+import org.h2gis.utilities.JDBCUtilities;
+import org.h2gis.utilities.TableLocation;
+import org.h2gis.utilities.Tuple;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Keeps track of the inputs an attenuation table was computed from, so that Noise_level_from_source can be skipped
+ * when buildings, receivers, source geometries and propagation parameters are unchanged.
+ * The fingerprint of each attenuation table is stored in the ATTENUATION_CACHE table of the same database.
+ */
+class AttenuationCache {
+
+    static final String CACHE_TABLE = "ATTENUATION_CACHE";
+
+    // parameters of Noise_level_from_source that do not change the attenuation values
+    static final Set<String> IGNORED_PARAMS = Set.of("confThreadNumber");
+
+    /**
+     * @param propagationParams parameters given to Noise_level_from_source
+     * @param tables            table name to the comma separated columns to hash, or "*" for all columns
+     */
+    static String fingerprint(Connection connection, Map<String, Object> propagationParams, Map<String, String> tables) throws SQLException {
+        MessageDigest digest = newDigest();
+        for (Map.Entry<String, Object> param : new TreeMap<>(propagationParams).entrySet()) {
+            if (!IGNORED_PARAMS.contains(param.getKey())) {
+                digest.update((param.getKey() + "=" + param.getValue() + ";").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        for (Map.Entry<String, String> table : new TreeMap<>(tables).entrySet()) {
+            digest.update(tableFingerprint(connection, table.getKey(), table.getValue()).getBytes(StandardCharsets.UTF_8));
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Hash of the given columns of the table, in primary key order, or ordered by all the hashed columns without
+     * primary key so that the hash does not depend on the storage order.
+     */
+    static String tableFingerprint(Connection connection, String table, String columns) throws SQLException {
+        MessageDigest digest = newDigest();
+        digest.update(table.getBytes(StandardCharsets.UTF_8));
+        Tuple<String, Integer> pk = JDBCUtilities.getIntegerPrimaryKeyNameAndIndex(connection, TableLocation.parse(table));
+        String query = "SELECT " + columns + " FROM " + table + " ORDER BY " + (pk != null ? pk.first() : orderByAll(connection, table, columns));
+        try (Statement st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            st.setFetchSize(10000);
+            try (ResultSet rs = st.executeQuery(query)) {
+                ResultSetMetaData meta = rs.getMetaData();
+                int columnCount = meta.getColumnCount();
+                boolean[] binary = new boolean[columnCount + 1];
+                for (int i = 1; i <= columnCount; i++) {
+                    digest.update(meta.getColumnName(i).getBytes(StandardCharsets.UTF_8));
+                    binary[i] = meta.getColumnTypeName(i).startsWith("GEOMETRY");
+                }
+                while (rs.next()) {
+                    for (int i = 1; i <= columnCount; i++) {
+                        if (binary[i]) {
+                            byte[] bytes = rs.getBytes(i);
+                            digest.update(bytes != null ? bytes : new byte[0]);
+                        }
+                        else {
+                            digest.update(String.valueOf(rs.getString(i)).getBytes(StandardCharsets.UTF_8));
+                        }
+                        digest.update((byte) 0);
+                    }
+                }
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static String orderByAll(Connection connection, String table, String columns) throws SQLException {
+        List<String> order = new ArrayList<>();
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("SELECT " + columns + " FROM " + table + " WHERE 1 = 0")) {
+            ResultSetMetaData meta = rs.getMetaData();
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                String column = TableLocation.quoteIdentifier(meta.getColumnName(i));
+                // geometries have no total order, their WKB has one
+                order.add(meta.getColumnTypeName(i).startsWith("GEOMETRY") ? "ST_AsBinary(" + column + ")" : column);
+            }
+        }
+        return String.join(", ", order);
+    }
+
+    static boolean matches(Connection connection, String attenuationTable, String fingerprint) throws SQLException {
+        if (!RunCli.tableExists(connection, CACHE_TABLE) || !RunCli.tableExists(connection, attenuationTable)) {
+            return false;
+        }
+        GroovyRowResult row = new Sql(connection).firstRow("SELECT FINGERPRINT FROM " + CACHE_TABLE + " WHERE ATTENUATION_TABLE = ?", List.<Object>of(attenuationTable));
+        return row != null && fingerprint.equals(row.get("FINGERPRINT"));
+    }
+
+    static void store(Connection connection, String attenuationTable, String fingerprint) throws SQLException {
+        Sql sql = new Sql(connection);
+        sql.execute("CREATE TABLE IF NOT EXISTS " + CACHE_TABLE + " (ATTENUATION_TABLE VARCHAR PRIMARY KEY, FINGERPRINT VARCHAR, CREATED TIMESTAMP)");
+        sql.execute("MERGE INTO " + CACHE_TABLE + " KEY (ATTENUATION_TABLE) VALUES (?, ?, CURRENT_TIMESTAMP)", List.<Object>of(attenuationTable, fingerprint));
+    }
+
+    /**
+     * Forget the fingerprint of an attenuation table recomputed without the cache, its content no longer matches it.
+     */
+    static void invalidate(Connection connection, String attenuationTable) throws SQLException {
+        if (RunCli.tableExists(connection, CACHE_TABLE)) {
+            new Sql(connection).execute("DELETE FROM " + CACHE_TABLE + " WHERE ATTENUATION_TABLE = ?", List.<Object>of(attenuationTable));
+        }
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+}
@@ -0,0 +1,257 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.Sql;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * File cache of the imported and cleaned buildings table, shared by the databases built from the same PBF file.
+ * A cache file is named after the SHA-256 of the PBF content, the SRID and the import parameters, and holds the table
+ * definition followed by its rows, geometries as EWKB, so that it is bulk loaded with batched inserts instead of
+ * parsing the PBF again.
+ *
+ * Layout (big endian, strings as modified UTF-8) : magic "MNBLD", int version, key, int column count, then per column
+ * its name, SQL type, value kind byte and primary key flag, then per row a 1 byte followed by one value per column
+ * (a 0 byte for null, or a 1 byte and the value), and a final 0 byte.
+ */
+class BuildingsCache {
+
+    static final byte[] MAGIC = "MNBLD".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+
+    static final byte GEOMETRY = 0;
+    static final byte INTEGER = 1;
+    static final byte BIGINT = 2;
+    static final byte DOUBLE = 3;
+    static final byte STRING = 4;
+
+    final Path folder;
+
+    BuildingsCache(Path folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * Loads table from the cache of this PBF file, SRID and import parameters, or runs the import and stores its result.
+     */
+    void importBuildings(Connection connection, Path osmFile, int srid, Map<String, Object> importParams, String table,
+                         Stage.Action importAction) throws SQLException, IOException {
+        String key = key(osmFile, srid, importParams);
+        Path file = folder.resolve("buildings_" + key + ".bin");
+        if (Files.exists(file)) {
+            long start = System.currentTimeMillis();
+            long rows = read(connection, file, key, table);
+            System.out.println("Buildings loaded from the cache " + file + " : " + rows + " rows in " + (System.currentTimeMillis() - start) + " ms");
+            return;
+        }
+        importAction.run(connection);
+        long start = System.currentTimeMillis();
+        Files.createDirectories(folder);
+        long rows = write(connection, table, file, key);
+        System.out.println("Buildings stored in the cache " + file + " : " + rows + " rows in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    static String key(Path osmFile, int srid, Map<String, Object> importParams) throws IOException {
+        MessageDigest content = AttenuationCache.newDigest();
+        try (InputStream in = Files.newInputStream(osmFile)) {
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                content.update(buffer, 0, read);
+            }
+        }
+        MessageDigest options = AttenuationCache.newDigest();
+        options.update(Integer.toString(srid).getBytes(StandardCharsets.UTF_8));
+        for (Map.Entry<String, Object> param : new TreeMap<>(importParams).entrySet()) {
+            // the same PBF at another path gives the same buildings
+            if (!param.getKey().equals("pathFile")) {
+                options.update((";" + param.getKey() + "=" + param.getValue()).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return AttenuationCache.toHex(content.digest()).substring(0, 32) + "_" + srid + "_" + AttenuationCache.toHex(options.digest()).substring(0, 8);
+    }
+
+    static long write(Connection connection, String table, Path file, String key) throws SQLException, IOException {
+        String primaryKey = Tiling.primaryKey(connection, table);
+        Path temporary = file.resolveSibling(file.getFileName() + "." + System.nanoTime() + ".tmp");
+        long rows = 0;
+        try (Statement st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            st.setFetchSize(10000);
+            try (ResultSet rs = st.executeQuery("SELECT * FROM " + table + (primaryKey != null ? " ORDER BY " + primaryKey : ""));
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+                ResultSetMetaData metaData = rs.getMetaData();
+                int columnCount = metaData.getColumnCount();
+                byte[] kinds = new byte[columnCount + 1];
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                out.writeInt(columnCount);
+                for (int i = 1; i <= columnCount; i++) {
+                    kinds[i] = kind(metaData, i);
+                    out.writeUTF(metaData.getColumnLabel(i));
+                    out.writeUTF(Tiling.columnType(metaData, i));
+                    out.writeByte(kinds[i]);
+                    out.writeBoolean(metaData.getColumnLabel(i).equalsIgnoreCase(primaryKey));
+                }
+                WKBWriter wkbWriter = new WKBWriter(3, true);
+                while (rs.next()) {
+                    out.writeByte(1);
+                    for (int i = 1; i <= columnCount; i++) {
+                        Object value = rs.getObject(i);
+                        if (value == null) {
+                            out.writeByte(0);
+                            continue;
+                        }
+                        out.writeByte(1);
+                        switch (kinds[i]) {
+                            case GEOMETRY:
+                                byte[] wkb = wkbWriter.write((Geometry) value);
+                                out.writeInt(wkb.length);
+                                out.write(wkb);
+                                break;
+                            case INTEGER:
+                                out.writeInt(rs.getInt(i));
+                                break;
+                            case BIGINT:
+                                out.writeLong(rs.getLong(i));
+                                break;
+                            case DOUBLE:
+                                out.writeDouble(rs.getDouble(i));
+                                break;
+                            default:
+                                byte[] bytes = rs.getString(i).getBytes(StandardCharsets.UTF_8);
+                                out.writeInt(bytes.length);
+                                out.write(bytes);
+                        }
+                    }
+                    rows++;
+                }
+                out.writeByte(0);
+            }
+        }
+        catch (SQLException | IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        return rows;
+    }
+
+    static byte kind(ResultSetMetaData metaData, int column) throws SQLException {
+        if (metaData.getColumnTypeName(column).startsWith("GEOMETRY")) {
+            return GEOMETRY;
+        }
+        switch (metaData.getColumnType(column)) {
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                return INTEGER;
+            case Types.BIGINT:
+                return BIGINT;
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                return DOUBLE;
+            default:
+                // decimals, booleans and dates go through their text form
+                return STRING;
+        }
+    }
+
+    static long read(Connection connection, Path file, String key, String table) throws SQLException, IOException {
+        long rows = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION || !in.readUTF().equals(key)) {
+                throw new IOException("Invalid buildings cache file " + file + ", delete it to import the buildings again");
+            }
+            int columnCount = in.readInt();
+            byte[] kinds = new byte[columnCount + 1];
+            StringBuilder definition = new StringBuilder();
+            StringBuilder columns = new StringBuilder();
+            StringBuilder values = new StringBuilder();
+            for (int i = 1; i <= columnCount; i++) {
+                String name = in.readUTF();
+                String type = in.readUTF();
+                kinds[i] = in.readByte();
+                boolean primaryKey = in.readBoolean();
+                String separator = i > 1 ? ", " : "";
+                definition.append(separator).append(name).append(' ').append(type).append(primaryKey ? " PRIMARY KEY" : "");
+                columns.append(separator).append(name);
+                values.append(separator).append('?');
+            }
+            Sql sql = new Sql(connection);
+            sql.execute("DROP TABLE IF EXISTS " + table);
+            sql.execute("CREATE TABLE " + table + " (" + definition + ")");
+
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + table + " (" + columns + ") VALUES (" + values + ")")) {
+                WKBReader wkbReader = new WKBReader();
+                int batch = 0;
+                while (in.readByte() == 1) {
+                    for (int i = 1; i <= columnCount; i++) {
+                        if (in.readByte() == 0) {
+                            insert.setObject(i, null);
+                            continue;
+                        }
+                        switch (kinds[i]) {
+                            case GEOMETRY:
+                                byte[] wkb = new byte[in.readInt()];
+                                in.readFully(wkb);
+                                insert.setObject(i, wkbReader.read(wkb));
+                                break;
+                            case INTEGER:
+                                insert.setInt(i, in.readInt());
+                                break;
+                            case BIGINT:
+                                insert.setLong(i, in.readLong());
+                                break;
+                            case DOUBLE:
+                                insert.setDouble(i, in.readDouble());
+                                break;
+                            default:
+                                byte[] bytes = new byte[in.readInt()];
+                                in.readFully(bytes);
+                                insert.setString(i, new String(bytes, StandardCharsets.UTF_8));
+                        }
+                    }
+                    insert.addBatch();
+                    rows++;
+                    if (++batch >= 1000) {
+                        insert.executeBatch();
+                        batch = 0;
+                    }
+                }
+                if (batch > 0) {
+                    insert.executeBatch();
+                }
+                connection.commit();
+            }
+            catch (ParseException e) {
+                connection.rollback();
+                throw new IOException("Invalid geometry in the buildings cache file " + file, e);
+            }
+            finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+        RunCli.ensureIndex(connection, table, "THE_GEOM", true);
+        return rows;
+    }
+
+}
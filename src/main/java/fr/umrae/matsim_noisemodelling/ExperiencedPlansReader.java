@@ -0,0 +1,143 @@
+package fr.umrae.matsim_noisemodelling;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming reader of a MATSim plans file (output_experienced_plans.xml.gz), one person at a time, keeping only the
+ * activities of the selected plan and the subpopulation attribute of the person. Legs and other attributes are skipped.
+ */
+class ExperiencedPlansReader implements Closeable {
+
+    static class Activity {
+        final String type;
+        final String facility;
+        // seconds, -infinity for the first activity of the day and +infinity for the last one
+        final double startTime;
+        final double endTime;
+
+        Activity(String type, String facility, double startTime, double endTime) {
+            this.type = type;
+            this.facility = facility;
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+    }
+
+    static class Person {
+        final String id;
+        String subpopulation = null;
+        final List<Activity> activities = new ArrayList<>();
+
+        Person(String id) {
+            this.id = id;
+        }
+    }
+
+    final InputStream input;
+    final XMLStreamReader reader;
+
+    ExperiencedPlansReader(Path plansFile) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(plansFile), 1 << 16);
+        input = plansFile.getFileName().toString().endsWith(".gz") ? new GZIPInputStream(in, 1 << 16) : in;
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        // the MATSim DOCTYPE points to a remote DTD
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try {
+            reader = factory.createXMLStreamReader(input);
+        }
+        catch (XMLStreamException e) {
+            input.close();
+            throw new IOException("Cannot read " + plansFile + " : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the next person, null at the end of the file
+     */
+    Person next() throws IOException {
+        try {
+            Person person = null;
+            boolean inPlan = false;
+            boolean selectedPlan = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (name.equals("person")) {
+                        person = new Person(reader.getAttributeValue(null, "id"));
+                    }
+                    else if (name.equals("attribute") && person != null && !inPlan
+                            && "subpopulation".equals(reader.getAttributeValue(null, "name"))) {
+                        person.subpopulation = reader.getElementText().trim();
+                    }
+                    else if (name.equals("plan") && person != null) {
+                        inPlan = true;
+                        String selected = reader.getAttributeValue(null, "selected");
+                        selectedPlan = selected == null || selected.equals("yes");
+                    }
+                    else if (name.equals("activity") && person != null && selectedPlan) {
+                        person.activities.add(new Activity(
+                                reader.getAttributeValue(null, "type"),
+                                reader.getAttributeValue(null, "facility"),
+                                parseTime(reader.getAttributeValue(null, "start_time"), Double.NEGATIVE_INFINITY),
+                                parseTime(reader.getAttributeValue(null, "end_time"), Double.POSITIVE_INFINITY)));
+                    }
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (name.equals("plan")) {
+                        inPlan = false;
+                        selectedPlan = false;
+                    }
+                    else if (name.equals("person") && person != null) {
+                        return person;
+                    }
+                }
+            }
+            return null;
+        }
+        catch (XMLStreamException e) {
+            throw new IOException("Invalid plans file : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * MATSim time, "hh:mm:ss" with hours possibly above 24 and optional fractional seconds.
+     */
+    static double parseTime(String time, double undefined) {
+        if (time == null || time.isEmpty() || time.equals("undefined")) {
+            return undefined;
+        }
+        String[] parts = time.split(":");
+        double seconds = 0;
+        for (String part : parts) {
+            seconds = seconds * 60 + Double.parseDouble(part);
+        }
+        return seconds;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            reader.close();
+        }
+        catch (XMLStreamException e) {
+            // the input is closed below anyway
+        }
+        input.close();
+    }
+
+}
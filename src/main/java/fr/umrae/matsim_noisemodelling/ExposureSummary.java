@@ -0,0 +1,452 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.json.JsonOutput;
+import groovy.sql.Sql;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Population exposure distributions filled in one streaming pass over the persons, instead of GROUP BY queries on the
+ * exposure table. Each group (the whole population, then each value of the grouping columns of output_persons.csv.gz)
+ * holds one {@link Sketch} per indicator (LAEQ and HOME_LAEQ) : a histogram of 0.1 dB bins, from which the
+ * percentiles are read within 0.05 dB and the shares above the thresholds exactly. Sketches of the same indicator and
+ * group are merged by adding their bins, so the summaries of parts of a population combine without the exposures.
+ * A grouping column given as column:width, like age:10, groups its numeric values in classes of that width.
+ */
+class ExposureSummary {
+
+    static final String ALL = "all";
+    static final String[] INDICATORS = {"LAEQ", "HOME_LAEQ"};
+    static final double[] PERCENTILES = {5, 25, 50, 75, 95};
+    static final String JSON_FILE = "exposure_summary.json";
+
+    /**
+     * Mergeable histogram of levels in 0.1 dB bins over [0, 200) dB, the levels out of it in the first or last bin.
+     */
+    static class Sketch {
+        static final double RESOLUTION = 0.1;
+        static final int BINS = 2000;
+
+        final long[] counts = new long[BINS];
+        long persons = 0;
+        // persons without a level, no activity at a receiver or no home
+        long noLevel = 0;
+        double energy = 0;
+
+        void add(double level) {
+            if (Double.isNaN(level)) {
+                noLevel++;
+                return;
+            }
+            counts[bin(level)]++;
+            persons++;
+            energy += Math.pow(10, level / 10);
+        }
+
+        static int bin(double level) {
+            // the rounding guards levels like 55.0 stored as 54.99999999
+            return Math.max(0, Math.min(BINS - 1, (int) Math.floor(Math.round(level / RESOLUTION * 1e6) / 1e6)));
+        }
+
+        void merge(Sketch other) {
+            for (int bin = 0; bin < BINS; bin++) {
+                counts[bin] += other.counts[bin];
+            }
+            persons += other.persons;
+            noLevel += other.noLevel;
+            energy += other.energy;
+        }
+
+        /**
+         * Energetic mean level of the persons with a level, NaN without any.
+         */
+        double meanLevel() {
+            return persons > 0 ? 10 * Math.log10(energy / persons) : Double.NaN;
+        }
+
+        /**
+         * Level under which a share q of the persons are, as the center of its bin, NaN without any person.
+         */
+        double quantile(double q) {
+            if (persons == 0) {
+                return Double.NaN;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * persons));
+            long cumulated = 0;
+            for (int bin = 0; bin < BINS; bin++) {
+                cumulated += counts[bin];
+                if (cumulated >= rank) {
+                    return (bin + 0.5) * RESOLUTION;
+                }
+            }
+            return (BINS - 0.5) * RESOLUTION;
+        }
+
+        /**
+         * Share of the persons with a level at or above the threshold, exact for thresholds on the 0.1 dB grid.
+         */
+        double shareAbove(double threshold) {
+            if (persons == 0) {
+                return Double.NaN;
+            }
+            long above = 0;
+            for (int bin = bin(threshold); bin < BINS; bin++) {
+                above += counts[bin];
+            }
+            return (double) above / persons;
+        }
+
+        int firstBin() {
+            int first = 0;
+            while (first < BINS && counts[first] == 0) {
+                first++;
+            }
+            return first;
+        }
+
+        int lastBin() {
+            int last = BINS - 1;
+            while (last >= 0 && counts[last] == 0) {
+                last--;
+            }
+            return last;
+        }
+
+        /**
+         * Little endian noLevel (int64), energy (float64), first bin and bin count (int32), then the counts (int64)
+         * of the bins from the first to the last non empty one.
+         */
+        byte[] pack() {
+            int first = firstBin();
+            int length = Math.max(0, lastBin() - first + 1);
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + Double.BYTES + 2 * Integer.BYTES + length * Long.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putLong(noLevel).putDouble(energy).putInt(first).putInt(length);
+            for (int bin = first; bin < first + length; bin++) {
+                buffer.putLong(counts[bin]);
+            }
+            return buffer.array();
+        }
+
+        static Sketch unpack(byte[] packed) {
+            ByteBuffer buffer = ByteBuffer.wrap(packed).order(ByteOrder.LITTLE_ENDIAN);
+            Sketch sketch = new Sketch();
+            sketch.noLevel = buffer.getLong();
+            sketch.energy = buffer.getDouble();
+            int first = buffer.getInt();
+            int length = buffer.getInt();
+            for (int bin = first; bin < first + length; bin++) {
+                sketch.counts[bin] = buffer.getLong();
+                sketch.persons += sketch.counts[bin];
+            }
+            return sketch;
+        }
+    }
+
+    static class Group {
+        final String column;
+        final String value;
+        final Sketch[] sketches = new Sketch[INDICATORS.length];
+
+        Group(String column, String value) {
+            this.column = column;
+            this.value = value;
+            for (int i = 0; i < sketches.length; i++) {
+                sketches[i] = new Sketch();
+            }
+        }
+    }
+
+    final List<String> groupColumns;
+    final double[] thresholds;
+    // whole population first, then by column and value in order of appearance
+    final Map<String, Group> groups = new LinkedHashMap<>();
+    final Group all;
+    // groups of each person of the persons file, the whole population excepted
+    final Map<String, Group[]> groupsByPerson = new HashMap<>();
+
+    ExposureSummary(List<String> groupColumns, double[] thresholds) {
+        this.groupColumns = groupColumns;
+        this.thresholds = thresholds;
+        all = group(ALL, ALL);
+    }
+
+    /**
+     * Parses a comma separated list of grouping columns or of thresholds, empty for none.
+     */
+    static List<String> parseList(String value) {
+        List<String> items = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                items.add(item.trim());
+            }
+        }
+        return items;
+    }
+
+    static double[] parseThresholds(String value) {
+        return parseList(value).stream().mapToDouble(Double::parseDouble).toArray();
+    }
+
+    Group group(String column, String value) {
+        return groups.computeIfAbsent(column + "\u0000" + value, key -> new Group(column, value));
+    }
+
+    /**
+     * Reads the groups of every person from the semicolon separated persons file, if grouping columns are set.
+     */
+    void loadPersons(Path personsFile) throws IOException {
+        if (groupColumns.isEmpty()) {
+            return;
+        }
+        if (!Files.exists(personsFile)) {
+            System.out.println("Persons file " + personsFile + " not found, exposure summary of the whole population only");
+            return;
+        }
+        InputStream in = Files.newInputStream(personsFile);
+        if (personsFile.getFileName().toString().endsWith(".gz")) {
+            in = new GZIPInputStream(in, 1 << 16);
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16)) {
+            String line = reader.readLine();
+            if (line == null) {
+                return;
+            }
+            List<String> header = Arrays.asList(split(line));
+            int personIndex = header.indexOf("person");
+            if (personIndex < 0) {
+                throw new IOException("No person column in " + personsFile);
+            }
+            String[] names = new String[groupColumns.size()];
+            int[] indexes = new int[groupColumns.size()];
+            double[] widths = new double[groupColumns.size()];
+            for (int i = 0; i < groupColumns.size(); i++) {
+                String[] column = groupColumns.get(i).split(":");
+                names[i] = column[0];
+                indexes[i] = header.indexOf(column[0]);
+                widths[i] = column.length > 1 ? Double.parseDouble(column[1]) : 0;
+                if (indexes[i] < 0) {
+                    throw new IOException("Grouping column " + column[0] + " not found in " + personsFile + ", columns are " + header);
+                }
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] values = split(line);
+                if (values.length <= personIndex) {
+                    continue;
+                }
+                Group[] personGroups = new Group[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    String value = indexes[i] < values.length ? values[indexes[i]] : "";
+                    personGroups[i] = group(names[i], widths[i] > 0 ? classOf(value, widths[i]) : value);
+                }
+                groupsByPerson.put(values[personIndex], personGroups);
+            }
+        }
+    }
+
+    static String[] split(String line) {
+        String[] values = line.split(";", -1);
+        for (int i = 0; i < values.length; i++) {
+            String value = values[i];
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                values[i] = value.substring(1, value.length() - 1);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Class [lower, lower + width) of a numeric value, like 30-40, the value itself when not numeric.
+     */
+    static String classOf(String value, double width) {
+        double number;
+        try {
+            number = Double.parseDouble(value);
+        }
+        catch (NumberFormatException e) {
+            return value;
+        }
+        double lower = Math.floor(number / width) * width;
+        return format(lower) + "-" + format(lower + width);
+    }
+
+    static String format(double value) {
+        return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    /**
+     * Adds a person to the whole population and to its groups, levels NaN when missing.
+     */
+    void add(String personId, double laeq, double homeLaeq) {
+        add(all, laeq, homeLaeq);
+        Group[] personGroups = groupsByPerson.get(personId);
+        if (personGroups != null) {
+            for (Group group : personGroups) {
+                add(group, laeq, homeLaeq);
+            }
+        }
+    }
+
+    static void add(Group group, double laeq, double homeLaeq) {
+        group.sketches[0].add(laeq);
+        group.sketches[1].add(homeLaeq);
+    }
+
+    /**
+     * Streams the PERSON_ID, LAEQ and HOME_LAEQ columns of an exposure table with a forward-only cursor.
+     */
+    void scan(Connection connection, String exposuresTable) throws SQLException {
+        try (Statement st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            st.setFetchSize(10000);
+            try (ResultSet rs = st.executeQuery("SELECT PERSON_ID, LAEQ, HOME_LAEQ FROM " + exposuresTable)) {
+                while (rs.next()) {
+                    double laeq = rs.getDouble(2);
+                    laeq = rs.wasNull() ? Double.NaN : laeq;
+                    double homeLaeq = rs.getDouble(3);
+                    homeLaeq = rs.wasNull() ? Double.NaN : homeLaeq;
+                    add(rs.getString(1), laeq, homeLaeq);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the sketches of another summary, group by group.
+     */
+    void merge(ExposureSummary other) {
+        for (Group group : other.groups.values()) {
+            Group merged = group(group.column, group.value);
+            for (int i = 0; i < INDICATORS.length; i++) {
+                merged.sketches[i].merge(group.sketches[i]);
+            }
+        }
+    }
+
+    static String thresholdColumn(double threshold) {
+        return "ABOVE_" + format(threshold).replace('.', '_').replace('-', 'M');
+    }
+
+    static String percentileColumn(double percentile) {
+        return "P" + format(percentile).replace('.', '_');
+    }
+
+    /**
+     * Writes one row per indicator and group, with the percentiles, the shares above the thresholds and the packed
+     * sketch (SKETCH column) from which they are computed.
+     */
+    void write(Connection connection, String outTable) throws SQLException {
+        Sql sql = new Sql(connection);
+        sql.execute(String.format("DROP TABLE IF EXISTS %s", outTable));
+        StringBuilder definition = new StringBuilder("CREATE TABLE " + outTable + " (PK INTEGER PRIMARY KEY AUTO_INCREMENT, " +
+                "INDICATOR VARCHAR, GROUP_COLUMN VARCHAR, GROUP_VALUE VARCHAR, PERSONS BIGINT, NO_LEVEL BIGINT, MEAN_LEVEL DOUBLE PRECISION");
+        StringBuilder insert = new StringBuilder("INSERT INTO " + outTable + " (INDICATOR, GROUP_COLUMN, GROUP_VALUE, PERSONS, NO_LEVEL, MEAN_LEVEL");
+        int parameters = 6;
+        for (double percentile : PERCENTILES) {
+            definition.append(", ").append(percentileColumn(percentile)).append(" DOUBLE PRECISION");
+            insert.append(", ").append(percentileColumn(percentile));
+            parameters++;
+        }
+        for (double threshold : thresholds) {
+            definition.append(", ").append(thresholdColumn(threshold)).append(" DOUBLE PRECISION");
+            insert.append(", ").append(thresholdColumn(threshold));
+            parameters++;
+        }
+        sql.execute(definition.append(", SKETCH VARBINARY)").toString());
+        insert.append(", SKETCH) VALUES (").append(String.join(", ", Collections.nCopies(parameters + 1, "?"))).append(")");
+        try (PreparedStatement st = connection.prepareStatement(insert.toString())) {
+            for (Group group : groups.values()) {
+                for (int i = 0; i < INDICATORS.length; i++) {
+                    Sketch sketch = group.sketches[i];
+                    int index = 1;
+                    st.setString(index++, INDICATORS[i]);
+                    st.setString(index++, group.column);
+                    st.setString(index++, group.value);
+                    st.setLong(index++, sketch.persons);
+                    st.setLong(index++, sketch.noLevel);
+                    InMemoryExposure.setLevel(st, index++, sketch.meanLevel());
+                    for (double percentile : PERCENTILES) {
+                        InMemoryExposure.setLevel(st, index++, sketch.quantile(percentile / 100));
+                    }
+                    for (double threshold : thresholds) {
+                        InMemoryExposure.setLevel(st, index++, sketch.shareAbove(threshold));
+                    }
+                    st.setBytes(index, sketch.pack());
+                    st.addBatch();
+                }
+            }
+            st.executeBatch();
+        }
+    }
+
+    /**
+     * Reads back a summary table written by {@link #write}, for instance to merge the summaries of several runs.
+     */
+    static ExposureSummary read(Connection connection, String table, double[] thresholds) throws SQLException {
+        ExposureSummary summary = new ExposureSummary(List.of(), thresholds);
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("SELECT INDICATOR, GROUP_COLUMN, GROUP_VALUE, SKETCH FROM " + table + " ORDER BY PK")) {
+            while (rs.next()) {
+                int indicator = Arrays.asList(INDICATORS).indexOf(rs.getString(1));
+                if (indicator >= 0) {
+                    summary.group(rs.getString(2), rs.getString(3)).sketches[indicator] = Sketch.unpack(rs.getBytes(4));
+                }
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Same content as the table, the histograms as the first non empty bin lower level and the bin counts from it.
+     */
+    void writeJson(Path jsonFile) throws IOException {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Group group : groups.values()) {
+            for (int i = 0; i < INDICATORS.length; i++) {
+                Sketch sketch = group.sketches[i];
+                Map<String, Object> row = new LinkedHashMap<>();
+                row.put("indicator", INDICATORS[i]);
+                row.put("column", group.column);
+                row.put("value", group.value);
+                row.put("persons", sketch.persons);
+                row.put("noLevel", sketch.noLevel);
+                row.put("meanLevel", round(sketch.meanLevel()));
+                Map<String, Object> percentiles = new LinkedHashMap<>();
+                for (double percentile : PERCENTILES) {
+                    percentiles.put(format(percentile), round(sketch.quantile(percentile / 100)));
+                }
+                row.put("percentiles", percentiles);
+                Map<String, Object> above = new LinkedHashMap<>();
+                for (double threshold : thresholds) {
+                    above.put(format(threshold), round(sketch.shareAbove(threshold)));
+                }
+                row.put("above", above);
+                int first = sketch.firstBin();
+                int last = sketch.lastBin();
+                row.put("histogramStart", last >= first ? round(first * Sketch.RESOLUTION) : null);
+                row.put("histogram", last >= first ? Arrays.copyOfRange(sketch.counts, first, last + 1) : new long[0]);
+                rows.add(row);
+            }
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("resolution", Sketch.RESOLUTION);
+        report.put("groups", rows);
+        Files.createDirectories(jsonFile.toAbsolutePath().getParent());
+        Files.writeString(jsonFile, JsonOutput.prettyPrint(JsonOutput.toJson(report)));
+    }
+
+    static Double round(double value) {
+        return Double.isNaN(value) ? null : Math.round(value * 10000) / 10000.0;
+    }
+
+}
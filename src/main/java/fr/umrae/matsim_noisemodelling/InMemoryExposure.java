@@ -0,0 +1,237 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.Sql;
+import org.h2gis.utilities.JDBCUtilities;
+import org.h2gis.utilities.TableLocation;
+import org.h2gis.utilities.Tuple;
+import org.locationtech.jts.geom.Geometry;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * In-memory alternative to Agent_Exposure, taking the same main parameters.
+ * The noise map table is loaded once in a {@link ReceiverLevelStore}, the facilities are resolved to store rows, then
+ * the persons are streamed from the experienced plans file in batches computed on several threads. The exposure of a
+ * person is the energetic mean of the levels of the receivers of its activities over the time spent at them, within
+ * [timeBinMin, timeBinMax). Travel time has no receiver and is not part of it. With an {@link ExposureSummary} in the
+ * "summary" parameter, the written exposures are added to it in the same pass. With a {@link VisitedFacilities} in the
+ * "studied" parameter, only its studied persons are computed and written.
+ */
+class InMemoryExposure {
+
+    static final int BATCH_SIZE = 1024;
+
+    static class Exposure {
+        final String personId;
+        final String homeFacility;
+        final Geometry homeGeom;
+        final double laeq;
+        final double homeLaeq;
+        final double exposedTime;
+
+        Exposure(String personId, String homeFacility, Geometry homeGeom, double laeq, double homeLaeq, double exposedTime) {
+            this.personId = personId;
+            this.homeFacility = homeFacility;
+            this.homeGeom = homeGeom;
+            this.laeq = laeq;
+            this.homeLaeq = homeLaeq;
+            this.exposedTime = exposedTime;
+        }
+    }
+
+    ReceiverLevelStore store;
+    // store row and receiver geometry of each facility
+    final Map<String, Integer> rowByFacility = new HashMap<>();
+    final Map<String, Geometry> geomByFacility = new HashMap<>();
+    ExposureSummary summary = null;
+    VisitedFacilities studied = null;
+
+    public Object exec(Connection connection, Map<String, Object> input) throws SQLException, IOException {
+        String experiencedPlansFile = input.get("experiencedPlansFile").toString();
+        String receiversTable = input.get("receiversTable").toString();
+        String outTableName = input.get("outTableName").toString();
+        String dataTable = input.get("dataTable").toString();
+        int timeBinSize = Integer.parseInt(input.getOrDefault("timeBinSize", 900).toString());
+        int timeBinMin = Integer.parseInt(input.getOrDefault("timeBinMin", 0).toString());
+        int timeBinMax = Integer.parseInt(input.getOrDefault("timeBinMax", 86400).toString());
+        int threads = Integer.parseInt(input.getOrDefault("threads", Runtime.getRuntime().availableProcessors()).toString());
+        boolean prefixSums = Boolean.parseBoolean(input.getOrDefault("prefixSums", false).toString());
+        summary = (ExposureSummary) input.get("summary");
+        studied = (VisitedFacilities) input.get("studied");
+
+        long start = System.currentTimeMillis();
+        store = ReceiverLevelStore.load(connection, dataTable, timeBinSize, timeBinMin, timeBinMax, prefixSums);
+        loadFacilities(connection, receiversTable);
+
+        Sql sql = new Sql(connection);
+        sql.execute(String.format("DROP TABLE %s IF EXISTS", outTableName));
+        sql.execute("CREATE TABLE " + outTableName + " (" +
+                "PK INTEGER PRIMARY KEY AUTO_INCREMENT, " +
+                "PERSON_ID VARCHAR, " +
+                "HOME_FACILITY VARCHAR, " +
+                "HOME_GEOM GEOMETRY, " +
+                "LAEQ DOUBLE PRECISION, " +
+                "HOME_LAEQ DOUBLE PRECISION, " +
+                "DIFF_LAEQ DOUBLE PRECISION, " +
+                "EXPOSED_TIME DOUBLE PRECISION" +
+                ")");
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        // batches in submission order, the oldest is written once enough are queued so that memory stays bounded
+        Deque<Future<List<Exposure>>> pending = new ArrayDeque<>();
+        long persons = 0;
+        long skipped = 0;
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (ExperiencedPlansReader reader = new ExperiencedPlansReader(Paths.get(experiencedPlansFile));
+             PreparedStatement insert = connection.prepareStatement("INSERT INTO " + outTableName +
+                     " (PERSON_ID, HOME_FACILITY, HOME_GEOM, LAEQ, HOME_LAEQ, DIFF_LAEQ, EXPOSED_TIME) VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            List<ExperiencedPlansReader.Person> batch = new ArrayList<>(BATCH_SIZE);
+            ExperiencedPlansReader.Person person;
+            while ((person = reader.next()) != null) {
+                if (studied != null && !studied.studied(person)) {
+                    skipped++;
+                    continue;
+                }
+                batch.add(person);
+                persons++;
+                if (batch.size() == BATCH_SIZE) {
+                    List<ExperiencedPlansReader.Person> submitted = batch;
+                    pending.add(executor.submit(() -> exposures(submitted)));
+                    batch = new ArrayList<>(BATCH_SIZE);
+                    if (pending.size() > threads * 2) {
+                        writeBatch(insert, pending.poll().get());
+                        connection.commit();
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                List<ExperiencedPlansReader.Person> submitted = batch;
+                pending.add(executor.submit(() -> exposures(submitted)));
+            }
+            while (!pending.isEmpty()) {
+                writeBatch(insert, pending.poll().get());
+            }
+            connection.commit();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Exposure computation interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Exposure computation failed : " + e.getCause().getMessage(), e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+            connection.setAutoCommit(autoCommit);
+        }
+        System.out.println("In-memory exposure of " + persons + " persons computed in " + (System.currentTimeMillis() - start) + " ms"
+                + (skipped > 0 ? ", " + skipped + " persons not studied skipped" : ""));
+        return "Table " + outTableName + " created";
+    }
+
+    void loadFacilities(Connection connection, String receiversTable) throws SQLException {
+        Tuple<String, Integer> pk = JDBCUtilities.getIntegerPrimaryKeyNameAndIndex(connection, TableLocation.parse(receiversTable));
+        String pkColumn = pk != null ? pk.first() : "PK";
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("SELECT " + pkColumn + ", FACILITY, THE_GEOM FROM " + receiversTable)) {
+            while (rs.next()) {
+                String facility = rs.getString(2);
+                int row = store.row(rs.getInt(1));
+                if (facility == null) {
+                    continue;
+                }
+                rowByFacility.put(facility, row);
+                geomByFacility.put(facility, (Geometry) rs.getObject(3));
+            }
+        }
+    }
+
+    List<Exposure> exposures(List<ExperiencedPlansReader.Person> persons) {
+        List<Exposure> exposures = new ArrayList<>(persons.size());
+        for (ExperiencedPlansReader.Person person : persons) {
+            exposures.add(exposure(person));
+        }
+        return exposures;
+    }
+
+    Exposure exposure(ExperiencedPlansReader.Person person) {
+        double energy = 0;
+        double time = 0;
+        String homeFacility = null;
+        for (ExperiencedPlansReader.Activity activity : person.activities) {
+            if (homeFacility == null && activity.type != null && activity.type.startsWith("home")) {
+                homeFacility = activity.facility;
+            }
+            Integer row = activity.facility == null ? null : rowByFacility.get(activity.facility);
+            if (row == null || row < 0) {
+                continue;
+            }
+            double start = Math.max(activity.startTime, store.timeBinMin);
+            double end = Math.min(activity.endTime, store.timeBinMax);
+            if (end > start) {
+                energy += store.energy(row, start, end);
+                time += end - start;
+            }
+        }
+        double homeLaeq = Double.NaN;
+        Integer homeRow = homeFacility == null ? null : rowByFacility.get(homeFacility);
+        if (homeRow != null && homeRow >= 0) {
+            homeLaeq = level(store.energy(homeRow, store.timeBinMin, store.timeBinMax), store.timeBinMax - store.timeBinMin);
+        }
+        return new Exposure(person.id, homeFacility, homeFacility == null ? null : geomByFacility.get(homeFacility),
+                level(energy, time), homeLaeq, time);
+    }
+
+    /**
+     * Energetic mean level in dB, NaN without time or energy.
+     */
+    static double level(double energy, double time) {
+        return time > 0 && energy > 0 ? 10 * Math.log10(energy / time) : Double.NaN;
+    }
+
+    void writeBatch(PreparedStatement insert, List<Exposure> exposures) throws SQLException {
+        write(insert, exposures);
+        if (summary != null) {
+            for (Exposure exposure : exposures) {
+                summary.add(exposure.personId, exposure.laeq, exposure.homeLaeq);
+            }
+        }
+    }
+
+    static void write(PreparedStatement insert, List<Exposure> exposures) throws SQLException {
+        for (Exposure exposure : exposures) {
+            insert.setString(1, exposure.personId);
+            insert.setString(2, exposure.homeFacility);
+            insert.setObject(3, exposure.homeGeom);
+            setLevel(insert, 4, exposure.laeq);
+            setLevel(insert, 5, exposure.homeLaeq);
+            setLevel(insert, 6, exposure.laeq - exposure.homeLaeq);
+            insert.setDouble(7, exposure.exposedTime);
+            insert.addBatch();
+        }
+        insert.executeBatch();
+    }
+
+    static void setLevel(PreparedStatement insert, int index, double level) throws SQLException {
+        if (Double.isNaN(level)) {
+            insert.setNull(index, Types.DOUBLE);
+        }
+        else {
+            insert.setDouble(index, level);
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.Sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Spatial pre-filter of the propagation inputs. A source contributes to a receiver within maxSrcDist only, so a source
+ * further than maxSrcDist from every receiver contributes nothing, and a receiver further than maxSrcDist from every
+ * source gets no level. The walls of a path are within maxReflDist of the source - receiver segment, so a building
+ * further than maxSrcDist + maxReflDist from every source is on no path. The kept rows are copied with their columns
+ * and primary key, so that the later stages only scan and index the influence zone.
+ */
+class InfluenceZone {
+
+    /**
+     * Copies the rows of table whose THE_GEOM is within distance of a THE_GEOM of referenceTable to outTable.
+     */
+    static void withinDistance(Connection connection, String table, String referenceTable, double distance, String outTable) throws SQLException {
+        long start = System.currentTimeMillis();
+        RunCli.ensureIndex(connection, referenceTable, "THE_GEOM", true);
+        String pk = Tiling.primaryKey(connection, table);
+        Sql sql = new Sql(connection);
+        sql.execute("DROP TABLE IF EXISTS " + outTable);
+        sql.execute("CREATE TABLE " + outTable + " AS SELECT T.* FROM " + table + " T WHERE EXISTS (SELECT 1 FROM " + referenceTable + " R" +
+                " WHERE R.THE_GEOM && ST_Expand(T.THE_GEOM, " + distance + ", " + distance + ")" +
+                " AND ST_DWithin(R.THE_GEOM, T.THE_GEOM, " + distance + "))" + (pk != null ? " ORDER BY T." + pk : ""));
+        if (pk != null) {
+            sql.execute("ALTER TABLE " + outTable + " ALTER COLUMN " + pk + " SET NOT NULL");
+            sql.execute("ALTER TABLE " + outTable + " ADD PRIMARY KEY (" + pk + ")");
+        }
+        RunCli.ensureIndex(connection, outTable, "THE_GEOM", true);
+        report(count(connection, table), count(connection, outTable), table, referenceTable, distance, start);
+    }
+
+    /**
+     * Deletes the rows of table whose THE_GEOM is not within distance of a THE_GEOM of referenceTable.
+     */
+    static void deleteBeyond(Connection connection, String table, String referenceTable, double distance) throws SQLException {
+        long start = System.currentTimeMillis();
+        RunCli.ensureIndex(connection, referenceTable, "THE_GEOM", true);
+        long rows = count(connection, table);
+        new Sql(connection).execute("DELETE FROM " + table + " T WHERE NOT EXISTS (SELECT 1 FROM " + referenceTable + " R" +
+                " WHERE R.THE_GEOM && ST_Expand(T.THE_GEOM, " + distance + ", " + distance + ")" +
+                " AND ST_DWithin(R.THE_GEOM, T.THE_GEOM, " + distance + "))");
+        report(rows, count(connection, table), table, referenceTable, distance, start);
+    }
+
+    static long count(Connection connection, String table) throws SQLException {
+        return ((Number) new Sql(connection).firstRow("SELECT COUNT(*) N FROM " + table).get("N")).longValue();
+    }
+
+    static void report(long rows, long kept, String table, String referenceTable, double distance, long start) {
+        System.out.println(String.format("Influence zone : %d of %d %s within %.0f m of %s (%.1f %% pruned) in %d ms",
+                kept, rows, table, distance, referenceTable, rows == 0 ? 0.0 : 100.0 * (rows - kept) / rows,
+                System.currentTimeMillis() - start));
+    }
+
+}
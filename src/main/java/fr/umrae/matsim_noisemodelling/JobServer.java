@@ -0,0 +1,416 @@
+package fr.umrae.matsim_noisemodelling;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import groovy.json.JsonOutput;
+import groovy.json.JsonSlurper;
+import org.h2.Driver;
+import org.h2gis.functions.factory.H2GISFunctions;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Long-lived server running the same jobs as RunCli --conf, to save the JVM, Groovy, H2, H2GIS and NoiseModelling
+ * start up of every run of a scenario sweep. Jobs are submitted over HTTP on the loopback interface :
+ * <ul>
+ *     <li>POST /jobs with the properties of a config file as body : queues a job, returns its id</li>
+ *     <li>GET /jobs : status of every job</li>
+ *     <li>GET /jobs/{id} : status of a job, with the stage metrics of its run_metrics.json once written</li>
+ *     <li>GET /jobs/{id}/log : output of the job</li>
+ *     <li>POST /shutdown : stops the server once the submitted jobs are done</li>
+ * </ul>
+ * At most maxJobs jobs run at the same time, and the jobs of a same database one after the other. The libraries stay
+ * loaded by the server class loader, while the classes of this project are loaded again for each job, so that the
+ * settings that RunCli stores in static fields are not shared by the jobs. The H2 databases of the jobs are kept open
+ * by the server between jobs. Each job has a folder holding its config file and its log.
+ */
+class JobServer {
+
+    static final String PACKAGE = JobServer.class.getPackageName() + ".";
+
+    enum State { QUEUED, RUNNING, SUCCEEDED, FAILED }
+
+    static class Job {
+        final int id;
+        final Path folder;
+        final Properties properties;
+        final long submittedAt = System.currentTimeMillis();
+        volatile State state = State.QUEUED;
+        volatile long startedAt;
+        volatile long finishedAt;
+        volatile String error;
+
+        Job(int id, Path folder, Properties properties) {
+            this.id = id;
+            this.folder = folder;
+            this.properties = properties;
+        }
+
+        Path configFile() {
+            return folder.resolve("job.properties");
+        }
+
+        Path logFile() {
+            return folder.resolve("job.log");
+        }
+
+        Path metricsFile() {
+            String resultsFolder = properties.getProperty("RESULTS_DIR");
+            return resultsFolder == null ? null : Paths.get(resultsFolder, "run_metrics.json");
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("id", id);
+            map.put("state", state.name());
+            map.put("compute", properties.getProperty("COMPUTE", "exposure"));
+            map.put("database", properties.getProperty("DB_NAME"));
+            map.put("submittedAt", submittedAt);
+            map.put("startedAt", startedAt > 0 ? startedAt : null);
+            map.put("finishedAt", finishedAt > 0 ? finishedAt : null);
+            map.put("durationMillis", finishedAt > 0 ? finishedAt - startedAt : null);
+            map.put("error", error);
+            return map;
+        }
+    }
+
+    final Path folder;
+    final int maxJobs;
+    final AtomicInteger lastId = new AtomicInteger();
+    final Map<Integer, Job> jobs = new ConcurrentSkipListMap<>();
+    final Map<String, ReentrantLock> databaseLocks = new ConcurrentHashMap<>();
+    final Map<String, Connection> openDatabases = new ConcurrentHashMap<>();
+    final ExecutorService executor;
+    final CountDownLatch stopped = new CountDownLatch(1);
+    HttpServer server;
+
+    JobServer(Path folder, int maxJobs) {
+        this.folder = folder;
+        this.maxJobs = Math.max(1, maxJobs);
+        this.executor = Executors.newFixedThreadPool(this.maxJobs);
+    }
+
+    /**
+     * Serves the job API on the loopback interface until POST /shutdown.
+     * @param port listened port, 0 for any free port
+     */
+    void start(int port) throws IOException {
+        Files.createDirectories(folder);
+        JobOutput.install();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/jobs", this::handleJobs);
+        server.createContext("/shutdown", exchange -> {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                reply(exchange, 405, "text/plain", "POST only");
+                return;
+            }
+            reply(exchange, 202, "application/json", JsonOutput.toJson(Map.of("state", "STOPPING")));
+            new Thread(this::stop, "job-server-stop").start();
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor());
+        server.start();
+        System.out.println("Job server listening on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() +
+                "/jobs, " + maxJobs + " jobs at a time, job folders in " + folder.toAbsolutePath());
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    void stop() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdown();
+        for (Connection connection : openDatabases.values()) {
+            try {
+                connection.close();
+            }
+            catch (SQLException e) {
+                System.out.println("Cannot close a database : " + e.getMessage());
+            }
+        }
+        openDatabases.clear();
+        System.out.println("Job server stopped");
+        stopped.countDown();
+    }
+
+    void handleJobs(HttpExchange exchange) throws IOException {
+        try {
+            String[] path = exchange.getRequestURI().getPath().replaceAll("/+$", "").split("/");
+            String method = exchange.getRequestMethod();
+            if (path.length == 2 && method.equals("POST")) {
+                Properties properties = new Properties();
+                try (Reader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+                    properties.load(reader);
+                }
+                if (properties.getProperty("DB_NAME") == null || properties.getProperty("RESULTS_DIR") == null) {
+                    reply(exchange, 400, "text/plain", "DB_NAME and RESULTS_DIR are required");
+                    return;
+                }
+                Job job = submit(properties);
+                reply(exchange, 202, "application/json", JsonOutput.toJson(job.toMap()));
+            }
+            else if (path.length == 2 && method.equals("GET")) {
+                List<Map<String, Object>> list = new ArrayList<>();
+                for (Job job : jobs.values()) {
+                    list.add(job.toMap());
+                }
+                reply(exchange, 200, "application/json", JsonOutput.toJson(list));
+            }
+            else if ((path.length == 3 || path.length == 4) && method.equals("GET")) {
+                Job job = jobs.get(Integer.parseInt(path[2]));
+                if (job == null) {
+                    reply(exchange, 404, "text/plain", "No job " + path[2]);
+                }
+                else if (path.length == 4 && path[3].equals("log")) {
+                    reply(exchange, 200, "text/plain", Files.exists(job.logFile()) ? Files.readString(job.logFile()) : "");
+                }
+                else if (path.length == 3) {
+                    Map<String, Object> status = job.toMap();
+                    status.put("metrics", metrics(job));
+                    reply(exchange, 200, "application/json", JsonOutput.toJson(status));
+                }
+                else {
+                    reply(exchange, 404, "text/plain", "Unknown path " + exchange.getRequestURI().getPath());
+                }
+            }
+            else {
+                reply(exchange, 404, "text/plain", "Unknown request " + method + " " + exchange.getRequestURI().getPath());
+            }
+        }
+        catch (NumberFormatException e) {
+            reply(exchange, 400, "text/plain", "Invalid job id : " + e.getMessage());
+        }
+        catch (RejectedExecutionException e) {
+            reply(exchange, 503, "text/plain", "The server is stopping");
+        }
+    }
+
+    static void reply(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    Job submit(Properties properties) throws IOException {
+        int id = lastId.incrementAndGet();
+        Job job = new Job(id, folder.resolve("job_" + id), properties);
+        Files.createDirectories(job.folder);
+        try (Writer writer = Files.newBufferedWriter(job.configFile(), StandardCharsets.UTF_8)) {
+            properties.store(writer, "job " + id);
+        }
+        jobs.put(id, job);
+        try {
+            executor.execute(() -> run(job));
+        }
+        catch (RejectedExecutionException e) {
+            jobs.remove(id);
+            throw e;
+        }
+        return job;
+    }
+
+    /**
+     * Runs RunCli on the job config file, with the project classes of a new class loader and the job output in its log.
+     */
+    void run(Job job) {
+        String database = databaseUrl(job.properties.getProperty("DB_NAME"));
+        ReentrantLock lock = databaseLocks.computeIfAbsent(database, key -> new ReentrantLock());
+        lock.lock();
+        job.startedAt = System.currentTimeMillis();
+        job.state = State.RUNNING;
+        System.out.println("Job " + job.id + " started");
+        try (PrintStream log = new PrintStream(new FileOutputStream(job.logFile().toFile()), true, StandardCharsets.UTF_8);
+             URLClassLoader loader = new JobClassLoader(JobServer.class.getClassLoader())) {
+            keepOpen(database);
+            JobOutput.redirect(log);
+            Class<?> cli = Class.forName(RunCli.class.getName(), true, loader);
+            cli.getMethod("main", String[].class).invoke(null, (Object) new String[]{"--conf", job.configFile().toString()});
+            Path metricsFile = job.metricsFile();
+            // RunCli reports the invalid settings and returns without running the pipeline
+            if (!Files.exists(metricsFile) || Files.getLastModifiedTime(metricsFile).toMillis() < job.startedAt) {
+                throw new IllegalStateException("No pipeline was run, see the job log");
+            }
+            job.state = State.SUCCEEDED;
+        }
+        catch (InvocationTargetException e) {
+            fail(job, e.getCause());
+        }
+        catch (Exception | LinkageError e) {
+            fail(job, e);
+        }
+        finally {
+            JobOutput.redirect(null);
+            job.finishedAt = System.currentTimeMillis();
+            lock.unlock();
+        }
+        System.out.println("Job " + job.id + " " + job.state.name().toLowerCase() + " in " + (job.finishedAt - job.startedAt) + " ms"
+                + (job.error != null ? " : " + job.error : ""));
+    }
+
+    static void fail(Job job, Throwable e) {
+        job.error = e.getClass().getSimpleName() + (e.getMessage() != null ? " : " + e.getMessage() : "");
+        job.state = State.FAILED;
+        try (PrintWriter log = new PrintWriter(new FileWriter(job.logFile().toFile(), StandardCharsets.UTF_8, true))) {
+            e.printStackTrace(log);
+        }
+        catch (IOException ignored) {
+            // the error is still in the job status
+        }
+    }
+
+    /**
+     * Same URL as the RunCompute classes, so that the jobs open the database already opened by the server.
+     */
+    static String databaseUrl(String dbName) {
+        return "jdbc:h2:" + new File(URI.create(dbName.replace("\\", "/"))).getAbsolutePath() + ";AUTO_SERVER=TRUE";
+    }
+
+    /**
+     * Opens the database once for the life of the server : H2 keeps it open and the next jobs connect to it at once.
+     */
+    void keepOpen(String database) throws SQLException {
+        if (openDatabases.containsKey(database)) {
+            return;
+        }
+        Driver.load();
+        Connection connection = DriverManager.getConnection(database, "", "");
+        H2GISFunctions.load(connection);
+        openDatabases.put(database, connection);
+    }
+
+    Object metrics(Job job) throws IOException {
+        Path metricsFile = job.metricsFile();
+        if (job.startedAt == 0 || metricsFile == null || !Files.exists(metricsFile)
+                || Files.getLastModifiedTime(metricsFile).toMillis() < job.startedAt) {
+            return null;
+        }
+        try {
+            return new JsonSlurper().parseText(Files.readString(metricsFile));
+        }
+        catch (RuntimeException e) {
+            // being written by the job
+            return null;
+        }
+    }
+
+    /**
+     * Loads the classes of this project itself, and delegates the other classes to the server class loader.
+     */
+    static class JobClassLoader extends URLClassLoader {
+
+        JobClassLoader(ClassLoader parent) {
+            super(new URL[]{JobServer.class.getProtectionDomain().getCodeSource().getLocation()}, parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith(PACKAGE)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded == null) {
+                    try {
+                        loaded = findClass(name);
+                    }
+                    catch (ClassNotFoundException e) {
+                        loaded = super.loadClass(name, false);
+                    }
+                }
+                if (resolve) {
+                    resolveClass(loaded);
+                }
+                return loaded;
+            }
+        }
+    }
+
+    /**
+     * System.out and System.err replacement writing to the log of the job run by the current thread, or of the job
+     * that started it, and to the server output otherwise.
+     */
+    static class JobOutput extends OutputStream {
+
+        static final InheritableThreadLocal<PrintStream> LOG = new InheritableThreadLocal<>();
+
+        final PrintStream server;
+
+        JobOutput(PrintStream server) {
+            this.server = server;
+        }
+
+        static synchronized void install() {
+            if (!(System.out instanceof Routed)) {
+                System.setOut(new Routed(new JobOutput(System.out)));
+                System.setErr(new Routed(new JobOutput(System.err)));
+            }
+        }
+
+        static void redirect(PrintStream log) {
+            if (log == null) {
+                LOG.remove();
+            }
+            else {
+                LOG.set(log);
+            }
+        }
+
+        PrintStream target() {
+            PrintStream log = LOG.get();
+            return log != null ? log : server;
+        }
+
+        @Override
+        public void write(int b) {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            target().write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() {
+            target().flush();
+        }
+
+        static class Routed extends PrintStream {
+            Routed(JobOutput out) {
+                super(out, true, StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,336 @@
+package fr.umrae.matsim_noisemodelling;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.operation.union.CascadedPolygonUnion;
+
+import java.sql.*;
+import java.time.LocalTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * In-memory alternative to Create_Isosurface run once per time bin. The Delaunay triangles and their receivers are
+ * loaded once, then each time bin only needs the LEQA of every receiver : every triangle is cut into the parts lying
+ * in each iso class, the levels being linearly interpolated along its edges, and the parts of a class are merged per
+ * triangle cell. Bins are contoured on several threads and written in time order with batched inserts, in the
+ * CONTOURING_NOISE_MAP columns (CELL_ID, THE_GEOM, ISOLVL, ISOLABEL) plus TIME and TIME_DATE.
+ * Unlike Create_Isosurface, the iso lines are not smoothed.
+ */
+class MeshContouring {
+
+    // same classes as Create_Isosurface : below 35 dB, 35-40 dB ... 80-200 dB
+    static final double[] ISO_LEVELS = {35, 40, 45, 50, 55, 60, 65, 70, 75, 80, 200};
+
+    final double[] isoLevels;
+    final String[] isoLabels;
+    final int threads;
+
+    // receiver row of each id, coordinates of each row
+    int[] rowById = new int[0];
+    int receiverCount = 0;
+    double[] x = new double[1024];
+    double[] y = new double[1024];
+    // receiver rows of the triangle t at 3 * t, 3 * t + 1 and 3 * t + 2
+    int triangleCount = 0;
+    int[] vertices = new int[3 * 1024];
+    int[] cellIds = new int[1024];
+    GeometryFactory factory = new GeometryFactory();
+
+    MeshContouring(double[] isoLevels, int threads) {
+        this.isoLevels = isoLevels;
+        this.threads = Math.max(1, threads);
+        isoLabels = new String[isoLevels.length];
+        for (int k = 0; k < isoLevels.length; k++) {
+            isoLabels[k] = k == 0 ? "< " + label(isoLevels[0])
+                    : k == isoLevels.length - 1 ? "> " + label(isoLevels[k - 1])
+                    : label(isoLevels[k - 1]) + "-" + label(isoLevels[k]);
+        }
+    }
+
+    static String label(double level) {
+        return level == Math.rint(level) ? Long.toString((long) level) : Double.toString(level);
+    }
+
+    /**
+     * Contours the LEQA of dataTable (IDRECEIVER, TIME, LEQA) on the triangles (PK_1, PK_2, PK_3, CELL_ID) of the
+     * receivers (PK, THE_GEOM), for the bins from timeBinMin to timeBinMax, into the existing resultTable.
+     */
+    void run(Connection connection, String receiversTable, String trianglesTable, String dataTable, String resultTable,
+             int timeBinSize, int timeBinMin, int timeBinMax) throws SQLException {
+        long start = System.currentTimeMillis();
+        loadMesh(connection, receiversTable, trianglesTable);
+        int bins = Math.max(0, (timeBinMax - timeBinMin + timeBinSize - 1) / timeBinSize);
+        float[][] levels = loadLevels(connection, dataTable, timeBinSize, timeBinMin, bins);
+        System.out.println("Contouring mesh loaded : " + receiverCount + " receivers, " + triangleCount + " triangles, "
+                + bins + " time bins in " + (System.currentTimeMillis() - start) + " ms");
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Deque<Future<Map<Long, Geometry>>> pending = new ArrayDeque<>();
+        long polygons = 0;
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + resultTable +
+                " (CELL_ID, THE_GEOM, ISOLVL, ISOLABEL, TIME, TIME_DATE) VALUES (?, ?, ?, ?, ?, ?)")) {
+            int written = 0;
+            for (int bin = 0; bin < bins || !pending.isEmpty(); ) {
+                // bins are written in order, with a bounded number contoured ahead
+                if (bin < bins && pending.size() < threads * 2) {
+                    float[] binLevels = levels[bin];
+                    pending.add(executor.submit(() -> contour(binLevels)));
+                    bin++;
+                    continue;
+                }
+                int time = timeBinMin + written * timeBinSize;
+                polygons += write(insert, pending.poll().get(), time);
+                connection.commit();
+                written++;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Contouring interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw new SQLException("Contouring failed : " + e.getCause().getMessage(), e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+            connection.setAutoCommit(autoCommit);
+        }
+        System.out.println("Contouring of " + bins + " time bins : " + polygons + " polygons in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    void loadMesh(Connection connection, String receiversTable, String trianglesTable) throws SQLException {
+        try (Statement st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            st.setFetchSize(10000);
+            try (ResultSet rs = st.executeQuery("SELECT PK, THE_GEOM FROM " + receiversTable)) {
+                while (rs.next()) {
+                    Geometry geometry = (Geometry) rs.getObject(2);
+                    if (factory.getSRID() == 0 && geometry.getSRID() != 0) {
+                        factory = new GeometryFactory(geometry.getPrecisionModel(), geometry.getSRID());
+                    }
+                    Coordinate coordinate = geometry.getCoordinate();
+                    int row = addReceiver(rs.getInt(1));
+                    x[row] = coordinate.x;
+                    y[row] = coordinate.y;
+                }
+            }
+            try (ResultSet rs = st.executeQuery("SELECT PK_1, PK_2, PK_3, CELL_ID FROM " + trianglesTable)) {
+                while (rs.next()) {
+                    if (triangleCount == cellIds.length) {
+                        cellIds = Arrays.copyOf(cellIds, triangleCount * 2);
+                        vertices = Arrays.copyOf(vertices, triangleCount * 6);
+                    }
+                    for (int v = 0; v < 3; v++) {
+                        int id = rs.getInt(1 + v);
+                        vertices[3 * triangleCount + v] = id >= 0 && id < rowById.length ? rowById[id] : -1;
+                    }
+                    cellIds[triangleCount] = rs.getInt(4);
+                    triangleCount++;
+                }
+            }
+        }
+    }
+
+    int addReceiver(int receiverId) {
+        if (receiverId >= rowById.length) {
+            int length = rowById.length;
+            rowById = Arrays.copyOf(rowById, Math.max(receiverId + 1, Math.max(1024, length * 2)));
+            Arrays.fill(rowById, length, rowById.length, -1);
+        }
+        if (receiverCount == x.length) {
+            x = Arrays.copyOf(x, receiverCount * 2);
+            y = Arrays.copyOf(y, receiverCount * 2);
+        }
+        rowById[receiverId] = receiverCount;
+        return receiverCount++;
+    }
+
+    /**
+     * LEQA of every receiver row per bin, NaN where the receiver has no level. A noise map in the wide layout is read
+     * from its wide table, one row per receiver.
+     */
+    float[][] loadLevels(Connection connection, String dataTable, int timeBinSize, int timeBinMin, int bins) throws SQLException {
+        float[][] levels = new float[bins][receiverCount];
+        for (float[] binLevels : levels) {
+            Arrays.fill(binLevels, Float.NaN);
+        }
+        WideLayout wideLayout = WideLayout.of(connection, dataTable);
+        try (Statement st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            st.setFetchSize(10000);
+            if (wideLayout != null) {
+                try (ResultSet rs = st.executeQuery("SELECT IDRECEIVER, LEQA FROM " + wideLayout.wideTable)) {
+                    while (rs.next()) {
+                        byte[] packed = rs.getBytes(2);
+                        if (packed == null) {
+                            continue;
+                        }
+                        float[] receiverLevels = WideLayout.unpack(packed);
+                        for (int bin = 0; bin < receiverLevels.length && bin < wideLayout.times.length; bin++) {
+                            setLevel(levels, rs.getInt(1), wideLayout.times[bin], receiverLevels[bin], timeBinSize, timeBinMin);
+                        }
+                    }
+                }
+                return levels;
+            }
+            try (ResultSet rs = st.executeQuery("SELECT IDRECEIVER, TIME, LEQA FROM " + dataTable)) {
+                while (rs.next()) {
+                    double level = rs.getDouble(3);
+                    setLevel(levels, rs.getInt(1), rs.getInt(2), rs.wasNull() ? Float.NaN : (float) level, timeBinSize, timeBinMin);
+                }
+            }
+        }
+        return levels;
+    }
+
+    void setLevel(float[][] levels, int id, int time, float level, int timeBinSize, int timeBinMin) {
+        if (Float.isNaN(level) || id < 0 || id >= rowById.length || rowById[id] < 0 || time < timeBinMin
+                || (time - timeBinMin) % timeBinSize != 0 || (time - timeBinMin) / timeBinSize >= levels.length) {
+            return;
+        }
+        levels[(time - timeBinMin) / timeBinSize][rowById[id]] = level;
+    }
+
+    /**
+     * Iso class polygons of one time bin, merged per cell, keyed by cell * 2^8 + iso class in ascending order.
+     */
+    Map<Long, Geometry> contour(float[] levels) {
+        Map<Long, List<Geometry>> parts = new TreeMap<>();
+        double[] px = new double[3];
+        double[] py = new double[3];
+        double[] pv = new double[3];
+        for (int t = 0; t < triangleCount; t++) {
+            boolean complete = true;
+            for (int v = 0; v < 3; v++) {
+                int row = vertices[3 * t + v];
+                if (row < 0 || Float.isNaN(levels[row])) {
+                    complete = false;
+                    break;
+                }
+                px[v] = x[row];
+                py[v] = y[row];
+                pv[v] = levels[row];
+            }
+            if (!complete) {
+                continue;
+            }
+            double min = Math.min(pv[0], Math.min(pv[1], pv[2]));
+            double max = Math.max(pv[0], Math.max(pv[1], pv[2]));
+            int lowest = isoClass(min);
+            int highest = isoClass(max);
+            for (int k = lowest; k <= highest && k < isoLevels.length; k++) {
+                double low = k == 0 ? Double.NEGATIVE_INFINITY : isoLevels[k - 1];
+                // a triangle within a single class is kept whole
+                Polygon part = lowest == highest ? triangle(px, py) : clip(px, py, pv, low, isoLevels[k]);
+                if (part != null) {
+                    parts.computeIfAbsent(((long) cellIds[t] << 8) | k, key -> new ArrayList<>()).add(part);
+                }
+            }
+        }
+        Map<Long, Geometry> contours = new TreeMap<>();
+        for (Map.Entry<Long, List<Geometry>> cellClass : parts.entrySet()) {
+            contours.put(cellClass.getKey(), CascadedPolygonUnion.union(cellClass.getValue()));
+        }
+        return contours;
+    }
+
+    /**
+     * @return the iso class of a level, isoLevels.length above the last level
+     */
+    int isoClass(double level) {
+        for (int k = 0; k < isoLevels.length; k++) {
+            if (level < isoLevels[k]) {
+                return k;
+            }
+        }
+        return isoLevels.length;
+    }
+
+    Polygon triangle(double[] px, double[] py) {
+        return polygon(px, py, 3);
+    }
+
+    /**
+     * Part of the triangle where the interpolated level is in [low, high), null if empty.
+     */
+    Polygon clip(double[] px, double[] py, double[] pv, double low, double high) {
+        double[][] above = clip(new double[][]{px, py, pv}, 3, low, true);
+        int count = above[0].length;
+        if (count < 3) {
+            return null;
+        }
+        double[][] inside = clip(above, count, high, false);
+        return inside[0].length < 3 ? null : polygon(inside[0], inside[1], inside[0].length);
+    }
+
+    /**
+     * Sutherland-Hodgman clipping of a convex polygon on the level, keeping level >= threshold or level < threshold.
+     */
+    static double[][] clip(double[][] polygon, int count, double threshold, boolean keepAbove) {
+        double[] cx = new double[count + 2];
+        double[] cy = new double[count + 2];
+        double[] cv = new double[count + 2];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            int j = (i + 1) % count;
+            double va = polygon[2][i];
+            double vb = polygon[2][j];
+            boolean inA = keepAbove ? va >= threshold : va < threshold;
+            boolean inB = keepAbove ? vb >= threshold : vb < threshold;
+            if (inA) {
+                cx[n] = polygon[0][i];
+                cy[n] = polygon[1][i];
+                cv[n++] = va;
+            }
+            if (inA != inB) {
+                double f = (threshold - va) / (vb - va);
+                cx[n] = polygon[0][i] + f * (polygon[0][j] - polygon[0][i]);
+                cy[n] = polygon[1][i] + f * (polygon[1][j] - polygon[1][i]);
+                cv[n++] = threshold;
+            }
+        }
+        return new double[][]{Arrays.copyOf(cx, n), Arrays.copyOf(cy, n), Arrays.copyOf(cv, n)};
+    }
+
+    Polygon polygon(double[] px, double[] py, int count) {
+        Coordinate[] ring = new Coordinate[count + 1];
+        for (int i = 0; i < count; i++) {
+            ring[i] = new Coordinate(px[i], py[i]);
+        }
+        ring[count] = ring[0];
+        Polygon polygon = factory.createPolygon(ring);
+        return polygon.getArea() > 0 ? polygon : null;
+    }
+
+    long write(PreparedStatement insert, Map<Long, Geometry> contours, int time) throws SQLException {
+        int batch = 0;
+        for (Map.Entry<Long, Geometry> contour : contours.entrySet()) {
+            int isoClass = (int) (contour.getKey() & 0xFF);
+            insert.setInt(1, (int) (contour.getKey() >> 8));
+            insert.setObject(2, contour.getValue());
+            insert.setInt(3, isoClass);
+            insert.setString(4, isoLabels[isoClass]);
+            insert.setInt(5, time);
+            insert.setObject(6, LocalTime.ofSecondOfDay(Math.floorMod(time, 86400)));
+            insert.addBatch();
+            if (++batch % 1000 == 0) {
+                insert.executeBatch();
+            }
+        }
+        insert.executeBatch();
+        return contours.size();
+    }
+
+}
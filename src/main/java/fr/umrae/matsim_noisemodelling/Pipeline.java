@@ -0,0 +1,333 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.json.JsonOutput;
+import groovy.sql.GroovyRowResult;
+import groovy.sql.Sql;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Ordered list of {@link Stage}s forming a DAG through their declared input and output tables.
+ * Every completed stage is recorded in the PIPELINE_STAGES table with its parameters, the versions of its inputs and
+ * a token identifying the version of its outputs. With resume enabled, a stage is skipped when its record is
+ * complete and still matches, so a crashed run can be restarted with the same flags and only redo what is missing.
+ * Each stage run is measured by {@link StageMetrics} and reported in the metrics file.
+ *
+ * With more than one stage thread and a connection factory, the stages run concurrently, each on its own connection,
+ * as soon as every earlier stage it conflicts with is done : one writing a table it reads or writes, or reading a
+ * table it writes. A stage declaring no table at all, like clean_db, is a barrier.
+ */
+class Pipeline {
+
+    interface ConnectionFactory {
+        Connection open() throws SQLException;
+    }
+
+    static final String METADATA_TABLE = "PIPELINE_STAGES";
+
+    final Connection connection;
+    final boolean resume;
+    final List<Stage> stages = new ArrayList<>();
+    final List<StageMetrics> metrics = new ArrayList<>();
+    final String startedAt = Instant.now().toString();
+
+    // run_metrics.json written after each stage, null to skip it
+    Path metricsFile = null;
+    // also emit the stage metrics as JFR events
+    boolean jfrEvents = false;
+    // stages run at the same time, on connections opened by connectionFactory
+    int stageThreads = 1;
+    ConnectionFactory connectionFactory = null;
+
+    Pipeline(Connection connection, boolean resume) {
+        this.connection = connection;
+        this.resume = resume;
+    }
+
+    Stage add(Stage stage) {
+        stages.add(stage);
+        return stage;
+    }
+
+    void run() throws SQLException, IOException {
+        validate();
+        if (stageThreads > 1 && connectionFactory != null) {
+            runConcurrent();
+            return;
+        }
+        for (Stage stage : stages) {
+            if (stage.enabled) {
+                runStage(stage, connection);
+            }
+        }
+    }
+
+    void runStage(Stage stage, Connection conn) throws SQLException, IOException {
+        String inputsSignature = inputsSignature(stage, conn);
+        if (resume && isUpToDate(stage, inputsSignature, conn)) {
+            System.out.println("Stage " + stage.name + " is up to date, skipping");
+            addMetrics(StageMetrics.skipped(stage.name));
+            writeMetrics();
+            return;
+        }
+        System.out.println("Running stage " + stage.name);
+        clearRecord(stage, conn);
+        StageMetrics stageMetrics = new StageMetrics(stage.name, jfrEvents);
+        try {
+            stageMetrics.countInputs(conn, stage.inputs);
+        }
+        catch (SQLException e) {
+            // stopped so that it no longer counts as running
+            stageMetrics.stop("failed");
+            throw e;
+        }
+        addMetrics(stageMetrics);
+        try {
+            stage.action.run(conn);
+        }
+        catch (SQLException | IOException | RuntimeException e) {
+            stageMetrics.stop("failed");
+            writeMetrics();
+            throw e;
+        }
+        stageMetrics.stop("completed");
+        // the metrics file may be written meanwhile by another stage
+        synchronized (this) {
+            stageMetrics.countOutputs(conn, stage.outputs);
+        }
+        record(stage, inputsSignature, conn);
+        writeMetrics();
+    }
+
+    /**
+     * Submits every enabled stage whose dependencies are done, in declaration order, up to stageThreads at a time.
+     * After a failure no stage is started, the running ones are awaited and the first error is thrown.
+     */
+    void runConcurrent() throws SQLException, IOException {
+        List<Stage> pending = new ArrayList<>();
+        for (Stage stage : stages) {
+            if (stage.enabled) {
+                pending.add(stage);
+            }
+        }
+        Map<Stage, Set<Stage>> dependencies = dependencies(pending);
+        Set<Stage> done = new HashSet<>();
+        ExecutorService executor = Executors.newFixedThreadPool(stageThreads);
+        ExecutorCompletionService<Stage> completion = new ExecutorCompletionService<>(executor);
+        int running = 0;
+        Exception failure = null;
+        try {
+            while (!pending.isEmpty() || running > 0) {
+                if (failure == null) {
+                    for (Stage stage : new ArrayList<>(pending)) {
+                        if (running < stageThreads && done.containsAll(dependencies.get(stage))) {
+                            pending.remove(stage);
+                            completion.submit(() -> {
+                                try (Connection conn = connectionFactory.open()) {
+                                    runStage(stage, conn);
+                                }
+                                return stage;
+                            });
+                            running++;
+                        }
+                    }
+                }
+                if (running == 0) {
+                    break;
+                }
+                Future<Stage> finished = completion.take();
+                running--;
+                try {
+                    done.add(finished.get());
+                }
+                catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running the stages", e);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        if (failure instanceof SQLException) {
+            throw (SQLException) failure;
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+    }
+
+    /**
+     * Earlier stages each stage must wait for : the ones writing a table it reads or writes, the ones reading a table
+     * it writes, and all of them around a barrier.
+     */
+    static Map<Stage, Set<Stage>> dependencies(List<Stage> stages) {
+        Map<Stage, Set<Stage>> dependencies = new HashMap<>();
+        for (int j = 0; j < stages.size(); j++) {
+            Stage stage = stages.get(j);
+            Set<Stage> stageDependencies = new HashSet<>();
+            for (int i = 0; i < j; i++) {
+                Stage earlier = stages.get(i);
+                if (isBarrier(stage) || isBarrier(earlier)
+                        || !Collections.disjoint(earlier.outputs, stage.inputs)
+                        || !Collections.disjoint(earlier.outputs, stage.outputs)
+                        || !Collections.disjoint(earlier.inputs, stage.outputs)) {
+                    stageDependencies.add(earlier);
+                }
+            }
+            dependencies.put(stage, stageDependencies);
+        }
+        return dependencies;
+    }
+
+    static boolean isBarrier(Stage stage) {
+        return stage.inputs.isEmpty() && stage.outputs.isEmpty();
+    }
+
+    synchronized void addMetrics(StageMetrics stageMetrics) {
+        metrics.add(stageMetrics);
+    }
+
+    /**
+     * Rewritten after every stage, so that a crashed run still reports the stages it went through.
+     */
+    synchronized void writeMetrics() throws IOException {
+        if (metricsFile == null) {
+            return;
+        }
+        List<Map<String, Object>> stageList = new ArrayList<>();
+        for (StageMetrics stageMetrics : metrics) {
+            stageList.add(stageMetrics.toMap());
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("startedAt", startedAt);
+        report.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        report.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+        report.put("stages", stageList);
+        Files.writeString(metricsFile, JsonOutput.prettyPrint(JsonOutput.toJson(report)));
+    }
+
+    /**
+     * Stages are declared in execution order, a stage must not read a table only written by a later stage.
+     */
+    void validate() {
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            for (String input : stage.inputs) {
+                if (producer(i, input) == null) {
+                    for (int j = i + 1; j < stages.size(); j++) {
+                        if (stages.get(j).outputs.contains(input)) {
+                            throw new IllegalStateException("Stage " + stage.name + " reads " + input + " before stage " + stages.get(j).name + " writes it");
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Last enabled stage declared before the given index that writes the table, or null if the table comes from
+     * outside the pipeline. A disabled stage does not write its outputs, so the earlier writer is the one to follow.
+     */
+    Stage producer(int index, String table) {
+        for (int i = index - 1; i >= 0; i--) {
+            if (stages.get(i).enabled && stages.get(i).outputs.contains(table)) {
+                return stages.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Version of each input : the token of its producer, or for a table from outside the pipeline its row count only,
+     * so an edit of such a table that keeps the same number of rows is not seen.
+     */
+    String inputsSignature(Stage stage, Connection conn) throws SQLException {
+        int index = stages.indexOf(stage);
+        StringBuilder signature = new StringBuilder();
+        for (String input : new TreeSet<>(stage.inputs)) {
+            signature.append(input).append('@');
+            Stage producer = producer(index, input);
+            if (producer != null) {
+                GroovyRowResult row = record(producer, conn);
+                signature.append(row != null ? row.get("TOKEN") : "incomplete");
+            }
+            else if (RunCli.tableExists(conn, input)) {
+                signature.append(new Sql(conn).firstRow("SELECT COUNT(*) AS N FROM " + input).get("N"));
+            }
+            else {
+                signature.append("missing");
+            }
+            signature.append(';');
+        }
+        return signature.toString();
+    }
+
+    boolean isUpToDate(Stage stage, String inputsSignature, Connection conn) throws SQLException {
+        if (stage.outputs.isEmpty()) {
+            return false;
+        }
+        GroovyRowResult row = record(stage, conn);
+        if (row == null || !stage.paramsSignature().equals(row.get("PARAMS")) || !inputsSignature.equals(row.get("INPUTS"))) {
+            return false;
+        }
+        for (String output : stage.outputs) {
+            if (!RunCli.tableExists(conn, output)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    GroovyRowResult record(Stage stage, Connection conn) throws SQLException {
+        if (!RunCli.tableExists(conn, METADATA_TABLE)) {
+            return null;
+        }
+        return new Sql(conn).firstRow("SELECT PARAMS, INPUTS, TOKEN FROM " + METADATA_TABLE + " WHERE STAGE = ?", List.<Object>of(stage.name));
+    }
+
+    synchronized void clearRecord(Stage stage, Connection conn) throws SQLException {
+        if (RunCli.tableExists(conn, METADATA_TABLE)) {
+            new Sql(conn).execute("DELETE FROM " + METADATA_TABLE + " WHERE STAGE = ?", List.<Object>of(stage.name));
+        }
+    }
+
+    synchronized void record(Stage stage, String inputsSignature, Connection conn) throws SQLException {
+        Sql sql = new Sql(conn);
+        sql.execute("CREATE TABLE IF NOT EXISTS " + METADATA_TABLE + " (STAGE VARCHAR PRIMARY KEY, PARAMS VARCHAR, INPUTS VARCHAR, TOKEN VARCHAR, COMPLETED TIMESTAMP)");
+        sql.execute("MERGE INTO " + METADATA_TABLE + " KEY (STAGE) VALUES (?, ?, ?, ?, CURRENT_TIMESTAMP)",
+                List.<Object>of(stage.name, stage.paramsSignature(), inputsSignature, UUID.randomUUID().toString()));
+    }
+
+}
@@ -0,0 +1,86 @@
+package fr.umrae.matsim_noisemodelling;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal protocol buffers encoder, for the messages of the vector tiles and of the OSM PBF files written here.
+ * Fields are written in call order, embedded messages are built in their own writer then copied.
+ */
+class ProtoWriter {
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    void varint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    void key(int field, int wireType) {
+        varint((long) field << 3 | wireType);
+    }
+
+    void uint(int field, long value) {
+        key(field, 0);
+        varint(value);
+    }
+
+    void sint(int field, long value) {
+        key(field, 0);
+        varint(zigZag(value));
+    }
+
+    void bytes(int field, byte[] bytes) {
+        key(field, 2);
+        varint(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    void string(int field, String value) {
+        bytes(field, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    void message(int field, ProtoWriter message) {
+        bytes(field, message.toByteArray());
+    }
+
+    /**
+     * Packed uint32 values.
+     */
+    void packed(int field, int[] values) {
+        ProtoWriter packed = new ProtoWriter();
+        for (int value : values) {
+            packed.varint(value & 0xFFFFFFFFL);
+        }
+        message(field, packed);
+    }
+
+    /**
+     * Packed sint64 values, each written as the difference to the previous one when delta is set.
+     */
+    void packedSint(int field, long[] values, int length, boolean delta) {
+        ProtoWriter packed = new ProtoWriter();
+        long previous = 0;
+        for (int i = 0; i < length; i++) {
+            packed.varint(zigZag(values[i] - previous));
+            previous = delta ? values[i] : 0;
+        }
+        message(field, packed);
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    int size() {
+        return out.size();
+    }
+
+    byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,167 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.Sql;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Compact storage of the band levels of a table in dB (attenuation, sound power or noise map), as 16 bit centi-dB :
+ * a level l is stored as round(100 * l), so the error is at most 0.005 dB over +/- 327 dB, with -32768 for null.
+ * The level columns (HZ*, LW*, LEQ, LEQA, LAEQ) of <table> are packed per row, little endian, in the CDB column of
+ * <table>_CDB, whose comment lists them in order, next to the other columns kept as they are. The table is then
+ * replaced by a view with its columns, decoded by the CDB_LEVEL function, so that any step reads it unchanged.
+ * The noise map and exposure steps decode the packed column directly.
+ */
+public class QuantizedLevels {
+
+    static final String SUFFIX = "_CDB";
+    static final String PACKED_COLUMN = "CDB";
+    static final short MISSING = Short.MIN_VALUE;
+    static final Pattern LEVEL_COLUMN = Pattern.compile("(HZ|LW)\\d+|LEQ|LEQA|LAEQ");
+
+    final String packedTable;
+    final List<String> levelColumns;
+
+    QuantizedLevels(String packedTable, List<String> levelColumns) {
+        this.packedTable = packedTable;
+        this.levelColumns = levelColumns;
+    }
+
+    /**
+     * Packs the levels of a row, called as CDB_PACK when the table is encoded.
+     */
+    public static byte[] pack(Double... levels) {
+        byte[] packed = new byte[levels.length * Short.BYTES];
+        for (int i = 0; i < levels.length; i++) {
+            short value = levels[i] == null || levels[i].isNaN() ? MISSING
+                    : (short) Math.max(-Short.MAX_VALUE, Math.min(Short.MAX_VALUE, Math.round(levels[i] * 100)));
+            packed[2 * i] = (byte) value;
+            packed[2 * i + 1] = (byte) (value >> 8);
+        }
+        return packed;
+    }
+
+    /**
+     * Level of the column index in a packed row, null if missing, called as CDB_LEVEL by the view.
+     */
+    public static Double level(byte[] packed, int index) {
+        if (packed == null || 2 * index + 1 >= packed.length) {
+            return null;
+        }
+        short value = centiDb(packed, index);
+        return value == MISSING ? null : value / 100.0;
+    }
+
+    static short centiDb(byte[] packed, int index) {
+        return (short) ((packed[2 * index] & 0xFF) | (packed[2 * index + 1] << 8));
+    }
+
+    /**
+     * Level of the column index in a packed row, 0 if missing like ResultSet.getDouble() of a null.
+     */
+    static double value(byte[] packed, int index) {
+        short value = centiDb(packed, index);
+        return value == MISSING ? 0 : value / 100.0;
+    }
+
+    /**
+     * Position of each column in the packed rows.
+     */
+    int[] indexes(String... columns) throws SQLException {
+        int[] indexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indexes[i] = levelColumns.indexOf(columns[i]);
+            if (indexes[i] < 0) {
+                throw new SQLException("Column " + columns[i] + " is not packed in " + packedTable);
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * @return the packed storage behind the view table, null if table is a plain table
+     */
+    static QuantizedLevels of(Connection connection, String table) throws SQLException {
+        if (!RunCli.viewExists(connection, table) || !RunCli.tableExists(connection, table + SUFFIX)) {
+            return null;
+        }
+        try (ResultSet rs = connection.getMetaData().getColumns(null, null, table + SUFFIX, PACKED_COLUMN)) {
+            if (!rs.next() || rs.getString("REMARKS") == null) {
+                return null;
+            }
+            return new QuantizedLevels(table + SUFFIX, Arrays.asList(rs.getString("REMARKS").split(",")));
+        }
+    }
+
+    static void createAliases(Connection connection) throws SQLException {
+        Sql sql = new Sql(connection);
+        sql.execute("CREATE ALIAS IF NOT EXISTS CDB_PACK FOR \"" + QuantizedLevels.class.getName() + ".pack\"");
+        sql.execute("CREATE ALIAS IF NOT EXISTS CDB_LEVEL FOR \"" + QuantizedLevels.class.getName() + ".level\"");
+    }
+
+    /**
+     * Moves the level columns of table to <table>_CDB and replaces table by its decoding view.
+     */
+    static void encode(Connection connection, String table) throws SQLException {
+        if (of(connection, table) != null) {
+            System.out.println("Levels of " + table + " are already quantized");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        String packedTable = table + SUFFIX;
+        List<String> columns = new ArrayList<>();
+        List<String> levelColumns = new ArrayList<>();
+        List<String> otherColumns = new ArrayList<>();
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("SELECT * FROM " + table + " LIMIT 0")) {
+            ResultSetMetaData metaData = rs.getMetaData();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                String column = metaData.getColumnName(i).toUpperCase();
+                columns.add(column);
+                boolean numeric = metaData.getColumnType(i) == Types.DOUBLE || metaData.getColumnType(i) == Types.REAL
+                        || metaData.getColumnType(i) == Types.FLOAT;
+                (numeric && LEVEL_COLUMN.matcher(column).matches() ? levelColumns : otherColumns).add(column);
+            }
+        }
+        if (levelColumns.isEmpty()) {
+            System.out.println("No level column to quantize in " + table);
+            return;
+        }
+        createAliases(connection);
+
+        String pk = Tiling.primaryKey(connection, table);
+        Sql sql = new Sql(connection);
+        sql.execute("DROP TABLE IF EXISTS " + packedTable);
+        sql.execute("CREATE TABLE " + packedTable + " AS SELECT " + String.join(", ", otherColumns) + (otherColumns.isEmpty() ? "" : ", ") +
+                "CDB_PACK(" + String.join(", ", levelColumns) + ") " + PACKED_COLUMN + " FROM " + table + (pk != null ? " ORDER BY " + pk : ""));
+        if (pk != null) {
+            sql.execute("ALTER TABLE " + packedTable + " ALTER COLUMN " + pk + " SET NOT NULL");
+            sql.execute("ALTER TABLE " + packedTable + " ADD PRIMARY KEY (" + pk + ")");
+        }
+        for (String column : otherColumns) {
+            if (!column.equals(pk) && RunCli.indexExists(connection, table, column)) {
+                RunCli.ensureIndex(connection, packedTable, column, column.equals("THE_GEOM"));
+            }
+        }
+        sql.execute("COMMENT ON COLUMN " + packedTable + "." + PACKED_COLUMN + " IS '" + String.join(",", levelColumns) + "'");
+
+        StringBuilder select = new StringBuilder();
+        for (String column : columns) {
+            select.append(select.length() > 0 ? ", " : "");
+            int index = levelColumns.indexOf(column);
+            select.append(index >= 0 ? "CDB_LEVEL(" + PACKED_COLUMN + ", " + index + ") " + column : column);
+        }
+        long rows = ((Number) sql.firstRow("SELECT COUNT(*) N FROM " + packedTable).get("N")).longValue();
+        sql.execute("DROP TABLE " + table);
+        sql.execute("CREATE VIEW " + table + " AS SELECT " + select + " FROM " + packedTable);
+
+        System.out.println("Levels of " + table + " quantized to centi-dB : " + rows + " rows, " + levelColumns.size()
+                + " levels in " + levelColumns.size() * Short.BYTES + " bytes instead of " + levelColumns.size() * Double.BYTES
+                + " per row in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+}
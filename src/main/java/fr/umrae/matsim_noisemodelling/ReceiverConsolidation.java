@@ -0,0 +1,169 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.Sql;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the receivers closer than a tolerance, so that the propagation only runs on one receiver per cluster.
+ * Receivers are visited by primary key, each one joins the first kept receiver within the tolerance (found in a hash
+ * grid of tolerance sized cells) or is kept as a new one. The kept receivers are copied with all their columns to the
+ * unique table, and the mapping table gives the kept receiver of every receiver, used to expand the levels computed
+ * on the unique receivers back to all of them.
+ */
+class ReceiverConsolidation {
+
+    final double tolerance;
+
+    // kept receivers
+    int keptCount = 0;
+    int[] keptIds = new int[1024];
+    double[] keptX = new double[1024];
+    double[] keptY = new double[1024];
+    double[] keptZ = new double[1024];
+    // kept receivers of each grid cell
+    final Map<Long, int[]> cells = new HashMap<>();
+
+    ReceiverConsolidation(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Fills mappingTable (IDRECEIVER, IDUNIQUE) and uniqueTable from receiversTable.
+     */
+    void consolidate(Connection connection, String receiversTable, String uniqueTable, String mappingTable) throws SQLException {
+        long start = System.currentTimeMillis();
+        String pk = Tiling.primaryKey(connection, receiversTable);
+        if (pk == null) {
+            throw new SQLException("Table " + receiversTable + " has no integer primary key");
+        }
+        Sql sql = new Sql(connection);
+        sql.execute("DROP TABLE IF EXISTS " + mappingTable);
+        sql.execute("CREATE TABLE " + mappingTable + " (IDRECEIVER INTEGER PRIMARY KEY, IDUNIQUE INTEGER NOT NULL)");
+
+        int receivers = 0;
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (Statement st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+             PreparedStatement insert = connection.prepareStatement("INSERT INTO " + mappingTable + " VALUES (?, ?)")) {
+            st.setFetchSize(10000);
+            try (ResultSet rs = st.executeQuery("SELECT " + pk + ", THE_GEOM FROM " + receiversTable + " ORDER BY " + pk)) {
+                while (rs.next()) {
+                    int id = rs.getInt(1);
+                    Coordinate coordinate = ((Geometry) rs.getObject(2)).getCoordinate();
+                    insert.setInt(1, id);
+                    insert.setInt(2, keptId(id, coordinate.x, coordinate.y, coordinate.getZ()));
+                    insert.addBatch();
+                    if (++receivers % 10000 == 0) {
+                        insert.executeBatch();
+                    }
+                }
+            }
+            insert.executeBatch();
+            connection.commit();
+        }
+        finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        RunCli.ensureIndex(connection, mappingTable, "IDUNIQUE", false);
+
+        sql.execute("DROP TABLE IF EXISTS " + uniqueTable);
+        sql.execute("CREATE TABLE " + uniqueTable + " AS SELECT R.* FROM " + receiversTable + " R WHERE R." + pk +
+                " IN (SELECT IDUNIQUE FROM " + mappingTable + ") ORDER BY R." + pk);
+        sql.execute("ALTER TABLE " + uniqueTable + " ALTER COLUMN " + pk + " SET NOT NULL");
+        sql.execute("ALTER TABLE " + uniqueTable + " ADD PRIMARY KEY (" + pk + ")");
+        RunCli.ensureIndex(connection, uniqueTable, "THE_GEOM", true);
+
+        System.out.println(String.format("Receivers consolidated within %.2f m : %d receivers -> %d unique receivers (%.1f %% fewer) in %d ms",
+                tolerance, receivers, keptCount, receivers == 0 ? 0.0 : 100.0 * (receivers - keptCount) / receivers,
+                System.currentTimeMillis() - start));
+    }
+
+    /**
+     * @return the id of the kept receiver within the tolerance, or id after keeping the receiver
+     */
+    int keptId(int id, double x, double y, double z) {
+        long cellX = (long) Math.floor(x / tolerance);
+        long cellY = (long) Math.floor(y / tolerance);
+        double tolerance2 = tolerance * tolerance;
+        for (long cx = cellX - 1; cx <= cellX + 1; cx++) {
+            for (long cy = cellY - 1; cy <= cellY + 1; cy++) {
+                int[] kept = cells.get(cellKey(cx, cy));
+                if (kept == null) {
+                    continue;
+                }
+                // first slot is the count
+                for (int i = 1; i <= kept[0]; i++) {
+                    int k = kept[i];
+                    double dx = keptX[k] - x;
+                    double dy = keptY[k] - y;
+                    // receivers on different floors are not merged
+                    boolean sameHeight = Double.isNaN(z) || Double.isNaN(keptZ[k]) || Math.abs(keptZ[k] - z) <= tolerance;
+                    if (dx * dx + dy * dy <= tolerance2 && sameHeight) {
+                        return keptIds[k];
+                    }
+                }
+            }
+        }
+        if (keptCount == keptIds.length) {
+            keptIds = Arrays.copyOf(keptIds, keptCount * 2);
+            keptX = Arrays.copyOf(keptX, keptCount * 2);
+            keptY = Arrays.copyOf(keptY, keptCount * 2);
+            keptZ = Arrays.copyOf(keptZ, keptCount * 2);
+        }
+        int k = keptCount++;
+        keptIds[k] = id;
+        keptX[k] = x;
+        keptY[k] = y;
+        keptZ[k] = z;
+        cells.merge(cellKey(cellX, cellY), new int[]{1, k}, (kept, added) -> {
+            if (kept[0] + 1 == kept.length) {
+                kept = Arrays.copyOf(kept, kept.length * 2);
+            }
+            kept[++kept[0]] = k;
+            return kept;
+        });
+        return id;
+    }
+
+    static long cellKey(long cx, long cy) {
+        return (cx << 32) ^ (cy & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Levels of every receiver of mappingTable in resultTable, from the levels of the unique receivers in uniqueResultTable,
+     * with the geometries of receiversTable.
+     */
+    static void expand(Connection connection, String uniqueResultTable, String mappingTable, String receiversTable,
+                       String resultTable) throws SQLException {
+        long start = System.currentTimeMillis();
+        String pk = Tiling.primaryKey(connection, receiversTable);
+        List<String> levelColumns = new ArrayList<>();
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("SELECT * FROM " + uniqueResultTable + " LIMIT 0")) {
+            ResultSetMetaData metaData = rs.getMetaData();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                String column = metaData.getColumnName(i);
+                if (!List.of("PK", "IDRECEIVER", "THE_GEOM").contains(column.toUpperCase())) {
+                    levelColumns.add("U." + column);
+                }
+            }
+        }
+        RunCli.ensureIndex(connection, uniqueResultTable, "IDRECEIVER", false);
+        Sql sql = new Sql(connection);
+        sql.execute("DROP TABLE IF EXISTS " + resultTable);
+        sql.execute("CREATE TABLE " + resultTable + " AS SELECT M.IDRECEIVER, R.THE_GEOM, " + String.join(", ", levelColumns) +
+                " FROM " + mappingTable + " M JOIN " + uniqueResultTable + " U ON U.IDRECEIVER = M.IDUNIQUE" +
+                " JOIN " + receiversTable + " R ON R." + pk + " = M.IDRECEIVER");
+        sql.execute("ALTER TABLE " + resultTable + " ADD COLUMN PK INTEGER AUTO_INCREMENT PRIMARY KEY FIRST");
+        System.out.println("Levels of the unique receivers expanded to " + resultTable + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+}
@@ -0,0 +1,209 @@
+package fr.umrae.matsim_noisemodelling;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+/**
+ * A noise map table (IDRECEIVER, TIME, LEQA) loaded in primitive arrays, for the exposure lookups.
+ * Receiver ids are resolved once to a dense row, the levels are stored as linear energies in a row x time bin float
+ * array, missing bins having no energy. With prefix sums, each row also gets the cumulated energy x seconds at every
+ * bin boundary, so that the energy over any interval is two lookups and two partial bins instead of a loop over the
+ * bins it covers, for 8 more bytes per receiver and time bin.
+ * The rows are stored in blocks of 2^rowBits rows, sized so that no array goes over 2^31 entries whatever the number of
+ * receivers ; only the last block grows.
+ */
+class ReceiverLevelStore {
+
+    static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+    static final int MAX_ROW_BITS = 20;
+
+    final int timeBinSize;
+    final int timeBinMin;
+    final int timeBinMax;
+    final int bins;
+    final int rowBits;
+    final int rowMask;
+
+    // row of each receiver id, -1 for ids without levels
+    int[] rowById = new int[0];
+    int receiverCount = 0;
+    // linear energy of row and bin, in block row >>> rowBits at (row & rowMask) * bins + bin
+    float[][] energies = new float[0][];
+    // energy x seconds from timeBinMin to the start of bin b, in the same blocks at (row & rowMask) * (bins + 1) + b,
+    // null without prefix sums
+    double[][] prefixSums = null;
+
+    ReceiverLevelStore(int timeBinSize, int timeBinMin, int timeBinMax) {
+        this(timeBinSize, timeBinMin, timeBinMax, MAX_ROW_BITS);
+    }
+
+    ReceiverLevelStore(int timeBinSize, int timeBinMin, int timeBinMax, int maxRowBits) {
+        this.timeBinSize = timeBinSize;
+        this.timeBinMin = timeBinMin;
+        this.timeBinMax = timeBinMax;
+        this.bins = Math.max(1, (timeBinMax - timeBinMin + timeBinSize - 1) / timeBinSize);
+        if (bins + 1 > MAX_ARRAY) {
+            throw new IllegalArgumentException("Too many time bins : " + bins + ", increase the time bin size");
+        }
+        // largest block whose prefix sums still fit in one array
+        this.rowBits = Math.min(maxRowBits, 31 - Integer.numberOfLeadingZeros(MAX_ARRAY / (bins + 1)));
+        this.rowMask = (1 << rowBits) - 1;
+    }
+
+    static ReceiverLevelStore load(Connection connection, String dataTable, int timeBinSize, int timeBinMin, int timeBinMax,
+                                   boolean prefixSums) throws SQLException {
+        long start = System.currentTimeMillis();
+        ReceiverLevelStore store = new ReceiverLevelStore(timeBinSize, timeBinMin, timeBinMax);
+        long rows = 0;
+        WideLayout wideLayout = WideLayout.of(connection, dataTable);
+        QuantizedLevels quantized = QuantizedLevels.of(connection, dataTable);
+        int leqaIndex = quantized != null ? quantized.indexes("LEQA")[0] : -1;
+        if (wideLayout != null) {
+            rows = store.loadWide(connection, wideLayout);
+        }
+        else try (Statement st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            st.setFetchSize(10000);
+            String query = quantized != null ? "SELECT IDRECEIVER, TIME, " + QuantizedLevels.PACKED_COLUMN + " FROM " + quantized.packedTable
+                    : "SELECT IDRECEIVER, TIME, LEQA FROM " + dataTable;
+            try (ResultSet rs = st.executeQuery(query)) {
+                while (rs.next()) {
+                    int time = rs.getInt(2);
+                    Double level;
+                    if (quantized != null) {
+                        level = QuantizedLevels.level(rs.getBytes(3), leqaIndex);
+                    }
+                    else {
+                        level = rs.getDouble(3);
+                        level = rs.wasNull() ? null : level;
+                    }
+                    if (level == null || time < timeBinMin || time >= timeBinMax) {
+                        continue;
+                    }
+                    // addRow() first, it may grow the array
+                    int row = store.addRow(rs.getInt(1));
+                    store.set(row, (time - timeBinMin) / timeBinSize, (float) Math.pow(10, level / 10));
+                    rows++;
+                }
+            }
+        }
+        if (prefixSums) {
+            store.computePrefixSums();
+        }
+        System.out.println("Receiver levels loaded : " + store.receiverCount + " receivers, " + rows + " levels"
+                + (prefixSums ? " with prefix sums" : "") + " in " + (System.currentTimeMillis() - start) + " ms");
+        return store;
+    }
+
+    /**
+     * Reads the packed LEQA of every receiver of the wide table, one row per receiver instead of one per time bin.
+     */
+    long loadWide(Connection connection, WideLayout wideLayout) throws SQLException {
+        long rows = 0;
+        try (Statement st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            st.setFetchSize(10000);
+            try (ResultSet rs = st.executeQuery("SELECT IDRECEIVER, LEQA FROM " + wideLayout.wideTable)) {
+                while (rs.next()) {
+                    byte[] packed = rs.getBytes(2);
+                    if (packed == null) {
+                        continue;
+                    }
+                    float[] levels = WideLayout.unpack(packed);
+                    int row = addRow(rs.getInt(1));
+                    for (int bin = 0; bin < levels.length && bin < wideLayout.times.length; bin++) {
+                        int time = wideLayout.times[bin];
+                        if (Float.isNaN(levels[bin]) || time < timeBinMin || time >= timeBinMax) {
+                            continue;
+                        }
+                        set(row, (time - timeBinMin) / timeBinSize, (float) Math.pow(10, levels[bin] / 10));
+                        rows++;
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    int addRow(int receiverId) {
+        if (receiverId >= rowById.length) {
+            int length = rowById.length;
+            rowById = Arrays.copyOf(rowById, Math.max(receiverId + 1, Math.max(1024, length * 2)));
+            Arrays.fill(rowById, length, rowById.length, -1);
+        }
+        int row = rowById[receiverId];
+        if (row < 0) {
+            row = receiverCount++;
+            rowById[receiverId] = row;
+            int block = row >>> rowBits;
+            if (block == energies.length) {
+                energies = Arrays.copyOf(energies, block + 1);
+                energies[block] = new float[0];
+            }
+            int size = ((row & rowMask) + 1) * bins;
+            if (size > energies[block].length) {
+                energies[block] = Arrays.copyOf(energies[block], (int) Math.min((long) bins << rowBits, Math.max(size, energies[block].length * 2L)));
+            }
+        }
+        return row;
+    }
+
+    void set(int row, int bin, float energy) {
+        energies[row >>> rowBits][(row & rowMask) * bins + bin] = energy;
+    }
+
+    void computePrefixSums() {
+        prefixSums = new double[energies.length][];
+        for (int block = 0; block < energies.length; block++) {
+            int rows = Math.min(rowMask + 1, receiverCount - (block << rowBits));
+            float[] blockEnergies = energies[block];
+            double[] sums = new double[rows * (bins + 1)];
+            for (int row = 0; row < rows; row++) {
+                int offset = row * (bins + 1);
+                for (int bin = 0; bin < bins; bin++) {
+                    sums[offset + bin + 1] = sums[offset + bin] + (double) blockEnergies[row * bins + bin] * timeBinSize;
+                }
+            }
+            prefixSums[block] = sums;
+        }
+    }
+
+    /**
+     * @return the row of the receiver, -1 when it has no levels
+     */
+    int row(int receiverId) {
+        return receiverId >= 0 && receiverId < rowById.length ? rowById[receiverId] : -1;
+    }
+
+    /**
+     * Energy x seconds received by the row over [start, end), clipped to the time bins.
+     */
+    double energy(int row, double start, double end) {
+        start = Math.max(start, timeBinMin);
+        end = Math.min(end, timeBinMax);
+        if (end <= start) {
+            return 0;
+        }
+        int first = (int) ((start - timeBinMin) / timeBinSize);
+        int last = Math.min(bins - 1, (int) ((end - timeBinMin) / timeBinSize));
+        float[] block = energies[row >>> rowBits];
+        int offset = (row & rowMask) * bins;
+        if (first == last) {
+            return block[offset + first] * (end - start);
+        }
+        // partial first and last bins
+        double energy = block[offset + first] * (timeBinMin + (first + 1) * (double) timeBinSize - start)
+                + block[offset + last] * (end - timeBinMin - last * (double) timeBinSize);
+        if (prefixSums != null) {
+            double[] sums = prefixSums[row >>> rowBits];
+            int sumOffset = (row & rowMask) * (bins + 1);
+            return energy + sums[sumOffset + last] - sums[sumOffset + first + 1];
+        }
+        for (int bin = first + 1; bin < last; bin++) {
+            energy += (double) block[offset + bin] * timeBinSize;
+        }
+        return energy;
+    }
+
+}
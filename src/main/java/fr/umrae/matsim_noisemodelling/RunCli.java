@@ -35,6 +35,9 @@ public class RunCli {
 
 //        options.addOption("ia", "ignoreAgents", true, "Ignore agents in the simulation");
         options.addOption("rec", "receiversMethod", true, "Receivers method : 'closest' (default) or 'random'");
+        options.addOption("visited", "visitedFacilitiesOnly", false, "Only build receivers for the facilities visited within the time bins, read from the experienced plans");
+        options.addOption("subpop", "subpopulation", true, "Subpopulation of the agents whose visited facilities get receivers (default: all agents)");
+        options.addOption("recTol", "receiverTolerance", true, "Distance in meters under which activity receivers share one propagation receiver, 0 to disable (default: 0)");
 
         options.addOption("diffH", "diffHorizontal", true, "Diffusion horizontal (default: true)");
         options.addOption("diffV", "diffVertical", true, "Diffusion vertical (default: false)");
@@ -43,6 +46,33 @@ public class RunCli {
         options.addOption("maxReflDist", "maxReflDist", true, "Max reflection distance (default: 50)");
         options.addOption("maxSrcDist", "maxSrcDist", true, "Max source distance (default: 750)");
 
+        options.addOption("zone", "influenceZone", false, "Only keep the buildings within maxSrcDist of a road and the roads within maxSrcDist of a receiver for exposure");
+
+        options.addOption("threads", "threads", true, "Computation threads, a number or 'auto' to size from the processors and the heap (default: auto)");
+        options.addOption("reuse", "reuseAttenuation", false, "Skip propagation when buildings, receivers, sources and propagation parameters are unchanged");
+        options.addOption("engine", "noiseMapEngine", true, "Attenuation x emission engine : 'sql' (default) or 'sparse'");
+        options.addOption("exposureEngine", "exposureEngine", true, "Agent exposure engine : 'sql' (default, Agent_Exposure) or 'memory'");
+        options.addOption("exposurePrefixSums", "exposurePrefixSums", false, "Cumulate the receiver energies for constant time activity lookups with the memory exposure engine");
+        options.addOption("exposureSummary", "exposureSummary", false, "Fill per group exposure distributions with the exposures, in EXPOSURE_SUMMARY and exposure_summary.json");
+        options.addOption("exposureGroups", "exposureGroups", true, "Columns of output_persons.csv.gz grouping the exposure summary, column:width for classes of a numeric column (example: sex,age:10)");
+        options.addOption("exposureThresholds", "exposureThresholds", true, "Levels in dB whose share of persons at or above is in the exposure summary (default: 55,65)");
+        options.addOption("contourThreads", "contouringThreads", true, "Number of time bins contoured in parallel for maps (default: 1)");
+        options.addOption("contouringEngine", "contouringEngine", true, "Contouring of the maps: 'isosurface' (default, Create_Isosurface per time bin) or 'memory' (triangle mesh loaded once)");
+        options.addOption("tileSize", "tileSize", true, "Side in meters of the receiver tiles computed in separate databases for exposure, 0 to disable (default: 0)");
+        options.addOption("tileThreads", "tileThreads", true, "Number of tiles computed at the same time, by this process when a tile queue is used (default: 1)");
+        options.addOption("tileQueue", "tileQueue", true, "Shared folder where the tiles are queued for worker processes");
+        options.addOption("worker", "worker", true, "Run as a worker computing the units queued in the given folder, until a 'stop' file is created in it");
+        options.addOption("daemon", "daemon", true, "Run as a server computing the jobs submitted over HTTP, with the job folders in the given folder");
+        options.addOption("daemonPort", "daemonPort", true, "Loopback port of the job server (default: 8765)");
+        options.addOption("daemonJobs", "daemonJobs", true, "Number of jobs run at the same time by the job server (default: 1)");
+
+        options.addOption("exportFormat", "exportFormat", true, "Results export format : 'default' (shapefile / geojson), 'geojsonseq' or 'columnar' (streamed, gzip compressed)");
+        options.addOption("exportSplitTime", "exportSplitTime", false, "Export one results file per time bin (geojsonseq and columnar formats)");
+        options.addOption("vectorTiles", "vectorTiles", true, "Vector tile pyramid of the map contours : 'none' (default), 'directory' (z/x/y.pbf files) or 'mbtiles'");
+        options.addOption("vectorTilesZoom", "vectorTilesZoom", true, "Zoom levels of the vector tiles, as min-max (default: 10-16)");
+
+        options.addOption("buildingsCache", "buildingsCache", true, "Folder caching the imported buildings per PBF file, SRID and import options");
+
         options.addOption("clean", "cleanDB",false, "Clean the database");
         options.addOption("osm", "importOsmPbf", false, "Import OSM PBF file");
 //        options.addOption("import", "importData", false, "Import data");
@@ -50,6 +80,11 @@ public class RunCli {
         options.addOption("buildings", "exportBuildings", false, "Export buildings");
         options.addOption("run", "runSimulation", false, "Run simulation");
         options.addOption("results", "exportResults", false, "Export results");
+        options.addOption("wideLayout", "wideLayout", false, "Store the noise map as one row per receiver with packed time bins, behind a view with the usual columns (H2 only)");
+        options.addOption("quantizeLevels", "quantizeLevels", false, "Store the band levels of the traffic, attenuation and result tables as packed 16 bit centi-dB, behind views with the usual columns (H2 only)");
+        options.addOption("stageThreads", "stageThreads", true, "Number of independent pipeline stages run at the same time, each on its own connection (default: 1)");
+        options.addOption("resume", "resume", false, "Only run the stages that are incomplete or whose parameters or inputs changed since their last run");
+        options.addOption("jfr", "jfrEvents", false, "Emit the per stage metrics as JFR events (run with -XX:StartFlightRecording to record them)");
         options.addOption("all", "doAll", false, "Activate all flags (cleans up database and run everything)");
 
         options.addOption("h", "help", false, "Display help");
@@ -76,6 +111,37 @@ public class RunCli {
             return;
         }
 
+        if (cmd.hasOption("worker")) {
+            int threads;
+            try {
+                threads = ThreadBudget.resolve(cmd.getOptionValue("threads", "auto"));
+            }
+            catch (IllegalArgumentException e) {
+                System.err.println("Threads is not valid: " + e.getMessage());
+                return;
+            }
+            try {
+                WorkQueue queue = new WorkQueue(Paths.get(cmd.getOptionValue("worker")));
+                new Worker(queue, WorkQueue.workerId("worker"), threads).runUntilStopped(5000);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
+        if (cmd.hasOption("daemon")) {
+            JobServer server = new JobServer(Paths.get(cmd.getOptionValue("daemon")), Integer.parseInt(cmd.getOptionValue("daemonJobs", "1")));
+            server.start(Integer.parseInt(cmd.getOptionValue("daemonPort", "8765")));
+            try {
+                server.awaitStop();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
         if (!cmd.hasOption("configFile") && !cmd.hasOption("generateConfigFile")) {
             System.out.println("Missing config file, to create an example one use -genconf");
             formatter.printHelp("gradlew run --args=\"...\"", options);
@@ -102,6 +168,9 @@ public class RunCli {
                 configFile.setProperty("COMPUTE", "exposure");
 
                 configFile.setProperty("RECEIVERS_METHOD", "closest");
+                configFile.setProperty("RECEIVER_TOLERANCE", "0");
+                configFile.setProperty("VISITED_FACILITIES_ONLY", "False");
+                configFile.setProperty("SUBPOPULATION", "");
 
                 configFile.setProperty("DIFF_HORIZONTAL", "True");
                 configFile.setProperty("DIFF_VERTICAL", "False");
@@ -110,12 +179,38 @@ public class RunCli {
                 configFile.setProperty("MAX_REFL_DIST", "50");
                 configFile.setProperty("MAX_SRC_DIST", "750");
 
+                configFile.setProperty("INFLUENCE_ZONE", "False");
+
+                configFile.setProperty("THREADS", "auto");
+                configFile.setProperty("REUSE_ATTENUATION", "False");
+                configFile.setProperty("NOISE_MAP_ENGINE", "sql");
+                configFile.setProperty("NOISE_MAP_OFF_HEAP", "False");
+                configFile.setProperty("EXPOSURE_ENGINE", "sql");
+                configFile.setProperty("EXPOSURE_PREFIX_SUMS", "False");
+                configFile.setProperty("EXPOSURE_SUMMARY", "False");
+                configFile.setProperty("EXPOSURE_GROUPS", "");
+                configFile.setProperty("EXPOSURE_THRESHOLDS", "55,65");
+                configFile.setProperty("CONTOURING_THREADS", "1");
+                configFile.setProperty("CONTOURING_ENGINE", "isosurface");
+                configFile.setProperty("TILE_SIZE", "0");
+                configFile.setProperty("TILE_THREADS", "1");
+                configFile.setProperty("TILE_QUEUE", "");
+                configFile.setProperty("STAGE_THREADS", "1");
+                configFile.setProperty("WIDE_LAYOUT", "False");
+                configFile.setProperty("QUANTIZE_LEVELS", "False");
+                configFile.setProperty("EXPORT_FORMAT", "default");
+                configFile.setProperty("EXPORT_SPLIT_TIME", "False");
+                configFile.setProperty("VECTOR_TILES", "none");
+                configFile.setProperty("VECTOR_TILES_ZOOM", "10-16");
+                configFile.setProperty("BUILDINGS_CACHE", "");
+
                 configFile.setProperty("DO_CLEAN_DB", "False");
                 configFile.setProperty("DO_IMPORT_OSM", "False");
                 configFile.setProperty("DO_EXPORT_ROADS", "False");
                 configFile.setProperty("DO_EXPORT_BUILDINGS", "False");
                 configFile.setProperty("DO_RUN_NOISEMODELLING", "False");
                 configFile.setProperty("DO_EXPORT_RESULTS", "False");
+                configFile.setProperty("JFR_EVENTS", "False");
 
                 FileOutputStream fileStream = new FileOutputStream(file);
                 configFile.store(fileStream, "An example config file for the noise modelling process");
@@ -228,6 +323,12 @@ public class RunCli {
             }
             receiversMethod = cmd.getOptionValue("receiversMethod");
         }
+        boolean visitedFacilitiesOnly = cmd.hasOption("visitedFacilitiesOnly") || Boolean.parseBoolean(configFile.getOrDefault("VISITED_FACILITIES_ONLY", "false").toString());
+        String subpopulation = cmd.getOptionValue("subpopulation", configFile.getOrDefault("SUBPOPULATION", "").toString());
+        double receiverTolerance = Double.parseDouble(configFile.getOrDefault("RECEIVER_TOLERANCE", 0).toString());
+        if (cmd.hasOption("receiverTolerance")) {
+            receiverTolerance = Double.parseDouble(cmd.getOptionValue("receiverTolerance"));
+        }
         boolean diffHorizontal = Boolean.parseBoolean(configFile.getOrDefault("DIFF_HORIZONTAL", "true").toString());
         if (cmd.hasOption("diffHorizontal")) {
             diffHorizontal = Boolean.parseBoolean(cmd.getOptionValue("diffHorizontal"));
@@ -249,12 +350,110 @@ public class RunCli {
             maxSrcDist = Integer.parseInt(cmd.getOptionValue("maxSrcDist"));
         }
 
+        boolean influenceZone = cmd.hasOption("influenceZone") || Boolean.parseBoolean(configFile.getOrDefault("INFLUENCE_ZONE", "false").toString());
+        String threadsValue = configFile.getOrDefault("THREADS", "auto").toString();
+        if (cmd.hasOption("threads")) {
+            threadsValue = cmd.getOptionValue("threads");
+        }
+        int threads;
+        try {
+            threads = ThreadBudget.resolve(threadsValue);
+        } catch (Exception e) {
+            System.err.println("Threads is not valid: " + e.getMessage());
+            return;
+        }
+        String noiseMapEngine = configFile.getOrDefault("NOISE_MAP_ENGINE", "sql").toString();
+        if (cmd.hasOption("noiseMapEngine")) {
+            noiseMapEngine = cmd.getOptionValue("noiseMapEngine");
+        }
+        if (!Objects.equals(noiseMapEngine, "sql") && !Objects.equals(noiseMapEngine, "sparse")) {
+            System.err.println("Noise map engine must be 'sql' (default) or 'sparse'");
+            return;
+        }
+        boolean noiseMapOffHeap = Boolean.parseBoolean(configFile.getOrDefault("NOISE_MAP_OFF_HEAP", "false").toString());
+        String exposureEngine = cmd.getOptionValue("exposureEngine", configFile.getOrDefault("EXPOSURE_ENGINE", "sql").toString());
+        if (!Objects.equals(exposureEngine, "sql") && !Objects.equals(exposureEngine, "memory")) {
+            System.err.println("Exposure engine must be 'sql' (default) or 'memory'");
+            return;
+        }
+        boolean exposurePrefixSums = cmd.hasOption("exposurePrefixSums") || Boolean.parseBoolean(configFile.getOrDefault("EXPOSURE_PREFIX_SUMS", "false").toString());
+        boolean exposureSummary = cmd.hasOption("exposureSummary") || Boolean.parseBoolean(configFile.getOrDefault("EXPOSURE_SUMMARY", "false").toString());
+        String exposureGroups = cmd.getOptionValue("exposureGroups", configFile.getOrDefault("EXPOSURE_GROUPS", "").toString());
+        String exposureThresholds = cmd.getOptionValue("exposureThresholds", configFile.getOrDefault("EXPOSURE_THRESHOLDS", "55,65").toString());
+        try {
+            ExposureSummary.parseThresholds(exposureThresholds);
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Exposure thresholds must be levels in dB separated by commas: " + e.getMessage());
+            return;
+        }
+        int contouringThreads = Integer.parseInt(configFile.getOrDefault("CONTOURING_THREADS", 1).toString());
+        if (cmd.hasOption("contouringThreads")) {
+            contouringThreads = Integer.parseInt(cmd.getOptionValue("contouringThreads"));
+        }
+        String contouringEngine = cmd.getOptionValue("contouringEngine", configFile.getOrDefault("CONTOURING_ENGINE", "isosurface").toString());
+        if (!Objects.equals(contouringEngine, "isosurface") && !Objects.equals(contouringEngine, "memory")) {
+            System.err.println("Contouring engine must be 'isosurface' (default) or 'memory'");
+            return;
+        }
+        double tileSize = Double.parseDouble(configFile.getOrDefault("TILE_SIZE", 0).toString());
+        if (cmd.hasOption("tileSize")) {
+            tileSize = Double.parseDouble(cmd.getOptionValue("tileSize"));
+        }
+        if (tileSize > 0 && tileSize < maxSrcDist) {
+            System.out.println("Warning : tiles smaller than maxSrcDist copy more buildings and sources around them than they hold");
+        }
+        int tileThreads = Integer.parseInt(configFile.getOrDefault("TILE_THREADS", 1).toString());
+        if (cmd.hasOption("tileThreads")) {
+            tileThreads = Integer.parseInt(cmd.getOptionValue("tileThreads"));
+        }
+        int stageThreads = Integer.parseInt(configFile.getOrDefault("STAGE_THREADS", 1).toString());
+        if (cmd.hasOption("stageThreads")) {
+            stageThreads = Integer.parseInt(cmd.getOptionValue("stageThreads"));
+        }
+        boolean wideLayout = cmd.hasOption("wideLayout") || Boolean.parseBoolean(configFile.getOrDefault("WIDE_LAYOUT", "false").toString());
+        boolean quantizeLevels = cmd.hasOption("quantizeLevels") || Boolean.parseBoolean(configFile.getOrDefault("QUANTIZE_LEVELS", "false").toString());
+        String tileQueue = cmd.getOptionValue("tileQueue", configFile.getOrDefault("TILE_QUEUE", "").toString());
+        String exportFormat = cmd.getOptionValue("exportFormat", configFile.getOrDefault("EXPORT_FORMAT", "default").toString());
+        if (!Objects.equals(exportFormat, "default") && !Objects.equals(exportFormat, StreamingExport.GEOJSONSEQ) && !Objects.equals(exportFormat, StreamingExport.COLUMNAR)) {
+            System.err.println("Export format must be 'default', 'geojsonseq' or 'columnar'");
+            return;
+        }
+        String buildingsCache = cmd.getOptionValue("buildingsCache", configFile.getOrDefault("BUILDINGS_CACHE", "").toString());
+        boolean exportSplitTime = cmd.hasOption("exportSplitTime") || Boolean.parseBoolean(configFile.getOrDefault("EXPORT_SPLIT_TIME", "false").toString());
+        String vectorTiles = cmd.getOptionValue("vectorTiles", configFile.getOrDefault("VECTOR_TILES", "none").toString());
+        if (!Objects.equals(vectorTiles, "none") && !Objects.equals(vectorTiles, VectorTiles.DIRECTORY) && !Objects.equals(vectorTiles, VectorTiles.MBTILES)) {
+            System.err.println("Vector tiles must be 'none', 'directory' or 'mbtiles'");
+            return;
+        }
+        String vectorTilesZoom = cmd.getOptionValue("vectorTilesZoom", configFile.getOrDefault("VECTOR_TILES_ZOOM", "10-16").toString());
+        String[] zooms = vectorTilesZoom.split("-");
+        int vectorTilesMinZoom = Integer.parseInt(zooms[0].trim());
+        int vectorTilesMaxZoom = Integer.parseInt(zooms[zooms.length - 1].trim());
+        if (vectorTilesMinZoom < 0 || vectorTilesMaxZoom > 24 || vectorTilesMinZoom > vectorTilesMaxZoom) {
+            System.err.println("Vector tiles zoom must be min-max within 0 and 24");
+            return;
+        }
+
         boolean doCleanDB = cmd.hasOption("cleanDB") || cmd.hasOption("doAll") || Boolean.parseBoolean((String) configFile.get("DO_CLEAN_DB"));
         boolean doImportOSMPbf = cmd.hasOption("importOsmPbf") || cmd.hasOption("doAll") || Boolean.parseBoolean((String) configFile.get("DO_IMPORT_OSM"));
 
         boolean doExportRoads = cmd.hasOption("exportRoads") || cmd.hasOption("doAll") || Boolean.parseBoolean((String) configFile.get("DO_EXPORT_ROADS"));
         boolean doExportBuildings = cmd.hasOption("exportBuildings") || cmd.hasOption("doAll") || Boolean.parseBoolean((String) configFile.get("DO_EXPORT_BUILDINGS"));
 
+        boolean resume = cmd.hasOption("resume");
+        if (resume && doCleanDB) {
+            // cleaning would drop PIPELINE_STAGES with the tables, and every stage would run again
+            System.out.println("Warning : the database is not cleaned when resuming a run");
+            doCleanDB = false;
+        }
+        boolean jfrEvents = cmd.hasOption("jfrEvents") || Boolean.parseBoolean((String) configFile.get("JFR_EVENTS"));
+        boolean reuseAttenuation = cmd.hasOption("reuseAttenuation") || Boolean.parseBoolean((String) configFile.get("REUSE_ATTENUATION"));
+        if (reuseAttenuation && tileSize > 0) {
+            // the attenuation of a tile is computed in the tile database, which is deleted once merged
+            System.out.println("Warning : the attenuation is not reused for exposure when tiling");
+        }
+
         boolean doTrafficSimulation = cmd.hasOption("runSimulation") || cmd.hasOption("doAll") || Boolean.parseBoolean((String) configFile.get("DO_RUN_NOISEMODELLING"));
         boolean doExportResults = cmd.hasOption("exportResults") || cmd.hasOption("doAll") || Boolean.parseBoolean((String) configFile.get("DO_EXPORT_RESULTS"));
 
@@ -273,15 +472,43 @@ public class RunCli {
         System.out.println("doExportBuildings: " + doExportBuildings);
         System.out.println("doTrafficSimulation: " + doTrafficSimulation);
         System.out.println("doExportResults: " + doExportResults);
+        System.out.println("resume: " + resume);
+        System.out.println("jfrEvents: " + jfrEvents);
         System.out.println("timeBinSize: " + timeBinSize);
         System.out.println("timeBinMin: " + timeBinMin);
         System.out.println("timeBinMax: " + timeBinMax);
         System.out.println("receiversMethod: " + receiversMethod);
+        System.out.println("receiverTolerance: " + receiverTolerance);
+        System.out.println("visitedFacilitiesOnly: " + visitedFacilitiesOnly);
+        System.out.println("subpopulation: " + subpopulation);
         System.out.println("diffHorizontal: " + diffHorizontal);
         System.out.println("diffVertical: " + diffVertical);
         System.out.println("reflOrder: " + reflOrder);
         System.out.println("maxReflDist: " + maxReflDist);
         System.out.println("maxSrcDist: " + maxSrcDist);
+        System.out.println("influenceZone: " + influenceZone);
+        System.out.println("threads: " + threads);
+        System.out.println("reuseAttenuation: " + reuseAttenuation);
+        System.out.println("noiseMapEngine: " + noiseMapEngine);
+        System.out.println("noiseMapOffHeap: " + noiseMapOffHeap);
+        System.out.println("exposureEngine: " + exposureEngine);
+        System.out.println("exposurePrefixSums: " + exposurePrefixSums);
+        System.out.println("exposureSummary: " + exposureSummary);
+        System.out.println("exposureGroups: " + exposureGroups);
+        System.out.println("exposureThresholds: " + exposureThresholds);
+        System.out.println("contouringThreads: " + contouringThreads);
+        System.out.println("contouringEngine: " + contouringEngine);
+        System.out.println("tileSize: " + tileSize);
+        System.out.println("tileThreads: " + tileThreads);
+        System.out.println("tileQueue: " + tileQueue);
+        System.out.println("stageThreads: " + stageThreads);
+        System.out.println("wideLayout: " + wideLayout);
+        System.out.println("quantizeLevels: " + quantizeLevels);
+        System.out.println("exportFormat: " + exportFormat);
+        System.out.println("exportSplitTime: " + exportSplitTime);
+        System.out.println("vectorTiles: " + vectorTiles);
+        System.out.println("vectorTilesZoom: " + vectorTilesMinZoom + "-" + vectorTilesMaxZoom);
+        System.out.println("buildingsCache: " + buildingsCache);
 
         if (Objects.equals(compute, "exposure")) {
             RunComputeExposure.doCleanDB = doCleanDB;
@@ -290,15 +517,39 @@ public class RunCli {
             RunComputeExposure.doExportBuildings = doExportBuildings;
             RunComputeExposure.doTrafficSimulation = doTrafficSimulation;
             RunComputeExposure.doExportResults = doExportResults;
+            RunComputeExposure.resume = resume;
+            RunComputeExposure.jfrEvents = jfrEvents;
             RunComputeExposure.timeBinSize = timeBinSize;
             RunComputeExposure.timeBinMin = timeBinMin;
             RunComputeExposure.timeBinMax = timeBinMax;
             RunComputeExposure.receiversMethod = receiversMethod;
+            RunComputeExposure.receiverTolerance = receiverTolerance;
+            RunComputeExposure.visitedFacilitiesOnly = visitedFacilitiesOnly;
+            RunComputeExposure.subpopulation = subpopulation;
             RunComputeExposure.diffHorizontal = diffHorizontal;
             RunComputeExposure.diffVertical = diffVertical;
             RunComputeExposure.reflOrder = reflOrder;
             RunComputeExposure.maxReflDist = maxReflDist;
             RunComputeExposure.maxSrcDist = maxSrcDist;
+            RunComputeExposure.influenceZone = influenceZone;
+            RunComputeExposure.threads = threads;
+            RunComputeExposure.reuseAttenuation = reuseAttenuation && tileSize <= 0;
+            RunComputeExposure.noiseMapEngine = noiseMapEngine;
+            RunComputeExposure.noiseMapOffHeap = noiseMapOffHeap;
+            RunComputeExposure.exposureEngine = exposureEngine;
+            RunComputeExposure.exposurePrefixSums = exposurePrefixSums;
+            RunComputeExposure.exposureSummary = exposureSummary;
+            RunComputeExposure.exposureGroups = exposureGroups;
+            RunComputeExposure.exposureThresholds = exposureThresholds;
+            RunComputeExposure.tileSize = tileSize;
+            RunComputeExposure.tileThreads = tileThreads;
+            RunComputeExposure.tileQueue = tileQueue.isEmpty() ? null : Paths.get(tileQueue);
+            RunComputeExposure.stageThreads = stageThreads;
+            RunComputeExposure.wideLayout = wideLayout;
+            RunComputeExposure.quantizeLevels = quantizeLevels;
+            RunComputeExposure.exportFormat = exportFormat;
+            RunComputeExposure.exportSplitTime = exportSplitTime;
+            RunComputeExposure.buildingsCache = buildingsCache.isEmpty() ? null : Paths.get(buildingsCache);
             RunComputeExposure.run(dbName, osmFile, matsimFolder, inputsFolder, resultsFolder, srid, populationFactor);
         }
         else if (Objects.equals(compute, "maps")) {
@@ -308,6 +559,8 @@ public class RunCli {
             RunComputeMaps.doExportBuildings = doExportBuildings;
             RunComputeMaps.doTrafficSimulation = doTrafficSimulation;
             RunComputeMaps.doExportResults = doExportResults;
+            RunComputeMaps.resume = resume;
+            RunComputeMaps.jfrEvents = jfrEvents;
             RunComputeMaps.timeBinSize = timeBinSize;
             RunComputeMaps.timeBinMin = timeBinMin;
             RunComputeMaps.timeBinMax = timeBinMax;
@@ -316,6 +569,21 @@ public class RunCli {
             RunComputeMaps.reflOrder = reflOrder;
             RunComputeMaps.maxReflDist = maxReflDist;
             RunComputeMaps.maxSrcDist = maxSrcDist;
+            RunComputeMaps.threads = threads;
+            RunComputeMaps.reuseAttenuation = reuseAttenuation;
+            RunComputeMaps.noiseMapEngine = noiseMapEngine;
+            RunComputeMaps.noiseMapOffHeap = noiseMapOffHeap;
+            RunComputeMaps.contouringThreads = contouringThreads;
+            RunComputeMaps.contouringEngine = contouringEngine;
+            RunComputeMaps.stageThreads = stageThreads;
+            RunComputeMaps.wideLayout = wideLayout;
+            RunComputeMaps.quantizeLevels = quantizeLevels;
+            RunComputeMaps.exportFormat = exportFormat;
+            RunComputeMaps.exportSplitTime = exportSplitTime;
+            RunComputeMaps.vectorTiles = vectorTiles;
+            RunComputeMaps.vectorTilesMinZoom = vectorTilesMinZoom;
+            RunComputeMaps.vectorTilesMaxZoom = vectorTilesMaxZoom;
+            RunComputeMaps.buildingsCache = buildingsCache.isEmpty() ? null : Paths.get(buildingsCache);
             RunComputeMaps.run(dbName, osmFile, matsimFolder, inputsFolder, resultsFolder, srid, populationFactor);
         }
 
@@ -331,6 +599,22 @@ public class RunCli {
         return table_found;
     }
 
+    static boolean viewExists(Connection connection, String table) throws SQLException {
+        DatabaseMetaData dbMeta = connection.getMetaData();
+        try (ResultSet rs = dbMeta.getTables(null, null, table, new String[]{"VIEW"})) {
+            return rs.next();
+        }
+    }
+
+    /**
+     * Drops the view standing for a table stored in another layout, so that its stage can create the table again.
+     */
+    static void dropView(Connection connection, String table) throws SQLException {
+        if (viewExists(connection, table)) {
+            new Sql(connection).execute("DROP VIEW " + table);
+        }
+    }
+
     static boolean columnExists(Connection connection, String table, String column_name) throws SQLException {
         DatabaseMetaData dbMeta = connection.getMetaData();
         ResultSet rs = dbMeta.getColumns(null, null, table, column_name);
@@ -3,6 +3,7 @@ package fr.umrae.matsim_noisemodelling;
 import groovy.sql.Sql;
 import org.h2.Driver;
 import org.h2gis.functions.factory.H2GISFunctions;
+import org.h2gis.utilities.JDBCUtilities;
 import org.h2gis.utilities.wrapper.ConnectionWrapper;
 import org.noise_planet.noisemodelling.wps.Database_Manager.Clean_Database;
 import org.noise_planet.noisemodelling.wps.Experimental_Matsim.*;
@@ -15,6 +16,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.*;
 import java.util.HashMap;
@@ -45,12 +47,34 @@ public class RunComputeExposure {
     public static boolean doCalculateExposure = true;
     public static boolean doIsoNoiseMap = false;
 
+    // computation threads of Noise_level_from_source and of the sparse noise map engine
+    public static int threads = ThreadBudget.resolve("auto");
+
+    public static String noiseMapEngine = "sql";  // sql, sparse
+    public static boolean noiseMapOffHeap = false;
+
+    public static String exposureEngine = "sql";  // sql, memory
+    // cumulated energies per receiver with the memory exposure engine, constant time activity lookups for 8 more bytes per level
+    public static boolean exposurePrefixSums = false;
+    // exposure distributions per group of persons, filled in the exposure stage, in EXPOSURE_SUMMARY and exposure_summary.json
+    public static boolean exposureSummary = false;
+    // columns of output_persons.csv.gz grouping the summary, column:width for classes of a numeric column
+    public static String exposureGroups = "";
+    // levels in dB whose share of persons at or above is summarized
+    public static String exposureThresholds = "55,65";
+
     public static int timeBinSize = 900;
     public static int timeBinMin = 0;
     public static int timeBinMax = 86400;
 
     public static String receiversMethod = "closest";  // random, closest
+    // activity receivers closer than this distance in meters share one propagation receiver, 0 keeps them all
+    public static double receiverTolerance = 0;
     public static String ignoreAgents = "";
+    // only build receivers for the facilities visited within the time bins by the studied agents
+    public static boolean visitedFacilitiesOnly = false;
+    // studied agents when visitedFacilitiesOnly is set, all when empty
+    public static String subpopulation = "";
 
     // acoustic propagation parameters
     public static boolean diffHorizontal = true;
@@ -58,6 +82,44 @@ public class RunComputeExposure {
     public static int reflOrder = 1;
     public static int maxReflDist = 50;
     public static int maxSrcDist = 750;
+    // skip Noise_level_from_source when its inputs have the same fingerprint as the stored attenuation table
+    public static boolean reuseAttenuation = false;
+    // only keep the buildings within maxSrcDist of a road, and the roads within maxSrcDist of a receiver
+    public static boolean influenceZone = false;
+    // distance up to which a facility gets the same receiver with the influence zone as without it
+    static final double FACILITY_SNAP_DIST = 100;
+
+    // side of the square receiver tiles in meters, 0 computes the whole area in the main database
+    public static double tileSize = 0;
+    // tiles computed at the same time, each with threads / tileThreads propagation threads
+    public static int tileThreads = 1;
+    // folder of the tile databases, next to the main database when null
+    public static Path tilesFolder = null;
+    // shared folder where the tiles are queued for worker processes, null computes them in this JVM only
+    public static Path tileQueue = null;
+
+    static final String TILE_UNIT = "exposure_tile";
+
+    public static String exportFormat = "default";  // default, geojsonseq, columnar
+    // one exported file per time bin, with the streaming formats
+    public static boolean exportSplitTime = false;
+
+    // folder of the imported buildings cache files, shared by the databases built from the same PBF, null to disable
+    public static Path buildingsCache = null;
+
+    // noise map stored as one row per receiver with packed time bins, RESULT_GEOM becoming a view on it (H2 only)
+    public static boolean wideLayout = false;
+
+    // band levels of the traffic, attenuation and result tables stored as packed 16 bit centi-dB behind views (H2 only)
+    public static boolean quantizeLevels = false;
+
+    // independent stages run at the same time, each on its own connection, 1 to run them one after the other
+    public static int stageThreads = 1;
+
+    // skip the stages whose recorded parameters and inputs are unchanged
+    public static boolean resume = false;
+    // emit the per stage metrics as JFR events, in addition to run_metrics.json
+    public static boolean jfrEvents = false;
 
     public static void main(String[] args) throws SQLException, IOException {
         // the purpose of this main method is to be run from an IDE after editing the parameters
@@ -75,7 +137,7 @@ public class RunComputeExposure {
     public static void run(String dbName, String osmFile, String matsimFolder, String inputsFolder, String resultsFolder, int srid, double populationFactor) throws SQLException, IOException {
 
         Connection connection;
-        Sql sql;
+        Pipeline.ConnectionFactory connectionFactory;
 
         if (postgis) {
             String url = "jdbc:postgresql://localhost/" + postgis_db;
@@ -83,6 +145,7 @@ public class RunComputeExposure {
             props.setProperty("user", postgis_user);
             props.setProperty("password", postgis_password);
             connection = DriverManager.getConnection(url, props);
+            connectionFactory = () -> DriverManager.getConnection(url, props);
         }
         else {
             File dbFile = new File(URI.create(dbName));
@@ -91,156 +154,533 @@ public class RunComputeExposure {
             connection = DriverManager.getConnection(databasePath, "", "");
             H2GISFunctions.load(connection);
             connection = new ConnectionWrapper(connection);
+            connectionFactory = () -> new ConnectionWrapper(DriverManager.getConnection(databasePath, "", ""));
+            if (tilesFolder == null) {
+                tilesFolder = Paths.get(dbFile.getAbsolutePath() + "_tiles");
+            }
+        }
+        if (tilesFolder == null) {
+            tilesFolder = Paths.get(resultsFolder, "tiles");
         }
-
-        sql = new Sql(connection);
 
         Files.createDirectories(Paths.get(resultsFolder));
 
-        if (doCleanDB) {
-            new Clean_Database().exec(connection, Map.of(
+        Pipeline pipeline = new Pipeline(connection, resume);
+        pipeline.metricsFile = Paths.get(resultsFolder, "run_metrics.json");
+        pipeline.jfrEvents = jfrEvents;
+        pipeline.stageThreads = stageThreads;
+        pipeline.connectionFactory = connectionFactory;
+
+        pipeline.add(new Stage("clean_db", conn -> {
+            new Clean_Database().exec(conn, Map.of(
                     "areYouSure", "yes"
             ));
-        }
-        if (doImportOSMPbf) {
-            new Import_OSM().exec(connection, Map.of(
+        })).enabled(doCleanDB && !resume);
+
+        pipeline.add(new Stage("import_osm", conn -> {
+            Map<String, Object> importParams = Map.of(
                     "pathFile", osmFile,
                     "targetSRID", srid,
                     "ignoreGround", true,
                     "ignoreBuilding", false,
                     "ignoreRoads", true,
                     "removeTunnels", false
-            ));
-            sql.execute("DELETE FROM BUILDINGS WHERE ST_IsEmpty(THE_GEOM);");
-        }
+            );
+            Stage.Action importOsm = importConn -> {
+                new Import_OSM().exec(importConn, importParams);
+                new Sql(importConn).execute("DELETE FROM BUILDINGS WHERE ST_IsEmpty(THE_GEOM);");
+            };
+            if (buildingsCache != null) {
+                new BuildingsCache(buildingsCache).importBuildings(conn, Paths.get(osmFile), srid, importParams, "BUILDINGS", importOsm);
+            }
+            else {
+                importOsm.run(conn);
+            }
+        })).outputs("BUILDINGS")
+                .fileParam("osmFile", Paths.get(osmFile))
+                .param("srid", srid)
+                .enabled(doImportOSMPbf);
 
-        if (doImportData) {
+        pipeline.add(new Stage("import_data", conn -> {
             System.out.println("Nothing to import");
-        }
+        })).enabled(doImportData);
 
-        if (doExportBuildings) {
-            new Export_Table().exec(connection, Map.of(
+        pipeline.add(new Stage("export_buildings", conn -> {
+            new Export_Table().exec(conn, Map.of(
                     "tableToExport", "BUILDINGS",
                     "exportPath", Paths.get(resultsFolder, "BUILDINGS.geojson")
             ));
+        })).inputs("BUILDINGS")
+                .enabled(doExportBuildings);
+
+        pipeline.add(new Stage("import_matsim_traffic", conn -> {
+            RunCli.dropView(conn, "MATSIM_ROADS_LW");
+            Map<String, Object> params = new HashMap<>();
+            params.put("folder", matsimFolder);
+            params.put("outTableName", "MATSIM_ROADS");
+            params.put("link2GeometryFile", Paths.get(matsimFolder, "detailed_network.csv")); // absolute path
+            params.put("timeBinSize", timeBinSize);
+            params.put("timeBinMin", timeBinMin);
+            params.put("timeBinMax", timeBinMax);
+            params.put("skipUnused", true);
+            params.put("exportTraffic", true);
+            params.put("SRID", srid);
+            params.put("ignoreAgents", ignoreAgents);
+            params.put("perVehicleLevel", true);
+            params.put("populationFactor", populationFactor);
+
+            new Traffic_From_Events().exec(conn, params);
+
+            new Sql(conn).execute("UPDATE MATSIM_ROADS SET THE_GEOM = ST_SetSrid(THE_GEOM, " + srid + ")");
+        })).outputs("MATSIM_ROADS", "MATSIM_ROADS_LW")
+                .fileParam("events", Paths.get(matsimFolder, "output_events.xml.gz"))
+                .fileParam("network", Paths.get(matsimFolder, "detailed_network.csv"))
+                .param("timeBinSize", timeBinSize)
+                .param("timeBinMin", timeBinMin)
+                .param("timeBinMax", timeBinMax)
+                .param("srid", srid)
+                .param("ignoreAgents", ignoreAgents)
+                .param("populationFactor", populationFactor)
+                .enabled(doTrafficSimulation && doImportMatsimTraffic);
+
+        pipeline.add(new Stage("quantize_traffic", conn -> {
+            QuantizedLevels.encode(conn, "MATSIM_ROADS_LW");
+        })).inputs("MATSIM_ROADS_LW")
+                .outputs("MATSIM_ROADS_LW", "MATSIM_ROADS_LW_CDB")
+                .enabled(doTrafficSimulation && doImportMatsimTraffic && quantizeLevels && !postgis);
+
+        pipeline.add(new Stage("buildings_zone", conn -> {
+            // a reflecting wall is up to maxReflDist away from a path
+            InfluenceZone.withinDistance(conn, "BUILDINGS", "MATSIM_ROADS", maxSrcDist + maxReflDist, "BUILDINGS_ZONE");
+        })).inputs("BUILDINGS", "MATSIM_ROADS")
+                .outputs("BUILDINGS_ZONE")
+                .param("maxSrcDist", maxSrcDist)
+                .param("maxReflDist", maxReflDist)
+                .enabled(doTrafficSimulation && influenceZone);
+
+        pipeline.add(new Stage("grid_zone", conn -> {
+            // the receivers a facility within FACILITY_SNAP_DIST is snapped to with and without this zone are within
+            // 2 * FACILITY_SNAP_DIST of each other, so one within maxSrcDist of a road is never traded for the other
+            InfluenceZone.withinDistance(conn, "BUILDINGS", "MATSIM_ROADS", maxSrcDist + 2 * FACILITY_SNAP_DIST, "BUILDINGS_GRID_ZONE");
+        })).inputs("BUILDINGS", "MATSIM_ROADS")
+                .outputs("BUILDINGS_GRID_ZONE")
+                .param("maxSrcDist", maxSrcDist)
+                .param("facilitySnapDist", FACILITY_SNAP_DIST)
+                .enabled(doTrafficSimulation && doCreateReceiversFromMatsim && influenceZone);
+
+        // receivers around the buildings the facilities may be snapped to
+        pipeline.add(new Stage("building_grid", conn -> {
+            new Building_Grid().exec(conn, Map.of(
+                    "delta",  5.0,
+                    "tableBuilding", gridBuildingsTable(),
+                    "receiversTableName", "RECEIVERS",
+                    "height", 4.0,
+                    "fenceTableName", postgis ? null : gridBuildingsTable()
+            ));
+        })).inputs(gridBuildingsTable())
+                .outputs("RECEIVERS")
+                .enabled(doTrafficSimulation && doCreateReceiversFromMatsim);
+
+        pipeline.add(new Stage("import_activities", conn -> {
+            new Import_Activities().exec(conn, Map.of(
+                    "facilitiesPath", Paths.get(matsimFolder, "output_facilities.xml.gz"),
+                    "SRID", srid,
+                    "outTableName", "ACTIVITIES"
+            ));
+        })).outputs("ACTIVITIES")
+                .fileParam("facilities", Paths.get(matsimFolder, "output_facilities.xml.gz"))
+                .param("srid", srid)
+                .enabled(doTrafficSimulation && doCreateReceiversFromMatsim);
+
+        pipeline.add(new Stage("visited_facilities", conn -> {
+            VisitedFacilities visited = new VisitedFacilities(timeBinMin, timeBinMax, ignoreAgents, subpopulation);
+            visited.collect(Paths.get(matsimFolder, "output_experienced_plans.xml.gz"));
+            visited.filter(conn, "ACTIVITIES", "ACTIVITIES_VISITED");
+        })).inputs("ACTIVITIES")
+                .outputs("ACTIVITIES_VISITED")
+                .fileParam("experiencedPlans", Paths.get(matsimFolder, "output_experienced_plans.xml.gz"))
+                .param("timeBinMin", timeBinMin)
+                .param("timeBinMax", timeBinMax)
+                .param("ignoreAgents", ignoreAgents)
+                .param("subpopulation", subpopulation)
+                .enabled(doTrafficSimulation && doCreateReceiversFromMatsim && visitedFacilitiesOnly);
+
+        pipeline.add(new Stage("activities_receivers", conn -> {
+            if (Objects.equals(receiversMethod, "random")) {
+                new Receivers_From_Activities_Random().exec(conn, Map.of(
+                        "activitiesTable", activitiesTable(),
+                        "buildingsTable", "BUILDINGS",
+                        "receiversTable", "RECEIVERS",
+                        "outTableName", "ACTIVITIES_RECEIVERS"
+                ));
+            } else {
+                new Receivers_From_Activities_Closest().exec(conn, Map.of(
+                        "activitiesTable", activitiesTable(),
+                        "receiversTable", "RECEIVERS",
+                        "outTableName", "ACTIVITIES_RECEIVERS"
+                ));
+            }
+            if (influenceZone) {
+                // no source within maxSrcDist, the facilities of these receivers have no level, as without influence zone
+                InfluenceZone.deleteBeyond(conn, "ACTIVITIES_RECEIVERS", "MATSIM_ROADS", maxSrcDist);
+            }
+        })).inputs(activitiesTable(), "BUILDINGS", "RECEIVERS", "MATSIM_ROADS")
+                .outputs("ACTIVITIES_RECEIVERS")
+                .param("receiversMethod", receiversMethod)
+                .param("influenceZone", influenceZone)
+                .param("maxSrcDist", maxSrcDist)
+                .enabled(doTrafficSimulation && doCreateReceiversFromMatsim);
+
+        pipeline.add(new Stage("consolidate_receivers", conn -> {
+            new ReceiverConsolidation(receiverTolerance).consolidate(conn, "ACTIVITIES_RECEIVERS", "UNIQUE_RECEIVERS", "RECEIVERS_MAPPING");
+        })).inputs("ACTIVITIES_RECEIVERS")
+                .outputs("UNIQUE_RECEIVERS", "RECEIVERS_MAPPING")
+                .param("receiverTolerance", receiverTolerance)
+                .enabled(doTrafficSimulation && receiverTolerance > 0);
+
+        pipeline.add(new Stage("sources_zone", conn -> {
+            InfluenceZone.withinDistance(conn, "MATSIM_ROADS", propagationReceivers(), maxSrcDist, "MATSIM_ROADS_ZONE");
+        })).inputs("MATSIM_ROADS", propagationReceivers())
+                .outputs("MATSIM_ROADS_ZONE")
+                .param("maxSrcDist", maxSrcDist)
+                .enabled(doTrafficSimulation && influenceZone);
+
+        pipeline.add(new Stage("attenuation_traffic", conn -> {
+            computeAttenuation(conn, threads);
+        })).inputs(buildingsTable(), propagationReceivers(), sourcesTable())
+                .outputs("ATTENUATION_TRAFFIC")
+                .param("maxSrcDist", maxSrcDist)
+                .param("maxReflDist", maxReflDist)
+                .param("reflOrder", reflOrder)
+                .param("diffVertical", diffVertical)
+                .param("diffHorizontal", diffHorizontal)
+                .enabled(doTrafficSimulation && doCalculateNoisePropagation && tileSize <= 0);
+
+        pipeline.add(new Stage("quantize_attenuation", conn -> {
+            QuantizedLevels.encode(conn, "ATTENUATION_TRAFFIC");
+        })).inputs("ATTENUATION_TRAFFIC")
+                .outputs("ATTENUATION_TRAFFIC", "ATTENUATION_TRAFFIC_CDB")
+                .enabled(doTrafficSimulation && doCalculateNoisePropagation && tileSize <= 0 && quantizeLevels && !postgis);
+
+        if (tileSize > 0) {
+            // propagation and noise map per tile, in the tile databases, merged into RESULT_GEOM
+            pipeline.add(new Stage("noise_map_traffic", conn -> {
+                RunCli.dropView(conn, noiseMapTable());
+                Tiling tiling = new Tiling(tileSize, maxSrcDist, maxSrcDist + maxReflDist, tilesFolder, tileThreads);
+                int tileComputeThreads = Math.max(1, threads / tiling.parallelTiles);
+                Tiling.TileInputs inputs = new Tiling.TileInputs(propagationReceivers(), buildingsTable(), sourcesTable(), "MATSIM_ROADS_LW");
+                if (tileQueue != null) {
+                    tiling.runQueued(conn, tiling.tiles(conn, propagationReceivers()), inputs, RunComputeExposure::tileUnit,
+                            noiseMapTable(), new WorkQueue(tileQueue), tileThreads, tileComputeThreads);
+                }
+                else {
+                    tiling.run(conn, tiling.tiles(conn, propagationReceivers()), inputs,
+                            (tileConn, tile) -> computeTile(tileConn, tileComputeThreads), noiseMapTable());
+                }
+                ensureIndex(conn, noiseMapTable(), "IDRECEIVER", false);
+                ensureIndex(conn, noiseMapTable(), "TIME", false);
+            })).inputs(buildingsTable(), propagationReceivers(), sourcesTable(), "MATSIM_ROADS_LW")
+                    .outputs(noiseMapTable())
+                    .param("tileSize", tileSize)
+                    .param("maxSrcDist", maxSrcDist)
+                    .param("maxReflDist", maxReflDist)
+                    .param("reflOrder", reflOrder)
+                    .param("diffVertical", diffVertical)
+                    .param("diffHorizontal", diffHorizontal)
+                    .param("timeBinSize", timeBinSize)
+                    .param("timeBinMin", timeBinMin)
+                    .param("timeBinMax", timeBinMax)
+                    .enabled(doTrafficSimulation && doCalculateNoiseMap);
+        }
+        else {
+            pipeline.add(new Stage("noise_map_traffic", conn -> {
+                RunCli.dropView(conn, noiseMapTable());
+                computeNoiseMap(conn, threads);
+            })).inputs(sourcesTable(), "MATSIM_ROADS_LW", "ATTENUATION_TRAFFIC", propagationReceivers())
+                    .outputs(noiseMapTable())
+                    .param("timeBinSize", timeBinSize)
+                    .param("timeBinMin", timeBinMin)
+                    .param("timeBinMax", timeBinMax)
+                    .enabled(doTrafficSimulation && doCalculateNoiseMap);
         }
 
-        if (doTrafficSimulation) {
-
-            if (doImportMatsimTraffic) {
-                Map<String, Object> params = new HashMap<>();
-                params.put("folder", matsimFolder);
-                params.put("outTableName", "MATSIM_ROADS");
-                params.put("link2GeometryFile", Paths.get(matsimFolder, "detailed_network.csv")); // absolute path
-                params.put("timeBinSize", timeBinSize);
-                params.put("timeBinMin", timeBinMin);
-                params.put("timeBinMax", timeBinMax);
-                params.put("skipUnused", true);
-                params.put("exportTraffic", true);
-                params.put("SRID", srid);
-                params.put("ignoreAgents", ignoreAgents);
-                params.put("perVehicleLevel", true);
-                params.put("populationFactor", populationFactor);
-
-                new Traffic_From_Events().exec(connection, params);
-
-                sql.execute("UPDATE MATSIM_ROADS SET THE_GEOM = ST_SetSrid(THE_GEOM, " + srid + ")");
+        pipeline.add(new Stage("expand_receivers", conn -> {
+            RunCli.dropView(conn, "RESULT_GEOM");
+            ReceiverConsolidation.expand(conn, "RESULT_GEOM_UNIQUE", "RECEIVERS_MAPPING", "ACTIVITIES_RECEIVERS", "RESULT_GEOM");
+            ensureIndex(conn, "RESULT_GEOM", "IDRECEIVER", false);
+            ensureIndex(conn, "RESULT_GEOM", "TIME", false);
+        })).inputs("RESULT_GEOM_UNIQUE", "RECEIVERS_MAPPING", "ACTIVITIES_RECEIVERS")
+                .outputs("RESULT_GEOM")
+                .enabled(doTrafficSimulation && doCalculateNoiseMap && receiverTolerance > 0);
+
+        pipeline.add(new Stage("wide_layout", conn -> {
+            WideLayout.convert(conn, "RESULT_GEOM");
+        })).inputs("RESULT_GEOM")
+                .outputs("RESULT_GEOM", "RESULT_GEOM_WIDE", "RESULT_GEOM_WIDE_TIMES")
+                .enabled(doTrafficSimulation && doCalculateNoiseMap && wideLayout && !postgis);
+
+        pipeline.add(new Stage("quantize_results", conn -> {
+            QuantizedLevels.encode(conn, "RESULT_GEOM");
+        })).inputs("RESULT_GEOM")
+                .outputs("RESULT_GEOM", "RESULT_GEOM_CDB")
+                .enabled(doTrafficSimulation && doCalculateNoiseMap && quantizeLevels && !wideLayout && !postgis);
+
+        pipeline.add(new Stage("exposure", conn -> {
+            Map<String, Object> params = new HashMap<>();
+            params.put("experiencedPlansFile", Paths.get(matsimFolder, "output_experienced_plans.xml.gz"));
+            params.put("plansFile", Paths.get(matsimFolder, "output_plans.xml.gz"));
+            params.put("personsCsvFile", Paths.get(matsimFolder, "output_persons.csv.gz"));
+            params.put("SRID", srid);
+            params.put("receiversTable", "ACTIVITIES_RECEIVERS");
+            params.put("outTableName", "EXPOSURES");
+            params.put("dataTable", "RESULT_GEOM");
+            params.put("timeBinSize", timeBinSize);
+            params.put("timeBinMin", timeBinMin);
+            params.put("timeBinMax", timeBinMax);
+
+            // the other persons may have activities without receiver
+            VisitedFacilities studied = visitedFacilitiesOnly ? new VisitedFacilities(timeBinMin, timeBinMax, ignoreAgents, subpopulation) : null;
+            ExposureSummary summary = null;
+            if (exposureSummary) {
+                summary = new ExposureSummary(ExposureSummary.parseList(exposureGroups), ExposureSummary.parseThresholds(exposureThresholds));
+                summary.loadPersons(Paths.get(matsimFolder, "output_persons.csv.gz"));
             }
-            if (doCreateReceiversFromMatsim) {
-                new Building_Grid().exec(connection, Map.of(
-                        "delta",  5.0,
-                        "tableBuilding", "BUILDINGS",
-                        "receiversTableName", "RECEIVERS",
-                        "height", 4.0,
-                        "fenceTableName", postgis ? null : "BUILDINGS"
-                ));
-                new Import_Activities().exec(connection, Map.of(
-                        "facilitiesPath", Paths.get(matsimFolder, "output_facilities.xml.gz"),
-                        "SRID", srid,
-                        "outTableName", "ACTIVITIES"
-                ));
-                if (Objects.equals(receiversMethod, "random")) {
-                    new Receivers_From_Activities_Random().exec(connection, Map.of(
-                            "activitiesTable", "ACTIVITIES",
-                            "buildingsTable", "BUILDINGS",
-                            "receiversTable", "RECEIVERS",
-                            "outTableName", "ACTIVITIES_RECEIVERS"
-                    ));
-                } else {
-                    new Receivers_From_Activities_Closest().exec(connection, Map.of(
-                            "activitiesTable", "ACTIVITIES",
-                            "receiversTable", "RECEIVERS",
-                            "outTableName", "ACTIVITIES_RECEIVERS"
-                    ));
+            if (Objects.equals(exposureEngine, "memory")) {
+                params.put("threads", threads);
+                params.put("prefixSums", exposurePrefixSums);
+                if (summary != null) {
+                    params.put("summary", summary);
+                }
+                if (studied != null) {
+                    params.put("studied", studied);
                 }
+                new InMemoryExposure().exec(conn, params);
             }
-
-            if (doCalculateNoisePropagation) {
-                Map<String, Object> params = new HashMap<>();
-                params.put("tableBuilding", "BUILDINGS");
-                params.put("tableReceivers", "ACTIVITIES_RECEIVERS");
-                params.put("tableSources", "MATSIM_ROADS");
-                params.put("confMaxSrcDist", maxSrcDist);
-                params.put("confMaxReflDist", maxReflDist);
-                params.put("confReflOrder", reflOrder);
-                params.put("confSkipLevening", true);
-                params.put("confSkipLnight", true);
-                params.put("confSkipLden", true);
-                params.put("confThreadNumber", 16);
-                params.put("confExportSourceId", true);
-                params.put("confDiffVertical", diffVertical);
-                params.put("confDiffHorizontal", diffHorizontal);
-
-                new Noise_level_from_source().exec(connection, params);
-
-                sql.execute("DROP TABLE IF EXISTS ATTENUATION_TRAFFIC");
-                sql.execute("ALTER TABLE RECEIVERS_LEVEL RENAME TO ATTENUATION_TRAFFIC");
+            else {
+                new Agent_Exposure().exec(conn, params);
+                if (studied != null) {
+                    studied.deleteOthers(conn, Paths.get(matsimFolder, "output_experienced_plans.xml.gz"), "EXPOSURES");
+                }
+                if (summary != null) {
+                    summary.scan(conn, "EXPOSURES");
+                }
+            }
+            if (summary != null) {
+                summary.write(conn, "EXPOSURE_SUMMARY");
+                summary.writeJson(Paths.get(resultsFolder, ExposureSummary.JSON_FILE));
+                System.out.println("Exposure summary of " + summary.groups.size() + " groups written to EXPOSURE_SUMMARY and " + ExposureSummary.JSON_FILE);
             }
-            if (doCalculateNoiseMap) {
-                new Noise_From_Attenuation_Matrix_MatSim().exec(connection, Map.of(
-                        "matsimRoads", "MATSIM_ROADS",
-                        "matsimRoadsLw", "MATSIM_ROADS_LW",
-                        "attenuationTable", "ATTENUATION_TRAFFIC",
-                        "receiversTable", "ACTIVITIES_RECEIVERS",
-                        "outTableName", "RESULT_GEOM",
-                        "timeBinSize", timeBinSize,
-                        "timeBinMin", timeBinMin,
-                        "timeBinMax", timeBinMax
+        })).inputs("ACTIVITIES_RECEIVERS", "RESULT_GEOM")
+                .outputs(exposureSummary ? new String[]{"EXPOSURES", "EXPOSURE_SUMMARY"} : new String[]{"EXPOSURES"})
+                .fileParam("experiencedPlans", Paths.get(matsimFolder, "output_experienced_plans.xml.gz"))
+                .fileParam("plans", Paths.get(matsimFolder, "output_plans.xml.gz"))
+                .fileParam("persons", Paths.get(matsimFolder, "output_persons.csv.gz"))
+                .param("srid", srid)
+                .param("timeBinSize", timeBinSize)
+                .param("timeBinMin", timeBinMin)
+                .param("timeBinMax", timeBinMax)
+                .param("exposureEngine", exposureEngine)
+                .param("exposureSummary", exposureSummary)
+                .param("exposureGroups", exposureGroups)
+                .param("exposureThresholds", exposureThresholds)
+                .param("visitedFacilitiesOnly", visitedFacilitiesOnly)
+                .param("ignoreAgents", visitedFacilitiesOnly ? ignoreAgents : "")
+                .param("subpopulation", visitedFacilitiesOnly ? subpopulation : "")
+                .enabled(doTrafficSimulation && doCalculateExposure);
+
+        pipeline.add(new Stage("export_roads", conn -> {
+            new Export_Table().exec(conn, Map.of(
+                    "tableToExport", "MATSIM_ROADS",
+                    "exportPath", Paths.get(resultsFolder, "MATSIM_ROADS.geojson")
+            ));
+        })).inputs("MATSIM_ROADS")
+                .enabled(doExportRoads);
+
+        pipeline.add(new Stage("export_results", conn -> {
+            if (Objects.equals(exportFormat, "default")) {
+                new Export_Table().exec(conn, Map.of(
+                        "tableToExport", "RESULT_GEOM",
+                        "exportPath", Paths.get(resultsFolder, "RESULT_GEOM.shp")
                 ));
             }
-
-            if (doCalculateExposure) {
-                Map<String, Object> params = new HashMap<>();
-                params.put("experiencedPlansFile", Paths.get(matsimFolder, "output_experienced_plans.xml.gz"));
-                params.put("plansFile", Paths.get(matsimFolder, "output_plans.xml.gz"));
-                params.put("personsCsvFile", Paths.get(matsimFolder, "output_persons.csv.gz"));
-                params.put("SRID", srid);
-                params.put("receiversTable", "ACTIVITIES_RECEIVERS");
-                params.put("outTableName", "EXPOSURES");
-                params.put("dataTable", "RESULT_GEOM");
-                params.put("timeBinSize", timeBinSize);
-                params.put("timeBinMin", timeBinMin);
-                params.put("timeBinMax", timeBinMax);
-
-                new Agent_Exposure().exec(connection, params);
+            else {
+                new StreamingExport(exportFormat).export(conn, "RESULT_GEOM", Paths.get(resultsFolder), exportSplitTime ? "TIME" : null);
             }
+        })).inputs("RESULT_GEOM")
+                .enabled(doExportResults);
+
+        pipeline.run();
+
+        connection.close();
+    }
+
+    /**
+     * Propagation, unless disabled and already computed in this tile, then noise map of a tile database.
+     */
+    static void computeTile(Connection tileConn, int threads) throws SQLException, IOException {
+        if (doCalculateNoisePropagation || !tableExists(tileConn, "ATTENUATION_TRAFFIC")) {
+            computeAttenuation(tileConn, threads);
         }
+        computeNoiseMap(tileConn, threads);
+    }
 
-        if (doExportRoads) {
-            new Export_Table().exec(connection, Map.of(
-                    "tableToExport", "MATSIM_ROADS",
-                    "exportPath", Paths.get(resultsFolder, "MATSIM_ROADS.geojson")
-            ));
+    /**
+     * Work unit of a tile, holding the parameters {@link #computeTile} depends on, for a worker process.
+     */
+    static Properties tileUnit(Tiling.Tile tile, Path tileDatabase) {
+        Properties unit = new Properties();
+        unit.setProperty(Worker.KIND, TILE_UNIT);
+        unit.setProperty(WorkQueue.DATABASE, tileDatabase.toString());
+        unit.setProperty("receivers", Long.toString(tile.receivers));
+        unit.setProperty("receiverTolerance", Double.toString(receiverTolerance));
+        unit.setProperty("influenceZone", Boolean.toString(influenceZone));
+        unit.setProperty("doCalculateNoisePropagation", Boolean.toString(doCalculateNoisePropagation));
+        unit.setProperty("diffHorizontal", Boolean.toString(diffHorizontal));
+        unit.setProperty("diffVertical", Boolean.toString(diffVertical));
+        unit.setProperty("reflOrder", Integer.toString(reflOrder));
+        unit.setProperty("maxReflDist", Integer.toString(maxReflDist));
+        unit.setProperty("maxSrcDist", Integer.toString(maxSrcDist));
+        unit.setProperty("reuseAttenuation", Boolean.toString(reuseAttenuation));
+        unit.setProperty("noiseMapEngine", noiseMapEngine);
+        unit.setProperty("noiseMapOffHeap", Boolean.toString(noiseMapOffHeap));
+        unit.setProperty("timeBinSize", Integer.toString(timeBinSize));
+        unit.setProperty("timeBinMin", Integer.toString(timeBinMin));
+        unit.setProperty("timeBinMax", Integer.toString(timeBinMax));
+        return unit;
+    }
+
+    /**
+     * Runs a tile unit in a worker, with the parameters of the coordinator.
+     */
+    static void runTileUnit(Properties unit, int threads) throws SQLException, IOException {
+        doCalculateNoisePropagation = Boolean.parseBoolean(unit.getProperty("doCalculateNoisePropagation"));
+        receiverTolerance = Double.parseDouble(unit.getProperty("receiverTolerance", "0"));
+        influenceZone = Boolean.parseBoolean(unit.getProperty("influenceZone", "false"));
+        diffHorizontal = Boolean.parseBoolean(unit.getProperty("diffHorizontal"));
+        diffVertical = Boolean.parseBoolean(unit.getProperty("diffVertical"));
+        reflOrder = Integer.parseInt(unit.getProperty("reflOrder"));
+        maxReflDist = Integer.parseInt(unit.getProperty("maxReflDist"));
+        maxSrcDist = Integer.parseInt(unit.getProperty("maxSrcDist"));
+        reuseAttenuation = Boolean.parseBoolean(unit.getProperty("reuseAttenuation"));
+        noiseMapEngine = unit.getProperty("noiseMapEngine");
+        noiseMapOffHeap = Boolean.parseBoolean(unit.getProperty("noiseMapOffHeap"));
+        timeBinSize = Integer.parseInt(unit.getProperty("timeBinSize"));
+        timeBinMin = Integer.parseInt(unit.getProperty("timeBinMin"));
+        timeBinMax = Integer.parseInt(unit.getProperty("timeBinMax"));
+        try (Connection tileConn = Tiling.openDatabase(Paths.get(unit.getProperty(WorkQueue.DATABASE)))) {
+            computeTile(tileConn, threads);
         }
+    }
 
-        if (doExportResults) {
-            new Export_Table().exec(connection, Map.of(
-                    "tableToExport", "RESULT_GEOM",
-                    "exportPath", Paths.get(resultsFolder, "RESULT_GEOM.shp")
-            ));
+    /**
+     * Obstacles of the propagation : all the buildings, or those of the influence zone.
+     */
+    static String buildingsTable() {
+        return influenceZone ? "BUILDINGS_ZONE" : "BUILDINGS";
+    }
+
+    /**
+     * Buildings of the facade receivers : all the buildings, or those the facilities of the influence zone may be
+     * snapped to.
+     */
+    static String gridBuildingsTable() {
+        return influenceZone ? "BUILDINGS_GRID_ZONE" : "BUILDINGS";
+    }
+
+    /**
+     * Sources of the propagation and noise map : all the roads, or those of the influence zone.
+     */
+    static String sourcesTable() {
+        return influenceZone ? "MATSIM_ROADS_ZONE" : "MATSIM_ROADS";
+    }
+
+    /**
+     * Activities the receivers are built for : all the facilities, or only the visited ones.
+     */
+    static String activitiesTable() {
+        return visitedFacilitiesOnly ? "ACTIVITIES_VISITED" : "ACTIVITIES";
+    }
+
+    /**
+     * Receivers of the propagation : the activity receivers, or one per cluster when they are consolidated.
+     */
+    static String propagationReceivers() {
+        return receiverTolerance > 0 ? "UNIQUE_RECEIVERS" : "ACTIVITIES_RECEIVERS";
+    }
+
+    /**
+     * Noise map of the propagation receivers, expanded to RESULT_GEOM afterwards when they are consolidated.
+     */
+    static String noiseMapTable() {
+        return receiverTolerance > 0 ? "RESULT_GEOM_UNIQUE" : "RESULT_GEOM";
+    }
+
+    /**
+     * Attenuation from the road sources to the propagation receivers, in ATTENUATION_TRAFFIC.
+     */
+    static void computeAttenuation(Connection conn, int threads) throws SQLException, IOException {
+        Map<String, Object> params = new HashMap<>();
+        params.put("tableBuilding", buildingsTable());
+        params.put("tableReceivers", propagationReceivers());
+        params.put("tableSources", sourcesTable());
+        params.put("confMaxSrcDist", maxSrcDist);
+        params.put("confMaxReflDist", maxReflDist);
+        params.put("confReflOrder", reflOrder);
+        params.put("confSkipLevening", true);
+        params.put("confSkipLnight", true);
+        params.put("confSkipLden", true);
+        params.put("confThreadNumber", threads);
+        params.put("confExportSourceId", true);
+        params.put("confDiffVertical", diffVertical);
+        params.put("confDiffHorizontal", diffHorizontal);
+
+        String fingerprint = reuseAttenuation ? AttenuationCache.fingerprint(conn, params, Map.of(
+                buildingsTable(), "*",
+                propagationReceivers(), "*",
+                sourcesTable(), "PK, THE_GEOM"
+        )) : null;
+        if (reuseAttenuation && AttenuationCache.matches(conn, "ATTENUATION_TRAFFIC", fingerprint)) {
+            System.out.println("Propagation inputs are unchanged, reusing ATTENUATION_TRAFFIC");
         }
+        else {
+            ThreadBudget.Usage usage = new ThreadBudget.Usage();
+            new Noise_level_from_source().exec(conn, params);
+            usage.report("Noise_level_from_source", threads, JDBCUtilities.getRowCount(conn, propagationReceivers()), "receivers");
+
+            Sql sql = new Sql(conn);
+            RunCli.dropView(conn, "ATTENUATION_TRAFFIC");
+            sql.execute("DROP TABLE IF EXISTS ATTENUATION_TRAFFIC");
+            sql.execute("ALTER TABLE RECEIVERS_LEVEL RENAME TO ATTENUATION_TRAFFIC");
+            if (reuseAttenuation) {
+                AttenuationCache.store(conn, "ATTENUATION_TRAFFIC", fingerprint);
+            }
+            else {
+                AttenuationCache.invalidate(conn, "ATTENUATION_TRAFFIC");
+            }
+        }
+    }
 
-        connection.close();
+    /**
+     * Levels of the propagation receivers per time bin from ATTENUATION_TRAFFIC and MATSIM_ROADS_LW.
+     */
+    static void computeNoiseMap(Connection conn, int threads) throws SQLException, IOException {
+        Map<String, Object> noiseMapParams = new HashMap<>();
+        noiseMapParams.put("matsimRoads", sourcesTable());
+        noiseMapParams.put("matsimRoadsLw", "MATSIM_ROADS_LW");
+        noiseMapParams.put("attenuationTable", "ATTENUATION_TRAFFIC");
+        noiseMapParams.put("receiversTable", propagationReceivers());
+        noiseMapParams.put("outTableName", noiseMapTable());
+        noiseMapParams.put("timeBinSize", timeBinSize);
+        noiseMapParams.put("timeBinMin", timeBinMin);
+        noiseMapParams.put("timeBinMax", timeBinMax);
+        noiseMapParams.put("threads", threads);
+        if (Objects.equals(noiseMapEngine, "sparse")) {
+            noiseMapParams.put("offHeap", noiseMapOffHeap);
+            new SparseNoiseMap().exec(conn, noiseMapParams);
+        }
+        else {
+            new Noise_From_Attenuation_Matrix_MatSim().exec(conn, noiseMapParams);
+        }
     }
 
     static boolean tableExists(Connection connection, String table) throws SQLException {
@@ -3,6 +3,7 @@ package fr.umrae.matsim_noisemodelling;
 import groovy.sql.Sql;
 import org.h2.Driver;
 import org.h2gis.functions.factory.H2GISFunctions;
+import org.h2gis.utilities.JDBCUtilities;
 import org.h2gis.utilities.wrapper.ConnectionWrapper;
 import org.noise_planet.noisemodelling.wps.Acoustic_Tools.Create_Isosurface;
 import org.noise_planet.noisemodelling.wps.Database_Manager.Clean_Database;
@@ -17,12 +18,22 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.*;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 class RunComputeMaps {
 
@@ -42,6 +53,20 @@ class RunComputeMaps {
     static boolean doImportMatsimTraffic = true;
     static boolean doIsoNoiseMap = true;
 
+    // number of time bins contoured concurrently, 1 keeps the sequential loop
+    static int contouringThreads = 1;
+    static String contouringEngine = "isosurface";  // isosurface, memory
+    // multiplier of TIME in the row keys of the time clustered noise map
+    static final long TIME_KEY_FACTOR = 1L << 32;
+    // level columns of the noise map, LEQA being renamed LAEQ in the time clustered table
+    static final List<String> LEVEL_COLUMNS = List.of("HZ63", "HZ125", "HZ250", "HZ500", "HZ1000", "HZ2000", "HZ4000", "HZ8000", "LEQA", "LEQ");
+
+    // computation threads of Noise_level_from_source and of the sparse noise map engine
+    static int threads = ThreadBudget.resolve("auto");
+
+    static String noiseMapEngine = "sql";  // sql, sparse
+    static boolean noiseMapOffHeap = false;
+
     static int timeBinSize = 900;
     static int timeBinMin = 0;
     static int timeBinMax = 86400;
@@ -52,6 +77,33 @@ class RunComputeMaps {
     static int reflOrder = 1;
     static int maxReflDist = 50;
     static int maxSrcDist = 750;
+    // skip Noise_level_from_source when its inputs have the same fingerprint as the stored attenuation table
+    static boolean reuseAttenuation = false;
+
+    static String exportFormat = "default";  // default, geojsonseq, columnar
+    // one exported file per time bin, with the streaming formats
+    static boolean exportSplitTime = false;
+    // vector tile pyramid of the contours : none, directory (z/x/y.pbf) or mbtiles
+    static String vectorTiles = "none";
+    static int vectorTilesMinZoom = 10;
+    static int vectorTilesMaxZoom = 16;
+
+    // folder of the imported buildings cache files, shared by the databases built from the same PBF, null to disable
+    static Path buildingsCache = null;
+
+    // noise map stored as one row per receiver with packed time bins, RESULT_ISO_MAP becoming a view on it (H2 only)
+    static boolean wideLayout = false;
+
+    // band levels of the traffic, attenuation and result tables stored as packed 16 bit centi-dB behind views (H2 only)
+    static boolean quantizeLevels = false;
+
+    // independent stages run at the same time, each on its own connection, 1 to run them one after the other
+    static int stageThreads = 1;
+
+    // skip the stages whose recorded parameters and inputs are unchanged
+    static boolean resume = false;
+    // emit the per stage metrics as JFR events, in addition to run_metrics.json
+    static boolean jfrEvents = false;
 
     public static void main(String[] args) throws SQLException, IOException {
         // the purpose of this main method is to be run from an IDE after editing the parameters
@@ -69,7 +121,8 @@ class RunComputeMaps {
     public static void run(String dbName, String osmFile, String matsimFolder, String inputsFolder, String resultsFolder, int srid, double populationFactor) throws SQLException, IOException {
 
         Connection connection;
-        Sql sql;
+        String databasePath = null;
+        Pipeline.ConnectionFactory connectionFactory;
 
         if (postgis) {
             String url = "jdbc:postgresql://localhost/" + postgis_db;
@@ -77,171 +130,513 @@ class RunComputeMaps {
             props.setProperty("user", postgis_user);
             props.setProperty("password", postgis_password);
             connection = DriverManager.getConnection(url, props);
+            connectionFactory = () -> DriverManager.getConnection(url, props);
         }
         else {
             File dbFile = new File(URI.create(dbName));
-            String databasePath = "jdbc:h2:" + dbFile.getAbsolutePath() + ";AUTO_SERVER=TRUE";
+            databasePath = "jdbc:h2:" + dbFile.getAbsolutePath() + ";AUTO_SERVER=TRUE";
             Driver.load();
             connection = DriverManager.getConnection(databasePath, "", "");
             H2GISFunctions.load(connection);
             connection = new ConnectionWrapper(connection);
+            String stageDatabasePath = databasePath;
+            connectionFactory = () -> new ConnectionWrapper(DriverManager.getConnection(stageDatabasePath, "", ""));
         }
 
-        sql = new Sql(connection);
-
         Files.createDirectories(Paths.get(resultsFolder));
 
-        if (doCleanDB) {
-            new Clean_Database().exec(connection, Map.of(
+        String contouringDatabasePath = databasePath;
+        Pipeline pipeline = new Pipeline(connection, resume);
+        pipeline.metricsFile = Paths.get(resultsFolder, "run_metrics.json");
+        pipeline.jfrEvents = jfrEvents;
+        pipeline.stageThreads = stageThreads;
+        pipeline.connectionFactory = connectionFactory;
+
+        pipeline.add(new Stage("clean_db", conn -> {
+            new Clean_Database().exec(conn, Map.of(
                     "areYouSure", "yes"
             ));
-        }
-        if (doImportOSMPbf) {
-            new Import_OSM().exec(connection, Map.of(
+        })).enabled(doCleanDB && !resume);
+
+        pipeline.add(new Stage("import_osm", conn -> {
+            Map<String, Object> importParams = Map.of(
                     "pathFile", osmFile,
                     "targetSRID", srid,
                     "ignoreGround", true,
                     "ignoreBuilding", false,
                     "ignoreRoads", true,
                     "removeTunnels", false
-            ));
-            sql.execute("DELETE FROM BUILDINGS WHERE ST_IsEmpty(THE_GEOM);");
-        }
+            );
+            Stage.Action importOsm = importConn -> {
+                new Import_OSM().exec(importConn, importParams);
+                new Sql(importConn).execute("DELETE FROM BUILDINGS WHERE ST_IsEmpty(THE_GEOM);");
+            };
+            if (buildingsCache != null) {
+                new BuildingsCache(buildingsCache).importBuildings(conn, Paths.get(osmFile), srid, importParams, "BUILDINGS", importOsm);
+            }
+            else {
+                importOsm.run(conn);
+            }
+        })).outputs("BUILDINGS")
+                .fileParam("osmFile", Paths.get(osmFile))
+                .param("srid", srid)
+                .enabled(doImportOSMPbf);
 
-        if (doExportBuildings) {
-            new Export_Table().exec(connection, Map.of(
+        pipeline.add(new Stage("export_buildings", conn -> {
+            new Export_Table().exec(conn, Map.of(
                     "tableToExport", "BUILDINGS",
                     "exportPath", Paths.get(resultsFolder, "BUILDINGS.geojson")
             ));
-        }
-
-        if (doTrafficSimulation) {
-
-            if (doImportMatsimTraffic) {
-                Map<String, Object> params = new HashMap<>();
-                params.put("folder", matsimFolder);
-                params.put("outTableName", "MATSIM_ROADS");
-                params.put("link2GeometryFile", Paths.get(matsimFolder, "detailed_network.csv")); // absolute path
-                params.put("timeBinSize", timeBinSize);
-                params.put("timeBinMin", timeBinMin);
-                params.put("timeBinMax", timeBinMax);
-                params.put("skipUnused", true);
-                params.put("exportTraffic", true);
-                params.put("SRID", srid);
-                params.put("perVehicleLevel", true);
-                params.put("populationFactor", populationFactor);
-
-                new Traffic_From_Events().exec(connection, params);
-
-                sql.execute("UPDATE MATSIM_ROADS SET THE_GEOM = ST_SetSrid(THE_GEOM, " + srid + ")");
+        })).inputs("BUILDINGS")
+                .enabled(doExportBuildings);
+
+        pipeline.add(new Stage("import_matsim_traffic", conn -> {
+            RunCli.dropView(conn, "MATSIM_ROADS_LW");
+            Map<String, Object> params = new HashMap<>();
+            params.put("folder", matsimFolder);
+            params.put("outTableName", "MATSIM_ROADS");
+            params.put("link2GeometryFile", Paths.get(matsimFolder, "detailed_network.csv")); // absolute path
+            params.put("timeBinSize", timeBinSize);
+            params.put("timeBinMin", timeBinMin);
+            params.put("timeBinMax", timeBinMax);
+            params.put("skipUnused", true);
+            params.put("exportTraffic", true);
+            params.put("SRID", srid);
+            params.put("perVehicleLevel", true);
+            params.put("populationFactor", populationFactor);
+
+            new Traffic_From_Events().exec(conn, params);
+
+            new Sql(conn).execute("UPDATE MATSIM_ROADS SET THE_GEOM = ST_SetSrid(THE_GEOM, " + srid + ")");
+        })).outputs("MATSIM_ROADS", "MATSIM_ROADS_LW")
+                .fileParam("events", Paths.get(matsimFolder, "output_events.xml.gz"))
+                .fileParam("network", Paths.get(matsimFolder, "detailed_network.csv"))
+                .param("timeBinSize", timeBinSize)
+                .param("timeBinMin", timeBinMin)
+                .param("timeBinMax", timeBinMax)
+                .param("srid", srid)
+                .param("populationFactor", populationFactor)
+                .enabled(doTrafficSimulation && doImportMatsimTraffic);
+
+        pipeline.add(new Stage("quantize_traffic", conn -> {
+            QuantizedLevels.encode(conn, "MATSIM_ROADS_LW");
+        })).inputs("MATSIM_ROADS_LW")
+                .outputs("MATSIM_ROADS_LW", "MATSIM_ROADS_LW_CDB")
+                .enabled(doTrafficSimulation && doImportMatsimTraffic && quantizeLevels && !postgis);
+
+        pipeline.add(new Stage("delaunay_grid", conn -> {
+            new Delaunay_Grid().exec(conn, Map.of(
+                    "tableBuilding", "BUILDINGS",
+                    "sourcesTableName", "MATSIM_ROADS",
+                    "outputTableName", "ISO_RECEIVERS"
+            ));
+        })).inputs("BUILDINGS", "MATSIM_ROADS")
+                .outputs("ISO_RECEIVERS", "TRIANGLES")
+                .enabled(doTrafficSimulation && doIsoNoiseMap);
+
+        pipeline.add(new Stage("attenuation_iso_map", conn -> {
+            Map<String, Object> params = new HashMap<>();
+            params.put("tableBuilding", "BUILDINGS");
+            params.put("tableReceivers", "ISO_RECEIVERS");
+            params.put("tableSources", "MATSIM_ROADS");
+            params.put("confMaxSrcDist", maxSrcDist);
+            params.put("confMaxReflDist", maxReflDist);
+            params.put("confReflOrder", reflOrder);
+            params.put("confSkipLevening", true);
+            params.put("confSkipLnight", true);
+            params.put("confSkipLden", true);
+            params.put("confThreadNumber", threads);
+            params.put("confExportSourceId", true);
+            params.put("confDiffVertical", diffVertical);
+            params.put("confDiffHorizontal", diffHorizontal);
+
+            String fingerprint = reuseAttenuation ? AttenuationCache.fingerprint(conn, params, Map.of(
+                    "BUILDINGS", "*",
+                    "ISO_RECEIVERS", "*",
+                    "MATSIM_ROADS", "PK, THE_GEOM"
+            )) : null;
+            if (reuseAttenuation && AttenuationCache.matches(conn, "ATTENUATION_ISO_MAP", fingerprint)) {
+                System.out.println("Propagation inputs are unchanged, reusing ATTENUATION_ISO_MAP");
             }
-
-            if (doIsoNoiseMap) {
-                new Delaunay_Grid().exec(connection, Map.of(
-                        "tableBuilding", "BUILDINGS",
-                        "sourcesTableName", "MATSIM_ROADS",
-                        "outputTableName", "ISO_RECEIVERS"
-                ));
-                Map<String, Object> params = new HashMap<>();
-                params.put("tableBuilding", "BUILDINGS");
-                params.put("tableReceivers", "ISO_RECEIVERS");
-                params.put("tableSources", "MATSIM_ROADS");
-                params.put("confMaxSrcDist", maxSrcDist);
-                params.put("confMaxReflDist", maxReflDist);
-                params.put("confReflOrder", reflOrder);
-                params.put("confSkipLevening", true);
-                params.put("confSkipLnight", true);
-                params.put("confSkipLden", true);
-                params.put("confThreadNumber", 16);
-                params.put("confExportSourceId", true);
-                params.put("confDiffVertical", diffVertical);
-                params.put("confDiffHorizontal", diffHorizontal);
-
-
-                ConnectionWrapper wrapper = new ConnectionWrapper(connection);
+            else {
+                ConnectionWrapper wrapper = new ConnectionWrapper(conn);
+                ThreadBudget.Usage usage = new ThreadBudget.Usage();
                 new Noise_level_from_source().exec(wrapper, params);
+                usage.report("Noise_level_from_source", threads, JDBCUtilities.getRowCount(conn, "ISO_RECEIVERS"), "receivers");
+                Sql sql = new Sql(conn);
+                RunCli.dropView(conn, "ATTENUATION_ISO_MAP");
                 sql.execute("DROP TABLE IF EXISTS ATTENUATION_ISO_MAP");
                 sql.execute("ALTER TABLE RECEIVERS_LEVEL RENAME TO ATTENUATION_ISO_MAP");
-
-                new Noise_From_Attenuation_Matrix_MatSim().exec(connection, Map.of(
-                        "matsimRoads", "MATSIM_ROADS",
-                        "matsimRoadsLw", "MATSIM_ROADS_LW",
-                        "attenuationTable", "ATTENUATION_ISO_MAP",
-                        "receiversTable", "ISO_RECEIVERS",
-                        "outTableName", "RESULT_ISO_MAP",
-                        "timeBinSize", timeBinSize,
-                        "timeBinMin", timeBinMin,
-                        "timeBinMax", timeBinMax
-                ));
-                String dataTable = "RESULT_ISO_MAP";
-                String resultTable = "TIME_CONTOURING_NOISE_MAP";
-
-                sql.execute(String.format("DROP TABLE %s IF EXISTS", resultTable));
-                String createQuery = "CREATE TABLE " + resultTable + " (" +
-                        "PK INTEGER PRIMARY KEY AUTO_INCREMENT, " +
-                        "CELL_ID INTEGER, " +
-                        "THE_GEOM GEOMETRY, " +
-                        "ISOLVL INTEGER, " +
-                        "ISOLABEL VARCHAR, " +
-                        "TIME INTEGER" +
-                        ")";
-                sql.execute(createQuery);
-
-                ensureIndex(connection, dataTable, "THE_GEOM", true);
-
-                for (int time = timeBinMin ; time < timeBinMax; time += timeBinSize) {
-                    String timeString = String.valueOf(time);
-                    String timeDataTable = dataTable + "_" + timeString;
-
-                    sql.execute(String.format("DROP TABLE %s IF EXISTS", timeDataTable));
-                    String query = "CREATE TABLE " + timeDataTable + " (" +
-                            "IDRECEIVER INTEGER PRIMARY KEY AUTO_INCREMENT, " +
-                            "THE_GEOM GEOMETRY, " +
-                            "HZ63 DOUBLE PRECISION, " +
-                            "HZ125 DOUBLE PRECISION, " +
-                            "HZ250 DOUBLE PRECISION, " +
-                            "HZ500 DOUBLE PRECISION, " +
-                            "HZ1000 DOUBLE PRECISION, " +
-                            "HZ2000 DOUBLE PRECISION, " +
-                            "HZ4000 DOUBLE PRECISION, " +
-                            "HZ8000 DOUBLE PRECISION, " +
-                            "TIME INTEGER, " +
-                            "LAEQ DOUBLE PRECISION, " +
-                            "LEQ DOUBLE PRECISION" +
-                            ") AS SELECT r.IDRECEIVER AS IDRECEIVER, r.THE_GEOM, r.HZ63, r.HZ125, r.HZ250, r.HZ500, " +
-                            "r.HZ1000, r.HZ2000, r.HZ4000, r.HZ8000, r.TIME, r.LEQA AS LAEQ, r.LEQ " +
-                            "FROM " + dataTable + " r WHERE r.TIME = " + time;
-
-                    sql.execute(query);
-
-                    new Create_Isosurface().exec(connection, Map.of(
-                            "resultTable", timeDataTable
-                    ));
-
-                    sql.execute("INSERT INTO " + resultTable + "(CELL_ID, THE_GEOM, ISOLVL, ISOLABEL, TIME) SELECT cm.CELL_ID, cm.THE_GEOM, cm.ISOLVL, cm.ISOLABEL, " + time + " FROM CONTOURING_NOISE_MAP cm");
-                    sql.execute(String.format("DROP TABLE %s IF EXISTS", "CONTOURING_NOISE_MAP"));
-                    sql.execute(String.format("DROP TABLE %s IF EXISTS", timeDataTable));
+                if (reuseAttenuation) {
+                    AttenuationCache.store(conn, "ATTENUATION_ISO_MAP", fingerprint);
+                }
+                else {
+                    AttenuationCache.invalidate(conn, "ATTENUATION_ISO_MAP");
                 }
-                sql.execute("ALTER TABLE " + resultTable + " ADD TIME_DATE TIME");
-                sql.execute("UPDATE " + resultTable + " as e SET TIME_DATE = DATEADD( SECOND , e.TIME, PARSEDATETIME('1970-01-01 00:00:00', 'yyyy-MM-dd HH:mm:ss'))");
             }
-        }
+        })).inputs("BUILDINGS", "ISO_RECEIVERS", "MATSIM_ROADS")
+                .outputs("ATTENUATION_ISO_MAP")
+                .param("maxSrcDist", maxSrcDist)
+                .param("maxReflDist", maxReflDist)
+                .param("reflOrder", reflOrder)
+                .param("diffVertical", diffVertical)
+                .param("diffHorizontal", diffHorizontal)
+                .enabled(doTrafficSimulation && doIsoNoiseMap);
+
+        pipeline.add(new Stage("quantize_attenuation", conn -> {
+            QuantizedLevels.encode(conn, "ATTENUATION_ISO_MAP");
+        })).inputs("ATTENUATION_ISO_MAP")
+                .outputs("ATTENUATION_ISO_MAP", "ATTENUATION_ISO_MAP_CDB")
+                .enabled(doTrafficSimulation && doIsoNoiseMap && quantizeLevels && !postgis);
+
+        pipeline.add(new Stage("noise_map_iso_map", conn -> {
+            RunCli.dropView(conn, "RESULT_ISO_MAP");
+            Map<String, Object> noiseMapParams = new HashMap<>();
+            noiseMapParams.put("matsimRoads", "MATSIM_ROADS");
+            noiseMapParams.put("matsimRoadsLw", "MATSIM_ROADS_LW");
+            noiseMapParams.put("attenuationTable", "ATTENUATION_ISO_MAP");
+            noiseMapParams.put("receiversTable", "ISO_RECEIVERS");
+            noiseMapParams.put("outTableName", "RESULT_ISO_MAP");
+            noiseMapParams.put("timeBinSize", timeBinSize);
+            noiseMapParams.put("timeBinMin", timeBinMin);
+            noiseMapParams.put("timeBinMax", timeBinMax);
+            noiseMapParams.put("threads", threads);
+            if (Objects.equals(noiseMapEngine, "sparse")) {
+                noiseMapParams.put("offHeap", noiseMapOffHeap);
+                new SparseNoiseMap().exec(conn, noiseMapParams);
+            }
+            else {
+                new Noise_From_Attenuation_Matrix_MatSim().exec(conn, noiseMapParams);
+            }
+        })).inputs("MATSIM_ROADS", "MATSIM_ROADS_LW", "ATTENUATION_ISO_MAP", "ISO_RECEIVERS")
+                .outputs("RESULT_ISO_MAP")
+                .param("timeBinSize", timeBinSize)
+                .param("timeBinMin", timeBinMin)
+                .param("timeBinMax", timeBinMax)
+                .enabled(doTrafficSimulation && doIsoNoiseMap);
+
+        pipeline.add(new Stage("wide_layout", conn -> {
+            WideLayout.convert(conn, "RESULT_ISO_MAP");
+        })).inputs("RESULT_ISO_MAP")
+                .outputs("RESULT_ISO_MAP", "RESULT_ISO_MAP_WIDE", "RESULT_ISO_MAP_WIDE_TIMES")
+                .enabled(doTrafficSimulation && doIsoNoiseMap && wideLayout && !postgis);
+
+        pipeline.add(new Stage("quantize_results", conn -> {
+            QuantizedLevels.encode(conn, "RESULT_ISO_MAP");
+        })).inputs("RESULT_ISO_MAP")
+                .outputs("RESULT_ISO_MAP", "RESULT_ISO_MAP_CDB")
+                .enabled(doTrafficSimulation && doIsoNoiseMap && quantizeLevels && !wideLayout && !postgis);
+
+        pipeline.add(new Stage("contouring", conn -> {
+            Sql sql = new Sql(conn);
+            String dataTable = "RESULT_ISO_MAP";
+            String resultTable = "TIME_CONTOURING_NOISE_MAP";
+
+            sql.execute(String.format("DROP TABLE %s IF EXISTS", resultTable));
+            String createQuery = "CREATE TABLE " + resultTable + " (" +
+                    "PK INTEGER PRIMARY KEY AUTO_INCREMENT, " +
+                    "CELL_ID INTEGER, " +
+                    "THE_GEOM GEOMETRY, " +
+                    "ISOLVL INTEGER, " +
+                    "ISOLABEL VARCHAR, " +
+                    "TIME INTEGER, " +
+                    "TIME_DATE TIME" +
+                    ")";
+            sql.execute(createQuery);
+
+            if (Objects.equals(contouringEngine, "memory")) {
+                new MeshContouring(MeshContouring.ISO_LEVELS, contouringThreads).run(conn, "ISO_RECEIVERS", "TRIANGLES",
+                        dataTable, resultTable, timeBinSize, timeBinMin, timeBinMax);
+                return;
+            }
+
+            // one scan of the noise map, then each bin reads its own key range
+            String clusteredTable = dataTable + "_BY_TIME";
+            createTimeClusteredTable(sql, dataTable, clusteredTable);
 
-        if (doExportRoads) {
-            new Export_Table().exec(connection, Map.of(
+            if (contouringThreads > 1 && !postgis) {
+                contourTimeBinsParallel(conn, contouringDatabasePath, clusteredTable, resultTable);
+            }
+            else {
+                contourTimeBins(conn, clusteredTable, resultTable);
+            }
+            sql.execute(String.format("DROP TABLE %s IF EXISTS", clusteredTable));
+        })).inputs("RESULT_ISO_MAP", "TRIANGLES", "ISO_RECEIVERS")
+                .outputs("TIME_CONTOURING_NOISE_MAP")
+                .param("contouringEngine", contouringEngine)
+                .param("timeBinSize", timeBinSize)
+                .param("timeBinMin", timeBinMin)
+                .param("timeBinMax", timeBinMax)
+                .enabled(doTrafficSimulation && doIsoNoiseMap);
+
+        pipeline.add(new Stage("export_roads", conn -> {
+            new Export_Table().exec(conn, Map.of(
                     "tableToExport", "MATSIM_ROADS",
                     "exportPath", Paths.get(resultsFolder, "MATSIM_ROADS.geojson")
             ));
+        })).inputs("MATSIM_ROADS")
+                .enabled(doExportRoads);
+
+        pipeline.add(new Stage("export_results", conn -> {
+            if (Objects.equals(exportFormat, "default")) {
+                new Export_Table().exec(conn, Map.of(
+                        "tableToExport", "TIME_CONTOURING_NOISE_MAP",
+                        "exportPath", Paths.get(resultsFolder, "TIME_CONTOURING_NOISE_MAP.geojson")
+                ));
+            }
+            else {
+                new StreamingExport(exportFormat).export(conn, "TIME_CONTOURING_NOISE_MAP", Paths.get(resultsFolder), exportSplitTime ? "TIME" : null);
+            }
+        })).inputs("TIME_CONTOURING_NOISE_MAP")
+                .enabled(doExportResults);
+
+        pipeline.add(new Stage("export_tiles", conn -> {
+            Path output = Objects.equals(vectorTiles, VectorTiles.MBTILES) ? Paths.get(resultsFolder, "TIME_CONTOURING_NOISE_MAP.mbtiles")
+                    : Paths.get(resultsFolder, "TIME_CONTOURING_NOISE_MAP_tiles");
+            new VectorTiles(vectorTilesMinZoom, vectorTilesMaxZoom, threads).export(conn, "TIME_CONTOURING_NOISE_MAP", srid, output, vectorTiles);
+        })).inputs("TIME_CONTOURING_NOISE_MAP")
+                .param("vectorTiles", vectorTiles)
+                .param("vectorTilesMinZoom", vectorTilesMinZoom)
+                .param("vectorTilesMaxZoom", vectorTilesMaxZoom)
+                .enabled(!Objects.equals(vectorTiles, "none"));
+
+        pipeline.run();
+
+        connection.close();
+    }
+
+    /**
+     * Copy of the noise map keyed by ROW_KEY = TIME * 2^32 + IDRECEIVER. The primary key orders the rows, so the rows
+     * of a time bin are stored together and read as a key range instead of a scan of the whole table.
+     */
+    static void createTimeClusteredTable(Sql sql, String dataTable, String clusteredTable) throws SQLException {
+        sql.execute(String.format("DROP TABLE %s IF EXISTS", clusteredTable));
+        String query = "CREATE TABLE " + clusteredTable + " (" +
+                "ROW_KEY BIGINT PRIMARY KEY, " +
+                "IDRECEIVER INTEGER, " +
+                "THE_GEOM GEOMETRY, " +
+                "HZ63 DOUBLE PRECISION, " +
+                "HZ125 DOUBLE PRECISION, " +
+                "HZ250 DOUBLE PRECISION, " +
+                "HZ500 DOUBLE PRECISION, " +
+                "HZ1000 DOUBLE PRECISION, " +
+                "HZ2000 DOUBLE PRECISION, " +
+                "HZ4000 DOUBLE PRECISION, " +
+                "HZ8000 DOUBLE PRECISION, " +
+                "TIME INTEGER, " +
+                "LAEQ DOUBLE PRECISION, " +
+                "LEQ DOUBLE PRECISION" +
+                ")";
+
+        WideLayout wideLayout = WideLayout.of(sql.getConnection(), dataTable);
+        if (wideLayout != null) {
+            sql.execute(query);
+            copyWideLevels(sql.getConnection(), wideLayout, clusteredTable);
+            return;
         }
+        sql.execute(query + " AS SELECT CAST(r.TIME AS BIGINT) * " + TIME_KEY_FACTOR + " + r.IDRECEIVER, r.IDRECEIVER, r.THE_GEOM, " +
+                "r.HZ63, r.HZ125, r.HZ250, r.HZ500, r.HZ1000, r.HZ2000, r.HZ4000, r.HZ8000, r.TIME, r.LEQA, r.LEQ " +
+                "FROM " + dataTable + " r");
+    }
 
-        if (doExportResults) {
-            new Export_Table().exec(connection, Map.of(
-                    "tableToExport", "TIME_CONTOURING_NOISE_MAP",
-                    "exportPath", Paths.get(resultsFolder, "TIME_CONTOURING_NOISE_MAP.geojson")
+    /**
+     * Fills the time clustered table from the packed levels of the wide table, one row per receiver and time bin
+     * with a level, instead of decoding each level through the long view.
+     */
+    static void copyWideLevels(Connection connection, WideLayout wideLayout, String clusteredTable) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (Statement st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+             PreparedStatement insert = connection.prepareStatement("INSERT INTO " + clusteredTable +
+                     " (ROW_KEY, IDRECEIVER, THE_GEOM, TIME, HZ63, HZ125, HZ250, HZ500, HZ1000, HZ2000, HZ4000, HZ8000, LAEQ, LEQ)" +
+                     " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            st.setFetchSize(10000);
+            try (ResultSet rs = st.executeQuery("SELECT IDRECEIVER, THE_GEOM, " + String.join(", ", LEVEL_COLUMNS) +
+                    " FROM " + wideLayout.wideTable)) {
+                float[][] levels = new float[LEVEL_COLUMNS.size()][];
+                int batch = 0;
+                while (rs.next()) {
+                    int id = rs.getInt(1);
+                    Object geometry = rs.getObject(2);
+                    for (int c = 0; c < levels.length; c++) {
+                        byte[] packed = rs.getBytes(3 + c);
+                        levels[c] = packed == null ? new float[0] : WideLayout.unpack(packed);
+                    }
+                    for (int bin = 0; bin < wideLayout.times.length; bin++) {
+                        boolean hasLevel = false;
+                        for (float[] columnLevels : levels) {
+                            hasLevel |= bin < columnLevels.length && !Float.isNaN(columnLevels[bin]);
+                        }
+                        if (!hasLevel) {
+                            continue;
+                        }
+                        int time = wideLayout.times[bin];
+                        insert.setLong(1, time * TIME_KEY_FACTOR + id);
+                        insert.setInt(2, id);
+                        insert.setObject(3, geometry);
+                        insert.setInt(4, time);
+                        for (int c = 0; c < levels.length; c++) {
+                            if (bin < levels[c].length && !Float.isNaN(levels[c][bin])) {
+                                insert.setDouble(5 + c, levels[c][bin]);
+                            }
+                            else {
+                                insert.setNull(5 + c, Types.DOUBLE);
+                            }
+                        }
+                        insert.addBatch();
+                        if (++batch >= 1000) {
+                            insert.executeBatch();
+                            batch = 0;
+                        }
+                    }
+                }
+                if (batch > 0) {
+                    insert.executeBatch();
+                }
+            }
+            connection.commit();
+        }
+        catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+        finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    static void createTimeBinTable(Sql sql, String clusteredTable, String timeDataTable, int time) throws SQLException {
+        sql.execute(String.format("DROP TABLE %s IF EXISTS", timeDataTable));
+        String query = "CREATE TABLE " + timeDataTable + " (" +
+                "IDRECEIVER INTEGER PRIMARY KEY AUTO_INCREMENT, " +
+                "THE_GEOM GEOMETRY, " +
+                "HZ63 DOUBLE PRECISION, " +
+                "HZ125 DOUBLE PRECISION, " +
+                "HZ250 DOUBLE PRECISION, " +
+                "HZ500 DOUBLE PRECISION, " +
+                "HZ1000 DOUBLE PRECISION, " +
+                "HZ2000 DOUBLE PRECISION, " +
+                "HZ4000 DOUBLE PRECISION, " +
+                "HZ8000 DOUBLE PRECISION, " +
+                "TIME INTEGER, " +
+                "LAEQ DOUBLE PRECISION, " +
+                "LEQ DOUBLE PRECISION" +
+                ") AS SELECT r.IDRECEIVER AS IDRECEIVER, r.THE_GEOM, r.HZ63, r.HZ125, r.HZ250, r.HZ500, " +
+                "r.HZ1000, r.HZ2000, r.HZ4000, r.HZ8000, r.TIME, r.LAEQ, r.LEQ " +
+                "FROM " + clusteredTable + " r WHERE r.ROW_KEY >= " + (time * TIME_KEY_FACTOR) +
+                " AND r.ROW_KEY < " + ((time + 1) * TIME_KEY_FACTOR);
+
+        sql.execute(query);
+    }
+
+    /**
+     * Time of day of a time bin, as a SQL literal.
+     */
+    static String timeDate(int time) {
+        return "TIME '" + LocalTime.ofSecondOfDay(Math.floorMod(time, 86400)).format(DateTimeFormatter.ISO_LOCAL_TIME) + "'";
+    }
+
+    /**
+     * Contour the time bins one after the other, in the current schema.
+     */
+    static void contourTimeBins(Connection connection, String dataTable, String resultTable) throws SQLException {
+        Sql sql = new Sql(connection);
+        for (int time = timeBinMin ; time < timeBinMax; time += timeBinSize) {
+            String timeDataTable = dataTable + "_" + time;
+
+            createTimeBinTable(sql, dataTable, timeDataTable, time);
+
+            new Create_Isosurface().exec(connection, Map.of(
+                    "resultTable", timeDataTable
             ));
+
+            sql.execute("INSERT INTO " + resultTable + "(CELL_ID, THE_GEOM, ISOLVL, ISOLABEL, TIME, TIME_DATE) SELECT cm.CELL_ID, cm.THE_GEOM, cm.ISOLVL, cm.ISOLABEL, " + time + ", " + timeDate(time) + " FROM CONTOURING_NOISE_MAP cm");
+            sql.execute(String.format("DROP TABLE %s IF EXISTS", "CONTOURING_NOISE_MAP"));
+            sql.execute(String.format("DROP TABLE %s IF EXISTS", timeDataTable));
         }
+    }
 
-        connection.close();
+    /**
+     * Contour the time bins concurrently. Each bin runs Create_Isosurface on its own connection, inside its own
+     * schema so that the CONTOURING_NOISE_MAP tables do not collide. TRIANGLES and the H2GIS functions are still
+     * resolved from PUBLIC through the schema search path.
+     * The contours are merged into resultTable by ascending time, so the output does not depend on which bin finishes first.
+     * The bin schemas are created before any bin starts and dropped once no bin runs anymore, whether the bins
+     * succeed or not : H2 deadlocks when a schema is created or dropped while another session creates a table.
+     */
+    static void contourTimeBinsParallel(Connection connection, String databasePath, String dataTable, String resultTable) throws SQLException {
+        Sql sql = new Sql(connection);
+        ExecutorService executor = Executors.newFixedThreadPool(contouringThreads);
+        List<Future<String>> bins = new ArrayList<>();
+        List<Integer> times = new ArrayList<>();
+        for (int time = timeBinMin ; time < timeBinMax; time += timeBinSize) {
+            times.add(time);
+        }
+        try {
+            for (int time : times) {
+                sql.execute("DROP SCHEMA IF EXISTS " + binSchema(time) + " CASCADE");
+                sql.execute("CREATE SCHEMA " + binSchema(time));
+            }
+            for (int time : times) {
+                bins.add(executor.submit(() -> contourTimeBin(databasePath, dataTable, time)));
+            }
+            for (int i = 0; i < bins.size(); i++) {
+                String schema = bins.get(i).get();
+                sql.execute("INSERT INTO " + resultTable + "(CELL_ID, THE_GEOM, ISOLVL, ISOLABEL, TIME, TIME_DATE) SELECT cm.CELL_ID, cm.THE_GEOM, cm.ISOLVL, cm.ISOLABEL, " + times.get(i) + ", " + timeDate(times.get(i)) + " FROM " + schema + ".CONTOURING_NOISE_MAP cm ORDER BY cm.CELL_ID, cm.ISOLVL");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Contouring interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw new SQLException("Contouring failed : " + e.getCause().getMessage(), e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+            try {
+                // the other bins may still be writing to their schema
+                executor.awaitTermination(10, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (int time : times) {
+                try {
+                    sql.execute("DROP SCHEMA IF EXISTS " + binSchema(time) + " CASCADE");
+                }
+                catch (SQLException e) {
+                    System.err.println("Could not drop the contouring schema " + binSchema(time) + " : " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    static String binSchema(int time) {
+        return "CONTOURING_" + time;
+    }
+
+    static String contourTimeBin(String databasePath, String dataTable, int time) throws SQLException {
+        String schema = binSchema(time);
+        try (Connection connection = new ConnectionWrapper(DriverManager.getConnection(databasePath, "", ""))) {
+            Sql sql = new Sql(connection);
+            sql.execute("SET SCHEMA " + schema);
+            sql.execute("SET SCHEMA_SEARCH_PATH " + schema + ", PUBLIC");
+
+            String timeDataTable = dataTable + "_" + time;
+            createTimeBinTable(sql, "PUBLIC." + dataTable, timeDataTable, time);
+
+            new Create_Isosurface().exec(connection, Map.of(
+                    "resultTable", timeDataTable
+            ));
+            // written next to the bin table, not to another schema of the search path
+            try (ResultSet rs = connection.getMetaData().getTables(null, schema, "CONTOURING_NOISE_MAP", null)) {
+                if (!rs.next()) {
+                    throw new SQLException("Create_Isosurface did not write CONTOURING_NOISE_MAP in the schema " + schema);
+                }
+            }
+        }
+        return schema;
     }
 
     static boolean tableExists(Connection connection, String table) throws SQLException {
@@ -0,0 +1,400 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.Sql;
+import org.h2gis.utilities.JDBCUtilities;
+import org.h2gis.utilities.TableLocation;
+import org.h2gis.utilities.Tuple;
+import org.locationtech.jts.geom.Geometry;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * In-memory alternative to Noise_From_Attenuation_Matrix_MatSim, taking the same parameters.
+ * The attenuation table is loaded once into a sparse receiver x source matrix of linear attenuation factors
+ * (8 octave bands per non-zero). Each time bin is then a sparse matrix-vector product with the linear source powers
+ * of that bin, computed on several threads, and written to the output table with batched inserts.
+ * The non-zeros are addressed with long offsets into block storage, so their count is only bounded by the memory ;
+ * the per receiver and per source arrays limit the receivers and the sources to MAX_ROWS each.
+ * The receiver geometries come from the receivers table, receivers missing from it are left out of the result.
+ */
+class SparseNoiseMap {
+
+    static final int BANDS = 8;
+    static final String[] FREQUENCIES = {"63", "125", "250", "500", "1000", "2000", "4000", "8000"};
+    static final double[] A_WEIGHTING = {-26.2, -16.1, -8.6, -3.2, 0.0, 1.2, 1.0, -1.1};
+
+    static final int BLOCK_BITS = 24;
+    static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+    // the levels of a time bin are stored in a single array of rows x BANDS
+    static final int MAX_ROWS = (Integer.MAX_VALUE - 8) / BANDS;
+
+    /**
+     * Growable float storage split in fixed size blocks, either on the java heap or in direct (off-heap) buffers,
+     * so that the attenuation values are not limited to a single 2^31 array.
+     */
+    static class FloatBlocks {
+        final boolean offHeap;
+        final List<FloatBuffer> blocks = new ArrayList<>();
+        long size = 0;
+
+        FloatBlocks(boolean offHeap) {
+            this.offHeap = offHeap;
+        }
+
+        void add(float value) {
+            int block = (int) (size >>> BLOCK_BITS);
+            if (block == blocks.size()) {
+                blocks.add(offHeap
+                        ? ByteBuffer.allocateDirect(BLOCK_SIZE * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer()
+                        : FloatBuffer.allocate(BLOCK_SIZE));
+            }
+            blocks.get(block).put((int) (size & BLOCK_MASK), value);
+            size++;
+        }
+
+        float get(long index) {
+            return blocks.get((int) (index >>> BLOCK_BITS)).get((int) (index & BLOCK_MASK));
+        }
+    }
+
+    /**
+     * Same as FloatBlocks, for the source column of each non-zero.
+     */
+    static class IntBlocks {
+        final boolean offHeap;
+        final List<IntBuffer> blocks = new ArrayList<>();
+        long size = 0;
+
+        IntBlocks(boolean offHeap) {
+            this.offHeap = offHeap;
+        }
+
+        void add(int value) {
+            int block = (int) (size >>> BLOCK_BITS);
+            if (block == blocks.size()) {
+                blocks.add(offHeap
+                        ? ByteBuffer.allocateDirect(BLOCK_SIZE * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer()
+                        : IntBuffer.allocate(BLOCK_SIZE));
+            }
+            blocks.get(block).put((int) (size & BLOCK_MASK), value);
+            size++;
+        }
+
+        int get(long index) {
+            return blocks.get((int) (index >>> BLOCK_BITS)).get((int) (index & BLOCK_MASK));
+        }
+    }
+
+    // CSR layout : the non-zeros of receiver row r are in [rowStart[r], rowStart[r + 1])
+    int receiverCount = 0;
+    int[] receiverIds = new int[1024];
+    Geometry[] receiverGeoms = new Geometry[1024];
+    long[] rowStart = new long[1025];
+    IntBlocks columns;
+    FloatBlocks attenuation;
+    long nonZeros = 0;
+
+    Map<Integer, Geometry> geometryByReceiverPk = new HashMap<>();
+    Map<Integer, Integer> columnBySourcePk = new HashMap<>();
+    Map<String, Integer> columnByLinkId = new HashMap<>();
+
+    public Object exec(Connection connection, Map<String, Object> input) throws SQLException {
+        String matsimRoads = input.get("matsimRoads").toString();
+        String matsimRoadsLw = input.get("matsimRoadsLw").toString();
+        String attenuationTable = input.get("attenuationTable").toString();
+        String receiversTable = input.get("receiversTable").toString();
+        String outTableName = input.get("outTableName").toString();
+        int timeBinSize = Integer.parseInt(input.getOrDefault("timeBinSize", 900).toString());
+        int timeBinMin = Integer.parseInt(input.getOrDefault("timeBinMin", 0).toString());
+        int timeBinMax = Integer.parseInt(input.getOrDefault("timeBinMax", 86400).toString());
+        int threads = Integer.parseInt(input.getOrDefault("threads", Runtime.getRuntime().availableProcessors()).toString());
+        boolean offHeap = Boolean.parseBoolean(input.getOrDefault("offHeap", false).toString());
+
+        long start = System.currentTimeMillis();
+        loadSources(connection, matsimRoads);
+        loadReceivers(connection, receiversTable);
+        loadAttenuation(connection, attenuationTable, offHeap);
+        System.out.println("Sparse attenuation matrix loaded : " + receiverCount + " receivers, " + columnBySourcePk.size()
+                + " sources, " + nonZeros + " non-zeros in " + (System.currentTimeMillis() - start) + " ms");
+
+        Sql sql = new Sql(connection);
+        sql.execute(String.format("DROP TABLE %s IF EXISTS", outTableName));
+        sql.execute("CREATE TABLE " + outTableName + " (" +
+                "PK INTEGER PRIMARY KEY AUTO_INCREMENT, " +
+                "IDRECEIVER INTEGER, " +
+                "THE_GEOM GEOMETRY, " +
+                "HZ63 DOUBLE PRECISION, " +
+                "HZ125 DOUBLE PRECISION, " +
+                "HZ250 DOUBLE PRECISION, " +
+                "HZ500 DOUBLE PRECISION, " +
+                "HZ1000 DOUBLE PRECISION, " +
+                "HZ2000 DOUBLE PRECISION, " +
+                "HZ4000 DOUBLE PRECISION, " +
+                "HZ8000 DOUBLE PRECISION, " +
+                "TIME INTEGER, " +
+                "LEQA DOUBLE PRECISION, " +
+                "LEQ DOUBLE PRECISION" +
+                ")");
+
+        // centi-dB rows are decoded here rather than through the view
+        QuantizedLevels quantized = QuantizedLevels.of(connection, matsimRoadsLw);
+        String emissionTable = quantized != null ? quantized.packedTable : matsimRoadsLw;
+        int[] bandIndexes = quantized != null ? quantized.indexes(bandColumns("LW")) : null;
+        // each time bin reads its rows through the index instead of scanning the whole table
+        RunCli.ensureIndex(connection, emissionTable, "TIME", false);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + outTableName +
+                " (IDRECEIVER, THE_GEOM, HZ63, HZ125, HZ250, HZ500, HZ1000, HZ2000, HZ4000, HZ8000, TIME, LEQA, LEQ)" +
+                " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+             PreparedStatement emissionQuery = connection.prepareStatement(emissionQuery(quantized, emissionTable))) {
+            for (int time = timeBinMin; time < timeBinMax; time += timeBinSize) {
+                float[] emission = loadEmission(emissionQuery, bandIndexes, time);
+                double[] levels = multiplyParallel(executor, Math.max(1, threads), emission);
+                writeTimeBin(insert, levels, time);
+                connection.commit();
+            }
+        }
+        finally {
+            executor.shutdownNow();
+            connection.setAutoCommit(autoCommit);
+        }
+        System.out.println("Sparse noise map computed in " + (System.currentTimeMillis() - start) + " ms");
+        return "Table " + outTableName + " created";
+    }
+
+    void loadSources(Connection connection, String matsimRoads) throws SQLException {
+        Tuple<String, Integer> pk = JDBCUtilities.getIntegerPrimaryKeyNameAndIndex(connection, TableLocation.parse(matsimRoads));
+        String pkColumn = pk != null ? pk.first() : "PK";
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("SELECT " + pkColumn + ", LINK_ID FROM " + matsimRoads)) {
+            while (rs.next()) {
+                int column = columnBySourcePk.size();
+                if (column == MAX_ROWS) {
+                    throw new SQLException("Table " + matsimRoads + " has more than " + MAX_ROWS + " sources, split the area in tiles");
+                }
+                columnBySourcePk.put(rs.getInt(1), column);
+                columnByLinkId.put(rs.getString(2), column);
+            }
+        }
+    }
+
+    void loadReceivers(Connection connection, String receiversTable) throws SQLException {
+        Tuple<String, Integer> pk = JDBCUtilities.getIntegerPrimaryKeyNameAndIndex(connection, TableLocation.parse(receiversTable));
+        String pkColumn = pk != null ? pk.first() : "PK";
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("SELECT " + pkColumn + ", THE_GEOM FROM " + receiversTable)) {
+            while (rs.next()) {
+                geometryByReceiverPk.put(rs.getInt(1), (Geometry) rs.getObject(2));
+            }
+        }
+    }
+
+    void loadAttenuation(Connection connection, String attenuationTable, boolean offHeap) throws SQLException {
+        // centi-dB rows are decoded here rather than through the view
+        QuantizedLevels quantized = QuantizedLevels.of(connection, attenuationTable);
+        int[] bandIndexes = quantized != null ? quantized.indexes(bandColumns("HZ")) : null;
+        String table = quantized != null ? quantized.packedTable : attenuationTable;
+        // ordering by receiver lets the rows stream straight into the CSR arrays
+        RunCli.ensureIndex(connection, table, "IDRECEIVER", false);
+        columns = new IntBlocks(offHeap);
+        attenuation = new FloatBlocks(offHeap);
+        StringBuilder query = new StringBuilder("SELECT IDRECEIVER, IDSOURCE");
+        if (quantized != null) {
+            query.append(", ").append(QuantizedLevels.PACKED_COLUMN);
+        }
+        else {
+            for (String freq : FREQUENCIES) {
+                query.append(", HZ").append(freq);
+            }
+        }
+        query.append(" FROM ").append(table).append(" ORDER BY IDRECEIVER");
+        try (Statement st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            st.setFetchSize(10000);
+            try (ResultSet rs = st.executeQuery(query.toString())) {
+                int currentReceiver = Integer.MIN_VALUE;
+                while (rs.next()) {
+                    Integer column = columnBySourcePk.get(rs.getInt(2));
+                    if (column == null) {
+                        continue;
+                    }
+                    int receiver = rs.getInt(1);
+                    if (receiverCount == 0 || receiver != currentReceiver) {
+                        Geometry geom = geometryByReceiverPk.get(receiver);
+                        if (geom == null) {
+                            continue;
+                        }
+                        addReceiver(receiver, geom);
+                        currentReceiver = receiver;
+                    }
+                    columns.add(column);
+                    nonZeros++;
+                    byte[] packed = quantized != null ? rs.getBytes(3) : null;
+                    for (int band = 0; band < BANDS; band++) {
+                        double level = packed != null ? QuantizedLevels.value(packed, bandIndexes[band]) : rs.getDouble(3 + band);
+                        attenuation.add((float) Math.pow(10, level / 10));
+                    }
+                    rowStart[receiverCount] = nonZeros;
+                }
+            }
+        }
+    }
+
+    void addReceiver(int receiverId, Geometry geom) throws SQLException {
+        if (receiverCount == MAX_ROWS) {
+            throw new SQLException("More than " + MAX_ROWS + " receivers in the attenuation table, split the area in tiles");
+        }
+        if (receiverCount == receiverIds.length) {
+            int capacity = (int) Math.min(MAX_ROWS, receiverCount * 2L);
+            receiverIds = Arrays.copyOf(receiverIds, capacity);
+            receiverGeoms = Arrays.copyOf(receiverGeoms, capacity);
+            rowStart = Arrays.copyOf(rowStart, capacity + 1);
+        }
+        receiverIds[receiverCount] = receiverId;
+        receiverGeoms[receiverCount] = geom;
+        rowStart[receiverCount] = nonZeros;
+        receiverCount++;
+        rowStart[receiverCount] = nonZeros;
+    }
+
+    /**
+     * Query of the emission rows of a time bin, the packed levels of the quantized table or the LW columns.
+     */
+    static String emissionQuery(QuantizedLevels quantized, String emissionTable) {
+        StringBuilder query = new StringBuilder("SELECT LINK_ID");
+        if (quantized != null) {
+            query.append(", ").append(QuantizedLevels.PACKED_COLUMN);
+        }
+        else {
+            for (String freq : FREQUENCIES) {
+                query.append(", LW").append(freq);
+            }
+        }
+        return query.append(" FROM ").append(emissionTable).append(" WHERE TIME = ?").toString();
+    }
+
+    /**
+     * Linear sound power of every source column at the given time bin, sources without traffic stay at 0.
+     * @param bandIndexes packed index of each band in the quantized table, null for the LW columns
+     */
+    float[] loadEmission(PreparedStatement emissionQuery, int[] bandIndexes, int time) throws SQLException {
+        float[] emission = new float[columnBySourcePk.size() * BANDS];
+        emissionQuery.setInt(1, time);
+        try (ResultSet rs = emissionQuery.executeQuery()) {
+            while (rs.next()) {
+                Integer column = columnByLinkId.get(rs.getString(1));
+                if (column == null) {
+                    continue;
+                }
+                byte[] packed = bandIndexes != null ? rs.getBytes(2) : null;
+                for (int band = 0; band < BANDS; band++) {
+                    double level = packed != null ? QuantizedLevels.value(packed, bandIndexes[band]) : rs.getDouble(2 + band);
+                    emission[column * BANDS + band] += (float) Math.pow(10, level / 10);
+                }
+            }
+        }
+        return emission;
+    }
+
+    static String[] bandColumns(String prefix) {
+        String[] columns = new String[BANDS];
+        for (int band = 0; band < BANDS; band++) {
+            columns[band] = prefix + FREQUENCIES[band];
+        }
+        return columns;
+    }
+
+    double[] multiplyParallel(ExecutorService executor, int threads, float[] emission) throws SQLException {
+        double[] levels = new double[receiverCount * BANDS];
+        int chunk = Math.max(1024, (receiverCount + threads * 4 - 1) / (threads * 4));
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int from = 0; from < receiverCount; from += chunk) {
+            int rowFrom = from;
+            int rowTo = Math.min(receiverCount, from + chunk);
+            tasks.add(executor.submit(() -> multiply(rowStart, columns, attenuation, emission, levels, rowFrom, rowTo)));
+        }
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Sparse noise map interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw new SQLException("Sparse noise map failed : " + e.getCause().getMessage(), e.getCause());
+        }
+        return levels;
+    }
+
+    /**
+     * Energetic sum per band of attenuation x emission for the receiver rows [rowFrom, rowTo), in linear scale.
+     */
+    static void multiply(long[] rowStart, IntBlocks columns, FloatBlocks attenuation, float[] emission, double[] levels, int rowFrom, int rowTo) {
+        for (int row = rowFrom; row < rowTo; row++) {
+            int out = row * BANDS;
+            for (long k = rowStart[row]; k < rowStart[row + 1]; k++) {
+                int source = columns.get(k) * BANDS;
+                long value = k * BANDS;
+                for (int band = 0; band < BANDS; band++) {
+                    levels[out + band] += attenuation.get(value + band) * emission[source + band];
+                }
+            }
+        }
+    }
+
+    void writeTimeBin(PreparedStatement insert, double[] levels, int time) throws SQLException {
+        int batch = 0;
+        for (int row = 0; row < receiverCount; row++) {
+            double leq = 0;
+            double leqa = 0;
+            for (int band = 0; band < BANDS; band++) {
+                double energy = levels[row * BANDS + band];
+                leq += energy;
+                leqa += energy * Math.pow(10, A_WEIGHTING[band] / 10);
+            }
+            // same as the relational join : no contributing source, no row
+            if (leq <= 0) {
+                continue;
+            }
+            insert.setInt(1, receiverIds[row]);
+            insert.setObject(2, receiverGeoms[row]);
+            for (int band = 0; band < BANDS; band++) {
+                // a band without energy has no level, rather than -Infinity
+                if (levels[row * BANDS + band] > 0) {
+                    insert.setDouble(3 + band, 10 * Math.log10(levels[row * BANDS + band]));
+                }
+                else {
+                    insert.setNull(3 + band, Types.DOUBLE);
+                }
+            }
+            insert.setInt(11, time);
+            insert.setDouble(12, 10 * Math.log10(leqa));
+            insert.setDouble(13, 10 * Math.log10(leq));
+            insert.addBatch();
+            if (++batch % 1000 == 0) {
+                insert.executeBatch();
+            }
+        }
+        insert.executeBatch();
+    }
+
+}
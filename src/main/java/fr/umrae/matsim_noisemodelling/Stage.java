@@ -0,0 +1,81 @@
+package fr.umrae.matsim_noisemodelling;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * One step of a {@link Pipeline} : the tables it reads, the tables it writes, the parameters its result depends on
+ * and the action producing it.
+ */
+class Stage {
+
+    interface Action {
+        void run(Connection connection) throws SQLException, IOException;
+    }
+
+    final String name;
+    final Action action;
+    final List<String> inputs = new ArrayList<>();
+    final List<String> outputs = new ArrayList<>();
+    final Map<String, Object> params = new TreeMap<>();
+    boolean enabled = true;
+
+    Stage(String name, Action action) {
+        this.name = name;
+        this.action = action;
+    }
+
+    Stage inputs(String... tables) {
+        inputs.addAll(Arrays.asList(tables));
+        return this;
+    }
+
+    Stage outputs(String... tables) {
+        outputs.addAll(Arrays.asList(tables));
+        return this;
+    }
+
+    Stage param(String key, Object value) {
+        params.put(key, value);
+        return this;
+    }
+
+    /**
+     * Input files are recorded with their size and modification time, so that a new file makes the stage stale.
+     */
+    Stage fileParam(String key, Path file) {
+        String signature = file.toString();
+        try {
+            if (Files.exists(file)) {
+                signature += "|" + Files.size(file) + "|" + Files.getLastModifiedTime(file).toMillis();
+            }
+        }
+        catch (IOException e) {
+            signature += "|unreadable";
+        }
+        params.put(key, signature);
+        return this;
+    }
+
+    Stage enabled(boolean enabled) {
+        this.enabled = enabled;
+        return this;
+    }
+
+    String paramsSignature() {
+        StringBuilder signature = new StringBuilder();
+        for (Map.Entry<String, Object> param : params.entrySet()) {
+            signature.append(param.getKey()).append('=').append(param.getValue()).append(';');
+        }
+        return signature.toString();
+    }
+
+}
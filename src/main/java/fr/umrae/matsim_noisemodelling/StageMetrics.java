@@ -0,0 +1,205 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.Sql;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Wall time, CPU time, peak heap, GC time and input / output row counts of one {@link Stage} run.
+ * CPU time, peak heap and GC are measured for the whole process : when another stage runs at the same time they
+ * cannot be told apart, so they are left null (-1 in the JFR event) and the stage is marked as overlapped.
+ */
+class StageMetrics {
+
+    @Name("fr.umrae.matsim_noisemodelling.Stage")
+    @Label("Pipeline Stage")
+    @Category("MATSim NoiseModelling")
+    @Description("Execution of one pipeline stage")
+    static class StageEvent extends jdk.jfr.Event {
+        @Label("Stage")
+        String stage;
+        @Label("Status")
+        String status;
+        @Label("CPU Time (ms)")
+        long cpuTimeMs;
+        @Label("Peak Heap (bytes)")
+        long peakHeapBytes;
+        @Label("GC Time (ms)")
+        long gcTimeMs;
+        @Label("Overlapped")
+        boolean overlapped;
+    }
+
+    // stages started and not stopped yet
+    private static final Set<StageMetrics> RUNNING = new HashSet<>();
+
+    final String stage;
+    String status = "running";
+    final String startedAt = Instant.now().toString();
+    final Map<String, Long> inputRows = new LinkedHashMap<>();
+    final Map<String, Long> outputRows = new LinkedHashMap<>();
+    long wallTimeMs;
+    Long cpuTimeMs;
+    Long peakHeapBytes;
+    Long gcTimeMs;
+    Long gcCount;
+    boolean overlapped = false;
+
+    private final long wallStart;
+    private final long cpuStart;
+    private final long gcTimeStart;
+    private final long gcCountStart;
+    private final StageEvent event;
+
+    StageMetrics(String stage, boolean jfrEvents) {
+        this.stage = stage;
+        synchronized (RUNNING) {
+            if (RUNNING.isEmpty()) {
+                for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                    if (pool.getType() == MemoryType.HEAP) {
+                        pool.resetPeakUsage();
+                    }
+                }
+            }
+            else {
+                overlapped = true;
+                for (StageMetrics other : RUNNING) {
+                    other.overlapped = true;
+                }
+            }
+            RUNNING.add(this);
+        }
+        gcTimeStart = gcTime();
+        gcCountStart = gcCount();
+        cpuStart = ThreadBudget.Usage.processCpuTime();
+        wallStart = System.nanoTime();
+        if (jfrEvents) {
+            event = new StageEvent();
+            event.stage = stage;
+            event.begin();
+        }
+        else {
+            event = null;
+        }
+    }
+
+    private StageMetrics(String stage) {
+        this.stage = stage;
+        status = "skipped";
+        cpuTimeMs = 0L;
+        peakHeapBytes = 0L;
+        gcTimeMs = 0L;
+        gcCount = 0L;
+        wallStart = cpuStart = gcTimeStart = gcCountStart = 0;
+        event = null;
+    }
+
+    static StageMetrics skipped(String stage) {
+        return new StageMetrics(stage);
+    }
+
+    void countInputs(Connection connection, List<String> tables) throws SQLException {
+        for (String table : tables) {
+            inputRows.put(table, rowCount(connection, table));
+        }
+    }
+
+    void countOutputs(Connection connection, List<String> tables) throws SQLException {
+        for (String table : tables) {
+            outputRows.put(table, rowCount(connection, table));
+        }
+    }
+
+    void stop(String status) {
+        this.status = status;
+        wallTimeMs = (System.nanoTime() - wallStart) / 1000000;
+        synchronized (RUNNING) {
+            RUNNING.remove(this);
+            if (!overlapped) {
+                long cpuEnd = ThreadBudget.Usage.processCpuTime();
+                cpuTimeMs = cpuStart >= 0 && cpuEnd >= 0 ? (cpuEnd - cpuStart) / 1000000 : -1;
+                gcTimeMs = gcTime() - gcTimeStart;
+                gcCount = gcCount() - gcCountStart;
+                long peak = 0;
+                for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                    if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                        peak += pool.getPeakUsage().getUsed();
+                    }
+                }
+                peakHeapBytes = peak;
+            }
+        }
+        if (event != null) {
+            event.end();
+            event.status = status;
+            event.cpuTimeMs = overlapped ? -1 : cpuTimeMs;
+            event.peakHeapBytes = overlapped ? -1 : peakHeapBytes;
+            event.gcTimeMs = overlapped ? -1 : gcTimeMs;
+            event.overlapped = overlapped;
+            event.commit();
+        }
+        if (overlapped) {
+            System.out.println(String.format("Stage %s %s in %.1f s (overlapped other stages, no cpu, heap or gc measure)",
+                    stage, status, wallTimeMs / 1000.0));
+        }
+        else {
+            System.out.println(String.format("Stage %s %s in %.1f s (cpu %.1f s, peak heap %d MB, gc %.1f s)",
+                    stage, status, wallTimeMs / 1000.0, cpuTimeMs / 1000.0, peakHeapBytes / (1024 * 1024), gcTimeMs / 1000.0));
+        }
+    }
+
+    Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("stage", stage);
+        map.put("status", status);
+        map.put("startedAt", startedAt);
+        map.put("wallTimeMs", wallTimeMs);
+        map.put("cpuTimeMs", cpuTimeMs);
+        map.put("peakHeapBytes", peakHeapBytes);
+        map.put("gcTimeMs", gcTimeMs);
+        map.put("gcCount", gcCount);
+        map.put("overlapped", overlapped);
+        map.put("inputRows", inputRows);
+        map.put("outputRows", outputRows);
+        return map;
+    }
+
+    static long rowCount(Connection connection, String table) throws SQLException {
+        if (!RunCli.tableExists(connection, table)) {
+            return -1;
+        }
+        return ((Number) new Sql(connection).firstRow("SELECT COUNT(*) AS N FROM " + table).get("N")).longValue();
+    }
+
+    static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+}
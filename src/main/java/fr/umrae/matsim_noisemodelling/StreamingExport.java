@@ -0,0 +1,385 @@
+package fr.umrae.matsim_noisemodelling;
+
+import org.h2gis.functions.io.geojson.ST_AsGeoJSON;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.WKBWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Export of large result tables in constant memory : rows are read from a forward-only cursor and written as they come,
+ * compressed, optionally to one file per time bin (all bins being written in the same pass).
+ * Formats :
+ * <ul>
+ *     <li>geojsonseq : one GeoJSON feature per line (newline-delimited GeoJSON), gzip compressed, .geojsonseq.gz</li>
+ *     <li>columnar : blocks of rows stored column by column, gzip compressed, .col.gz, described below</li>
+ * </ul>
+ * The columnar file is a big endian stream : the magic "MNCOL", a format version (int), the column count (int), then
+ * for each column its name (UTF) and its type (byte, see the TYPE_ constants). Then come blocks : the block row count
+ * (int), then for each column the values of the block rows. INT and LONG columns store Integer / Long MIN_VALUE for
+ * NULL, DOUBLE columns NaN, STRING and GEOMETRY columns (WKB with SRID) store the byte length (-1 for NULL) then the bytes.
+ * A block with 0 rows ends the file.
+ */
+class StreamingExport {
+
+    static final String GEOJSONSEQ = "geojsonseq";
+    static final String COLUMNAR = "columnar";
+
+    static final byte TYPE_INT = 0;
+    static final byte TYPE_LONG = 1;
+    static final byte TYPE_DOUBLE = 2;
+    static final byte TYPE_STRING = 3;
+    static final byte TYPE_GEOMETRY = 4;
+
+    static final int COLUMNAR_VERSION = 1;
+    static final int BUFFER_SIZE = 1 << 16;
+    // millimeters in a metric projection
+    static final int COORDINATE_DECIMALS = 3;
+
+    final String format;
+    // rows per columnar block, a block of each time bin is held in memory when splitting
+    int blockRows = 8192;
+
+    StreamingExport(String format) {
+        if (!GEOJSONSEQ.equals(format) && !COLUMNAR.equals(format)) {
+            throw new IllegalArgumentException("Export format must be '" + GEOJSONSEQ + "' or '" + COLUMNAR + "' : " + format);
+        }
+        this.format = format;
+    }
+
+    String extension() {
+        return GEOJSONSEQ.equals(format) ? ".geojsonseq.gz" : ".col.gz";
+    }
+
+    /**
+     * @param splitColumn integer column whose values split the rows into one file each (TIME), or null for a single file
+     * @return the written files
+     */
+    List<Path> export(Connection connection, String table, Path folder, String splitColumn) throws SQLException, IOException {
+        Files.createDirectories(folder);
+        long start = System.currentTimeMillis();
+        long rows = 0;
+        Map<Integer, RowWriter> writers = new HashMap<>();
+        List<Path> files = new ArrayList<>();
+        boolean autoCommit = connection.getAutoCommit();
+        // PostgreSQL only streams a cursor inside a transaction
+        connection.setAutoCommit(false);
+        try (Statement st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            st.setFetchSize(10000);
+            try (ResultSet rs = st.executeQuery("SELECT * FROM " + table)) {
+                Columns columns = new Columns(rs.getMetaData());
+                int split = splitColumn != null ? columns.indexOf(splitColumn) : -1;
+                if (splitColumn != null && split < 0) {
+                    throw new SQLException("Column " + splitColumn + " not found in " + table);
+                }
+                while (rs.next()) {
+                    int key = split >= 0 ? rs.getInt(split + 1) : 0;
+                    RowWriter writer = writers.get(key);
+                    if (writer == null) {
+                        Path file = folder.resolve(table + (split >= 0 ? "_" + key : "") + extension());
+                        writer = GEOJSONSEQ.equals(format) ? new GeoJsonSeqWriter(file, columns) : new ColumnarWriter(file, columns, blockRows);
+                        writers.put(key, writer);
+                        files.add(file);
+                    }
+                    writer.write(rs);
+                    rows++;
+                }
+            }
+        }
+        finally {
+            IOException closeError = null;
+            for (RowWriter writer : writers.values()) {
+                try {
+                    writer.close();
+                }
+                catch (IOException e) {
+                    closeError = e;
+                }
+            }
+            connection.commit();
+            connection.setAutoCommit(autoCommit);
+            if (closeError != null) {
+                throw closeError;
+            }
+        }
+        System.out.println("Exported " + rows + " rows of " + table + " to " + files.size() + " " + format + " files in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return files;
+    }
+
+    /**
+     * Names and export types of the result set columns.
+     */
+    static class Columns {
+        final String[] names;
+        final byte[] types;
+
+        Columns(ResultSetMetaData metaData) throws SQLException {
+            int count = metaData.getColumnCount();
+            names = new String[count];
+            types = new byte[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = metaData.getColumnLabel(i + 1);
+                types[i] = type(metaData.getColumnType(i + 1), metaData.getColumnTypeName(i + 1));
+            }
+        }
+
+        static byte type(int sqlType, String typeName) {
+            if (typeName != null && typeName.toUpperCase().startsWith("GEOMETRY")) {
+                return TYPE_GEOMETRY;
+            }
+            switch (sqlType) {
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                    return TYPE_INT;
+                case Types.BIGINT:
+                    return TYPE_LONG;
+                case Types.REAL:
+                case Types.FLOAT:
+                case Types.DOUBLE:
+                case Types.DECIMAL:
+                case Types.NUMERIC:
+                    return TYPE_DOUBLE;
+                default:
+                    return TYPE_STRING;
+            }
+        }
+
+        int indexOf(String name) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equalsIgnoreCase(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    interface RowWriter extends Closeable {
+        void write(ResultSet rs) throws SQLException, IOException;
+    }
+
+    static class GeoJsonSeqWriter implements RowWriter {
+        final Columns columns;
+        final Writer out;
+        final StringBuilder line = new StringBuilder();
+
+        GeoJsonSeqWriter(Path file, Columns columns) throws IOException {
+            this.columns = columns;
+            this.out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(file), BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE);
+        }
+
+        @Override
+        public void write(ResultSet rs) throws SQLException, IOException {
+            line.setLength(0);
+            line.append("{\"type\":\"Feature\",\"geometry\":");
+            boolean geometryWritten = false;
+            for (int i = 0; i < columns.names.length; i++) {
+                if (columns.types[i] == TYPE_GEOMETRY && !geometryWritten) {
+                    Geometry geometry = (Geometry) rs.getObject(i + 1);
+                    if (geometry != null) {
+                        ST_AsGeoJSON.toGeojsonGeometry(geometry, COORDINATE_DECIMALS, line);
+                    }
+                    else {
+                        line.append("null");
+                    }
+                    geometryWritten = true;
+                }
+            }
+            if (!geometryWritten) {
+                line.append("null");
+            }
+            line.append(",\"properties\":{");
+            boolean first = true;
+            for (int i = 0; i < columns.names.length; i++) {
+                if (columns.types[i] == TYPE_GEOMETRY) {
+                    continue;
+                }
+                if (!first) {
+                    line.append(',');
+                }
+                first = false;
+                line.append('"').append(columns.names[i]).append("\":");
+                switch (columns.types[i]) {
+                    case TYPE_INT:
+                    case TYPE_LONG: {
+                        long value = rs.getLong(i + 1);
+                        line.append(rs.wasNull() ? "null" : Long.toString(value));
+                        break;
+                    }
+                    case TYPE_DOUBLE: {
+                        double value = rs.getDouble(i + 1);
+                        line.append(rs.wasNull() || !Double.isFinite(value) ? "null" : Double.toString(value));
+                        break;
+                    }
+                    default: {
+                        String value = rs.getString(i + 1);
+                        if (value == null) {
+                            line.append("null");
+                        }
+                        else {
+                            appendJsonString(line, value);
+                        }
+                    }
+                }
+            }
+            line.append("}}\n");
+            out.write(line.toString());
+        }
+
+        static void appendJsonString(StringBuilder line, String value) {
+            line.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"': line.append("\\\""); break;
+                    case '\\': line.append("\\\\"); break;
+                    case '\n': line.append("\\n"); break;
+                    case '\r': line.append("\\r"); break;
+                    case '\t': line.append("\\t"); break;
+                    default:
+                        if (c < 0x20) {
+                            line.append(String.format("\\u%04x", (int) c));
+                        }
+                        else {
+                            line.append(c);
+                        }
+                }
+            }
+            line.append('"');
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    static class ColumnarWriter implements RowWriter {
+        final Columns columns;
+        final DataOutputStream out;
+        final int blockRows;
+        final WKBWriter wkbWriter = new WKBWriter(3, true);
+        // block values, per column
+        final long[][] longs;
+        final double[][] doubles;
+        final byte[][][] bytes;
+        int rows = 0;
+
+        ColumnarWriter(Path file, Columns columns, int blockRows) throws IOException {
+            this.columns = columns;
+            this.blockRows = blockRows;
+            int count = columns.names.length;
+            longs = new long[count][];
+            doubles = new double[count][];
+            bytes = new byte[count][][];
+            for (int i = 0; i < count; i++) {
+                switch (columns.types[i]) {
+                    case TYPE_INT:
+                    case TYPE_LONG:
+                        longs[i] = new long[blockRows];
+                        break;
+                    case TYPE_DOUBLE:
+                        doubles[i] = new double[blockRows];
+                        break;
+                    default:
+                        bytes[i] = new byte[blockRows][];
+                }
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(file), BUFFER_SIZE), BUFFER_SIZE));
+            out.writeBytes("MNCOL");
+            out.writeInt(COLUMNAR_VERSION);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeUTF(columns.names[i]);
+                out.writeByte(columns.types[i]);
+            }
+        }
+
+        @Override
+        public void write(ResultSet rs) throws SQLException, IOException {
+            for (int i = 0; i < columns.names.length; i++) {
+                switch (columns.types[i]) {
+                    case TYPE_INT: {
+                        int value = rs.getInt(i + 1);
+                        longs[i][rows] = rs.wasNull() ? Integer.MIN_VALUE : value;
+                        break;
+                    }
+                    case TYPE_LONG: {
+                        long value = rs.getLong(i + 1);
+                        longs[i][rows] = rs.wasNull() ? Long.MIN_VALUE : value;
+                        break;
+                    }
+                    case TYPE_DOUBLE: {
+                        double value = rs.getDouble(i + 1);
+                        doubles[i][rows] = rs.wasNull() ? Double.NaN : value;
+                        break;
+                    }
+                    case TYPE_GEOMETRY: {
+                        Geometry geometry = (Geometry) rs.getObject(i + 1);
+                        bytes[i][rows] = geometry != null ? wkbWriter.write(geometry) : null;
+                        break;
+                    }
+                    default: {
+                        String value = rs.getString(i + 1);
+                        bytes[i][rows] = value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+                    }
+                }
+            }
+            if (++rows == blockRows) {
+                flushBlock();
+            }
+        }
+
+        void flushBlock() throws IOException {
+            if (rows == 0) {
+                return;
+            }
+            out.writeInt(rows);
+            for (int i = 0; i < columns.names.length; i++) {
+                for (int row = 0; row < rows; row++) {
+                    switch (columns.types[i]) {
+                        case TYPE_INT:
+                            out.writeInt((int) longs[i][row]);
+                            break;
+                        case TYPE_LONG:
+                            out.writeLong(longs[i][row]);
+                            break;
+                        case TYPE_DOUBLE:
+                            out.writeDouble(doubles[i][row]);
+                            break;
+                        default:
+                            byte[] value = bytes[i][row];
+                            if (value == null) {
+                                out.writeInt(-1);
+                            }
+                            else {
+                                out.writeInt(value.length);
+                                out.write(value);
+                            }
+                            bytes[i][row] = null;
+                    }
+                }
+            }
+            rows = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushBlock();
+            out.writeInt(0);
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+package fr.umrae.matsim_noisemodelling;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Sizing of the computation thread pools, and measure of how many threads a stage really kept busy.
+ */
+class ThreadBudget {
+
+    // heap a propagation thread needs for its path finding and ray buffers
+    static final long HEAP_PER_THREAD = 512L * 1024 * 1024;
+
+    /**
+     * @param value a thread count, or "auto" to use every available processor as long as each thread gets
+     *              {@link #HEAP_PER_THREAD} of the maximum heap
+     */
+    static int resolve(String value) {
+        if (value == null || value.isEmpty() || value.equalsIgnoreCase("auto")) {
+            int processors = Runtime.getRuntime().availableProcessors();
+            int heapThreads = (int) Math.max(1, Runtime.getRuntime().maxMemory() / HEAP_PER_THREAD);
+            return Math.max(1, Math.min(processors, heapThreads));
+        }
+        int threads = Integer.parseInt(value);
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be 'auto' or a positive number : " + value);
+        }
+        return threads;
+    }
+
+    /**
+     * Wall time, process CPU time and peak live threads between its creation and {@link #report}.
+     */
+    static class Usage {
+        final long wallStart = System.nanoTime();
+        final long cpuStart = processCpuTime();
+
+        Usage() {
+            ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+        }
+
+        void report(String stage, int threads, long items, String itemName) {
+            double wall = (System.nanoTime() - wallStart) / 1e9;
+            double cpu = (processCpuTime() - cpuStart) / 1e9;
+            ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            double busyThreads = wall > 0 && cpu >= 0 ? cpu / wall : 0;
+            double throughput = wall > 0 ? items / wall : 0;
+            System.out.println(String.format("%s : %d threads configured, %.1f busy on average (%d live threads at peak), " +
+                            "%d %s in %.1f s, %.1f %s/s, %.2f %s/s per thread",
+                    stage, threads, busyThreads, threadBean.getPeakThreadCount(), items, itemName, wall,
+                    throughput, itemName, throughput / threads, itemName));
+        }
+
+        static long processCpuTime() {
+            java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            if (os instanceof com.sun.management.OperatingSystemMXBean) {
+                return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+            }
+            return -1;
+        }
+    }
+
+}
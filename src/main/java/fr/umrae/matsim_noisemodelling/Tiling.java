@@ -0,0 +1,413 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.Sql;
+import org.h2.Driver;
+import org.h2gis.functions.factory.H2GISFunctions;
+import org.h2gis.utilities.JDBCUtilities;
+import org.h2gis.utilities.TableLocation;
+import org.h2gis.utilities.Tuple;
+import org.h2gis.utilities.wrapper.ConnectionWrapper;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Spatial tiling of the computations that scale with the whole study area.
+ * Receivers are split into square tiles on a grid anchored at the origin of the projection. Each tile gets its own
+ * H2GIS database holding the receivers of the tile, plus the sources whose bounding box is within the overlap distance
+ * (the maximum source distance) of the tile and the buildings within the buildings overlap (the maximum source distance
+ * plus the maximum reflection distance, as a wall reflects the path of a source up to there), so the tile results are
+ * the same as in a single database.
+ * The tile computation runs there and its result table is appended to the main database, so memory depends on the
+ * tile size instead of the city size. The tile databases are deleted once merged, and overwritten by the next run when
+ * a tile failed.
+ */
+class Tiling {
+
+    interface TileAction {
+        void run(Connection tileConnection, Tile tile) throws SQLException, IOException;
+    }
+
+    static class Tile {
+        final long column;
+        final long row;
+        final double size;
+        final long receivers;
+
+        Tile(long column, long row, double size, long receivers) {
+            this.column = column;
+            this.row = row;
+            this.size = size;
+            this.receivers = receivers;
+        }
+
+        String name() {
+            return "tile_" + column + "_" + row;
+        }
+
+        Envelope envelope() {
+            return new Envelope(column * size, (column + 1) * size, row * size, (row + 1) * size);
+        }
+    }
+
+    final double tileSize;
+    final double overlap;
+    final double buildingsOverlap;
+    final Path folder;
+    final int parallelTiles;
+
+    Tiling(double tileSize, double overlap, double buildingsOverlap, Path folder, int parallelTiles) {
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+        this.buildingsOverlap = buildingsOverlap;
+        this.folder = folder;
+        this.parallelTiles = Math.max(1, parallelTiles);
+    }
+
+    /**
+     * Non-empty tiles of the receivers table, in column then row order.
+     */
+    List<Tile> tiles(Connection connection, String receiversTable) throws SQLException {
+        List<Tile> tiles = new ArrayList<>();
+        String query = "SELECT CAST(FLOOR(ST_X(THE_GEOM) / ?) AS BIGINT) TX, CAST(FLOOR(ST_Y(THE_GEOM) / ?) AS BIGINT) TY, COUNT(*) N" +
+                " FROM " + receiversTable + " GROUP BY TX, TY ORDER BY TX, TY";
+        try (PreparedStatement st = connection.prepareStatement(query)) {
+            st.setDouble(1, tileSize);
+            st.setDouble(2, tileSize);
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    tiles.add(new Tile(rs.getLong(1), rs.getLong(2), tileSize, rs.getLong(3)));
+                }
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Runs the action in the database of every tile, then appends the result table of each tile to the main database,
+     * renumbering its primary key. Tiles are merged in tile order whatever the order they complete in.
+     */
+    void run(Connection connection, List<Tile> tiles, TileInputs inputs, TileAction action, String resultTable) throws SQLException, IOException {
+        Files.createDirectories(folder);
+        new Sql(connection).execute("DROP TABLE IF EXISTS " + resultTable);
+        System.out.println("Computing " + tiles.size() + " tiles of " + tileSize + " m, " + parallelTiles + " at a time");
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelTiles);
+        List<Future<Path>> results = new ArrayList<>();
+        for (Tile tile : tiles) {
+            results.add(executor.submit(() -> {
+                Path tileDatabase = folder.resolve(tile.name());
+                try (Connection tileConnection = openDatabase(tileDatabase)) {
+                    // the main connection is shared by the tile threads, only the computations run concurrently
+                    synchronized (connection) {
+                        copyInputs(connection, tileConnection, tile, inputs);
+                    }
+                    action.run(tileConnection, tile);
+                }
+                System.out.println("Tile " + tile.name() + " done (" + tile.receivers + " receivers)");
+                return tileDatabase;
+            }));
+        }
+        List<Path> tileDatabases = new ArrayList<>();
+        try {
+            for (Future<Path> result : results) {
+                tileDatabases.add(result.get());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Tiled computation interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw new SQLException("Tile computation failed : " + e.getCause().getMessage(), e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+            try {
+                // a tile started before the failure may still be writing its database
+                executor.awaitTermination(10, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        merge(connection, tileDatabases, resultTable);
+    }
+
+    interface UnitFactory {
+        Properties create(Tile tile, Path tileDatabase);
+    }
+
+    /**
+     * Same as {@link #run}, the tiles being computed by the workers of a shared directory queue. The coordinator
+     * prepares the tile databases, queues one unit per tile and computes units itself with localWorkers threads (0 to
+     * leave all of them to the worker processes), then merges the tiles once they are all done.
+     */
+    void runQueued(Connection connection, List<Tile> tiles, TileInputs inputs, UnitFactory units, String resultTable,
+                   WorkQueue queue, int localWorkers, int workerThreads) throws SQLException, IOException {
+        Files.createDirectories(folder);
+        new Sql(connection).execute("DROP TABLE IF EXISTS " + resultTable);
+        List<String> names = new ArrayList<>();
+        List<Path> tileDatabases = new ArrayList<>();
+        for (Tile tile : tiles) {
+            Path tileDatabase = folder.resolve(tile.name()).toAbsolutePath();
+            try (Connection tileConnection = openDatabase(tileDatabase)) {
+                copyInputs(connection, tileConnection, tile, inputs);
+            }
+            queue.submit(tile.name(), units.create(tile, tileDatabase));
+            names.add(tile.name());
+            tileDatabases.add(tileDatabase);
+        }
+        System.out.println("Queued " + tiles.size() + " tiles of " + tileSize + " m in " + queue.folder + ", " + localWorkers + " local workers");
+
+        AtomicBoolean finished = new AtomicBoolean(false);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, localWorkers));
+        for (int i = 0; i < localWorkers; i++) {
+            Worker worker = new Worker(queue, WorkQueue.workerId("local" + i), workerThreads);
+            executor.submit(() -> {
+                worker.runUntil(finished::get, 1000);
+                return null;
+            });
+        }
+        try {
+            queue.await(names, 1000);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Tiled computation interrupted", e);
+        }
+        finally {
+            finished.set(true);
+            executor.shutdown();
+        }
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        merge(connection, tileDatabases, resultTable);
+    }
+
+    void merge(Connection connection, List<Path> tileDatabases, String resultTable) throws SQLException, IOException {
+        for (Path tileDatabase : tileDatabases) {
+            try (Connection tileConnection = openDatabase(tileDatabase)) {
+                appendResult(tileConnection, connection, resultTable);
+            }
+        }
+        if (RunCli.tableExists(connection, resultTable)) {
+            new Sql(connection).execute("ALTER TABLE " + resultTable + " ADD COLUMN PK INTEGER AUTO_INCREMENT PRIMARY KEY FIRST");
+        }
+        for (Path tileDatabase : tileDatabases) {
+            deleteDatabase(tileDatabase);
+        }
+        try (Stream<Path> files = Files.list(folder)) {
+            if (files.findAny().isEmpty()) {
+                Files.delete(folder);
+            }
+        }
+    }
+
+    /**
+     * Names of the tables a tile is built from : the receivers of the tile, and the buildings and sources around it.
+     * The emission table is filtered on the LINK_ID of the selected sources.
+     */
+    static class TileInputs {
+        final String receivers;
+        final String buildings;
+        final String sources;
+        final String sourcesLw;
+
+        TileInputs(String receivers, String buildings, String sources, String sourcesLw) {
+            this.receivers = receivers;
+            this.buildings = buildings;
+            this.sources = sources;
+            this.sourcesLw = sourcesLw;
+        }
+    }
+
+    void copyInputs(Connection connection, Connection tileConnection, Tile tile, TileInputs inputs) throws SQLException {
+        Sql tileSql = new Sql(tileConnection);
+        for (String table : List.of(inputs.receivers, inputs.buildings, inputs.sources, inputs.sourcesLw)) {
+            tileSql.execute("DROP TABLE IF EXISTS " + table);
+        }
+        Envelope envelope = tile.envelope();
+        Envelope around = new Envelope(envelope);
+        around.expandBy(overlap);
+        Envelope aroundBuildings = new Envelope(envelope);
+        aroundBuildings.expandBy(buildingsOverlap);
+        int srid = srid(connection, inputs.receivers);
+
+        // receivers on the tile border belong to the tile on their right / top, so that each is computed once
+        copyTable(connection, "SELECT * FROM " + inputs.receivers + " WHERE THE_GEOM && ? AND ST_X(THE_GEOM) >= ? AND ST_X(THE_GEOM) < ?" +
+                " AND ST_Y(THE_GEOM) >= ? AND ST_Y(THE_GEOM) < ?", List.of(toGeometry(envelope, srid), envelope.getMinX(),
+                envelope.getMaxX(), envelope.getMinY(), envelope.getMaxY()), tileConnection, inputs.receivers, primaryKey(connection, inputs.receivers));
+        copyTable(connection, "SELECT * FROM " + inputs.buildings + " WHERE THE_GEOM && ?", List.of(toGeometry(aroundBuildings, srid)),
+                tileConnection, inputs.buildings, primaryKey(connection, inputs.buildings));
+        copyTable(connection, "SELECT * FROM " + inputs.sources + " WHERE THE_GEOM && ?", List.of(toGeometry(around, srid)),
+                tileConnection, inputs.sources, primaryKey(connection, inputs.sources));
+        copyTable(connection, "SELECT * FROM " + inputs.sourcesLw + " WHERE LINK_ID IN (SELECT LINK_ID FROM " + inputs.sources + " WHERE THE_GEOM && ?)",
+                List.of(toGeometry(around, srid)), tileConnection, inputs.sourcesLw, primaryKey(connection, inputs.sourcesLw));
+
+        RunCli.ensureIndex(tileConnection, inputs.receivers, "THE_GEOM", true);
+        RunCli.ensureIndex(tileConnection, inputs.buildings, "THE_GEOM", true);
+        RunCli.ensureIndex(tileConnection, inputs.sources, "THE_GEOM", true);
+        RunCli.ensureIndex(tileConnection, inputs.sourcesLw, "LINK_ID", false);
+        RunCli.ensureIndex(tileConnection, inputs.sourcesLw, "TIME", false);
+    }
+
+    /**
+     * Appends every column of the tile result but its primary key, which is renumbered once all tiles are merged.
+     */
+    static void appendResult(Connection tileConnection, Connection connection, String resultTable) throws SQLException {
+        if (!RunCli.tableExists(tileConnection, resultTable)) {
+            return;
+        }
+        String pk = primaryKey(tileConnection, resultTable);
+        List<String> columns = new ArrayList<>();
+        try (ResultSet rs = tileConnection.getMetaData().getColumns(null, null, resultTable, null)) {
+            while (rs.next()) {
+                String column = rs.getString("COLUMN_NAME");
+                if (!column.equalsIgnoreCase(pk)) {
+                    columns.add(column);
+                }
+            }
+        }
+        copyTable(tileConnection, "SELECT " + String.join(", ", columns) + " FROM " + resultTable, List.of(),
+                connection, resultTable, null);
+    }
+
+    /**
+     * Copies the rows of a query to a table of another database through JDBC, creating the table from the column
+     * types of the query when it does not exist, and appending to it otherwise.
+     * @param primaryKey column to declare as primary key of the created table, or null
+     * @return the number of copied rows
+     */
+    static long copyTable(Connection from, String query, List<Object> params, Connection to, String table, String primaryKey) throws SQLException {
+        boolean create = !RunCli.tableExists(to, table);
+        long rows = 0;
+        boolean autoCommit = to.getAutoCommit();
+        to.setAutoCommit(false);
+        try (PreparedStatement select = from.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            select.setFetchSize(10000);
+            for (int i = 0; i < params.size(); i++) {
+                select.setObject(i + 1, params.get(i));
+            }
+            try (ResultSet rs = select.executeQuery()) {
+                ResultSetMetaData metaData = rs.getMetaData();
+                int columnCount = metaData.getColumnCount();
+                StringBuilder columns = new StringBuilder();
+                StringBuilder values = new StringBuilder();
+                for (int i = 1; i <= columnCount; i++) {
+                    if (i > 1) {
+                        columns.append(", ");
+                        values.append(", ");
+                    }
+                    columns.append(metaData.getColumnLabel(i));
+                    values.append('?');
+                }
+                if (create) {
+                    StringBuilder definition = new StringBuilder();
+                    for (int i = 1; i <= columnCount; i++) {
+                        if (i > 1) {
+                            definition.append(", ");
+                        }
+                        definition.append(metaData.getColumnLabel(i)).append(' ').append(columnType(metaData, i));
+                        if (metaData.getColumnLabel(i).equalsIgnoreCase(primaryKey)) {
+                            definition.append(" PRIMARY KEY");
+                        }
+                    }
+                    new Sql(to).execute("CREATE TABLE " + table + " (" + definition + ")");
+                }
+                try (PreparedStatement insert = to.prepareStatement("INSERT INTO " + table + " (" + columns + ") VALUES (" + values + ")")) {
+                    int batch = 0;
+                    while (rs.next()) {
+                        for (int i = 1; i <= columnCount; i++) {
+                            insert.setObject(i, rs.getObject(i));
+                        }
+                        insert.addBatch();
+                        rows++;
+                        if (++batch >= 1000) {
+                            insert.executeBatch();
+                            batch = 0;
+                        }
+                    }
+                    if (batch > 0) {
+                        insert.executeBatch();
+                    }
+                }
+            }
+            to.commit();
+        }
+        catch (SQLException e) {
+            to.rollback();
+            throw e;
+        }
+        finally {
+            to.setAutoCommit(autoCommit);
+        }
+        return rows;
+    }
+
+    static String columnType(ResultSetMetaData metaData, int column) throws SQLException {
+        String type = metaData.getColumnTypeName(column);
+        if (metaData.getColumnType(column) == Types.DECIMAL || metaData.getColumnType(column) == Types.NUMERIC) {
+            return type + "(" + metaData.getPrecision(column) + ", " + metaData.getScale(column) + ")";
+        }
+        return type;
+    }
+
+    static String primaryKey(Connection connection, String table) throws SQLException {
+        Tuple<String, Integer> pk = JDBCUtilities.getIntegerPrimaryKeyNameAndIndex(connection, TableLocation.parse(table));
+        return pk != null ? pk.first() : null;
+    }
+
+    static int srid(Connection connection, String table) throws SQLException {
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("SELECT ST_SRID(THE_GEOM) FROM " + table + " LIMIT 1")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    static Geometry toGeometry(Envelope envelope, int srid) {
+        Geometry geometry = new GeometryFactory().toGeometry(envelope);
+        geometry.setSRID(srid);
+        return geometry;
+    }
+
+    /**
+     * File of an H2 database opened with {@link #openDatabase}.
+     */
+    static Path databaseFile(Path database) {
+        return Paths.get(database + ".mv.db");
+    }
+
+    static void deleteDatabase(Path database) throws IOException {
+        Files.deleteIfExists(databaseFile(database));
+        Files.deleteIfExists(Paths.get(database + ".trace.db"));
+    }
+
+    static Connection openDatabase(Path file) throws SQLException {
+        Driver.load();
+        Connection connection = DriverManager.getConnection("jdbc:h2:" + file.toAbsolutePath(), "", "");
+        H2GISFunctions.load(connection);
+        return new ConnectionWrapper(connection);
+    }
+
+}
@@ -0,0 +1,575 @@
+package fr.umrae.matsim_noisemodelling;
+
+import org.h2gis.utilities.JDBCUtilities;
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.operation.overlayng.OverlayNG;
+import org.locationtech.jts.operation.overlayng.OverlayNGRobust;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Mapbox Vector Tile pyramid of the contour table, for web maps of the time-varying noise levels.
+ * For each zoom level, the polygons are read by chunks of tiles, reprojected to web mercator (EPSG:3857) and simplified
+ * with a tolerance of one screen pixel by the database, then cut along the tiles (with a small buffer so that the tile
+ * borders do not show) and encoded in parallel. Only the contours of one chunk are in memory at a time. Every tile has one layer "contours" whose polygon features keep TIME, ISOLVL and ISOLABEL, so that a map
+ * style filters the time bin to display.
+ * The tiles are written either as an MBTiles file (SQLite, tiles gzip compressed, TMS rows), which needs the SQLite
+ * JDBC driver at runtime, or as a folder of z/x/y.pbf files with a metadata.json TileJSON.
+ */
+class VectorTiles {
+
+    static final String MBTILES = "mbtiles";
+    static final String DIRECTORY = "directory";
+
+    static final String LAYER = "contours";
+    static final int EXTENT = 4096;
+    // tile units around each tile, so that the polygons overlap the neighbour tiles
+    static final int BUFFER = 64;
+    static final int PIXELS = 256;
+    // tiles per side of the chunks read at once, bounding the contours in memory to about 4096 x 4096 pixels of detail
+    static final int CHUNK_TILES = 16;
+    static final double ORIGIN = 20037508.342789244;
+
+    // geometry commands and types of the MVT 2 specification
+    static final int MOVE_TO = 1;
+    static final int LINE_TO = 2;
+    static final int CLOSE_PATH = 7;
+    static final int POLYGON = 3;
+
+    final int minZoom;
+    final int maxZoom;
+    final int threads;
+
+    VectorTiles(int minZoom, int maxZoom, int threads) {
+        if (minZoom < 0 || maxZoom > 24 || minZoom > maxZoom) {
+            throw new IllegalArgumentException("Tile zooms must be within 0 and 24, min <= max : " + minZoom + "-" + maxZoom);
+        }
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+        this.threads = Math.max(1, threads);
+    }
+
+    static class Contour {
+        final long id;
+        final Geometry geometry;
+        final int time;
+        final int isoLevel;
+        final String isoLabel;
+
+        Contour(long id, Geometry geometry, int time, int isoLevel, String isoLabel) {
+            this.id = id;
+            this.geometry = geometry;
+            this.time = time;
+            this.isoLevel = isoLevel;
+            this.isoLabel = isoLabel;
+        }
+    }
+
+    interface TileWriter extends Closeable {
+        void write(int z, int x, int y, byte[] tile) throws IOException, SQLException;
+    }
+
+    /**
+     * Writes the tiles of table (PK, THE_GEOM, TIME, ISOLVL, ISOLABEL) to output, a .mbtiles file or a folder.
+     * @param srid SRID of the geometries, used when THE_GEOM has none
+     * @return the number of written tiles
+     */
+    long export(Connection connection, String table, int srid, Path output, String format) throws SQLException, IOException {
+        long start = System.currentTimeMillis();
+        ContourReader reader = new ContourReader(connection, table, srid);
+        Envelope bounds = reader.bounds();
+        long tiles = 0;
+        try (TileWriter writer = MBTILES.equals(format) ? new MbTilesWriter(output, table, bounds) : new DirectoryWriter(output, table, bounds)) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                for (int z = minZoom; z <= maxZoom; z++) {
+                    long zoomTiles = writeZoom(executor, reader, bounds, z, writer);
+                    System.out.println("Vector tiles : zoom " + z + ", " + zoomTiles + " tiles");
+                    tiles += zoomTiles;
+                }
+            }
+            finally {
+                executor.shutdownNow();
+            }
+        }
+        System.out.println("Vector tiles of " + table + " written to " + output + " : " + reader.polygons + " polygons, "
+                + tiles + " tiles in " + (System.currentTimeMillis() - start) + " ms");
+        return tiles;
+    }
+
+    /**
+     * Contours of the table read by area, reprojected to web mercator and simplified by the database, so that only the
+     * contours of one chunk of tiles are in memory at a time.
+     */
+    static class ContourReader {
+        final Connection connection;
+        final String table;
+        final String geometry;
+        final int srid;
+        final int tableSrid;
+        long polygons = 0;
+
+        ContourReader(Connection connection, String table, int srid) throws SQLException {
+            this.connection = connection;
+            this.table = table;
+            geometry = "ST_Transform(CASE WHEN ST_SRID(THE_GEOM) = 0 THEN ST_SetSRID(THE_GEOM, " + srid + ") ELSE THE_GEOM END, 3857)";
+            try (Statement st = connection.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT ST_SRID(THE_GEOM) FROM " + table + " WHERE THE_GEOM IS NOT NULL LIMIT 1")) {
+                tableSrid = rs.next() ? rs.getInt(1) : 0;
+            }
+            this.srid = tableSrid != 0 ? tableSrid : srid;
+            if (!JDBCUtilities.isSpatialIndexed(connection, table, "THE_GEOM")) {
+                JDBCUtilities.createSpatialIndex(connection, table, "THE_GEOM");
+            }
+        }
+
+        /**
+         * Web mercator envelope of the contours, counting them.
+         */
+        Envelope bounds() throws SQLException {
+            try (Statement st = connection.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT COUNT(*), MIN(ST_XMin(G)), MAX(ST_XMax(G)), MIN(ST_YMin(G)), MAX(ST_YMax(G))" +
+                         " FROM (SELECT " + geometry + " G FROM " + table + " WHERE THE_GEOM IS NOT NULL) C")) {
+                rs.next();
+                polygons = rs.getLong(1);
+                return polygons == 0 ? new Envelope() : new Envelope(rs.getDouble(2), rs.getDouble(3), rs.getDouble(4), rs.getDouble(5));
+            }
+        }
+
+        /**
+         * Contours whose bounding box intersects the web mercator envelope, in PK order, simplified with the tolerance.
+         * The envelope is transformed to the SRID of the table with a margin, the transformed edges being curved.
+         */
+        List<Contour> read(Envelope envelope, double tolerance) throws SQLException {
+            Envelope area = new Envelope(envelope);
+            area.expandBy(Math.max(area.getWidth(), area.getHeight()) / 8);
+            String filter = String.format(Locale.ROOT, "ST_Transform(ST_MakeEnvelope(%f, %f, %f, %f, 3857), %d)",
+                    area.getMinX(), area.getMinY(), area.getMaxX(), area.getMaxY(), srid);
+            if (tableSrid == 0) {
+                filter = "ST_SetSRID(" + filter + ", 0)";
+            }
+            List<Contour> contours = new ArrayList<>();
+            WKBReader wkbReader = new WKBReader();
+            // geometries read as WKB, so that H2GIS and PostGIS give the same objects
+            try (Statement st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                st.setFetchSize(10000);
+                try (ResultSet rs = st.executeQuery("SELECT PK, ST_AsBinary(ST_Simplify(" + geometry + ", " + tolerance + ")), TIME, ISOLVL, ISOLABEL" +
+                        " FROM " + table + " WHERE THE_GEOM && " + filter + " ORDER BY PK")) {
+                    while (rs.next()) {
+                        byte[] wkb = rs.getBytes(2);
+                        // collapsed polygons are empty in H2GIS and null in PostGIS
+                        if (wkb == null) {
+                            continue;
+                        }
+                        Geometry simplified = wkbReader.read(wkb);
+                        if (!simplified.isEmpty()) {
+                            contours.add(new Contour(rs.getLong(1), simplified, rs.getInt(3), rs.getInt(4), rs.getString(5)));
+                        }
+                    }
+                }
+            }
+            catch (ParseException e) {
+                throw new SQLException("Invalid geometry in " + table, e);
+            }
+            return contours;
+        }
+    }
+
+    /**
+     * Writes the tiles of zoom z by chunks of CHUNK_TILES x CHUNK_TILES tiles : the contours of a chunk are read
+     * simplified with a tolerance of one screen pixel, dispatched to the tiles of the chunk they overlap, and the tiles
+     * are encoded in parallel. The tiles are written by the calling thread as they are encoded.
+     */
+    long writeZoom(ExecutorService executor, ContourReader reader, Envelope bounds, int z, TileWriter writer) throws SQLException, IOException {
+        if (bounds.isNull()) {
+            return 0;
+        }
+        double tileSize = 2 * ORIGIN / (1 << z);
+        double tolerance = tileSize / PIXELS;
+        double buffer = tileSize * BUFFER / EXTENT;
+        int tileCount = 1 << z;
+        int chunkTiles = Math.min(tileCount, CHUNK_TILES);
+
+        int minChunkX = tileIndex(bounds.getMinX() - buffer + ORIGIN, tileSize, tileCount) / chunkTiles;
+        int maxChunkX = tileIndex(bounds.getMaxX() + buffer + ORIGIN, tileSize, tileCount) / chunkTiles;
+        int minChunkY = tileIndex(ORIGIN - bounds.getMaxY() - buffer, tileSize, tileCount) / chunkTiles;
+        int maxChunkY = tileIndex(ORIGIN - bounds.getMinY() + buffer, tileSize, tileCount) / chunkTiles;
+        long written = 0;
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for (int chunkY = minChunkY; chunkY <= maxChunkY; chunkY++) {
+                Envelope chunk = new Envelope(-ORIGIN + chunkX * chunkTiles * tileSize, -ORIGIN + (chunkX + 1) * chunkTiles * tileSize,
+                        ORIGIN - (chunkY + 1) * chunkTiles * tileSize, ORIGIN - chunkY * chunkTiles * tileSize);
+                chunk.expandBy(buffer);
+                Envelope area = chunk.intersection(bounds);
+                if (area.isNull()) {
+                    continue;
+                }
+                List<Contour> contours = reader.read(area, tolerance);
+                written += writeChunk(executor, contours, z, chunkX * chunkTiles, chunkY * chunkTiles, chunkTiles, writer);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Encodes the tiles of the chunk whose top left tile is (firstX, firstY) at zoom z.
+     */
+    long writeChunk(ExecutorService executor, List<Contour> contours, int z, int firstX, int firstY, int chunkTiles, TileWriter writer) throws SQLException, IOException {
+        double tileSize = 2 * ORIGIN / (1 << z);
+        double buffer = tileSize * BUFFER / EXTENT;
+        int tileCount = 1 << z;
+
+        // contours of each tile, keyed by x * 2^z + y
+        Map<Long, List<Integer>> tileContours = new HashMap<>();
+        for (int i = 0; i < contours.size(); i++) {
+            Envelope envelope = contours.get(i).geometry.getEnvelopeInternal();
+            int minX = Math.max(firstX, tileIndex(envelope.getMinX() - buffer + ORIGIN, tileSize, tileCount));
+            int maxX = Math.min(firstX + chunkTiles - 1, tileIndex(envelope.getMaxX() + buffer + ORIGIN, tileSize, tileCount));
+            int minY = Math.max(firstY, tileIndex(ORIGIN - envelope.getMaxY() - buffer, tileSize, tileCount));
+            int maxY = Math.min(firstY + chunkTiles - 1, tileIndex(ORIGIN - envelope.getMinY() + buffer, tileSize, tileCount));
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    tileContours.computeIfAbsent((long) x * tileCount + y, key -> new ArrayList<>()).add(i);
+                }
+            }
+        }
+
+        CompletionService<Object[]> completion = new ExecutorCompletionService<>(executor);
+        for (Map.Entry<Long, List<Integer>> tile : tileContours.entrySet()) {
+            int x = (int) (tile.getKey() / tileCount);
+            int y = (int) (tile.getKey() % tileCount);
+            completion.submit(() -> new Object[]{x, y, encode(contours, tile.getValue(), z, x, y)});
+        }
+        long written = 0;
+        for (int i = 0; i < tileContours.size(); i++) {
+            Object[] tile;
+            try {
+                tile = completion.take().get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while encoding the tiles", e);
+            }
+            catch (ExecutionException e) {
+                throw new IOException("Tile encoding failed at zoom " + z, e.getCause());
+            }
+            if (tile[2] != null) {
+                writer.write(z, (int) tile[0], (int) tile[1], (byte[]) tile[2]);
+                written++;
+            }
+        }
+        return written;
+    }
+
+    static int tileIndex(double offset, double tileSize, int tileCount) {
+        return Math.max(0, Math.min(tileCount - 1, (int) Math.floor(offset / tileSize)));
+    }
+
+    /**
+     * @return the MVT bytes of tile z/x/y, null if no polygon is left once clipped
+     */
+    static byte[] encode(List<Contour> contours, List<Integer> indexes, int z, int x, int y) {
+        double tileSize = 2 * ORIGIN / (1 << z);
+        double minX = -ORIGIN + x * tileSize;
+        double maxY = ORIGIN - y * tileSize;
+        double buffer = tileSize * BUFFER / EXTENT;
+        Envelope clip = new Envelope(minX - buffer, minX + tileSize + buffer, maxY - tileSize - buffer, maxY + buffer);
+        double scale = EXTENT / tileSize;
+
+        List<String> keys = List.of("TIME", "ISOLVL", "ISOLABEL");
+        Map<Object, Integer> values = new LinkedHashMap<>();
+        ProtoWriter layer = new ProtoWriter();
+        layer.uint(15, 2);
+        layer.string(1, LAYER);
+        boolean empty = true;
+        for (int index : indexes) {
+            Geometry geometry = contours.get(index).geometry;
+            if (!clip.contains(geometry.getEnvelopeInternal())) {
+                geometry = OverlayNGRobust.overlay(geometry, geometry.getFactory().toGeometry(clip), OverlayNG.INTERSECTION);
+            }
+            int[] commands = polygonCommands(geometry, minX, maxY, scale);
+            if (commands.length == 0) {
+                continue;
+            }
+            Contour contour = contours.get(index);
+            int[] tags = {
+                    0, values.computeIfAbsent(contour.time, v -> values.size()),
+                    1, values.computeIfAbsent(contour.isoLevel, v -> values.size()),
+                    2, values.computeIfAbsent(contour.isoLabel == null ? "" : contour.isoLabel, v -> values.size())};
+            ProtoWriter feature = new ProtoWriter();
+            feature.uint(1, contour.id);
+            feature.packed(2, tags);
+            feature.uint(3, POLYGON);
+            feature.packed(4, commands);
+            layer.message(2, feature);
+            empty = false;
+        }
+        if (empty) {
+            return null;
+        }
+        for (String key : keys) {
+            layer.string(3, key);
+        }
+        for (Object value : values.keySet()) {
+            ProtoWriter encoded = new ProtoWriter();
+            if (value instanceof Integer) {
+                encoded.uint(4, (Integer) value);
+            }
+            else {
+                encoded.string(1, (String) value);
+            }
+            layer.message(4, encoded);
+        }
+        layer.uint(5, EXTENT);
+        ProtoWriter tile = new ProtoWriter();
+        tile.message(3, layer);
+        return tile.toByteArray();
+    }
+
+    /**
+     * Geometry commands of the polygons of geometry in tile coordinates (y down), rings with less than 3 distinct
+     * points once rounded are left out. Exterior rings are written clockwise and holes counter clockwise on screen.
+     */
+    static int[] polygonCommands(Geometry geometry, double minX, double maxY, double scale) {
+        List<Polygon> polygons = new ArrayList<>();
+        polygons(geometry, polygons);
+        IntList commands = new IntList();
+        int[] cursor = new int[2];
+        for (Polygon polygon : polygons) {
+            if (!ring(commands, cursor, polygon.getExteriorRing(), minX, maxY, scale, true)) {
+                continue;
+            }
+            for (int h = 0; h < polygon.getNumInteriorRing(); h++) {
+                ring(commands, cursor, polygon.getInteriorRingN(h), minX, maxY, scale, false);
+            }
+        }
+        return commands.toArray();
+    }
+
+    /**
+     * Polygons of geometry, the clipping leaving collections with lines or points along the tile border.
+     */
+    static void polygons(Geometry geometry, List<Polygon> polygons) {
+        if (geometry instanceof Polygon) {
+            if (!geometry.isEmpty()) {
+                polygons.add((Polygon) geometry);
+            }
+            return;
+        }
+        if (geometry instanceof GeometryCollection) {
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                polygons(geometry.getGeometryN(i), polygons);
+            }
+        }
+    }
+
+    static boolean ring(IntList commands, int[] cursor, LineString ring, double minX, double maxY, double scale, boolean exterior) {
+        Coordinate[] coordinates = ring.getCoordinates();
+        int[] xs = new int[coordinates.length];
+        int[] ys = new int[coordinates.length];
+        int n = 0;
+        for (int i = 0; i < coordinates.length - 1; i++) {
+            int x = (int) Math.round((coordinates[i].x - minX) * scale);
+            int y = (int) Math.round((maxY - coordinates[i].y) * scale);
+            if (n == 0 || x != xs[n - 1] || y != ys[n - 1]) {
+                xs[n] = x;
+                ys[n] = y;
+                n++;
+            }
+        }
+        while (n > 1 && xs[n - 1] == xs[0] && ys[n - 1] == ys[0]) {
+            n--;
+        }
+        if (n < 3) {
+            return false;
+        }
+        long area = 0;
+        for (int i = 0; i < n; i++) {
+            int j = (i + 1) % n;
+            area += (long) xs[i] * ys[j] - (long) xs[j] * ys[i];
+        }
+        if (area == 0) {
+            return false;
+        }
+        // the exterior rings have a positive area in tile coordinates, the holes a negative one
+        boolean reverse = (area > 0) != exterior;
+        commands.add(command(MOVE_TO, 1));
+        for (int k = 0; k < n; k++) {
+            int i = reverse ? (n - k) % n : k;
+            if (k == 1) {
+                commands.add(command(LINE_TO, n - 1));
+            }
+            commands.add(zigZag(xs[i] - cursor[0]));
+            commands.add(zigZag(ys[i] - cursor[1]));
+            cursor[0] = xs[i];
+            cursor[1] = ys[i];
+        }
+        commands.add(command(CLOSE_PATH, 1));
+        return true;
+    }
+
+    static int command(int id, int count) {
+        return (id & 0x7) | (count << 3);
+    }
+
+    static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * TileJSON description of the pyramid, also stored in the MBTiles metadata.
+     */
+    String metadata(String table, Envelope bounds, boolean tileJson) {
+        double west = -180, south = -85.0511, east = 180, north = 85.0511;
+        if (!bounds.isNull()) {
+            west = longitude(bounds.getMinX());
+            south = latitude(bounds.getMinY());
+            east = longitude(bounds.getMaxX());
+            north = latitude(bounds.getMaxY());
+        }
+        String vectorLayers = "[{\"id\": \"" + LAYER + "\", \"minzoom\": " + minZoom + ", \"maxzoom\": " + maxZoom +
+                ", \"fields\": {\"TIME\": \"Number\", \"ISOLVL\": \"Number\", \"ISOLABEL\": \"String\"}}]";
+        if (!tileJson) {
+            return "{\"vector_layers\": " + vectorLayers + "}";
+        }
+        return String.format(Locale.ROOT, "{\"tilejson\": \"3.0.0\", \"name\": \"%s\", \"tiles\": [\"{z}/{x}/{y}.pbf\"], " +
+                        "\"minzoom\": %d, \"maxzoom\": %d, \"bounds\": [%.6f, %.6f, %.6f, %.6f], \"vector_layers\": %s}",
+                table, minZoom, maxZoom, west, south, east, north, vectorLayers);
+    }
+
+    static double longitude(double x) {
+        return x / ORIGIN * 180;
+    }
+
+    static double latitude(double y) {
+        return Math.toDegrees(Math.atan(Math.sinh(y / ORIGIN * Math.PI)));
+    }
+
+    /**
+     * z/x/y.pbf files, not compressed so that they are served as they are, and metadata.json.
+     */
+    class DirectoryWriter implements TileWriter {
+        final Path folder;
+
+        DirectoryWriter(Path folder, String table, Envelope bounds) throws IOException {
+            this.folder = folder;
+            Files.createDirectories(folder);
+            Files.write(folder.resolve("metadata.json"), metadata(table, bounds, true).getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void write(int z, int x, int y, byte[] tile) throws IOException {
+            Path file = folder.resolve(Integer.toString(z)).resolve(Integer.toString(x)).resolve(y + ".pbf");
+            Files.createDirectories(file.getParent());
+            Files.write(file, tile);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * MBTiles 1.3 file : metadata and tiles tables, gzip compressed tiles, rows numbered from the south (TMS).
+     */
+    class MbTilesWriter implements TileWriter {
+        final Connection connection;
+        final PreparedStatement insert;
+        int batch = 0;
+
+        MbTilesWriter(Path file, String table, Envelope bounds) throws IOException, SQLException {
+            Files.deleteIfExists(file);
+            if (file.toAbsolutePath().getParent() != null) {
+                Files.createDirectories(file.toAbsolutePath().getParent());
+            }
+            try {
+                connection = DriverManager.getConnection("jdbc:sqlite:" + file.toAbsolutePath());
+            }
+            catch (SQLException e) {
+                throw new SQLException("Cannot open the MBTiles file " + file + ", the SQLite JDBC driver is needed for the '" +
+                        MBTILES + "' tiles, or use '" + DIRECTORY + "'", e);
+            }
+            try (Statement st = connection.createStatement()) {
+                st.execute("CREATE TABLE metadata (name TEXT, value TEXT)");
+                st.execute("CREATE TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+                st.execute("CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column, tile_row)");
+            }
+            Map<String, String> metadata = new LinkedHashMap<>();
+            metadata.put("name", table);
+            metadata.put("format", "pbf");
+            metadata.put("type", "overlay");
+            metadata.put("minzoom", Integer.toString(minZoom));
+            metadata.put("maxzoom", Integer.toString(maxZoom));
+            if (!bounds.isNull()) {
+                metadata.put("bounds", String.format(Locale.ROOT, "%.6f,%.6f,%.6f,%.6f", longitude(bounds.getMinX()),
+                        latitude(bounds.getMinY()), longitude(bounds.getMaxX()), latitude(bounds.getMaxY())));
+            }
+            metadata.put("json", metadata(table, bounds, false));
+            try (PreparedStatement st = connection.prepareStatement("INSERT INTO metadata VALUES (?, ?)")) {
+                for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                    st.setString(1, entry.getKey());
+                    st.setString(2, entry.getValue());
+                    st.executeUpdate();
+                }
+            }
+            connection.setAutoCommit(false);
+            insert = connection.prepareStatement("INSERT INTO tiles VALUES (?, ?, ?, ?)");
+        }
+
+        @Override
+        public void write(int z, int x, int y, byte[] tile) throws IOException, SQLException {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(tile.length / 2 + 64);
+            try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(tile);
+            }
+            insert.setInt(1, z);
+            insert.setInt(2, x);
+            insert.setInt(3, (1 << z) - 1 - y);
+            insert.setBytes(4, compressed.toByteArray());
+            insert.addBatch();
+            if (++batch >= 1000) {
+                insert.executeBatch();
+                batch = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                insert.executeBatch();
+                connection.commit();
+                insert.close();
+                connection.close();
+            }
+            catch (SQLException e) {
+                throw new IOException("Cannot complete the MBTiles file", e);
+            }
+        }
+    }
+
+    static class IntList {
+        int[] values = new int[64];
+        int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+}
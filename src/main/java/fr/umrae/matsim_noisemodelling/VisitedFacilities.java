@@ -0,0 +1,146 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.Sql;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Facilities where the studied agents have an activity within [timeBinMin, timeBinMax), and their home facility whose
+ * level is reported over the whole window, from the experienced plans, so that receivers are only built and propagated
+ * for them. The studied agents are those of the subpopulation, all when it is empty, without the ignored agents. The
+ * other agents may have activities without receiver, so the exposure is only computed for the studied ones.
+ */
+class VisitedFacilities {
+
+    final int timeBinMin;
+    final int timeBinMax;
+    final Set<String> ignoredAgents = new HashSet<>();
+    final String subpopulation;
+
+    final Set<String> facilities = new HashSet<>();
+    long persons = 0;
+    long studiedPersons = 0;
+
+    VisitedFacilities(int timeBinMin, int timeBinMax, String ignoreAgents, String subpopulation) {
+        this.timeBinMin = timeBinMin;
+        this.timeBinMax = timeBinMax;
+        for (String agent : ignoreAgents.split(",")) {
+            if (!agent.isBlank()) {
+                ignoredAgents.add(agent.trim());
+            }
+        }
+        this.subpopulation = subpopulation == null ? "" : subpopulation;
+    }
+
+    void collect(Path experiencedPlansFile) throws IOException {
+        try (ExperiencedPlansReader reader = new ExperiencedPlansReader(experiencedPlansFile)) {
+            ExperiencedPlansReader.Person person;
+            while ((person = reader.next()) != null) {
+                persons++;
+                if (!studied(person)) {
+                    continue;
+                }
+                studiedPersons++;
+                boolean home = false;
+                for (ExperiencedPlansReader.Activity activity : person.activities) {
+                    if (activity.facility == null) {
+                        continue;
+                    }
+                    // same home facility as InMemoryExposure, the first home activity
+                    if (!home && activity.type != null && activity.type.startsWith("home")) {
+                        home = true;
+                        facilities.add(activity.facility);
+                    }
+                    if (activity.endTime > timeBinMin && activity.startTime < timeBinMax) {
+                        facilities.add(activity.facility);
+                    }
+                }
+            }
+        }
+    }
+
+    boolean studied(ExperiencedPlansReader.Person person) {
+        return !ignoredAgents.contains(person.id) && (subpopulation.isEmpty() || subpopulation.equals(person.subpopulation));
+    }
+
+    /**
+     * Deletes from exposuresTable the persons of experiencedPlansFile that are not studied, for the exposure engines
+     * that compute all the persons.
+     */
+    void deleteOthers(Connection connection, Path experiencedPlansFile, String exposuresTable) throws SQLException, IOException {
+        long deleted = 0;
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (ExperiencedPlansReader reader = new ExperiencedPlansReader(experiencedPlansFile);
+             PreparedStatement delete = connection.prepareStatement("DELETE FROM " + exposuresTable + " WHERE PERSON_ID = ?")) {
+            int batch = 0;
+            ExperiencedPlansReader.Person person;
+            while ((person = reader.next()) != null) {
+                if (studied(person)) {
+                    continue;
+                }
+                delete.setString(1, person.id);
+                delete.addBatch();
+                deleted++;
+                if (++batch % 10000 == 0) {
+                    delete.executeBatch();
+                }
+            }
+            delete.executeBatch();
+            connection.commit();
+        }
+        finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        System.out.println("Visited facilities : exposure of " + deleted + " persons not studied deleted from " + exposuresTable);
+    }
+
+    /**
+     * Copies the rows of activitiesTable whose FACILITY was visited to visitedTable.
+     */
+    void filter(Connection connection, String activitiesTable, String visitedTable) throws SQLException {
+        Sql sql = new Sql(connection);
+        sql.execute("DROP TABLE IF EXISTS VISITED_FACILITIES");
+        sql.execute("CREATE TABLE VISITED_FACILITIES (FACILITY VARCHAR PRIMARY KEY)");
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO VISITED_FACILITIES VALUES (?)")) {
+            int batch = 0;
+            for (String facility : facilities) {
+                insert.setString(1, facility);
+                insert.addBatch();
+                if (++batch % 10000 == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+            connection.commit();
+        }
+        finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        String pk = Tiling.primaryKey(connection, activitiesTable);
+        sql.execute("DROP TABLE IF EXISTS " + visitedTable);
+        sql.execute("CREATE TABLE " + visitedTable + " AS SELECT A.* FROM " + activitiesTable + " A" +
+                " WHERE A.FACILITY IN (SELECT FACILITY FROM VISITED_FACILITIES)" + (pk != null ? " ORDER BY A." + pk : ""));
+        if (pk != null) {
+            sql.execute("ALTER TABLE " + visitedTable + " ALTER COLUMN " + pk + " SET NOT NULL");
+            sql.execute("ALTER TABLE " + visitedTable + " ADD PRIMARY KEY (" + pk + ")");
+        }
+        RunCli.ensureIndex(connection, visitedTable, "THE_GEOM", true);
+        sql.execute("DROP TABLE VISITED_FACILITIES");
+
+        long activities = ((Number) sql.firstRow("SELECT COUNT(*) N FROM " + activitiesTable).get("N")).longValue();
+        long visited = ((Number) sql.firstRow("SELECT COUNT(*) N FROM " + visitedTable).get("N")).longValue();
+        System.out.println("Visited facilities : " + studiedPersons + " of " + persons + " persons studied, " + visited
+                + " of " + activities + " facilities visited between " + timeBinMin + " s and " + timeBinMax + " s");
+    }
+
+}
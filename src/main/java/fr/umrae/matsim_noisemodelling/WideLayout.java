@@ -0,0 +1,208 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.Sql;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact storage of a noise map table, one row per receiver instead of one row per receiver and time bin.
+ * The wide table <table>_WIDE holds IDRECEIVER, the geometry once, and for each level column of the long table a
+ * VARBINARY packing one little endian float32 per time bin, NaN when the receiver has no row for that bin. The times
+ * of the bins are in <table>_WIDE_TIMES (BIN, TIME). The long table is then replaced by a view with the same columns,
+ * except the PK, decoding the levels with the WIDE_LEVEL function, so that the exposure, contouring and export steps
+ * read it unchanged. Readers that know the layout, like {@link ReceiverLevelStore}, {@link MeshContouring} and the
+ * time clustered table of the contouring, scan the wide table directly.
+ */
+public class WideLayout {
+
+    static final String WIDE_SUFFIX = "_WIDE";
+    static final String TIMES_SUFFIX = "_WIDE_TIMES";
+    static final List<String> KEY_COLUMNS = List.of("PK", "IDRECEIVER", "THE_GEOM", "TIME");
+
+    final String wideTable;
+    final int[] times;
+
+    WideLayout(String wideTable, int[] times) {
+        this.wideTable = wideTable;
+        this.times = times;
+    }
+
+    /**
+     * Level of a time bin in a packed column, called by the long view as WIDE_LEVEL.
+     */
+    public static Double level(byte[] levels, int bin) {
+        if (levels == null || (bin + 1) * Float.BYTES > levels.length) {
+            return null;
+        }
+        float level = ByteBuffer.wrap(levels).order(ByteOrder.LITTLE_ENDIAN).getFloat(bin * Float.BYTES);
+        return Float.isNaN(level) ? null : (double) level;
+    }
+
+    static float[] unpack(byte[] levels) {
+        float[] values = new float[levels.length / Float.BYTES];
+        ByteBuffer.wrap(levels).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(values);
+        return values;
+    }
+
+    static byte[] pack(float[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asFloatBuffer().put(values);
+        return buffer.array();
+    }
+
+    /**
+     * @return the wide layout behind the long view table, null if table is a plain table
+     */
+    static WideLayout of(Connection connection, String table) throws SQLException {
+        if (!RunCli.viewExists(connection, table) || !RunCli.tableExists(connection, table + WIDE_SUFFIX)) {
+            return null;
+        }
+        return new WideLayout(table + WIDE_SUFFIX, times(connection, table + TIMES_SUFFIX));
+    }
+
+    static int[] times(Connection connection, String timesTable) throws SQLException {
+        List<Integer> times = new ArrayList<>();
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("SELECT TIME FROM " + timesTable + " ORDER BY BIN")) {
+            while (rs.next()) {
+                times.add(rs.getInt(1));
+            }
+        }
+        return times.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Moves the long table (IDRECEIVER, THE_GEOM, TIME and level columns) to the wide layout and replaces it by its view.
+     */
+    static void convert(Connection connection, String table) throws SQLException {
+        if (of(connection, table) != null) {
+            System.out.println("Noise map " + table + " is already in the wide layout");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        String wideTable = table + WIDE_SUFFIX;
+        String timesTable = table + TIMES_SUFFIX;
+        Sql sql = new Sql(connection);
+        sql.execute("CREATE ALIAS IF NOT EXISTS WIDE_LEVEL FOR \"" + WideLayout.class.getName() + ".level\"");
+
+        List<String> columns = new ArrayList<>();
+        List<String> levelColumns = new ArrayList<>();
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("SELECT * FROM " + table + " LIMIT 0")) {
+            ResultSetMetaData metaData = rs.getMetaData();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                String column = metaData.getColumnName(i).toUpperCase();
+                columns.add(column);
+                if (!KEY_COLUMNS.contains(column)) {
+                    levelColumns.add(column);
+                }
+            }
+        }
+
+        sql.execute("DROP TABLE IF EXISTS " + timesTable);
+        sql.execute("CREATE TABLE " + timesTable + " (BIN INTEGER PRIMARY KEY, TIME INTEGER) AS" +
+                " SELECT CAST(ROW_NUMBER() OVER (ORDER BY TIME) - 1 AS INTEGER), TIME FROM (SELECT DISTINCT TIME FROM " + table + ")");
+        int[] times = times(connection, timesTable);
+        int bins = times.length;
+
+        StringBuilder definition = new StringBuilder("IDRECEIVER INTEGER PRIMARY KEY, THE_GEOM GEOMETRY");
+        StringBuilder values = new StringBuilder("?, ?");
+        for (String column : levelColumns) {
+            definition.append(", ").append(column).append(" VARBINARY");
+            values.append(", ?");
+        }
+        sql.execute("DROP TABLE IF EXISTS " + wideTable);
+        sql.execute("CREATE TABLE " + wideTable + " (" + definition + ")");
+
+        RunCli.ensureIndex(connection, table, "IDRECEIVER", false);
+        long rows = 0;
+        int receivers = 0;
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (Statement st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+             PreparedStatement insert = connection.prepareStatement("INSERT INTO " + wideTable + " VALUES (" + values + ")")) {
+            st.setFetchSize(10000);
+            try (ResultSet rs = st.executeQuery("SELECT IDRECEIVER, THE_GEOM, TIME, " + String.join(", ", levelColumns) +
+                    " FROM " + table + " ORDER BY IDRECEIVER, TIME")) {
+                float[][] levels = new float[levelColumns.size()][bins];
+                int receiver = 0;
+                Object geometry = null;
+                boolean hasReceiver = false;
+                while (rs.next()) {
+                    int id = rs.getInt(1);
+                    if (hasReceiver && id != receiver) {
+                        addReceiver(insert, receiver, geometry, levels);
+                        if (++receivers % 1000 == 0) {
+                            insert.executeBatch();
+                        }
+                        hasReceiver = false;
+                    }
+                    if (!hasReceiver) {
+                        hasReceiver = true;
+                        receiver = id;
+                        geometry = rs.getObject(2);
+                        for (float[] columnLevels : levels) {
+                            Arrays.fill(columnLevels, Float.NaN);
+                        }
+                    }
+                    int bin = Arrays.binarySearch(times, rs.getInt(3));
+                    for (int c = 0; c < levelColumns.size(); c++) {
+                        double level = rs.getDouble(4 + c);
+                        levels[c][bin] = rs.wasNull() ? Float.NaN : (float) level;
+                    }
+                    rows++;
+                }
+                if (hasReceiver) {
+                    addReceiver(insert, receiver, geometry, levels);
+                    receivers++;
+                }
+            }
+            insert.executeBatch();
+            connection.commit();
+        }
+        finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        RunCli.ensureIndex(connection, wideTable, "THE_GEOM", true);
+
+        StringBuilder select = new StringBuilder();
+        for (String column : columns) {
+            if (column.equals("PK")) {
+                continue;
+            }
+            select.append(select.length() > 0 ? ", " : "");
+            if (column.equals("TIME")) {
+                select.append("T.TIME");
+            }
+            else if (levelColumns.contains(column)) {
+                select.append("WIDE_LEVEL(W.").append(column).append(", T.BIN) ").append(column);
+            }
+            else {
+                select.append("W.").append(column);
+            }
+        }
+        // a dense noise map has every receiver at every bin, otherwise the missing bins are filtered out
+        String missing = rows == (long) receivers * bins || levelColumns.isEmpty() ? ""
+                : " WHERE WIDE_LEVEL(W." + levelColumns.get(0) + ", T.BIN) IS NOT NULL";
+        sql.execute("DROP TABLE " + table);
+        sql.execute("CREATE VIEW " + table + " AS SELECT " + select + " FROM " + wideTable + " W CROSS JOIN " + timesTable + " T" + missing);
+
+        System.out.println("Noise map " + table + " moved to the wide layout : " + rows + " rows -> " + receivers
+                + " receivers x " + bins + " time bins in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    static void addReceiver(PreparedStatement insert, int receiver, Object geometry, float[][] levels) throws SQLException {
+        insert.setInt(1, receiver);
+        insert.setObject(2, geometry);
+        for (int c = 0; c < levels.length; c++) {
+            insert.setBytes(3 + c, pack(levels[c]));
+        }
+        insert.addBatch();
+    }
+
+}
@@ -0,0 +1,269 @@
+package fr.umrae.matsim_noisemodelling;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * Work units queued as properties files in a shared directory, so that workers in other JVMs, on this host or on hosts
+ * sharing the filesystem, can take part in a computation.
+ * A unit moves from pending/ to running/ (claimed by an atomic rename suffixed with the worker id), then to done/ or
+ * back to pending/ when it failed, until it reaches its maximum attempts and lands in failed/. A running unit is
+ * touched regularly by its worker, the coordinator puts back to pending/ the units whose worker stopped touching them.
+ * A worker only completes or fails a unit while its running/ file still exists : a unit requeued as stale belongs to
+ * the next attempt, and the result of the late worker is discarded.
+ */
+class WorkQueue {
+
+    static final String PENDING = "pending";
+    static final String RUNNING = "running";
+    static final String DONE = "done";
+    static final String FAILED = "failed";
+    // workers stop when this file exists in the queue folder
+    static final String STOP = "stop";
+
+    static final String UNIT_SUFFIX = ".unit";
+    static final String ATTEMPTS = "attempts";
+    static final String ERROR = "error";
+    // H2 database of the unit, computed on a private copy published when the unit completes
+    static final String DATABASE = "database";
+    // suffix of a running unit whose worker is publishing its result
+    static final String COMPLETING = ".completing";
+
+    final Path folder;
+    int maxAttempts = 3;
+    long staleAfterMillis = 10 * 60 * 1000;
+
+    WorkQueue(Path folder) throws IOException {
+        this.folder = folder;
+        for (String state : List.of(PENDING, RUNNING, DONE, FAILED)) {
+            Files.createDirectories(folder.resolve(state));
+        }
+    }
+
+    /**
+     * Unique id of a worker, also readable by a human looking at the running/ folder.
+     */
+    static String workerId(String suffix) {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        }
+        catch (IOException e) {
+            host = "unknown";
+        }
+        return host + "-" + ManagementFactory.getRuntimeMXBean().getName().replace('@', '-') + "-" + suffix;
+    }
+
+    /**
+     * Queues a unit, forgetting any earlier result of a unit with the same name.
+     */
+    void submit(String name, Properties unit) throws IOException {
+        Files.deleteIfExists(folder.resolve(DONE).resolve(name + UNIT_SUFFIX));
+        Files.deleteIfExists(folder.resolve(FAILED).resolve(name + UNIT_SUFFIX));
+        unit.setProperty(ATTEMPTS, "0");
+        write(PENDING, name, unit);
+    }
+
+    /**
+     * A claimed unit : its name, its properties and the running/ file the worker keeps touching.
+     */
+    static class Claim {
+        final String name;
+        final Properties unit;
+        final Path file;
+
+        Claim(String name, Properties unit, Path file) {
+            this.name = name;
+            this.unit = unit;
+            this.file = file;
+        }
+    }
+
+    /**
+     * @return the claimed unit, or null when no unit is pending
+     */
+    Claim claim(String workerId) throws IOException {
+        for (Path pending : list(PENDING)) {
+            String name = unitName(pending);
+            Path running = folder.resolve(RUNNING).resolve(name + UNIT_SUFFIX + "." + workerId);
+            try {
+                Files.move(pending, running, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (NoSuchFileException e) {
+                // claimed by another worker in the meantime
+                continue;
+            }
+            Files.setLastModifiedTime(running, FileTime.fromMillis(System.currentTimeMillis()));
+            return new Claim(name, read(running), running);
+        }
+        return null;
+    }
+
+    static void heartbeat(Claim claim) {
+        try {
+            Files.setLastModifiedTime(claim.file, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        catch (IOException e) {
+            // the unit was requeued as stale, its result will be discarded
+        }
+    }
+
+    interface Publisher {
+        void publish() throws IOException;
+    }
+
+    /**
+     * Publishes the result of a claimed unit and moves it to done/, if the worker still owns the claim. The running/
+     * file is renamed first, so that the coordinator cannot requeue the unit while the result is published, and is
+     * requeued as stale if the worker dies before moving it to done/.
+     * @return false when the unit was requeued while running, the result is then not published
+     */
+    boolean complete(Claim claim, Publisher publisher) throws IOException {
+        Path completing = claim.file.resolveSibling(claim.file.getFileName() + COMPLETING);
+        try {
+            Files.move(claim.file, completing, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (NoSuchFileException e) {
+            System.out.println("Unit " + claim.name + " was requeued while running, its result is left to the next attempt");
+            return false;
+        }
+        Files.setLastModifiedTime(completing, FileTime.fromMillis(System.currentTimeMillis()));
+        try {
+            publisher.publish();
+        }
+        catch (IOException | RuntimeException e) {
+            // still claimed, the worker fails it
+            Files.move(completing, claim.file, StandardCopyOption.ATOMIC_MOVE);
+            throw e;
+        }
+        Files.move(completing, folder.resolve(DONE).resolve(claim.name + UNIT_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    /**
+     * Puts the unit back to pending/, or to failed/ after its last attempt, if the worker still owns the claim.
+     */
+    void fail(Claim claim, Throwable error) throws IOException {
+        try {
+            Files.delete(claim.file);
+        }
+        catch (NoSuchFileException e) {
+            System.out.println("Unit " + claim.name + " was requeued while running, its failure is left to the next attempt");
+            return;
+        }
+        Properties unit = claim.unit;
+        int attempts = Integer.parseInt(unit.getProperty(ATTEMPTS, "0")) + 1;
+        unit.setProperty(ATTEMPTS, Integer.toString(attempts));
+        unit.setProperty(ERROR, String.valueOf(error));
+        write(attempts < maxAttempts ? PENDING : FAILED, claim.name, unit);
+    }
+
+    /**
+     * Puts back to pending/ the running units whose worker did not touch them for {@link #staleAfterMillis}.
+     */
+    void requeueStale() throws IOException {
+        long now = System.currentTimeMillis();
+        for (Path running : list(RUNNING)) {
+            try {
+                if (now - Files.getLastModifiedTime(running).toMillis() < staleAfterMillis) {
+                    continue;
+                }
+                String name = unitName(running);
+                Properties unit = read(running);
+                Files.delete(running);
+                System.out.println("Unit " + name + " claimed by a worker that stopped responding, requeued");
+                unit.setProperty(ATTEMPTS, Integer.toString(Integer.parseInt(unit.getProperty(ATTEMPTS, "0")) + 1));
+                write(Integer.parseInt(unit.getProperty(ATTEMPTS)) < maxAttempts ? PENDING : FAILED, name, unit);
+            }
+            catch (NoSuchFileException e) {
+                // completed in the meantime
+            }
+        }
+    }
+
+    boolean isDone(String name) {
+        return Files.exists(folder.resolve(DONE).resolve(name + UNIT_SUFFIX));
+    }
+
+    /**
+     * @return the error of the last attempt if the unit failed for good, null otherwise
+     */
+    String failure(String name) throws IOException {
+        Path failed = folder.resolve(FAILED).resolve(name + UNIT_SUFFIX);
+        if (!Files.exists(failed)) {
+            return null;
+        }
+        return read(failed).getProperty(ERROR, "unknown error");
+    }
+
+    /**
+     * Waits for all the given units to be done, requeuing the stale ones.
+     * @throws IOException when a unit failed for good
+     */
+    void await(Collection<String> names, long pollMillis) throws IOException, InterruptedException {
+        List<String> remaining = new ArrayList<>(names);
+        while (!remaining.isEmpty()) {
+            requeueStale();
+            for (String name : new ArrayList<>(remaining)) {
+                String failure = failure(name);
+                if (failure != null) {
+                    throw new IOException("Unit " + name + " failed after " + maxAttempts + " attempts : " + failure);
+                }
+                if (isDone(name)) {
+                    remaining.remove(name);
+                }
+            }
+            if (!remaining.isEmpty()) {
+                Thread.sleep(pollMillis);
+            }
+        }
+    }
+
+    boolean stopRequested() {
+        return Files.exists(folder.resolve(STOP));
+    }
+
+    List<Path> list(String state) throws IOException {
+        try (Stream<Path> files = Files.list(folder.resolve(state))) {
+            List<Path> units = new ArrayList<>();
+            files.filter(file -> file.getFileName().toString().contains(UNIT_SUFFIX)).sorted().forEach(units::add);
+            return units;
+        }
+    }
+
+    static String unitName(Path file) {
+        String fileName = file.getFileName().toString();
+        return fileName.substring(0, fileName.indexOf(UNIT_SUFFIX));
+    }
+
+    /**
+     * Written to a temporary file first, so that a unit is never seen half written.
+     */
+    void write(String state, String name, Properties unit) throws IOException {
+        Path target = folder.resolve(state).resolve(name + UNIT_SUFFIX);
+        Path temporary = folder.resolve(state).resolve("." + name + "." + System.nanoTime() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            unit.store(out, null);
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static Properties read(Path file) throws IOException {
+        Properties unit = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            unit.load(in);
+        }
+        return unit;
+    }
+
+}
@@ -0,0 +1,114 @@
+package fr.umrae.matsim_noisemodelling;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs the units of a {@link WorkQueue}, either in a separate JVM started with --worker, or in a thread of the
+ * coordinator. The unit "kind" property selects the computation, the other properties are its parameters.
+ * A unit with a database is computed on a private copy of it, which replaces the database when the worker completes
+ * the unit, so that a worker whose unit was requeued never writes to the database of the next attempt.
+ */
+class Worker {
+
+    interface UnitAction {
+        void run(Properties unit, int threads) throws Exception;
+    }
+
+    static final String KIND = "kind";
+
+    static final Map<String, UnitAction> KINDS = Map.of(
+            RunComputeExposure.TILE_UNIT, RunComputeExposure::runTileUnit
+    );
+
+    static final long HEARTBEAT_MILLIS = 30 * 1000;
+
+    final WorkQueue queue;
+    final String id;
+    final int threads;
+    Map<String, UnitAction> kinds = KINDS;
+
+    Worker(WorkQueue queue, String id, int threads) {
+        this.queue = queue;
+        this.id = id;
+        this.threads = threads;
+    }
+
+    /**
+     * Worker process loop, until the stop file is created in the queue folder.
+     */
+    void runUntilStopped(long pollMillis) throws IOException, InterruptedException {
+        System.out.println("Worker " + id + " waiting for units in " + queue.folder + " (create " + queue.folder.resolve(WorkQueue.STOP) + " to stop it)");
+        runUntil(queue::stopRequested, pollMillis);
+        System.out.println("Worker " + id + " stopped");
+    }
+
+    void runUntil(BooleanSupplier finished, long pollMillis) throws IOException, InterruptedException {
+        while (!finished.getAsBoolean()) {
+            if (!runOne()) {
+                Thread.sleep(pollMillis);
+            }
+        }
+    }
+
+    /**
+     * @return false when no unit was pending
+     */
+    boolean runOne() throws IOException {
+        WorkQueue.Claim claim = queue.claim(id);
+        if (claim == null) {
+            return false;
+        }
+        String kind = claim.unit.getProperty(KIND);
+        System.out.println("Worker " + id + " running unit " + claim.name + " (" + kind + ")");
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor();
+        heartbeat.scheduleAtFixedRate(() -> WorkQueue.heartbeat(claim), HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+        String database = claim.unit.getProperty(WorkQueue.DATABASE);
+        Path privateDatabase = database != null ? Paths.get(database + "." + id) : null;
+        try {
+            UnitAction action = kinds.get(kind);
+            if (action == null) {
+                throw new IllegalArgumentException("Unknown unit kind : " + kind);
+            }
+            Properties unit = claim.unit;
+            if (privateDatabase != null) {
+                Files.copy(Tiling.databaseFile(Paths.get(database)), Tiling.databaseFile(privateDatabase), StandardCopyOption.REPLACE_EXISTING);
+                unit = new Properties();
+                unit.putAll(claim.unit);
+                unit.setProperty(WorkQueue.DATABASE, privateDatabase.toString());
+            }
+            action.run(unit, threads);
+            heartbeat.shutdownNow();
+            boolean completed = queue.complete(claim, () -> {
+                if (privateDatabase != null) {
+                    Files.move(Tiling.databaseFile(privateDatabase), Tiling.databaseFile(Paths.get(database)),
+                            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                }
+            });
+            if (completed) {
+                System.out.println("Worker " + id + " completed unit " + claim.name);
+            }
+        }
+        catch (Exception e) {
+            heartbeat.shutdownNow();
+            System.err.println("Worker " + id + " failed unit " + claim.name + " : " + e.getMessage());
+            queue.fail(claim, e);
+        }
+        finally {
+            if (privateDatabase != null) {
+                Tiling.deleteDatabase(privateDatabase);
+            }
+        }
+        return true;
+    }
+
+}
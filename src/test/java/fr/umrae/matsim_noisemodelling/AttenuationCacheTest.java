@@ -0,0 +1,121 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.Sql;
+import org.h2gis.functions.factory.H2GISFunctions;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AttenuationCacheTest {
+
+    static final Map<String, String> TABLES = Map.of(
+            "BUILDINGS", "*",
+            "RECEIVERS", "*",
+            "MATSIM_ROADS", "PK, THE_GEOM");
+
+    static Map<String, Object> params() {
+        Map<String, Object> params = new HashMap<>();
+        params.put("tableBuilding", "BUILDINGS");
+        params.put("tableReceivers", "RECEIVERS");
+        params.put("tableSources", "MATSIM_ROADS");
+        params.put("confMaxSrcDist", 250);
+        params.put("confReflOrder", 1);
+        params.put("confThreadNumber", 4);
+        return params;
+    }
+
+    static Connection createInputs(String name) throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:h2:mem:" + name, "", "");
+        H2GISFunctions.load(connection);
+        Sql sql = new Sql(connection);
+        sql.execute("CREATE TABLE BUILDINGS (PK INTEGER PRIMARY KEY, THE_GEOM GEOMETRY, HEIGHT DOUBLE)");
+        sql.execute("INSERT INTO BUILDINGS VALUES (1, 'POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0))', 12), " +
+                "(2, 'POLYGON ((20 0, 30 0, 30 10, 20 10, 20 0))', 6)");
+        sql.execute("CREATE TABLE RECEIVERS (PK INTEGER PRIMARY KEY, THE_GEOM GEOMETRY, BUILD_PK INTEGER)");
+        sql.execute("INSERT INTO RECEIVERS VALUES (1, 'POINT Z (5 12 4)', 1), (2, 'POINT Z (25 12 4)', 2)");
+        sql.execute("CREATE TABLE MATSIM_ROADS (PK INTEGER PRIMARY KEY, LINK_ID VARCHAR, THE_GEOM GEOMETRY)");
+        sql.execute("INSERT INTO MATSIM_ROADS VALUES (1, 'a', 'LINESTRING (0 20, 30 20)'), (2, 'b', 'LINESTRING (40 0, 40 30)')");
+        return connection;
+    }
+
+    @Test
+    void testFingerprint() throws SQLException {
+        try (Connection connection = createInputs("fingerprint")) {
+            Sql sql = new Sql(connection);
+            String reference = AttenuationCache.fingerprint(connection, params(), TABLES);
+            assertEquals(reference, AttenuationCache.fingerprint(connection, params(), TABLES));
+
+            // the thread count does not change the attenuation
+            Map<String, Object> threads = params();
+            threads.put("confThreadNumber", 1);
+            assertEquals(reference, AttenuationCache.fingerprint(connection, threads, TABLES));
+
+            // any other parameter does
+            Map<String, Object> changed = params();
+            changed.put("confMaxSrcDist", 500);
+            assertNotEquals(reference, AttenuationCache.fingerprint(connection, changed, TABLES));
+            Map<String, Object> added = params();
+            added.put("confDiffVertical", true);
+            assertNotEquals(reference, AttenuationCache.fingerprint(connection, added, TABLES));
+
+            // and any row or column of the inputs
+            List<String> changes = List.of(
+                    "UPDATE BUILDINGS SET HEIGHT = 13 WHERE PK = 1",
+                    "UPDATE BUILDINGS SET THE_GEOM = 'POLYGON ((0 0, 11 0, 11 10, 0 10, 0 0))' WHERE PK = 1",
+                    "INSERT INTO BUILDINGS VALUES (3, 'POLYGON ((40 40, 50 40, 50 50, 40 40))', 3)",
+                    "ALTER TABLE BUILDINGS ADD COLUMN POP DOUBLE",
+                    "UPDATE RECEIVERS SET THE_GEOM = 'POINT Z (5 12 1.5)' WHERE PK = 1",
+                    "DELETE FROM RECEIVERS WHERE PK = 2",
+                    "UPDATE MATSIM_ROADS SET THE_GEOM = 'LINESTRING (0 21, 30 21)' WHERE PK = 1");
+            for (String change : changes) {
+                try (Connection other = createInputs("fingerprintChange")) {
+                    new Sql(other).execute(change);
+                    assertNotEquals(reference, AttenuationCache.fingerprint(other, params(), TABLES), change);
+                }
+            }
+            // a source column that is not hashed does not change it
+            sql.execute("UPDATE MATSIM_ROADS SET LINK_ID = 'c' WHERE PK = 2");
+            assertEquals(reference, AttenuationCache.fingerprint(connection, params(), TABLES));
+        }
+    }
+
+    @Test
+    void testTableWithoutPrimaryKey() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:noPk", "", "")) {
+            H2GISFunctions.load(connection);
+            Sql sql = new Sql(connection);
+            sql.execute("CREATE TABLE BUILDINGS (THE_GEOM GEOMETRY, HEIGHT DOUBLE)");
+            sql.execute("INSERT INTO BUILDINGS VALUES ('POINT (1 1)', 10), ('POINT (0 0)', 10), ('POINT (0 0)', 5)");
+            String fingerprint = AttenuationCache.tableFingerprint(connection, "BUILDINGS", "*");
+            // same rows stored in another order
+            sql.execute("DROP TABLE BUILDINGS");
+            sql.execute("CREATE TABLE BUILDINGS (THE_GEOM GEOMETRY, HEIGHT DOUBLE)");
+            sql.execute("INSERT INTO BUILDINGS VALUES ('POINT (0 0)', 5), ('POINT (1 1)', 10), ('POINT (0 0)', 10)");
+            assertEquals(fingerprint, AttenuationCache.tableFingerprint(connection, "BUILDINGS", "*"));
+            sql.execute("UPDATE BUILDINGS SET HEIGHT = 6 WHERE HEIGHT = 5");
+            assertNotEquals(fingerprint, AttenuationCache.tableFingerprint(connection, "BUILDINGS", "*"));
+        }
+    }
+
+    @Test
+    void testStore() throws SQLException {
+        try (Connection connection = createInputs("store")) {
+            new Sql(connection).execute("CREATE TABLE ATTENUATION_TRAFFIC (IDRECEIVER INTEGER)");
+            String fingerprint = AttenuationCache.fingerprint(connection, params(), TABLES);
+            assertFalse(AttenuationCache.matches(connection, "ATTENUATION_TRAFFIC", fingerprint));
+            AttenuationCache.store(connection, "ATTENUATION_TRAFFIC", fingerprint);
+            assertTrue(AttenuationCache.matches(connection, "ATTENUATION_TRAFFIC", fingerprint));
+            assertFalse(AttenuationCache.matches(connection, "ATTENUATION_TRAFFIC", "other"));
+            AttenuationCache.invalidate(connection, "ATTENUATION_TRAFFIC");
+            assertFalse(AttenuationCache.matches(connection, "ATTENUATION_TRAFFIC", fingerprint));
+        }
+    }
+
+}
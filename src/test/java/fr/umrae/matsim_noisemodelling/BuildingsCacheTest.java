@@ -0,0 +1,66 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.GroovyRowResult;
+import groovy.sql.Sql;
+import org.h2gis.functions.factory.H2GISFunctions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BuildingsCacheTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void testImportOnceThenLoad() throws SQLException, IOException {
+        Path osmFile = folder.resolve("map.osm.pbf");
+        Files.write(osmFile, new byte[]{1, 2, 3});
+        Map<String, Object> params = Map.of("pathFile", osmFile.toString(), "ignoreBuilding", false);
+        BuildingsCache cache = new BuildingsCache(folder.resolve("cache"));
+        int[] imports = {0};
+        Stage.Action importAction = conn -> {
+            imports[0]++;
+            Sql sql = new Sql(conn);
+            sql.execute("CREATE TABLE BUILDINGS (PK INTEGER PRIMARY KEY, HEIGHT DOUBLE PRECISION, TYPE VARCHAR, THE_GEOM GEOMETRY(POLYGON, 2154))");
+            sql.execute("INSERT INTO BUILDINGS VALUES " +
+                    "(1, 10.5, 'house', 'SRID=2154;POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0))'), " +
+                    "(2, 4, NULL, 'SRID=2154;POLYGON ((20 0, 30 0, 30 10, 20 10, 20 0))')");
+        };
+
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:buildings_a", "", "")) {
+            H2GISFunctions.load(connection);
+            cache.importBuildings(connection, osmFile, 2154, params, "BUILDINGS", importAction);
+        }
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:buildings_b", "", "")) {
+            H2GISFunctions.load(connection);
+            cache.importBuildings(connection, osmFile, 2154, params, "BUILDINGS", importAction);
+            assertEquals(1, imports[0]);
+            Sql sql = new Sql(connection);
+            List<GroovyRowResult> rows = sql.rows("SELECT PK, HEIGHT, TYPE, ST_SRID(THE_GEOM) SRID, ST_Area(THE_GEOM) AREA FROM BUILDINGS ORDER BY PK");
+            assertEquals(2, rows.size());
+            assertEquals(10.5, ((Number) rows.get(0).get("HEIGHT")).doubleValue());
+            assertEquals("house", rows.get(0).get("TYPE"));
+            assertNull(rows.get(1).get("TYPE"));
+            assertEquals(2154, ((Number) rows.get(1).get("SRID")).intValue());
+            assertEquals(100.0, ((Number) rows.get(1).get("AREA")).doubleValue());
+            assertEquals("PK", Tiling.primaryKey(connection, "BUILDINGS"));
+        }
+
+        String key = BuildingsCache.key(osmFile, 2154, params);
+        assertNotEquals(key, BuildingsCache.key(osmFile, 4326, params));
+        assertNotEquals(key, BuildingsCache.key(osmFile, 2154, Map.of("pathFile", osmFile.toString(), "ignoreBuilding", true)));
+        assertEquals(key, BuildingsCache.key(osmFile, 2154, Map.of("pathFile", "elsewhere.osm.pbf", "ignoreBuilding", false)));
+    }
+
+}
@@ -0,0 +1,101 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.GroovyRowResult;
+import groovy.sql.Sql;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExposureSummaryTest {
+
+    @Test
+    void testSketchMatchesSortedLevels() {
+        Random random = new Random(42);
+        ExposureSummary.Sketch sketch = new ExposureSummary.Sketch();
+        double[] levels = new double[10000];
+        double energy = 0;
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = 40 + random.nextDouble() * 40;
+            energy += Math.pow(10, levels[i] / 10);
+            sketch.add(levels[i]);
+        }
+        sketch.add(Double.NaN);
+        Arrays.sort(levels);
+        assertEquals(levels.length, sketch.persons);
+        assertEquals(1, sketch.noLevel);
+        assertEquals(10 * Math.log10(energy / levels.length), sketch.meanLevel(), 1e-9);
+        for (double q : new double[]{0.05, 0.5, 0.95}) {
+            assertEquals(levels[(int) Math.ceil(q * levels.length) - 1], sketch.quantile(q), 0.05 + 1e-9);
+        }
+        long above = Arrays.stream(levels).filter(level -> level >= 65).count();
+        assertEquals((double) above / levels.length, sketch.shareAbove(65), 1e-12);
+
+        ExposureSummary.Sketch unpacked = ExposureSummary.Sketch.unpack(sketch.pack());
+        assertArrayEquals(sketch.counts, unpacked.counts);
+        assertEquals(sketch.persons, unpacked.persons);
+        assertEquals(sketch.meanLevel(), unpacked.meanLevel(), 1e-12);
+    }
+
+    @Test
+    void testGroupsAndMerge(@TempDir Path folder) throws IOException, SQLException {
+        Path persons = folder.resolve("output_persons.csv.gz");
+        try (Writer out = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(persons)), StandardCharsets.UTF_8)) {
+            out.write("person;executed_score;age;sex\n1;0.0;34;f\n2;0.0;38;m\n3;0.0;71;f\n4;0.0;;m\n");
+        }
+        ExposureSummary summary = new ExposureSummary(List.of("sex", "age:10"), new double[]{55, 65});
+        summary.loadPersons(persons);
+        summary.add("1", 50, 50);
+        summary.add("2", 60, Double.NaN);
+        summary.add("3", 70, 65);
+        summary.add("4", 55, 55);
+        summary.add("unknown", 80, 80);
+
+        assertEquals(5, summary.all.sketches[0].persons);
+        ExposureSummary.Group women = summary.group("sex", "f");
+        assertEquals(2, women.sketches[0].persons);
+        assertEquals(0.5, women.sketches[0].shareAbove(65), 1e-12);
+        assertEquals(2, summary.group("age", "30-40").sketches[0].persons);
+        assertEquals(1, summary.group("age", "30-40").sketches[1].noLevel);
+        assertEquals(1, summary.group("age", "").sketches[0].persons);
+
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:summary", "", "")) {
+            summary.write(connection, "EXPOSURE_SUMMARY");
+            Sql sql = new Sql(connection);
+            GroovyRowResult row = sql.firstRow("SELECT * FROM EXPOSURE_SUMMARY WHERE INDICATOR = 'LAEQ' AND GROUP_COLUMN = 'sex' AND GROUP_VALUE = 'm'");
+            assertEquals(2L, ((Number) row.get("PERSONS")).longValue());
+            assertEquals(55.05, ((Number) row.get("P5")).doubleValue(), 1e-9);
+            assertEquals(1.0, ((Number) row.get("ABOVE_55")).doubleValue(), 1e-12);
+            assertEquals(0.0, ((Number) row.get("ABOVE_65")).doubleValue(), 1e-12);
+
+            // the summary of two runs is the summary of all their persons
+            ExposureSummary merged = ExposureSummary.read(connection, "EXPOSURE_SUMMARY", summary.thresholds);
+            merged.merge(ExposureSummary.read(connection, "EXPOSURE_SUMMARY", summary.thresholds));
+            assertEquals(summary.groups.size(), merged.groups.size());
+            assertEquals(10, merged.all.sketches[0].persons);
+            assertEquals(4, merged.group("sex", "f").sketches[0].persons);
+            assertEquals(summary.all.sketches[0].quantile(0.5), merged.all.sketches[0].quantile(0.5), 1e-12);
+        }
+
+        Path json = folder.resolve("results").resolve(ExposureSummary.JSON_FILE);
+        summary.writeJson(json);
+        String content = Files.readString(json);
+        assertTrue(content.contains("\"column\": \"age\""));
+        assertTrue(content.contains("\"histogramStart\": 50.0"));
+    }
+
+}
@@ -0,0 +1,137 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.GroovyRowResult;
+import groovy.sql.Sql;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class InMemoryExposureTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void testPrefixSumsMatchBinLoop() {
+        Random random = new Random(42);
+        ReceiverLevelStore store = new ReceiverLevelStore(900, 0, 86400);
+        // 4 rows per block, the rows span several blocks
+        ReceiverLevelStore blocks = new ReceiverLevelStore(900, 0, 86400, 2);
+        for (int receiver = 0; receiver < 10; receiver++) {
+            int row = store.addRow(receiver * 7);
+            assertEquals(row, blocks.addRow(receiver * 7));
+            for (int bin = 0; bin < store.bins; bin++) {
+                float energy = (float) Math.pow(10, (30 + random.nextDouble() * 50) / 10);
+                store.set(row, bin, energy);
+                blocks.set(row, bin, energy);
+            }
+        }
+        assertEquals(3, blocks.energies.length);
+        double[] starts = new double[200];
+        double[] ends = new double[200];
+        double[] energies = new double[200];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = random.nextDouble() * 100000 - 5000;
+            ends[i] = starts[i] + random.nextDouble() * 50000;
+            energies[i] = store.energy(store.row((i % 10) * 7), starts[i], ends[i]);
+        }
+        store.computePrefixSums();
+        blocks.computePrefixSums();
+        for (int i = 0; i < starts.length; i++) {
+            assertEquals(energies[i], store.energy(store.row((i % 10) * 7), starts[i], ends[i]), energies[i] * 1e-9);
+            assertEquals(energies[i], blocks.energy(blocks.row((i % 10) * 7), starts[i], ends[i]), energies[i] * 1e-9);
+        }
+    }
+
+    @Test
+    void testExposure() throws SQLException, IOException {
+        Path plans = folder.resolve("output_experienced_plans.xml.gz");
+        try (Writer out = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(plans)), StandardCharsets.UTF_8)) {
+            out.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                    "<!DOCTYPE population SYSTEM \"http://www.matsim.org/files/dtd/population_v6.dtd\">\n" +
+                    "<population>\n" +
+                    "\t<person id=\"1\">\n" +
+                    "\t\t<attributes><attribute name=\"age\" class=\"java.lang.Integer\">40</attribute></attributes>\n" +
+                    "\t\t<plan score=\"1.0\" selected=\"yes\">\n" +
+                    "\t\t\t<activity type=\"home\" facility=\"h\" x=\"0\" y=\"0\" end_time=\"12:00:00\" />\n" +
+                    "\t\t\t<leg mode=\"car\" dep_time=\"12:00:00\" trav_time=\"01:00:00\"><route type=\"links\">1 2</route></leg>\n" +
+                    "\t\t\t<activity type=\"work\" facility=\"w\" x=\"0\" y=\"0\" start_time=\"13:00:00\" end_time=\"25:00:00\" />\n" +
+                    "\t\t</plan>\n" +
+                    "\t</person>\n" +
+                    "\t<person id=\"2\">\n" +
+                    "\t\t<plan selected=\"yes\">\n" +
+                    "\t\t\t<activity type=\"other\" facility=\"unknown\" end_time=\"10:00:00\" />\n" +
+                    "\t\t</plan>\n" +
+                    "\t</person>\n" +
+                    "</population>\n");
+        }
+        Connection connection = DriverManager.getConnection("jdbc:h2:mem:exposure", "", "");
+        try {
+            Sql sql = new Sql(connection);
+            sql.execute("CREATE TABLE ACTIVITIES_RECEIVERS (PK INTEGER PRIMARY KEY, FACILITY VARCHAR, THE_GEOM GEOMETRY)");
+            sql.execute("INSERT INTO ACTIVITIES_RECEIVERS VALUES (1, 'h', 'POINT (1 2)'), (2, 'w', 'POINT (3 4)')");
+            // 60 dB at home, 70 dB at work, constant over the day
+            sql.execute("CREATE TABLE RESULT_GEOM AS SELECT R.PK IDRECEIVER, T.X * 3600 TIME, CASE R.PK WHEN 1 THEN 60.0 ELSE 70.0 END LEQA " +
+                    "FROM ACTIVITIES_RECEIVERS R, SYSTEM_RANGE(0, 23) T");
+            ExposureSummary summary = new ExposureSummary(List.of(), new double[]{65});
+            new InMemoryExposure().exec(connection, Map.of(
+                    "experiencedPlansFile", plans.toString(),
+                    "receiversTable", "ACTIVITIES_RECEIVERS",
+                    "outTableName", "EXPOSURES",
+                    "dataTable", "RESULT_GEOM",
+                    "timeBinSize", 3600,
+                    "threads", 2,
+                    "prefixSums", true,
+                    "summary", summary));
+
+            GroovyRowResult first = sql.firstRow("SELECT * FROM EXPOSURES WHERE PERSON_ID = '1'");
+            assertEquals("h", first.get("HOME_FACILITY"));
+            assertEquals("POINT (1 2)", first.get("HOME_GEOM").toString());
+            // 12 hours at home, 11 hours at work until midnight
+            assertEquals(23 * 3600.0, ((Number) first.get("EXPOSED_TIME")).doubleValue(), 1e-9);
+            double expected = 10 * Math.log10((12 * 1e6 + 11 * 1e7) / 23);
+            assertEquals(expected, ((Number) first.get("LAEQ")).doubleValue(), 1e-4);
+            assertEquals(60.0, ((Number) first.get("HOME_LAEQ")).doubleValue(), 1e-4);
+            assertEquals(expected - 60.0, ((Number) first.get("DIFF_LAEQ")).doubleValue(), 1e-4);
+
+            GroovyRowResult second = sql.firstRow("SELECT * FROM EXPOSURES WHERE PERSON_ID = '2'");
+            assertNull(second.get("LAEQ"));
+            assertNull(second.get("HOME_FACILITY"));
+
+            // filled in the same pass, person 2 has no level
+            assertEquals(1, summary.all.sketches[0].persons);
+            assertEquals(1, summary.all.sketches[0].noLevel);
+            assertEquals(1.0, summary.all.sketches[0].shareAbove(65), 1e-12);
+
+            // person 2 is ignored, its facility has no receiver
+            new InMemoryExposure().exec(connection, Map.of(
+                    "experiencedPlansFile", plans.toString(),
+                    "receiversTable", "ACTIVITIES_RECEIVERS",
+                    "outTableName", "EXPOSURES_STUDIED",
+                    "dataTable", "RESULT_GEOM",
+                    "timeBinSize", 3600,
+                    "studied", new VisitedFacilities(0, 86400, "2", "")));
+            assertEquals("1", sql.firstRow("SELECT LISTAGG(PERSON_ID) P FROM EXPOSURES_STUDIED").get("P"));
+        }
+        finally {
+            connection.close();
+        }
+    }
+
+}
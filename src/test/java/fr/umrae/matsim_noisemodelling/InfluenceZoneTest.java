@@ -0,0 +1,99 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.Sql;
+import org.h2gis.functions.factory.H2GISFunctions;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InfluenceZoneTest {
+
+    @Test
+    void testWithinDistance() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:zone", "", "")) {
+            H2GISFunctions.load(connection);
+            Sql sql = new Sql(connection);
+            sql.execute("CREATE TABLE MATSIM_ROADS (PK INTEGER PRIMARY KEY, LINK_ID VARCHAR, THE_GEOM GEOMETRY(LINESTRING, 2154))");
+            sql.execute("INSERT INTO MATSIM_ROADS VALUES (1, 'a', 'SRID=2154;LINESTRING (0 0, 1000 0)')");
+            sql.execute("CREATE TABLE BUILDINGS (PK INTEGER PRIMARY KEY, HEIGHT DOUBLE PRECISION, THE_GEOM GEOMETRY(POLYGON, 2154))");
+            // along the road, across the limit, beyond the limit past the end of the road
+            sql.execute("INSERT INTO BUILDINGS VALUES " +
+                    "(1, 10, 'SRID=2154;POLYGON ((500 10, 510 10, 510 20, 500 20, 500 10))'), " +
+                    "(2, 10, 'SRID=2154;POLYGON ((500 740, 510 740, 510 760, 500 760, 500 740))'), " +
+                    "(3, 10, 'SRID=2154;POLYGON ((1800 0, 1810 0, 1810 10, 1800 10, 1800 0))')");
+
+            InfluenceZone.withinDistance(connection, "BUILDINGS", "MATSIM_ROADS", 750, "BUILDINGS_ZONE");
+            assertEquals(3, ((Number) sql.firstRow("SELECT SUM(PK) N FROM BUILDINGS_ZONE").get("N")).intValue());
+            assertEquals("PK", Tiling.primaryKey(connection, "BUILDINGS_ZONE"));
+            assertEquals(2154, ((Number) sql.firstRow("SELECT ST_SRID(THE_GEOM) N FROM BUILDINGS_ZONE LIMIT 1").get("N")).intValue());
+        }
+    }
+
+    /**
+     * Sources within maxSrcDist of each receiver, and buildings within maxReflDist of the area between the receiver
+     * and the parts of these sources within maxSrcDist, which holds every path, reflected or diffracted, of the receiver.
+     */
+    static Set<String> pathInputs(Connection connection, String receivers, String sources, String buildings) throws SQLException {
+        Set<String> inputs = new TreeSet<>();
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("SELECT R.PK, S.PK, B.PK FROM " + receivers + " R JOIN " + sources + " S" +
+                     " ON ST_DWithin(R.THE_GEOM, S.THE_GEOM, 750) LEFT JOIN " + buildings + " B" +
+                     " ON ST_DWithin(B.THE_GEOM, ST_ConvexHull(ST_Union(R.THE_GEOM, ST_Intersection(S.THE_GEOM, ST_Buffer(R.THE_GEOM, 750)))), 50)")) {
+            while (rs.next()) {
+                inputs.add(rs.getInt(1) + "/" + rs.getInt(2) + "/" + rs.getObject(3));
+            }
+        }
+        return inputs;
+    }
+
+    @Test
+    void testPrunedInputsMatchUnpruned() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:zonepaths", "", "")) {
+            H2GISFunctions.load(connection);
+            Sql sql = new Sql(connection);
+            sql.execute("CREATE TABLE MATSIM_ROADS (PK INTEGER PRIMARY KEY, THE_GEOM GEOMETRY(LINESTRING, 2154))");
+            sql.execute("INSERT INTO MATSIM_ROADS VALUES (1, 'SRID=2154;LINESTRING (0 0, 1500 0)'), (2, 'SRID=2154;LINESTRING (1500 0, 1500 1200)')");
+            sql.execute("CREATE TABLE BUILDINGS (PK INTEGER PRIMARY KEY, THE_GEOM GEOMETRY(POLYGON, 2154))");
+            sql.execute("CREATE TABLE ACTIVITIES_RECEIVERS (PK INTEGER PRIMARY KEY, FACILITY VARCHAR, THE_GEOM GEOMETRY(POINT, 2154))");
+            Random random = new Random(42);
+            for (int i = 1; i <= 300; i++) {
+                double x = -1500 + random.nextDouble() * 4500;
+                double y = -1500 + random.nextDouble() * 4000;
+                sql.execute(String.format(Locale.ROOT, "INSERT INTO BUILDINGS VALUES (%d, 'SRID=2154;POLYGON ((%.1f %.1f, %.1f %.1f, %.1f %.1f, %.1f %.1f, %.1f %.1f))')",
+                        i, x, y, x + 15, y, x + 15, y + 10, x, y + 10, x, y));
+                if (i % 5 == 0) {
+                    sql.execute(String.format(Locale.ROOT, "INSERT INTO ACTIVITIES_RECEIVERS VALUES (%d, 'f%d', 'SRID=2154;POINT (%.1f %.1f)')", i, i, x - 2, y - 2));
+                }
+            }
+            // receiver at the edge of the zone, with a reflecting wall further than maxSrcDist from the road
+            sql.execute("INSERT INTO ACTIVITIES_RECEIVERS VALUES (1001, 'edge', 'SRID=2154;POINT (0 749)')");
+            sql.execute("INSERT INTO BUILDINGS VALUES (1001, 'SRID=2154;POLYGON ((-5 790, 5 790, 5 795, -5 795, -5 790))')");
+            sql.execute("CREATE TABLE ACTIVITIES_RECEIVERS_ALL AS SELECT * FROM ACTIVITIES_RECEIVERS");
+            Set<String> unpruned = pathInputs(connection, "ACTIVITIES_RECEIVERS_ALL", "MATSIM_ROADS", "BUILDINGS");
+
+            // stages of the exposure computation with influence zone
+            InfluenceZone.withinDistance(connection, "BUILDINGS", "MATSIM_ROADS", 750 + 50, "BUILDINGS_ZONE");
+            InfluenceZone.deleteBeyond(connection, "ACTIVITIES_RECEIVERS", "MATSIM_ROADS", 750);
+            InfluenceZone.withinDistance(connection, "MATSIM_ROADS", "ACTIVITIES_RECEIVERS", 750, "MATSIM_ROADS_ZONE");
+            Set<String> pruned = pathInputs(connection, "ACTIVITIES_RECEIVERS", "MATSIM_ROADS_ZONE", "BUILDINGS_ZONE");
+
+            long receivers = InfluenceZone.count(connection, "ACTIVITIES_RECEIVERS");
+            assertTrue(receivers > 0 && receivers < 60);
+            assertTrue(InfluenceZone.count(connection, "BUILDINGS_ZONE") < 300);
+            // the deleted receivers had no source, the others see the same sources and walls
+            assertEquals(unpruned, pruned);
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package fr.umrae.matsim_noisemodelling;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JobServerTest {
+
+    @Test
+    void testJobClassesAreIsolated() throws Exception {
+        try (JobServer.JobClassLoader loader = new JobServer.JobClassLoader(JobServerTest.class.getClassLoader())) {
+            Class<?> maps = Class.forName(RunComputeMaps.class.getName(), true, loader);
+            assertNotSame(RunComputeMaps.class, maps);
+            // another runtime package, its package-private fields are not accessible as such
+            Field contouringEngine = maps.getDeclaredField("contouringEngine");
+            contouringEngine.setAccessible(true);
+            contouringEngine.set(null, "memory");
+            assertEquals("isosurface", RunComputeMaps.contouringEngine);
+            // the libraries are shared
+            assertSame(groovy.sql.Sql.class, Class.forName(groovy.sql.Sql.class.getName(), true, loader));
+        }
+    }
+
+    @Test
+    void testSubmitJob(@TempDir Path folder) throws Exception {
+        JobServer server = new JobServer(folder.resolve("jobs"), 2);
+        server.start(0);
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            String base = "http://localhost:" + server.port();
+            String properties = "DB_NAME=" + folder.resolve("db").toUri() + "\n" +
+                    "RESULTS_DIR=" + folder.resolve("results").toString().replace("\\", "/") + "\n" +
+                    "OSM_FILE_PATH=" + folder.resolve("missing.osm.pbf").toString().replace("\\", "/") + "\n";
+            HttpResponse<String> submitted = client.send(HttpRequest.newBuilder(URI.create(base + "/jobs"))
+                    .POST(HttpRequest.BodyPublishers.ofString(properties)).build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(202, submitted.statusCode());
+            assertTrue(submitted.body().contains("\"id\":1"));
+
+            JobServer.Job job = server.jobs.get(1);
+            for (int i = 0; i < 600 && (job.state == JobServer.State.QUEUED || job.state == JobServer.State.RUNNING); i++) {
+                Thread.sleep(100);
+            }
+            // RunCli stops at the missing OSM file, without running a pipeline
+            assertEquals(JobServer.State.FAILED, job.state);
+            HttpResponse<String> status = client.send(HttpRequest.newBuilder(URI.create(base + "/jobs/1")).build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, status.statusCode());
+            assertTrue(status.body().contains("\"state\":\"FAILED\""));
+            HttpResponse<String> log = client.send(HttpRequest.newBuilder(URI.create(base + "/jobs/1/log")).build(), HttpResponse.BodyHandlers.ofString());
+            assertTrue(log.body().contains("OSM file does not exist"));
+            assertTrue(Files.exists(folder.resolve("jobs").resolve("job_1").resolve("job.properties")));
+
+            HttpResponse<String> missing = client.send(HttpRequest.newBuilder(URI.create(base + "/jobs/7")).build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(404, missing.statusCode());
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+}
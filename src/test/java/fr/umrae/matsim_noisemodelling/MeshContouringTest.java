@@ -0,0 +1,86 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.GroovyRowResult;
+import groovy.sql.Sql;
+import org.h2gis.functions.factory.H2GISFunctions;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MeshContouringTest {
+
+    static Sql createInputs(Connection connection) throws SQLException {
+        H2GISFunctions.load(connection);
+        Sql sql = new Sql(connection);
+        sql.execute("CREATE TABLE ISO_RECEIVERS (PK INTEGER PRIMARY KEY, THE_GEOM GEOMETRY)");
+        sql.execute("INSERT INTO ISO_RECEIVERS VALUES (1, 'POINT (0 0)'), (2, 'POINT (100 0)'), (3, 'POINT (100 100)'), (4, 'POINT (0 100)')");
+        sql.execute("CREATE TABLE TRIANGLES (PK INTEGER PRIMARY KEY, PK_1 INTEGER, PK_2 INTEGER, PK_3 INTEGER, CELL_ID INTEGER)");
+        sql.execute("INSERT INTO TRIANGLES VALUES (1, 1, 2, 3, 0), (2, 1, 3, 4, 0)");
+        sql.execute("CREATE TABLE RESULT_ISO_MAP (IDRECEIVER INTEGER, THE_GEOM GEOMETRY, TIME INTEGER, LEQA DOUBLE PRECISION)");
+        // from 30 dB on the left side to 50 dB on the right side, then 37 dB everywhere
+        sql.execute("INSERT INTO RESULT_ISO_MAP (IDRECEIVER, TIME, LEQA) VALUES (1, 0, 30), (2, 0, 50), (3, 0, 50), (4, 0, 30), " +
+                "(1, 900, 37), (2, 900, 37), (3, 900, 37), (4, 900, 37)");
+        sql.execute("UPDATE RESULT_ISO_MAP M SET THE_GEOM = (SELECT R.THE_GEOM FROM ISO_RECEIVERS R WHERE R.PK = M.IDRECEIVER)");
+        return sql;
+    }
+
+    static void createContouringTable(Sql sql, String table) throws SQLException {
+        sql.execute("CREATE TABLE " + table + " (PK INTEGER PRIMARY KEY AUTO_INCREMENT, CELL_ID INTEGER, " +
+                "THE_GEOM GEOMETRY, ISOLVL INTEGER, ISOLABEL VARCHAR, TIME INTEGER, TIME_DATE TIME)");
+    }
+
+    @Test
+    void testContourEveryTimeBin() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:contouring", "", "")) {
+            Sql sql = createInputs(connection);
+            createContouringTable(sql, "TIME_CONTOURING_NOISE_MAP");
+
+            new MeshContouring(MeshContouring.ISO_LEVELS, 2).run(connection, "ISO_RECEIVERS", "TRIANGLES", "RESULT_ISO_MAP",
+                    "TIME_CONTOURING_NOISE_MAP", 900, 0, 1800);
+
+            List<GroovyRowResult> rows = sql.rows("SELECT TIME, ISOLVL, ISOLABEL, ST_Area(THE_GEOM) AREA, ST_XMin(THE_GEOM) XMIN" +
+                    " FROM TIME_CONTOURING_NOISE_MAP ORDER BY PK");
+            assertEquals(5, rows.size());
+            for (int k = 0; k < 4; k++) {
+                assertEquals(0, ((Number) rows.get(k).get("TIME")).intValue());
+                assertEquals(k, ((Number) rows.get(k).get("ISOLVL")).intValue());
+                assertEquals(2500, ((Number) rows.get(k).get("AREA")).doubleValue(), 1e-6);
+                assertEquals(k * 25, ((Number) rows.get(k).get("XMIN")).doubleValue(), 1e-6);
+            }
+            assertEquals("< 35", rows.get(0).get("ISOLABEL"));
+            assertEquals("45-50", rows.get(3).get("ISOLABEL"));
+            assertEquals(900, ((Number) rows.get(4).get("TIME")).intValue());
+            assertEquals(1, ((Number) rows.get(4).get("ISOLVL")).intValue());
+            assertEquals(10000, ((Number) rows.get(4).get("AREA")).doubleValue(), 1e-6);
+        }
+    }
+
+    @Test
+    void testWideLayout() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:contouringWide", "", "")) {
+            Sql sql = createInputs(connection);
+            // a receiver without level at a bin
+            sql.execute("DELETE FROM RESULT_ISO_MAP WHERE IDRECEIVER = 4 AND TIME = 900");
+            createContouringTable(sql, "LONG_CONTOURS");
+            new MeshContouring(MeshContouring.ISO_LEVELS, 2).run(connection, "ISO_RECEIVERS", "TRIANGLES", "RESULT_ISO_MAP",
+                    "LONG_CONTOURS", 900, 0, 1800);
+
+            // read from RESULT_ISO_MAP_WIDE, the same contours
+            WideLayout.convert(connection, "RESULT_ISO_MAP");
+            createContouringTable(sql, "WIDE_CONTOURS");
+            new MeshContouring(MeshContouring.ISO_LEVELS, 2).run(connection, "ISO_RECEIVERS", "TRIANGLES", "RESULT_ISO_MAP",
+                    "WIDE_CONTOURS", 900, 0, 1800);
+
+            String query = "SELECT TIME, ISOLVL, ISOLABEL, CELL_ID, ST_AsText(THE_GEOM) WKT FROM %s ORDER BY PK";
+            List<GroovyRowResult> contours = sql.rows(String.format(query, "LONG_CONTOURS"));
+            assertEquals(5, contours.size());
+            assertEquals(contours, sql.rows(String.format(query, "WIDE_CONTOURS")));
+        }
+    }
+
+}
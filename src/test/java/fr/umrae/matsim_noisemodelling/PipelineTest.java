@@ -0,0 +1,220 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.json.JsonSlurper;
+import groovy.sql.Sql;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PipelineTest {
+
+    Connection connection;
+    List<String> executed = new ArrayList<>();
+
+    @BeforeEach
+    void setup() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:h2:mem:pipeline", "", "");
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        new Sql(connection).execute("DROP ALL OBJECTS");
+        connection.close();
+    }
+
+    Pipeline pipeline(boolean resume, int sourceParam) {
+        Pipeline pipeline = new Pipeline(connection, resume);
+        pipeline.add(new Stage("source", conn -> {
+            executed.add("source");
+            new Sql(conn).execute("DROP TABLE IF EXISTS A; CREATE TABLE A AS SELECT X FROM SYSTEM_RANGE(1, 10)");
+        })).outputs("A").param("value", sourceParam);
+        pipeline.add(new Stage("derived", conn -> {
+            executed.add("derived");
+            new Sql(conn).execute("DROP TABLE IF EXISTS B; CREATE TABLE B AS SELECT X * 2 AS Y FROM A");
+        })).inputs("A").outputs("B");
+        pipeline.add(new Stage("export", conn -> executed.add("export"))).inputs("B");
+        return pipeline;
+    }
+
+    @Test
+    void testResumeSkipsUpToDateStages() throws SQLException, IOException {
+        pipeline(false, 1).run();
+        assertEquals(List.of("source", "derived", "export"), executed);
+
+        executed.clear();
+        pipeline(true, 1).run();
+        assertEquals(List.of("export"), executed);
+
+        // a dropped output makes its stage incomplete
+        executed.clear();
+        new Sql(connection).execute("DROP TABLE B");
+        pipeline(true, 1).run();
+        assertEquals(List.of("derived", "export"), executed);
+
+        // a changed parameter reruns the stage and everything downstream
+        executed.clear();
+        pipeline(true, 2).run();
+        assertEquals(List.of("source", "derived", "export"), executed);
+    }
+
+    static List<Map<?, ?>> stages(Path metricsFile) throws IOException {
+        Map<?, ?> report = (Map<?, ?>) new JsonSlurper().parseText(Files.readString(metricsFile));
+        assertEquals(Runtime.getRuntime().availableProcessors(), ((Number) report.get("availableProcessors")).intValue());
+        assertNotNull(report.get("startedAt"));
+        List<Map<?, ?>> stages = new ArrayList<>();
+        for (Object stage : (List<?>) report.get("stages")) {
+            stages.add((Map<?, ?>) stage);
+        }
+        return stages;
+    }
+
+    @Test
+    void testRunMetrics(@TempDir Path folder) throws SQLException, IOException {
+        Path metricsFile = folder.resolve("run_metrics.json");
+        Pipeline first = pipeline(false, 1);
+        first.metricsFile = metricsFile;
+        first.run();
+        List<Map<?, ?>> stages = stages(metricsFile);
+        assertEquals(3, stages.size());
+        for (Map<?, ?> stage : stages) {
+            assertEquals("completed", stage.get("status"));
+            assertEquals(List.of("stage", "status", "startedAt", "wallTimeMs", "cpuTimeMs", "peakHeapBytes", "gcTimeMs",
+                    "gcCount", "overlapped", "inputRows", "outputRows"), new ArrayList<>(stage.keySet()));
+            assertTrue(((Number) stage.get("wallTimeMs")).longValue() >= 0);
+            assertTrue(((Number) stage.get("peakHeapBytes")).longValue() > 0);
+        }
+        assertEquals("source", stages.get(0).get("stage"));
+        assertEquals(Map.of(), stages.get(0).get("inputRows"));
+        assertEquals(Map.of("A", 10), stages.get(0).get("outputRows"));
+        assertEquals(Map.of("A", 10), stages.get(1).get("inputRows"));
+        assertEquals(Map.of("B", 10), stages.get(1).get("outputRows"));
+        assertEquals(Map.of("B", 10), stages.get(2).get("inputRows"));
+
+        // resumed : the up to date stages are skipped, export has no output to check and runs again
+        Pipeline resumed = pipeline(true, 1);
+        resumed.metricsFile = metricsFile;
+        resumed.run();
+        stages = stages(metricsFile);
+        assertEquals(List.of("skipped", "skipped", "completed"), stages.stream().map(stage -> stage.get("status")).collect(Collectors.toList()));
+
+        // a failed stage is reported before the error is thrown, a missing table counts -1 rows
+        new Sql(connection).execute("DROP TABLE A");
+        Pipeline failing = new Pipeline(connection, false);
+        failing.metricsFile = metricsFile;
+        failing.add(new Stage("fail", conn -> {
+            throw new SQLException("failed stage");
+        })).inputs("A").outputs("B");
+        assertThrows(SQLException.class, failing::run);
+        stages = stages(metricsFile);
+        assertEquals(1, stages.size());
+        assertEquals("failed", stages.get(0).get("status"));
+        assertEquals(Map.of("A", -1), stages.get(0).get("inputRows"));
+        assertEquals(Map.of(), stages.get(0).get("outputRows"));
+    }
+
+    @Test
+    void testDisabledStageIsNotTheProducer() throws SQLException, IOException {
+        for (int value : new int[]{1, 1, 2}) {
+            Pipeline pipeline = new Pipeline(connection, true);
+            pipeline.add(new Stage("source", conn -> {
+                executed.add("source");
+                new Sql(conn).execute("DROP TABLE IF EXISTS A; CREATE TABLE A AS SELECT X FROM SYSTEM_RANGE(1, 10)");
+            })).outputs("A").param("value", value);
+            // rewrites A in place, like the quantize stages, when enabled
+            pipeline.add(new Stage("rewrite", conn -> executed.add("rewrite"))).inputs("A").outputs("A").enabled(false);
+            pipeline.add(new Stage("derived", conn -> {
+                executed.add("derived");
+                new Sql(conn).execute("DROP TABLE IF EXISTS B; CREATE TABLE B AS SELECT X * 2 AS Y FROM A");
+            })).inputs("A").outputs("B");
+            pipeline.run();
+        }
+        // the changed source reruns derived
+        assertEquals(List.of("source", "derived", "source", "derived"), executed);
+    }
+
+    @Test
+    void testStagesMustBeDeclaredInOrder() {
+        Pipeline pipeline = new Pipeline(connection, false);
+        pipeline.add(new Stage("reader", conn -> { })).inputs("A");
+        pipeline.add(new Stage("writer", conn -> { })).outputs("A");
+        assertThrows(IllegalStateException.class, pipeline::run);
+    }
+
+    @Test
+    void testIndependentStagesRunConcurrently() throws SQLException, IOException {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        // each import only returns once the other one has started
+        CountDownLatch started = new CountDownLatch(2);
+        Pipeline pipeline = new Pipeline(connection, false);
+        pipeline.stageThreads = 2;
+        pipeline.connectionFactory = () -> DriverManager.getConnection("jdbc:h2:mem:pipeline", "", "");
+        for (String table : List.of("A", "B")) {
+            pipeline.add(new Stage("import_" + table, conn -> {
+                started.countDown();
+                try {
+                    assertTrue(started.await(10, TimeUnit.SECONDS));
+                }
+                catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                new Sql(conn).execute("CREATE TABLE " + table + " AS SELECT X FROM SYSTEM_RANGE(1, 10)");
+                order.add("import_" + table);
+            })).outputs(table);
+        }
+        pipeline.add(new Stage("join", conn -> {
+            new Sql(conn).execute("CREATE TABLE C AS SELECT A.X FROM A JOIN B ON A.X = B.X");
+            order.add("join");
+        })).inputs("A", "B").outputs("C");
+        pipeline.run();
+
+        assertEquals(3, order.size());
+        assertEquals("join", order.get(2));
+        assertEquals(10, ((Number) new Sql(connection).firstRow("SELECT COUNT(*) N FROM C").get("N")).intValue());
+
+        // the process wide measures of the imports cannot be split between them
+        for (StageMetrics metrics : pipeline.metrics) {
+            boolean overlapped = metrics.stage.startsWith("import_");
+            assertEquals(overlapped, metrics.overlapped, metrics.stage);
+            assertEquals(overlapped, metrics.cpuTimeMs == null, metrics.stage);
+            assertEquals(overlapped, metrics.peakHeapBytes == null, metrics.stage);
+            assertEquals(overlapped, metrics.gcTimeMs == null, metrics.stage);
+        }
+    }
+
+    @Test
+    void testDependencies() {
+        Stage clean = new Stage("clean", conn -> { });
+        Stage writeA = new Stage("writeA", conn -> { }).outputs("A");
+        Stage writeB = new Stage("writeB", conn -> { }).outputs("B");
+        Stage readA = new Stage("readA", conn -> { }).inputs("A");
+        Stage rewriteA = new Stage("rewriteA", conn -> { }).inputs("B").outputs("A");
+        Map<Stage, Set<Stage>> dependencies = Pipeline.dependencies(List.of(clean, writeA, writeB, readA, rewriteA));
+        assertEquals(Set.of(clean), dependencies.get(writeA));
+        assertEquals(Set.of(clean), dependencies.get(writeB));
+        assertEquals(Set.of(clean, writeA), dependencies.get(readA));
+        // written after writeA, read after readA
+        assertEquals(Set.of(clean, writeA, writeB, readA), dependencies.get(rewriteA));
+    }
+
+}
@@ -0,0 +1,81 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.GroovyRowResult;
+import groovy.sql.Sql;
+import org.h2gis.functions.factory.H2GISFunctions;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QuantizedLevelsTest {
+
+    @Test
+    void testPackRoundTrip() {
+        byte[] packed = QuantizedLevels.pack(-30.004, 91.236, null, 1000.0);
+        assertEquals(-30.0, QuantizedLevels.level(packed, 0), 1e-9);
+        assertEquals(91.24, QuantizedLevels.level(packed, 1), 1e-9);
+        assertNull(QuantizedLevels.level(packed, 2));
+        assertEquals(0, QuantizedLevels.value(packed, 2));
+        // clamped to the int16 range
+        assertEquals(327.67, QuantizedLevels.level(packed, 3), 1e-9);
+    }
+
+    @Test
+    void testNoiseMapFromQuantizedTables() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:quantized", "", "")) {
+            H2GISFunctions.load(connection);
+            Sql sql = new Sql(connection);
+            sql.execute("CREATE TABLE MATSIM_ROADS (PK INTEGER PRIMARY KEY, LINK_ID VARCHAR, THE_GEOM GEOMETRY)");
+            sql.execute("INSERT INTO MATSIM_ROADS VALUES (1, 'a', 'LINESTRING(0 0, 10 0)'), (2, 'b', 'LINESTRING(0 10, 10 10)')");
+            sql.execute("CREATE TABLE MATSIM_ROADS_LW (PK INTEGER PRIMARY KEY AUTO_INCREMENT, LINK_ID VARCHAR, " +
+                    "LW63 DOUBLE, LW125 DOUBLE, LW250 DOUBLE, LW500 DOUBLE, LW1000 DOUBLE, LW2000 DOUBLE, LW4000 DOUBLE, LW8000 DOUBLE, TIME INTEGER)");
+            sql.execute("INSERT INTO MATSIM_ROADS_LW (LINK_ID, LW63, LW125, LW250, LW500, LW1000, LW2000, LW4000, LW8000, TIME) VALUES " +
+                    "('a', 90, 90, 90, 90, 90, 90, 90, 90, 0), ('b', 80, 80, 80, 80, 80, 80, 80, 80, 0)");
+            sql.execute("CREATE INDEX ON MATSIM_ROADS_LW (TIME)");
+            sql.execute("CREATE TABLE ATTENUATION (IDRECEIVER INTEGER, IDSOURCE INTEGER, THE_GEOM GEOMETRY, " +
+                    "HZ63 DOUBLE, HZ125 DOUBLE, HZ250 DOUBLE, HZ500 DOUBLE, HZ1000 DOUBLE, HZ2000 DOUBLE, HZ4000 DOUBLE, HZ8000 DOUBLE)");
+            sql.execute("INSERT INTO ATTENUATION VALUES " +
+                    "(10, 1, 'POINT(5 5)', -30, -30, -30, -30, -30, -30, -30, -30), " +
+                    "(10, 2, 'POINT(5 5)', -20, -20, -20, -20, -20, -20, -20, -20)");
+            sql.execute("CREATE TABLE RECEIVERS (PK INTEGER PRIMARY KEY, THE_GEOM GEOMETRY)");
+            sql.execute("INSERT INTO RECEIVERS VALUES (10, 'POINT(5 5)')");
+
+            QuantizedLevels.encode(connection, "MATSIM_ROADS_LW");
+            QuantizedLevels.encode(connection, "ATTENUATION");
+            assertTrue(RunCli.viewExists(connection, "ATTENUATION"));
+            assertEquals("PK", Tiling.primaryKey(connection, "MATSIM_ROADS_LW_CDB"));
+            assertTrue(RunCli.indexExists(connection, "MATSIM_ROADS_LW_CDB", "TIME"));
+            GroovyRowResult lw = sql.firstRow("SELECT * FROM MATSIM_ROADS_LW WHERE LINK_ID = 'b'");
+            assertEquals(80.0, ((Number) lw.get("LW500")).doubleValue());
+            assertEquals(0, ((Number) lw.get("TIME")).intValue());
+
+            new SparseNoiseMap().exec(connection, Map.of(
+                    "matsimRoads", "MATSIM_ROADS",
+                    "matsimRoadsLw", "MATSIM_ROADS_LW",
+                    "attenuationTable", "ATTENUATION",
+                    "receiversTable", "RECEIVERS",
+                    "outTableName", "RESULT_GEOM",
+                    "timeBinSize", 900,
+                    "timeBinMin", 0,
+                    "timeBinMax", 900,
+                    "threads", 1
+            ));
+            QuantizedLevels.encode(connection, "RESULT_GEOM");
+            List<GroovyRowResult> rows = sql.rows("SELECT IDRECEIVER, HZ1000, LEQA FROM RESULT_GEOM");
+            assertEquals(1, rows.size());
+            double hz1000 = 10 * Math.log10(Math.pow(10, 6) + Math.pow(10, 6));
+            assertEquals(hz1000, ((Number) rows.get(0).get("HZ1000")).doubleValue(), 0.005);
+
+            ReceiverLevelStore store = ReceiverLevelStore.load(connection, "RESULT_GEOM", 900, 0, 900, false);
+            double leqa = ((Number) rows.get(0).get("LEQA")).doubleValue();
+            assertEquals(Math.pow(10, leqa / 10) * 900, store.energy(store.row(10), 0, 900), Math.pow(10, leqa / 10) * 900 * 1e-5);
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.Sql;
+import org.h2gis.functions.factory.H2GISFunctions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ReceiverConsolidationTest {
+
+    Connection connection;
+
+    @BeforeEach
+    void setup() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:h2:mem:consolidation", "", "");
+        H2GISFunctions.load(connection);
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        new Sql(connection).execute("DROP ALL OBJECTS");
+        connection.close();
+    }
+
+    static int count(Sql sql, String query) throws SQLException {
+        return ((Number) sql.firstRow(query).get("N")).intValue();
+    }
+
+    @Test
+    void testConsolidateAndExpand() throws SQLException {
+        Sql sql = new Sql(connection);
+        sql.execute("CREATE TABLE ACTIVITIES_RECEIVERS (PK INTEGER PRIMARY KEY, FACILITY VARCHAR, THE_GEOM GEOMETRY(POINTZ, 2154))");
+        // 1 and 2 at the same point, 3 within 1.5 m of 1, 4 above 1, 5 across a cell border from 6, 7 alone
+        sql.execute("INSERT INTO ACTIVITIES_RECEIVERS VALUES " +
+                "(1, 'a', 'SRID=2154;POINT Z (10 10 4)'), (2, 'b', 'SRID=2154;POINT Z (10 10 4)'), (3, 'c', 'SRID=2154;POINT Z (11 11 4)'), " +
+                "(4, 'd', 'SRID=2154;POINT Z (10 10 10)'), (5, 'e', 'SRID=2154;POINT Z (19.9 10 4)'), (6, 'f', 'SRID=2154;POINT Z (20.1 10 4)'), " +
+                "(7, 'g', 'SRID=2154;POINT Z (100 100 4)')");
+
+        new ReceiverConsolidation(2).consolidate(connection, "ACTIVITIES_RECEIVERS", "UNIQUE_RECEIVERS", "RECEIVERS_MAPPING");
+        assertEquals(4, count(sql, "SELECT COUNT(*) N FROM UNIQUE_RECEIVERS"));
+        assertEquals(1, count(sql, "SELECT IDUNIQUE N FROM RECEIVERS_MAPPING WHERE IDRECEIVER = 3"));
+        assertEquals(4, count(sql, "SELECT IDUNIQUE N FROM RECEIVERS_MAPPING WHERE IDRECEIVER = 4"));
+        assertEquals(5, count(sql, "SELECT IDUNIQUE N FROM RECEIVERS_MAPPING WHERE IDRECEIVER = 6"));
+        assertEquals(2154, count(sql, "SELECT ST_SRID(THE_GEOM) N FROM UNIQUE_RECEIVERS LIMIT 1"));
+
+        sql.execute("CREATE TABLE RESULT_GEOM_UNIQUE (PK INTEGER PRIMARY KEY AUTO_INCREMENT, IDRECEIVER INTEGER, THE_GEOM GEOMETRY, TIME INTEGER, LEQA DOUBLE PRECISION)");
+        sql.execute("INSERT INTO RESULT_GEOM_UNIQUE (IDRECEIVER, TIME, LEQA) SELECT PK, T.X * 900, PK * 10 + T.X FROM UNIQUE_RECEIVERS, SYSTEM_RANGE(0, 1) T");
+        ReceiverConsolidation.expand(connection, "RESULT_GEOM_UNIQUE", "RECEIVERS_MAPPING", "ACTIVITIES_RECEIVERS", "RESULT_GEOM");
+        assertEquals(14, count(sql, "SELECT COUNT(*) N FROM RESULT_GEOM"));
+        assertEquals(11, count(sql, "SELECT LEQA N FROM RESULT_GEOM WHERE IDRECEIVER = 3 AND TIME = 900"));
+        // geometry of the activity receiver, not of its unique receiver
+        assertEquals(11, count(sql, "SELECT ST_X(THE_GEOM) N FROM RESULT_GEOM WHERE IDRECEIVER = 3 AND TIME = 0"));
+        assertEquals(14, count(sql, "SELECT COUNT(DISTINCT PK) N FROM RESULT_GEOM"));
+    }
+
+}
@@ -0,0 +1,134 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.GroovyRowResult;
+import groovy.sql.Sql;
+import org.h2.Driver;
+import org.h2gis.functions.factory.H2GISFunctions;
+import org.h2gis.utilities.wrapper.ConnectionWrapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RunComputeMapsTest {
+
+    @TempDir
+    Path folder;
+
+    String databasePath;
+    Connection connection;
+    Sql sql;
+    int[] timeBins;
+    int contouringThreads;
+
+    @BeforeEach
+    void setup() throws SQLException {
+        timeBins = new int[]{RunComputeMaps.timeBinSize, RunComputeMaps.timeBinMin, RunComputeMaps.timeBinMax};
+        contouringThreads = RunComputeMaps.contouringThreads;
+        RunComputeMaps.timeBinSize = 900;
+        RunComputeMaps.timeBinMin = 0;
+        RunComputeMaps.timeBinMax = 4 * 900;
+        RunComputeMaps.contouringThreads = 3;
+
+        // the bins of the parallel contouring open their own connections
+        databasePath = "jdbc:h2:" + folder.resolve("maps").toAbsolutePath() + ";AUTO_SERVER=TRUE";
+        Driver.load();
+        connection = DriverManager.getConnection(databasePath, "", "");
+        H2GISFunctions.load(connection);
+        connection = new ConnectionWrapper(connection);
+        sql = new Sql(connection);
+
+        // a 3 x 3 grid of receivers, two triangles per cell
+        sql.execute("CREATE TABLE ISO_RECEIVERS AS SELECT CAST((Y.X - 1) * 3 + X.X AS INTEGER) PK, " +
+                "ST_MakePoint(X.X * 10.0, Y.X * 10.0) THE_GEOM FROM SYSTEM_RANGE(1, 3) X, SYSTEM_RANGE(1, 3) Y");
+        sql.execute("CREATE TABLE TRIANGLES (PK INTEGER PRIMARY KEY AUTO_INCREMENT, THE_GEOM GEOMETRY, " +
+                "PK_1 INTEGER, PK_2 INTEGER, PK_3 INTEGER, CELL_ID INTEGER)");
+        sql.execute("INSERT INTO TRIANGLES (THE_GEOM, PK_1, PK_2, PK_3, CELL_ID) " +
+                "SELECT ST_MakePolygon(ST_MakeLine(A.THE_GEOM, B.THE_GEOM, C.THE_GEOM, A.THE_GEOM)), A.PK, B.PK, C.PK, 0 " +
+                "FROM ISO_RECEIVERS A, ISO_RECEIVERS B, ISO_RECEIVERS C WHERE MOD(A.PK, 3) <> 0 AND A.PK <= 6 " +
+                "AND ((B.PK = A.PK + 1 AND C.PK = A.PK + 3) OR (B.PK = A.PK + 4 AND C.PK = A.PK + 3))");
+        sql.execute("CREATE TABLE RESULT_ISO_MAP AS SELECT R.PK IDRECEIVER, R.THE_GEOM, " +
+                "40.0 HZ63, 40.0 HZ125, 40.0 HZ250, 40.0 HZ500, 40.0 HZ1000, 40.0 HZ2000, 40.0 HZ4000, 40.0 HZ8000, " +
+                "CAST(T.X * 900 AS INTEGER) TIME, 40.0 + R.PK * 2 + T.X * 3 LEQA, 45.0 + R.PK * 2 LEQ " +
+                "FROM ISO_RECEIVERS R, SYSTEM_RANGE(0, 3) T");
+        RunComputeMaps.createTimeClusteredTable(sql, "RESULT_ISO_MAP", "RESULT_ISO_MAP_BY_TIME");
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        RunComputeMaps.timeBinSize = timeBins[0];
+        RunComputeMaps.timeBinMin = timeBins[1];
+        RunComputeMaps.timeBinMax = timeBins[2];
+        RunComputeMaps.contouringThreads = contouringThreads;
+        sql.execute("DROP ALL OBJECTS");
+        connection.close();
+    }
+
+    void createContouringTable(String table) throws SQLException {
+        sql.execute("CREATE TABLE " + table + " (PK INTEGER PRIMARY KEY AUTO_INCREMENT, CELL_ID INTEGER, THE_GEOM GEOMETRY, " +
+                "ISOLVL INTEGER, ISOLABEL VARCHAR, TIME INTEGER, TIME_DATE TIME)");
+    }
+
+    List<GroovyRowResult> contours(String table) throws SQLException {
+        return sql.rows("SELECT TIME, TIME_DATE, ISOLVL, ISOLABEL, CELL_ID, ST_AsText(THE_GEOM) WKT FROM " + table +
+                " ORDER BY TIME, ISOLVL, WKT");
+    }
+
+    long contouringSchemas() throws SQLException {
+        return ((Number) sql.firstRow("SELECT COUNT(*) N FROM INFORMATION_SCHEMA.SCHEMATA WHERE SCHEMA_NAME LIKE 'CONTOURING_%'")
+                .get("N")).longValue();
+    }
+
+    @Test
+    void testParallelContouringMatchesSequential() throws SQLException {
+        createContouringTable("SEQUENTIAL");
+        RunComputeMaps.contourTimeBins(connection, "RESULT_ISO_MAP_BY_TIME", "SEQUENTIAL");
+        createContouringTable("PARALLEL");
+        RunComputeMaps.contourTimeBinsParallel(connection, databasePath, "RESULT_ISO_MAP_BY_TIME", "PARALLEL");
+
+        List<GroovyRowResult> sequential = contours("SEQUENTIAL");
+        assertFalse(sequential.isEmpty());
+        assertEquals(4, ((Number) sql.firstRow("SELECT COUNT(DISTINCT TIME) N FROM PARALLEL").get("N")).intValue());
+        assertEquals(sequential, contours("PARALLEL"));
+        // same insertion order too, by ascending time
+        assertEquals(sql.rows("SELECT TIME FROM SEQUENTIAL ORDER BY PK"), sql.rows("SELECT TIME FROM PARALLEL ORDER BY PK"));
+
+        // TRIANGLES was read from PUBLIC, the contours were written to the bin schemas which are all dropped
+        assertEquals(0, contouringSchemas());
+        assertFalse(RunCli.tableExists(connection, "CONTOURING_NOISE_MAP"));
+    }
+
+    @Test
+    void testFailedBinsDropTheirSchema() throws SQLException {
+        createContouringTable("PARALLEL");
+        sql.execute("ALTER TABLE TRIANGLES RENAME TO TRIANGLES_MISSING");
+        assertThrows(SQLException.class, () ->
+                RunComputeMaps.contourTimeBinsParallel(connection, databasePath, "RESULT_ISO_MAP_BY_TIME", "PARALLEL"));
+        assertEquals(0, contouringSchemas());
+    }
+
+    @Test
+    void testTimeClusteredTableFromWideLayout() throws SQLException {
+        // a receiver without level at a bin
+        sql.execute("DELETE FROM RESULT_ISO_MAP WHERE IDRECEIVER = 5 AND TIME = 900");
+        RunComputeMaps.createTimeClusteredTable(sql, "RESULT_ISO_MAP", "RESULT_ISO_MAP_BY_TIME");
+        String query = "SELECT ROW_KEY, IDRECEIVER, ST_AsText(THE_GEOM) WKT, HZ63, HZ125, HZ250, HZ500, HZ1000, HZ2000, HZ4000, HZ8000, " +
+                "TIME, LAEQ, LEQ FROM RESULT_ISO_MAP_BY_TIME ORDER BY ROW_KEY";
+        List<GroovyRowResult> rows = sql.rows(query);
+        assertEquals(9 * 4 - 1, rows.size());
+
+        // read from RESULT_ISO_MAP_WIDE, the same rows
+        WideLayout.convert(connection, "RESULT_ISO_MAP");
+        RunComputeMaps.createTimeClusteredTable(sql, "RESULT_ISO_MAP", "RESULT_ISO_MAP_BY_TIME");
+        assertEquals(rows, sql.rows(query));
+    }
+
+}
@@ -0,0 +1,109 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.GroovyRowResult;
+import groovy.sql.Sql;
+import org.h2gis.functions.factory.H2GISFunctions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SparseNoiseMapTest {
+
+    Connection connection;
+    Sql sql;
+
+    @BeforeEach
+    void setup() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:h2:mem:sparse_noise_map", "", "");
+        H2GISFunctions.load(connection);
+        sql = new Sql(connection);
+        sql.execute("CREATE TABLE MATSIM_ROADS (PK INTEGER PRIMARY KEY, LINK_ID VARCHAR, THE_GEOM GEOMETRY)");
+        sql.execute("INSERT INTO MATSIM_ROADS VALUES (1, 'a', 'LINESTRING(0 0, 10 0)'), (2, 'b', 'LINESTRING(0 10, 10 10)')");
+        sql.execute("CREATE TABLE MATSIM_ROADS_LW (PK INTEGER PRIMARY KEY AUTO_INCREMENT, LINK_ID VARCHAR, " +
+                "LW63 DOUBLE, LW125 DOUBLE, LW250 DOUBLE, LW500 DOUBLE, LW1000 DOUBLE, LW2000 DOUBLE, LW4000 DOUBLE, LW8000 DOUBLE, TIME INTEGER)");
+        sql.execute("INSERT INTO MATSIM_ROADS_LW (LINK_ID, LW63, LW125, LW250, LW500, LW1000, LW2000, LW4000, LW8000, TIME) VALUES " +
+                "('a', 90, 90, 90, 90, 90, 90, 90, 90, 0), ('b', 80, 80, 80, 80, 80, 80, 80, 80, 0), " +
+                "('a', 70, 70, 70, 70, 70, 70, 70, 70, 900)");
+        sql.execute("CREATE TABLE ATTENUATION (IDRECEIVER INTEGER, IDSOURCE INTEGER, THE_GEOM GEOMETRY, " +
+                "HZ63 DOUBLE, HZ125 DOUBLE, HZ250 DOUBLE, HZ500 DOUBLE, HZ1000 DOUBLE, HZ2000 DOUBLE, HZ4000 DOUBLE, HZ8000 DOUBLE)");
+        sql.execute("INSERT INTO ATTENUATION VALUES " +
+                "(10, 1, 'POINT(5 5)', -30, -30, -30, -30, -30, -30, -30, -30), " +
+                "(10, 2, 'POINT(5 5)', -20, -20, -20, -20, -20, -20, -20, -20), " +
+                "(11, 2, 'POINT(5 20)', -40, -40, -40, -40, -40, -40, -40, -40)");
+        sql.execute("CREATE TABLE RECEIVERS (PK INTEGER PRIMARY KEY, THE_GEOM GEOMETRY)");
+        sql.execute("INSERT INTO RECEIVERS VALUES (10, 'POINT(5 6)'), (11, 'POINT(5 21)')");
+    }
+
+    Map<String, Object> params(String matsimRoads) {
+        return Map.of(
+                "matsimRoads", matsimRoads,
+                "matsimRoadsLw", "MATSIM_ROADS_LW",
+                "attenuationTable", "ATTENUATION",
+                "receiversTable", "RECEIVERS",
+                "outTableName", "RESULT_GEOM",
+                "timeBinSize", 900,
+                "timeBinMin", 0,
+                "timeBinMax", 1800,
+                "threads", 2
+        );
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        sql.execute("DROP ALL OBJECTS");
+        connection.close();
+    }
+
+    @Test
+    void testEnergeticSumPerTimeBin() throws SQLException {
+        new SparseNoiseMap().exec(connection, params("MATSIM_ROADS"));
+        List<GroovyRowResult> rows = sql.rows("SELECT IDRECEIVER, TIME, HZ1000, LEQ, ST_AsText(THE_GEOM) WKT FROM RESULT_GEOM ORDER BY TIME, IDRECEIVER");
+        // receiver 11 only hears link b, which has no traffic in the second bin
+        assertEquals(3, rows.size());
+        assertEquals(10 * Math.log10(Math.pow(10, 6) + Math.pow(10, 6)), ((Number) rows.get(0).get("HZ1000")).doubleValue(), 1e-4);
+        assertEquals(40, ((Number) rows.get(1).get("HZ1000")).doubleValue(), 1e-4);
+        assertEquals(11, ((Number) rows.get(1).get("IDRECEIVER")).intValue());
+        // the geometry of the receivers table
+        assertEquals("POINT (5 21)", rows.get(1).get("WKT"));
+        assertEquals(900, ((Number) rows.get(2).get("TIME")).intValue());
+        assertEquals(40 + 10 * Math.log10(8), ((Number) rows.get(2).get("LEQ")).doubleValue(), 1e-4);
+    }
+
+    @Test
+    void testSourcesWithoutPrimaryKey() throws SQLException {
+        // roads copied with their PK column but without the primary key constraint
+        sql.execute("CREATE TABLE MATSIM_ROADS_COPY AS SELECT * FROM MATSIM_ROADS");
+        new SparseNoiseMap().exec(connection, params("MATSIM_ROADS_COPY"));
+        assertEquals(3, ((Number) sql.firstRow("SELECT COUNT(*) N FROM RESULT_GEOM").get("N")).intValue());
+    }
+
+    @Test
+    void testReceiversMissingFromReceiversTable() throws SQLException {
+        sql.execute("DELETE FROM RECEIVERS WHERE PK = 10");
+        new SparseNoiseMap().exec(connection, params("MATSIM_ROADS"));
+        List<GroovyRowResult> rows = sql.rows("SELECT IDRECEIVER, TIME FROM RESULT_GEOM");
+        assertEquals(1, rows.size());
+        assertEquals(11, ((Number) rows.get(0).get("IDRECEIVER")).intValue());
+    }
+
+    @Test
+    void testBandWithoutEnergy() throws SQLException {
+        // below the smallest float once linear
+        sql.execute("UPDATE ATTENUATION SET HZ8000 = -500 WHERE IDRECEIVER = 11");
+        new SparseNoiseMap().exec(connection, params("MATSIM_ROADS"));
+        GroovyRowResult row = sql.firstRow("SELECT HZ1000, HZ8000 FROM RESULT_GEOM WHERE IDRECEIVER = 11");
+        assertEquals(40, ((Number) row.get("HZ1000")).doubleValue(), 1e-4);
+        assertNull(row.get("HZ8000"));
+        // the time bins read the emissions through an index
+        assertTrue(RunCli.indexExists(connection, "MATSIM_ROADS_LW", "TIME"));
+    }
+
+}
@@ -0,0 +1,236 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.json.JsonSlurper;
+import groovy.sql.Sql;
+import org.h2gis.functions.factory.H2GISFunctions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingExportTest {
+
+    @TempDir
+    Path folder;
+
+    static Connection createResults(String name) throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:h2:mem:" + name, "", "");
+        H2GISFunctions.load(connection);
+        Sql sql = new Sql(connection);
+        sql.execute("CREATE TABLE RESULT_GEOM (PK INTEGER PRIMARY KEY, IDRECEIVER BIGINT, TIME INTEGER, LEQA DOUBLE, " +
+                "PERIOD VARCHAR, THE_GEOM GEOMETRY(POINT, 2154))");
+        // 5 rows at 0 s and 2 at 900 s, with a NULL in each column but the split one
+        sql.execute("INSERT INTO RESULT_GEOM VALUES " +
+                "(1, 10, 0, 60.5, 'D', 'SRID=2154;POINT (1 2)'), " +
+                "(2, NULL, 0, NULL, NULL, NULL), " +
+                "(3, 12, 900, 55.25, 'say \"hi\"', 'SRID=2154;POINT (3.0004 4)'), " +
+                "(4, 13, 0, 40.0, 'D', 'SRID=2154;POINT (5 6)'), " +
+                "(5, 14, 0, 41.0, 'N', 'SRID=2154;POINT (7 8)'), " +
+                "(6, 15, 900, 42.0, 'N', 'SRID=2154;POINT (9 10)'), " +
+                "(7, 16, 0, 43.0, 'N', 'SRID=2154;POINT (11 12)')");
+        return connection;
+    }
+
+    /**
+     * Columnar file read back into its header and one list of values per column, NULL being null.
+     */
+    static class ColumnarFile {
+        final List<String> names = new ArrayList<>();
+        final List<Byte> types = new ArrayList<>();
+        final List<List<Object>> values = new ArrayList<>();
+        final List<Integer> blocks = new ArrayList<>();
+
+        ColumnarFile(Path file) throws IOException, ParseException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+                byte[] magic = new byte[5];
+                in.readFully(magic);
+                assertEquals("MNCOL", new String(magic, StandardCharsets.US_ASCII));
+                assertEquals(StreamingExport.COLUMNAR_VERSION, in.readInt());
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    names.add(in.readUTF());
+                    types.add(in.readByte());
+                    values.add(new ArrayList<>());
+                }
+                WKBReader wkbReader = new WKBReader();
+                int rows;
+                while ((rows = in.readInt()) > 0) {
+                    blocks.add(rows);
+                    for (int i = 0; i < count; i++) {
+                        for (int row = 0; row < rows; row++) {
+                            switch (types.get(i)) {
+                                case StreamingExport.TYPE_INT: {
+                                    int value = in.readInt();
+                                    values.get(i).add(value == Integer.MIN_VALUE ? null : value);
+                                    break;
+                                }
+                                case StreamingExport.TYPE_LONG: {
+                                    long value = in.readLong();
+                                    values.get(i).add(value == Long.MIN_VALUE ? null : value);
+                                    break;
+                                }
+                                case StreamingExport.TYPE_DOUBLE: {
+                                    double value = in.readDouble();
+                                    values.get(i).add(Double.isNaN(value) ? null : value);
+                                    break;
+                                }
+                                default: {
+                                    int length = in.readInt();
+                                    if (length < 0) {
+                                        values.get(i).add(null);
+                                        break;
+                                    }
+                                    byte[] bytes = new byte[length];
+                                    in.readFully(bytes);
+                                    values.get(i).add(types.get(i) == StreamingExport.TYPE_GEOMETRY
+                                            ? wkbReader.read(bytes) : new String(bytes, StandardCharsets.UTF_8));
+                                }
+                            }
+                        }
+                    }
+                }
+                // the end block is the last thing in the file
+                assertEquals(-1, in.read());
+            }
+        }
+
+        List<Object> column(String name) {
+            return values.get(names.indexOf(name));
+        }
+    }
+
+    @Test
+    void testColumnarRoundTrip() throws SQLException, IOException, ParseException {
+        try (Connection connection = createResults("columnar")) {
+            StreamingExport export = new StreamingExport(StreamingExport.COLUMNAR);
+            export.blockRows = 2;
+            List<Path> files = export.export(connection, "RESULT_GEOM", folder, null);
+            assertEquals(List.of(folder.resolve("RESULT_GEOM.col.gz")), files);
+
+            ColumnarFile file = new ColumnarFile(files.get(0));
+            assertEquals(List.of("PK", "IDRECEIVER", "TIME", "LEQA", "PERIOD", "THE_GEOM"), file.names);
+            assertEquals(List.of(StreamingExport.TYPE_INT, StreamingExport.TYPE_LONG, StreamingExport.TYPE_INT,
+                    StreamingExport.TYPE_DOUBLE, StreamingExport.TYPE_STRING, StreamingExport.TYPE_GEOMETRY), file.types);
+            // full blocks then the rest
+            assertEquals(List.of(2, 2, 2, 1), file.blocks);
+            assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7), file.column("PK"));
+            assertEquals(Arrays.asList(10L, null, 12L, 13L, 14L, 15L, 16L), file.column("IDRECEIVER"));
+            assertEquals(Arrays.asList(60.5, null, 55.25, 40.0, 41.0, 42.0, 43.0), file.column("LEQA"));
+            assertEquals(Arrays.asList("D", null, "say \"hi\"", "D", "N", "N", "N"), file.column("PERIOD"));
+            Geometry geometry = (Geometry) file.column("THE_GEOM").get(2);
+            // full precision and SRID
+            assertEquals("POINT (3.0004 4)", geometry.toText());
+            assertEquals(2154, geometry.getSRID());
+            assertNull(file.column("THE_GEOM").get(1));
+        }
+    }
+
+    @Test
+    void testColumnarSplitByTime() throws SQLException, IOException, ParseException {
+        try (Connection connection = createResults("columnarSplit")) {
+            StreamingExport export = new StreamingExport(StreamingExport.COLUMNAR);
+            export.blockRows = 2;
+            List<Path> files = export.export(connection, "RESULT_GEOM", folder, "time");
+            assertEquals(List.of(folder.resolve("RESULT_GEOM_0.col.gz"), folder.resolve("RESULT_GEOM_900.col.gz")), files);
+            try (var listed = Files.list(folder)) {
+                assertEquals(2, listed.count());
+            }
+
+            ColumnarFile first = new ColumnarFile(files.get(0));
+            assertEquals(List.of(2, 2, 1), first.blocks);
+            assertEquals(Arrays.asList(1, 2, 4, 5, 7), first.column("PK"));
+            assertTrue(first.column("TIME").stream().allMatch(time -> (Integer) time == 0));
+            ColumnarFile second = new ColumnarFile(files.get(1));
+            assertEquals(List.of(2), second.blocks);
+            assertEquals(Arrays.asList(3, 6), second.column("PK"));
+            assertEquals(Arrays.asList(900, 900), second.column("TIME"));
+        }
+    }
+
+    static List<Map<?, ?>> readGeoJsonSeq(Path file) throws IOException {
+        try (var in = new GZIPInputStream(Files.newInputStream(file))) {
+            String text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            assertTrue(text.endsWith("\n"));
+            JsonSlurper slurper = new JsonSlurper();
+            return Arrays.stream(text.split("\n")).map(line -> (Map<?, ?>) slurper.parseText(line)).collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void testGeoJsonSeqRoundTrip() throws SQLException, IOException {
+        try (Connection connection = createResults("geojsonseq")) {
+            List<Path> files = new StreamingExport(StreamingExport.GEOJSONSEQ).export(connection, "RESULT_GEOM", folder, null);
+            assertEquals(List.of(folder.resolve("RESULT_GEOM.geojsonseq.gz")), files);
+
+            List<Map<?, ?>> features = readGeoJsonSeq(files.get(0));
+            assertEquals(7, features.size());
+            Map<?, ?> first = features.get(0);
+            assertEquals("Feature", first.get("type"));
+            Map<?, ?> geometry = (Map<?, ?>) first.get("geometry");
+            assertEquals("Point", geometry.get("type"));
+            assertEquals(List.of(1.0, 2.0), ((List<?>) geometry.get("coordinates")).stream()
+                    .map(coordinate -> ((Number) coordinate).doubleValue()).collect(Collectors.toList()));
+            Map<?, ?> properties = (Map<?, ?>) first.get("properties");
+            // the geometry is not a property
+            assertEquals(List.of("PK", "IDRECEIVER", "TIME", "LEQA", "PERIOD"), new ArrayList<>(properties.keySet()));
+            assertEquals(10, ((Number) properties.get("IDRECEIVER")).intValue());
+            assertEquals(60.5, ((Number) properties.get("LEQA")).doubleValue(), 0);
+            assertEquals("D", properties.get("PERIOD"));
+
+            Map<?, ?> nulls = features.get(1);
+            assertNull(nulls.get("geometry"));
+            assertTrue(nulls.containsKey("geometry"));
+            Map<?, ?> nullProperties = (Map<?, ?>) nulls.get("properties");
+            for (String column : List.of("IDRECEIVER", "LEQA", "PERIOD")) {
+                assertTrue(nullProperties.containsKey(column));
+                assertNull(nullProperties.get(column));
+            }
+
+            Map<?, ?> escaped = features.get(2);
+            assertEquals("say \"hi\"", ((Map<?, ?>) escaped.get("properties")).get("PERIOD"));
+            // coordinates rounded to the millimeter
+            List<?> coordinates = (List<?>) ((Map<?, ?>) escaped.get("geometry")).get("coordinates");
+            assertEquals(3.0, ((Number) coordinates.get(0)).doubleValue(), 0);
+        }
+    }
+
+    @Test
+    void testGeoJsonSeqSplitByTime() throws SQLException, IOException {
+        try (Connection connection = createResults("geojsonseqSplit")) {
+            List<Path> files = new StreamingExport(StreamingExport.GEOJSONSEQ).export(connection, "RESULT_GEOM", folder, "TIME");
+            assertEquals(List.of(folder.resolve("RESULT_GEOM_0.geojsonseq.gz"), folder.resolve("RESULT_GEOM_900.geojsonseq.gz")), files);
+            assertEquals(List.of(1, 2, 4, 5, 7), readGeoJsonSeq(files.get(0)).stream()
+                    .map(feature -> ((Number) ((Map<?, ?>) feature.get("properties")).get("PK")).intValue()).collect(Collectors.toList()));
+            assertEquals(List.of(3, 6), readGeoJsonSeq(files.get(1)).stream()
+                    .map(feature -> ((Number) ((Map<?, ?>) feature.get("properties")).get("PK")).intValue()).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void testInvalidSplitAndFormat() throws SQLException {
+        assertThrows(IllegalArgumentException.class, () -> new StreamingExport("shapefile"));
+        try (Connection connection = createResults("invalid")) {
+            assertThrows(SQLException.class, () -> new StreamingExport(StreamingExport.COLUMNAR).export(connection, "RESULT_GEOM", folder, "HOUR"));
+        }
+    }
+
+}
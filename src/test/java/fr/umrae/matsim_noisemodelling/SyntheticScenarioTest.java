@@ -0,0 +1,131 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.json.JsonSlurper;
+import groovy.sql.Sql;
+import org.h2.Driver;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SyntheticScenarioTest {
+
+    static List<String> read(Path file) throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+            return in.lines().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void testConsistentScenario(@TempDir Path folder) throws IOException {
+        Path matsim = folder.resolve("matsim");
+        SyntheticScenario scenario = new SyntheticScenario(60, 50, 40, 600);
+        scenario.write(matsim);
+        assertTrue(scenario.linkCount() >= 60);
+
+        // events in time order, vehicles entering the links, from the network or from a facility
+        List<String> events = read(matsim.resolve(SyntheticScenario.EVENTS_FILE));
+        Pattern time = Pattern.compile("time=\"([0-9.]+)\"");
+        double previous = 0;
+        int enteredLinks = 0;
+        for (String event : events) {
+            Matcher matcher = time.matcher(event);
+            if (matcher.find()) {
+                double eventTime = Double.parseDouble(matcher.group(1));
+                assertTrue(eventTime >= previous, event);
+                previous = eventTime;
+                enteredLinks += event.contains("type=\"entered link\"") || event.contains("type=\"vehicle enters traffic\"") ? 1 : 0;
+            }
+        }
+        assertTrue(enteredLinks > 0);
+
+        // a home - work - home day per agent, at facilities of the facilities file
+        String facilities = String.join("\n", read(matsim.resolve(SyntheticScenario.FACILITIES_FILE)));
+        int persons = 0;
+        try (ExperiencedPlansReader reader = new ExperiencedPlansReader(matsim.resolve(SyntheticScenario.EXPERIENCED_PLANS_FILE))) {
+            for (ExperiencedPlansReader.Person person = reader.next(); person != null; person = reader.next()) {
+                persons++;
+                assertEquals("person", person.subpopulation);
+                assertEquals(3, person.activities.size());
+                assertEquals("work", person.activities.get(1).type);
+                assertTrue(person.activities.get(1).startTime < person.activities.get(1).endTime);
+                for (ExperiencedPlansReader.Activity activity : person.activities) {
+                    assertTrue(facilities.contains("id=\"" + activity.facility + "\""));
+                }
+            }
+        }
+        assertEquals(50, persons);
+        assertEquals(51, read(matsim.resolve(SyntheticScenario.PERSONS_FILE)).size());
+        assertEquals(scenario.linkCount() + 1, Files.readAllLines(matsim.resolve(SyntheticScenario.LINK_GEOMETRY_FILE)).size());
+
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(matsim.resolve(SyntheticScenario.OSM_FILE)))) {
+            byte[] header = new byte[in.readInt()];
+            in.readFully(header);
+            assertTrue(new String(header, StandardCharsets.ISO_8859_1).contains("OSMHeader"));
+        }
+    }
+
+    /**
+     * The whole exposure pipeline on a small scenario, from the hand written OSM PBF to the noise map.
+     */
+    @Test
+    void testPipelineRunsOnScenario(@TempDir Path folder) throws IOException, SQLException {
+        Path matsim = folder.resolve("matsim");
+        SyntheticScenario scenario = new SyntheticScenario(24, 20, 15, 300);
+        scenario.write(matsim);
+
+        Properties config = new Properties();
+        config.setProperty("DB_NAME", folder.resolve("noisemodelling").toUri().toString());
+        config.setProperty("OSM_FILE_PATH", matsim.resolve(SyntheticScenario.OSM_FILE).toString());
+        config.setProperty("MATSIM_DIR", matsim.toString());
+        config.setProperty("INPUTS_DIR", folder.resolve("inputs").toString());
+        config.setProperty("RESULTS_DIR", folder.resolve("results").toString());
+        config.setProperty("SRID", Integer.toString(scenario.srid));
+        config.setProperty("POPULATION_FACTOR", "1.0");
+        Path configFile = folder.resolve("noisemodelling.properties");
+        try (Writer writer = Files.newBufferedWriter(configFile, StandardCharsets.UTF_8)) {
+            config.store(writer, null);
+        }
+        // the morning commutes
+        RunCli.main(new String[]{
+                "-conf", configFile.toString(),
+                "-osm",
+                "--runSimulation",
+                "--reflOrder", "0",
+                "--maxReflDist", "10",
+                "--maxSrcDist", "50",
+                "--timeBinMin", String.valueOf(3600 * 6),
+                "--timeBinMax", String.valueOf(3600 * 10),
+                "--timeBinSize", "3600"
+        });
+
+        Map<?, ?> metrics = (Map<?, ?>) new JsonSlurper().parseText(Files.readString(folder.resolve("results").resolve("run_metrics.json")));
+        for (Object item : (List<?>) metrics.get("stages")) {
+            Map<?, ?> stage = (Map<?, ?>) item;
+            assertEquals("completed", stage.get("status"), stage.get("stage").toString());
+        }
+        Driver.load();
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:" + folder.resolve("noisemodelling").toAbsolutePath() + ";AUTO_SERVER=TRUE", "", "")) {
+            Sql sql = new Sql(connection);
+            assertTrue(((Number) sql.firstRow("SELECT COUNT(*) N FROM BUILDINGS").get("N")).intValue() > 0);
+            assertTrue(((Number) sql.firstRow("SELECT COUNT(*) N FROM MATSIM_ROADS").get("N")).intValue() > 0);
+            assertTrue(((Number) sql.firstRow("SELECT COUNT(*) N FROM RESULT_GEOM").get("N")).intValue() > 0);
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+package fr.umrae.matsim_noisemodelling;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThreadBudgetTest {
+
+    @Test
+    void testAuto() {
+        int auto = ThreadBudget.resolve("auto");
+        // every processor, as long as each thread gets its heap, and at least one thread
+        assertTrue(auto >= 1);
+        assertTrue(auto <= Runtime.getRuntime().availableProcessors());
+        assertTrue(auto <= Math.max(1, Runtime.getRuntime().maxMemory() / ThreadBudget.HEAP_PER_THREAD));
+        assertEquals(auto, ThreadBudget.resolve("AUTO"));
+        assertEquals(auto, ThreadBudget.resolve(""));
+        assertEquals(auto, ThreadBudget.resolve(null));
+    }
+
+    @Test
+    void testCount() {
+        assertEquals(1, ThreadBudget.resolve("1"));
+        // not bounded by the processors, the user knows better
+        assertEquals(512, ThreadBudget.resolve("512"));
+    }
+
+    @Test
+    void testInvalid() {
+        for (String value : new String[]{"0", "-2", "many", "2.5"}) {
+            assertThrows(IllegalArgumentException.class, () -> ThreadBudget.resolve(value), value);
+        }
+    }
+
+}
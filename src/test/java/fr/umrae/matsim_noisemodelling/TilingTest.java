@@ -0,0 +1,125 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.GroovyRowResult;
+import groovy.sql.Sql;
+import org.h2gis.functions.factory.H2GISFunctions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TilingTest {
+
+    @TempDir
+    Path folder;
+
+    static Connection createInputs() throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:h2:mem:tiling", "", "");
+        H2GISFunctions.load(connection);
+        Sql sql = new Sql(connection);
+        sql.execute("CREATE TABLE RECEIVERS (PK INTEGER PRIMARY KEY, THE_GEOM GEOMETRY(POINT, 2154))");
+        // on the tile corners and borders, next to them, and on negative coordinates
+        sql.execute("INSERT INTO RECEIVERS VALUES (1, 'SRID=2154;POINT (0 0)'), (2, 'SRID=2154;POINT (100 0)'), " +
+                "(3, 'SRID=2154;POINT (100 100)'), (4, 'SRID=2154;POINT (99.999 50)'), (5, 'SRID=2154;POINT (50 100)'), " +
+                "(6, 'SRID=2154;POINT (-0.001 0)'), (7, 'SRID=2154;POINT (-100 -100)'), (8, 'SRID=2154;POINT (150 250)')");
+        sql.execute("CREATE TABLE BUILDINGS (PK INTEGER PRIMARY KEY, THE_GEOM GEOMETRY(POLYGON, 2154))");
+        sql.execute("INSERT INTO BUILDINGS VALUES (1, 'SRID=2154;POLYGON ((10 10, 20 10, 20 20, 10 20, 10 10))'), " +
+                "(2, 'SRID=2154;POLYGON ((500 500, 510 500, 510 510, 500 510, 500 500))'), " +
+                // a wall beyond the source overlap of tile_0_0 but within its buildings overlap
+                "(3, 'SRID=2154;POLYGON ((-65 10, -60 10, -60 20, -65 20, -65 10))')");
+        sql.execute("CREATE TABLE MATSIM_ROADS (PK INTEGER PRIMARY KEY, LINK_ID VARCHAR, THE_GEOM GEOMETRY(LINESTRING, 2154))");
+        sql.execute("INSERT INTO MATSIM_ROADS VALUES (1, 'a', 'SRID=2154;LINESTRING (-50 60, 250 60)'), " +
+                "(2, 'b', 'SRID=2154;LINESTRING (1000 1000, 1100 1000)')");
+        sql.execute("CREATE TABLE MATSIM_ROADS_LW (PK INTEGER PRIMARY KEY, LINK_ID VARCHAR, LW500 DOUBLE, TIME INTEGER)");
+        sql.execute("INSERT INTO MATSIM_ROADS_LW VALUES (1, 'a', 90, 0), (2, 'b', 80, 0), (3, 'a', 85, 900)");
+        return connection;
+    }
+
+    static final Tiling.TileInputs INPUTS = new Tiling.TileInputs("RECEIVERS", "BUILDINGS", "MATSIM_ROADS", "MATSIM_ROADS_LW");
+
+    /**
+     * Result of a tile : its receivers, with the tile inputs they see.
+     */
+    static void tileResult(Connection tileConnection, Tiling.Tile tile) throws SQLException {
+        Sql sql = new Sql(tileConnection);
+        sql.execute("CREATE TABLE RESULT (PK INTEGER AUTO_INCREMENT PRIMARY KEY, IDRECEIVER INTEGER, TILE VARCHAR, " +
+                "BUILDINGS BIGINT, SOURCES BIGINT, EMISSIONS BIGINT)");
+        sql.execute("INSERT INTO RESULT (IDRECEIVER, TILE, BUILDINGS, SOURCES, EMISSIONS) SELECT PK, '" + tile.name() + "', " +
+                "(SELECT COUNT(*) FROM BUILDINGS), (SELECT COUNT(*) FROM MATSIM_ROADS), (SELECT COUNT(*) FROM MATSIM_ROADS_LW) " +
+                "FROM RECEIVERS ORDER BY PK DESC");
+    }
+
+    static void assertMerged(Connection connection, List<Tiling.Tile> tiles) throws SQLException {
+        Sql sql = new Sql(connection);
+        // each receiver in exactly one tile, on the right / top of a border
+        List<GroovyRowResult> rows = sql.rows("SELECT IDRECEIVER, TILE FROM RESULT ORDER BY IDRECEIVER");
+        assertEquals(List.of(1, 2, 3, 4, 5, 6, 7, 8), rows.stream().map(row -> ((Number) row.get("IDRECEIVER")).intValue()).collect(Collectors.toList()));
+        assertEquals(List.of("tile_0_0", "tile_1_0", "tile_1_1", "tile_0_0", "tile_0_1", "tile_-1_0", "tile_-1_-1", "tile_1_2"),
+                rows.stream().map(row -> row.get("TILE")).collect(Collectors.toList()));
+        assertEquals(8, tiles.stream().mapToLong(tile -> tile.receivers).sum());
+
+        // primary key renumbered in tile order
+        assertEquals("PK", Tiling.primaryKey(connection, "RESULT"));
+        List<String> order = new ArrayList<>();
+        for (GroovyRowResult row : sql.rows("SELECT PK, TILE FROM RESULT ORDER BY PK")) {
+            order.add((String) row.get("TILE"));
+        }
+        assertEquals(tiles.stream().flatMap(tile -> Collections.nCopies((int) tile.receivers, tile.name()).stream())
+                .collect(Collectors.toList()), order);
+        GroovyRowResult pk = sql.firstRow("SELECT MIN(PK) LO, MAX(PK) HI, COUNT(DISTINCT PK) N FROM RESULT");
+        assertEquals(1, ((Number) pk.get("LO")).intValue());
+        assertEquals(8, ((Number) pk.get("HI")).intValue());
+        assertEquals(8, ((Number) pk.get("N")).intValue());
+
+        // only the inputs around the tile, the emissions of its sources, the walls reflecting them
+        GroovyRowResult first = sql.firstRow("SELECT * FROM RESULT WHERE TILE = 'tile_0_0' LIMIT 1");
+        assertEquals(2, ((Number) first.get("BUILDINGS")).intValue());
+        assertEquals(1, ((Number) first.get("SOURCES")).intValue());
+        assertEquals(2, ((Number) first.get("EMISSIONS")).intValue());
+    }
+
+    @Test
+    void testTilesAndMerge() throws SQLException, IOException {
+        try (Connection connection = createInputs()) {
+            Tiling tiling = new Tiling(100, 50, 70, folder.resolve("db_tiles"), 2);
+            List<Tiling.Tile> tiles = tiling.tiles(connection, "RECEIVERS");
+            assertEquals(List.of("tile_-1_-1", "tile_-1_0", "tile_0_0", "tile_0_1", "tile_1_0", "tile_1_1", "tile_1_2"),
+                    tiles.stream().map(Tiling.Tile::name).collect(Collectors.toList()));
+
+            tiling.run(connection, tiles, INPUTS, TilingTest::tileResult, "RESULT");
+            assertMerged(connection, tiles);
+            // the tile databases are deleted once merged
+            assertFalse(Files.exists(folder.resolve("db_tiles")));
+
+            // a second run replaces the result
+            tiling.run(connection, tiles, INPUTS, TilingTest::tileResult, "RESULT");
+            assertMerged(connection, tiles);
+        }
+    }
+
+    @Test
+    void testFailedTileKeepsDatabases() throws SQLException {
+        try (Connection connection = createInputs()) {
+            Tiling tiling = new Tiling(100, 50, 70, folder.resolve("db_tiles"), 1);
+            List<Tiling.Tile> tiles = tiling.tiles(connection, "RECEIVERS");
+            assertThrows(SQLException.class, () -> tiling.run(connection, tiles, INPUTS, (tileConnection, tile) -> {
+                throw new SQLException("tile failed");
+            }, "RESULT"));
+            assertFalse(RunCli.tableExists(connection, "RESULT"));
+            // left for the next run to overwrite
+            assertTrue(Files.exists(Tiling.databaseFile(folder.resolve("db_tiles").resolve(tiles.get(0).name()))));
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.Sql;
+import org.h2gis.functions.factory.H2GISFunctions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VectorTilesTest {
+
+    @Test
+    void testPolygonCommands() {
+        GeometryFactory factory = new GeometryFactory();
+        // 10 x 10 tile units square in the top left corner, counter clockwise on screen
+        Polygon square = factory.createPolygon(new Coordinate[]{
+                new Coordinate(0, 4096), new Coordinate(0, 4086), new Coordinate(10, 4086), new Coordinate(10, 4096), new Coordinate(0, 4096)});
+        // MoveTo (0, 0), LineTo x 3 clockwise on screen, ClosePath
+        assertArrayEquals(new int[]{9, 0, 0, 26, 20, 0, 0, 20, 19, 0, 15}, VectorTiles.polygonCommands(square, 0, 4096, 1));
+        // less than one tile unit once rounded
+        Polygon small = factory.createPolygon(new Coordinate[]{
+                new Coordinate(0, 4096), new Coordinate(0.2, 4096), new Coordinate(0.2, 4095.8), new Coordinate(0, 4096)});
+        assertEquals(0, VectorTiles.polygonCommands(small, 0, 4096, 1).length);
+    }
+
+    @Test
+    void testExportDirectory(@TempDir Path folder) throws SQLException, IOException {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:vector_tiles", "", "")) {
+            H2GISFunctions.load(connection);
+            Sql sql = new Sql(connection);
+            sql.execute("CREATE TABLE TIME_CONTOURING_NOISE_MAP (PK INTEGER PRIMARY KEY AUTO_INCREMENT, CELL_ID INTEGER, " +
+                    "THE_GEOM GEOMETRY, ISOLVL INTEGER, ISOLABEL VARCHAR, TIME INTEGER, TIME_DATE TIME)");
+            // 1 km squares in Nantes (EPSG:2154), at two time bins
+            sql.execute("INSERT INTO TIME_CONTOURING_NOISE_MAP (CELL_ID, THE_GEOM, ISOLVL, ISOLABEL, TIME) VALUES " +
+                    "(0, 'POLYGON ((355000 6689000, 356000 6689000, 356000 6690000, 355000 6690000, 355000 6689000))', 2, '40-45', 0), " +
+                    "(0, 'POLYGON ((356000 6689000, 357000 6689000, 357000 6690000, 356000 6690000, 356000 6689000))', 3, '45-50', 900)");
+
+            Path tiles = folder.resolve("tiles");
+            long written = new VectorTiles(10, 13, 2).export(connection, "TIME_CONTOURING_NOISE_MAP", 2154, tiles, VectorTiles.DIRECTORY);
+
+            long files;
+            try (Stream<Path> walk = Files.walk(tiles)) {
+                files = walk.filter(file -> file.toString().endsWith(".pbf")).count();
+            }
+            assertEquals(written, files);
+            // at least one tile per zoom
+            assertTrue(written >= 4);
+            try (Stream<Path> walk = Files.walk(tiles.resolve("10"))) {
+                Path tile = walk.filter(file -> file.toString().endsWith(".pbf")).findFirst().orElseThrow();
+                byte[] bytes = Files.readAllBytes(tile);
+                // field 3 (layers) of the tile message, length delimited
+                assertEquals(0x1A, bytes[0]);
+                String text = new String(bytes, StandardCharsets.ISO_8859_1);
+                assertTrue(text.contains("contours"));
+                assertTrue(text.contains("ISOLVL"));
+                assertTrue(text.contains("45-50"));
+            }
+            String metadata = Files.readString(tiles.resolve("metadata.json"));
+            assertTrue(metadata.contains("\"minzoom\": 10"));
+            assertTrue(metadata.contains("\"TIME\": \"Number\""));
+        }
+    }
+
+    @Test
+    void testExportByChunks(@TempDir Path folder) throws SQLException, IOException {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:vector_tiles_chunks", "", "")) {
+            H2GISFunctions.load(connection);
+            Sql sql = new Sql(connection);
+            sql.execute("CREATE TABLE TIME_CONTOURING_NOISE_MAP (PK INTEGER PRIMARY KEY AUTO_INCREMENT, CELL_ID INTEGER, " +
+                    "THE_GEOM GEOMETRY, ISOLVL INTEGER, ISOLABEL VARCHAR, TIME INTEGER, TIME_DATE TIME)");
+            // 1 km squares 40 km apart, in different chunks of tiles at zoom 15, without SRID
+            sql.execute("INSERT INTO TIME_CONTOURING_NOISE_MAP (CELL_ID, THE_GEOM, ISOLVL, ISOLABEL, TIME) VALUES " +
+                    "(0, 'POLYGON ((355000 6689000, 356000 6689000, 356000 6690000, 355000 6690000, 355000 6689000))', 2, '40-45', 0), " +
+                    "(0, 'POLYGON ((395000 6689000, 396000 6689000, 396000 6690000, 395000 6690000, 395000 6689000))', 3, '45-50', 0)");
+
+            Path tiles = folder.resolve("tiles");
+            long written = new VectorTiles(14, 15, 2).export(connection, "TIME_CONTOURING_NOISE_MAP", 2154, tiles, VectorTiles.DIRECTORY);
+
+            // every tile written once
+            long files;
+            try (Stream<Path> walk = Files.walk(tiles)) {
+                files = walk.filter(file -> file.toString().endsWith(".pbf")).count();
+            }
+            assertEquals(written, files);
+            long chunks;
+            try (Stream<Path> walk = Files.list(tiles.resolve("15"))) {
+                chunks = walk.map(column -> Integer.parseInt(column.getFileName().toString()) / VectorTiles.CHUNK_TILES).distinct().count();
+            }
+            assertEquals(2, chunks);
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.Sql;
+import org.h2gis.functions.factory.H2GISFunctions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class VisitedFacilitiesTest {
+
+    @TempDir
+    Path folder;
+
+    static String person(String id, String subpopulation, String activities) {
+        return "\t<person id=\"" + id + "\">\n" +
+                (subpopulation == null ? "" : "\t\t<attributes>\n\t\t\t<attribute name=\"subpopulation\" class=\"java.lang.String\">" + subpopulation + "</attribute>\n\t\t</attributes>\n") +
+                "\t\t<plan selected=\"yes\">\n" + activities + "\t\t</plan>\n\t</person>\n";
+    }
+
+    @Test
+    void testVisitedFacilities() throws IOException, SQLException {
+        Path plans = folder.resolve("output_experienced_plans.xml.gz");
+        try (Writer out = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(plans)), StandardCharsets.UTF_8)) {
+            out.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<population>\n" +
+                    person("1", "person",
+                            "\t\t\t<activity type=\"home\" facility=\"h1\" end_time=\"07:00:00\" />\n" +
+                            "\t\t\t<leg mode=\"car\"><attributes><attribute name=\"subpopulation\" class=\"java.lang.String\">leg</attribute></attributes></leg>\n" +
+                            "\t\t\t<activity type=\"work\" facility=\"w1\" start_time=\"08:00:00\" end_time=\"17:00:00\" />\n" +
+                            "\t\t\t<activity type=\"home\" facility=\"h1\" start_time=\"18:00:00\" />\n") +
+                    person("2", "freight",
+                            "\t\t\t<activity type=\"home\" facility=\"h2\" end_time=\"10:00:00\" />\n") +
+                    person("3", null,
+                            "\t\t\t<activity type=\"home\" facility=\"h3\" end_time=\"06:00:00\" />\n" +
+                            "\t\t\t<activity type=\"shop\" facility=\"s3\" start_time=\"06:30:00\" end_time=\"07:00:00\" />\n") +
+                    "</population>\n");
+        }
+
+        // from 8:00 to 12:00, all agents, and their home whose level is reported over the whole window
+        VisitedFacilities all = new VisitedFacilities(8 * 3600, 12 * 3600, "", "");
+        all.collect(plans);
+        assertEquals(Set.of("w1", "h1", "h2", "h3"), all.facilities);
+
+        // whole day, person subpopulation without the ignored agent 3
+        VisitedFacilities subpopulation = new VisitedFacilities(0, 86400, "3", "person");
+        subpopulation.collect(plans);
+        assertEquals(Set.of("h1", "w1"), subpopulation.facilities);
+
+        Connection connection = DriverManager.getConnection("jdbc:h2:mem:visited", "", "");
+        try {
+            H2GISFunctions.load(connection);
+            Sql sql = new Sql(connection);
+            sql.execute("CREATE TABLE ACTIVITIES (PK INTEGER PRIMARY KEY, FACILITY VARCHAR, THE_GEOM GEOMETRY, TYPES VARCHAR)");
+            sql.execute("INSERT INTO ACTIVITIES VALUES (1, 'h1', 'POINT (0 0)', 'home'), (2, 'w1', 'POINT (1 1)', 'work'), " +
+                    "(3, 'h2', 'POINT (2 2)', 'home'), (4, 's3', 'POINT (3 3)', 'shop')");
+            subpopulation.filter(connection, "ACTIVITIES", "ACTIVITIES_VISITED");
+            assertEquals(3, ((Number) sql.firstRow("SELECT SUM(PK) N FROM ACTIVITIES_VISITED").get("N")).intValue());
+            assertEquals("PK", Tiling.primaryKey(connection, "ACTIVITIES_VISITED"));
+
+            // the exposure of the other agents is not kept
+            sql.execute("CREATE TABLE EXPOSURES (PERSON_ID VARCHAR, LAEQ DOUBLE)");
+            sql.execute("INSERT INTO EXPOSURES VALUES ('1', 60), ('2', 50), ('3', NULL)");
+            subpopulation.deleteOthers(connection, plans, "EXPOSURES");
+            assertEquals("1", sql.firstRow("SELECT LISTAGG(PERSON_ID) P FROM EXPOSURES").get("P"));
+        }
+        finally {
+            connection.close();
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.GroovyRowResult;
+import groovy.sql.Sql;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WideLayoutTest {
+
+    @Test
+    void testConvertKeepsTheLongView() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:wide", "", "")) {
+            Sql sql = new Sql(connection);
+            sql.execute("CREATE TABLE RESULT_GEOM (PK INTEGER PRIMARY KEY AUTO_INCREMENT, IDRECEIVER INTEGER, THE_GEOM GEOMETRY, " +
+                    "HZ63 DOUBLE PRECISION, TIME INTEGER, LEQA DOUBLE PRECISION, LEQ DOUBLE PRECISION)");
+            for (int receiver = 1; receiver <= 3; receiver++) {
+                for (int time = 0; time < 3600; time += 900) {
+                    // receiver 3 has no level at 900 s
+                    if (receiver == 3 && time == 900) {
+                        continue;
+                    }
+                    sql.execute("INSERT INTO RESULT_GEOM (IDRECEIVER, THE_GEOM, HZ63, TIME, LEQA, LEQ) VALUES (?, ?, ?, ?, ?, ?)",
+                            List.<Object>of(receiver, "POINT Z (" + receiver + " 0 4)", 40.5, time, 50.0 + receiver + time / 900.0, 60.0));
+                }
+            }
+            ReceiverLevelStore expected = ReceiverLevelStore.load(connection, "RESULT_GEOM", 900, 0, 3600, false);
+
+            WideLayout.convert(connection, "RESULT_GEOM");
+            assertTrue(RunCli.viewExists(connection, "RESULT_GEOM"));
+            assertEquals(3, ((Number) sql.firstRow("SELECT COUNT(*) N FROM RESULT_GEOM_WIDE").get("N")).intValue());
+            assertEquals(11, ((Number) sql.firstRow("SELECT COUNT(*) N FROM RESULT_GEOM").get("N")).intValue());
+            GroovyRowResult row = sql.firstRow("SELECT * FROM RESULT_GEOM WHERE IDRECEIVER = 2 AND TIME = 1800");
+            assertEquals(54.0, ((Number) row.get("LEQA")).doubleValue(), 1e-4);
+            assertEquals(40.5, ((Number) row.get("HZ63")).doubleValue(), 1e-4);
+            assertFalse(row.containsKey("PK"));
+
+            ReceiverLevelStore store = ReceiverLevelStore.load(connection, "RESULT_GEOM", 900, 0, 3600, false);
+            for (int receiver = 1; receiver <= 3; receiver++) {
+                double energy = expected.energy(expected.row(receiver), 0, 3600);
+                // float32 levels
+                assertEquals(energy, store.energy(store.row(receiver), 0, 3600), energy * 1e-5);
+            }
+
+            // the noise map stage drops the view before computing the table again
+            RunCli.dropView(connection, "RESULT_GEOM");
+            assertFalse(RunCli.tableExists(connection, "RESULT_GEOM"));
+        }
+    }
+
+}
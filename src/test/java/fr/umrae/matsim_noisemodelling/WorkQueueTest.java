@@ -0,0 +1,147 @@
+package fr.umrae.matsim_noisemodelling;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WorkQueueTest {
+
+    @TempDir
+    Path folder;
+
+    static Properties unit(String value) {
+        Properties unit = new Properties();
+        unit.setProperty("value", value);
+        return unit;
+    }
+
+    static void makeStale(WorkQueue queue, WorkQueue.Claim claim) throws IOException {
+        Files.setLastModifiedTime(claim.file, FileTime.fromMillis(System.currentTimeMillis() - queue.staleAfterMillis - 1000));
+    }
+
+    @Test
+    void testClaimAndComplete() throws IOException {
+        WorkQueue queue = new WorkQueue(folder);
+        queue.submit("b", unit("2"));
+        queue.submit("a", unit("1"));
+
+        // units are claimed once each, in name order
+        WorkQueue.Claim first = queue.claim("w1");
+        WorkQueue.Claim second = queue.claim("w2");
+        assertNull(queue.claim("w3"));
+        assertEquals("a", first.name);
+        assertEquals("1", first.unit.getProperty("value"));
+        assertEquals("b", second.name);
+        assertEquals(folder.resolve(WorkQueue.RUNNING).resolve("a.unit.w1"), first.file);
+        assertTrue(Files.exists(first.file));
+
+        List<String> published = new ArrayList<>();
+        assertTrue(queue.complete(first, () -> published.add("a")));
+        assertEquals(List.of("a"), published);
+        assertTrue(queue.isDone("a"));
+        assertFalse(queue.isDone("b"));
+        assertTrue(queue.list(WorkQueue.RUNNING).stream().noneMatch(file -> WorkQueue.unitName(file).equals("a")));
+
+        // submitting again forgets the result
+        queue.submit("a", unit("1"));
+        assertFalse(queue.isDone("a"));
+    }
+
+    @Test
+    void testHeartbeatKeepsClaim() throws IOException {
+        WorkQueue queue = new WorkQueue(folder);
+        queue.submit("a", unit("1"));
+        WorkQueue.Claim claim = queue.claim("w1");
+        makeStale(queue, claim);
+        WorkQueue.heartbeat(claim);
+        queue.requeueStale();
+        assertTrue(Files.exists(claim.file));
+        assertNull(queue.claim("w2"));
+    }
+
+    @Test
+    void testStaleRequeue() throws IOException {
+        WorkQueue queue = new WorkQueue(folder);
+        queue.submit("a", unit("1"));
+        WorkQueue.Claim stale = queue.claim("w1");
+        makeStale(queue, stale);
+        queue.requeueStale();
+        assertFalse(Files.exists(stale.file));
+
+        WorkQueue.Claim next = queue.claim("w2");
+        assertEquals("a", next.name);
+        assertEquals("1", next.unit.getProperty(WorkQueue.ATTEMPTS));
+
+        // the late worker neither publishes nor completes nor fails the unit of the next attempt
+        List<String> published = new ArrayList<>();
+        assertFalse(queue.complete(stale, () -> published.add("w1")));
+        queue.fail(stale, new IllegalStateException("late"));
+        assertTrue(published.isEmpty());
+        assertFalse(queue.isDone("a"));
+        assertTrue(Files.exists(next.file));
+        assertTrue(queue.list(WorkQueue.PENDING).isEmpty());
+
+        assertTrue(queue.complete(next, () -> published.add("w2")));
+        assertEquals(List.of("w2"), published);
+        assertTrue(queue.isDone("a"));
+    }
+
+    @Test
+    void testMaxAttempts() throws IOException {
+        WorkQueue queue = new WorkQueue(folder);
+        queue.maxAttempts = 3;
+        queue.submit("a", unit("1"));
+
+        queue.fail(queue.claim("w1"), new IllegalStateException("first"));
+        WorkQueue.Claim stale = queue.claim("w1");
+        assertEquals("1", stale.unit.getProperty(WorkQueue.ATTEMPTS));
+        makeStale(queue, stale);
+        // a stale requeue counts as an attempt
+        queue.requeueStale();
+        assertNull(queue.failure("a"));
+        queue.fail(queue.claim("w2"), new IllegalStateException("third"));
+
+        assertNull(queue.claim("w3"));
+        assertTrue(queue.failure("a").contains("third"));
+        Properties failed = WorkQueue.read(folder.resolve(WorkQueue.FAILED).resolve("a" + WorkQueue.UNIT_SUFFIX));
+        assertEquals("3", failed.getProperty(WorkQueue.ATTEMPTS));
+        IOException error = assertThrows(IOException.class, () -> queue.await(List.of("a"), 1));
+        assertTrue(error.getMessage().contains("third"));
+    }
+
+    @Test
+    void testFailedPublishKeepsClaim() throws IOException {
+        WorkQueue queue = new WorkQueue(folder);
+        queue.submit("a", unit("1"));
+        WorkQueue.Claim claim = queue.claim("w1");
+        assertThrows(IOException.class, () -> queue.complete(claim, () -> {
+            throw new IOException("disk full");
+        }));
+        assertTrue(Files.exists(claim.file));
+        queue.fail(claim, new IOException("disk full"));
+        assertEquals("1", queue.claim("w1").unit.getProperty(WorkQueue.ATTEMPTS));
+    }
+
+    @Test
+    void testStaleCompletingUnitIsRequeued() throws IOException {
+        WorkQueue queue = new WorkQueue(folder);
+        queue.submit("a", unit("1"));
+        WorkQueue.Claim claim = queue.claim("w1");
+        // the worker died while publishing
+        Path completing = claim.file.resolveSibling(claim.file.getFileName() + WorkQueue.COMPLETING);
+        Files.move(claim.file, completing);
+        Files.setLastModifiedTime(completing, FileTime.fromMillis(0));
+        queue.requeueStale();
+        assertEquals("a", queue.claim("w2").name);
+    }
+
+}
@@ -0,0 +1,127 @@
+package fr.umrae.matsim_noisemodelling;
+
+import groovy.sql.Sql;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WorkerTest {
+
+    @TempDir
+    Path folder;
+
+    WorkQueue queue;
+    Path database;
+
+    void submit() throws IOException, SQLException {
+        queue = new WorkQueue(folder.resolve("queue"));
+        database = folder.resolve("tile_0_0");
+        try (Connection connection = Tiling.openDatabase(database)) {
+            new Sql(connection).execute("CREATE TABLE RECEIVERS AS SELECT X PK FROM SYSTEM_RANGE(1, 3)");
+        }
+        Properties unit = new Properties();
+        unit.setProperty(Worker.KIND, "count");
+        unit.setProperty(WorkQueue.DATABASE, database.toString());
+        queue.submit("tile_0_0", unit);
+    }
+
+    /**
+     * Counts the receivers into RESULT, in the database of the unit.
+     */
+    static void count(Properties unit, int threads) throws SQLException {
+        try (Connection connection = Tiling.openDatabase(Paths.get(unit.getProperty(WorkQueue.DATABASE)))) {
+            new Sql(connection).execute("CREATE TABLE RESULT AS SELECT COUNT(*) N FROM RECEIVERS");
+        }
+    }
+
+    boolean resultExists() throws SQLException {
+        try (Connection connection = Tiling.openDatabase(database)) {
+            return RunCli.tableExists(connection, "RESULT");
+        }
+    }
+
+    long privateDatabases() throws IOException {
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("tile_0_0.")
+                    && !file.getFileName().toString().equals("tile_0_0.mv.db")).count();
+        }
+    }
+
+    @Test
+    void testCompletedUnitIsPublished() throws IOException, SQLException {
+        submit();
+        Worker worker = new Worker(queue, "w1", 1);
+        worker.kinds = Map.of("count", WorkerTest::count);
+        assertTrue(worker.runOne());
+        assertFalse(worker.runOne());
+        assertTrue(queue.isDone("tile_0_0"));
+        assertTrue(resultExists());
+        assertEquals(0, privateDatabases());
+    }
+
+    @Test
+    void testFailedUnitIsRetriedThenFailed() throws IOException, SQLException {
+        submit();
+        queue.maxAttempts = 2;
+        Worker worker = new Worker(queue, "w1", 1);
+        worker.kinds = Map.of("count", (unit, threads) -> {
+            count(unit, threads);
+            throw new IllegalStateException("out of memory");
+        });
+        assertTrue(worker.runOne());
+        assertNull(queue.failure("tile_0_0"));
+        assertTrue(worker.runOne());
+        assertTrue(queue.failure("tile_0_0").contains("out of memory"));
+        assertFalse(worker.runOne());
+        // the partial results of the attempts are discarded
+        assertFalse(resultExists());
+        assertEquals(0, privateDatabases());
+    }
+
+    @Test
+    void testRequeuedUnitIsNotPublished() throws IOException, SQLException {
+        submit();
+        Worker late = new Worker(queue, "w1", 1);
+        late.kinds = Map.of("count", (unit, threads) -> {
+            // the coordinator gives up on the worker while it computes
+            for (Path running : queue.list(WorkQueue.RUNNING)) {
+                Files.setLastModifiedTime(running, FileTime.fromMillis(0));
+            }
+            queue.requeueStale();
+            count(unit, threads);
+        });
+        assertTrue(late.runOne());
+        assertFalse(queue.isDone("tile_0_0"));
+        assertFalse(resultExists());
+        assertEquals(0, privateDatabases());
+
+        Worker next = new Worker(queue, "w2", 1);
+        next.kinds = Map.of("count", WorkerTest::count);
+        assertTrue(next.runOne());
+        assertTrue(queue.isDone("tile_0_0"));
+        assertTrue(resultExists());
+    }
+
+    @Test
+    void testUnknownKind() throws IOException, SQLException {
+        submit();
+        queue.maxAttempts = 1;
+        Worker worker = new Worker(queue, "w1", 1);
+        worker.kinds = Map.of();
+        assertTrue(worker.runOne());
+        assertTrue(queue.failure("tile_0_0").contains("Unknown unit kind : count"));
+    }
+
+}
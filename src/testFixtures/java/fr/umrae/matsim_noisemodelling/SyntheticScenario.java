@@ -0,0 +1,724 @@
+package fr.umrae.matsim_noisemodelling;
+
+import org.cts.CRSFactory;
+import org.cts.IllegalCoordinateException;
+import org.cts.crs.CRSException;
+import org.cts.crs.GeodeticCRS;
+import org.cts.op.CoordinateOperation;
+import org.cts.op.CoordinateOperationException;
+import org.cts.op.CoordinateOperationFactory;
+import org.cts.registry.EPSGRegistry;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Synthetic MATSim output folder and OSM buildings file, for tests and scaling measures without the reference scenario.
+ * The network is a square grid of two-way links of the requested side, in a projected SRID. The buildings are
+ * rectangles set back from the roads inside the blocks, each one being a facility for home and work activities. Each
+ * agent drives from its home to a work place a few blocks away and back, along the grid, and the events, plans and
+ * persons are those of that day. Everything is drawn from a seeded random generator, so that a scenario is the same
+ * for the same parameters.
+ * Files : output_network.xml.gz, detailed_network.csv (LINK_ID, GEOM as WKT), output_events.xml.gz (time ordered),
+ * output_vehicles.xml.gz, output_facilities.xml.gz, output_plans.xml.gz, output_experienced_plans.xml.gz,
+ * output_persons.csv.gz and buildings.osm.pbf (buildings and grid roads in WGS84).
+ */
+class SyntheticScenario {
+
+    static final String NETWORK_FILE = "output_network.xml.gz";
+    static final String EVENTS_FILE = "output_events.xml.gz";
+    static final String VEHICLES_FILE = "output_vehicles.xml.gz";
+    static final String LINK_GEOMETRY_FILE = "detailed_network.csv";
+    static final String FACILITIES_FILE = "output_facilities.xml.gz";
+    static final String PLANS_FILE = "output_plans.xml.gz";
+    static final String EXPERIENCED_PLANS_FILE = "output_experienced_plans.xml.gz";
+    static final String PERSONS_FILE = "output_persons.csv.gz";
+    static final String OSM_FILE = "buildings.osm.pbf";
+
+    // 50 km/h
+    static final double FREE_SPEED = 13.89;
+    // meters between the roads and the buildings
+    static final double SETBACK = 8;
+    static final double MIN_BUILDING_SIDE = 4;
+    // blocks between the home and the work place of an agent
+    static final int COMMUTE_BLOCKS = 5;
+    // entities per OSM PBF block
+    static final int PBF_BLOCK = 8000;
+
+    final int links;
+    final int agents;
+    final int buildings;
+    final double side;
+    int srid = 2154;
+    // south west corner of the area, in Nantes with the default SRID
+    double originX = 355000;
+    double originY = 6689000;
+    long seed = 42;
+
+    // derived from the parameters by write()
+    int gridSize;
+    double spacing;
+    int travelTime;
+    double[][] buildingBoxes;
+    int[] buildingCells;
+
+    /**
+     * @param links at least this many links, the grid being square
+     * @param side side of the area in meters
+     */
+    SyntheticScenario(int links, int agents, int buildings, double side) {
+        if (links < 4 || agents < 1 || buildings < 1 || side <= 0) {
+            throw new IllegalArgumentException("A scenario needs at least 4 links, 1 agent, 1 building and a positive side");
+        }
+        this.links = links;
+        this.agents = agents;
+        this.buildings = buildings;
+        this.side = side;
+    }
+
+    int linkCount() {
+        return 4 * gridSize * (gridSize - 1);
+    }
+
+    /**
+     * Writes the scenario files in folder.
+     */
+    void write(Path folder) throws IOException {
+        long start = System.currentTimeMillis();
+        Files.createDirectories(folder);
+        gridSize = 2;
+        while (4 * gridSize * (gridSize - 1) < links) {
+            gridSize++;
+        }
+        spacing = side / (gridSize - 1);
+        travelTime = (int) Math.ceil(spacing / FREE_SPEED);
+        Random random = new Random(seed);
+        placeBuildings(random);
+
+        writeNetwork(folder.resolve(NETWORK_FILE));
+        writeLinkGeometries(folder.resolve(LINK_GEOMETRY_FILE));
+        writeFacilities(folder.resolve(FACILITIES_FILE));
+        Trip[][] trips = drawTrips(random);
+        writePlans(folder, trips);
+        writeVehicles(folder.resolve(VEHICLES_FILE));
+        long events = writeEvents(folder.resolve(EVENTS_FILE), trips);
+        writeOsm(folder.resolve(OSM_FILE), random);
+        System.out.println("Synthetic scenario written to " + folder + " : " + linkCount() + " links, " + agents + " agents, "
+                + buildings + " buildings, " + events + " events over " + Math.round(side) + " m in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // links of node (i, j) : east and west along j, north and south along i, see the link ids below
+    int east(int i, int j) {
+        return 2 * (j * (gridSize - 1) + i);
+    }
+
+    int west(int i, int j) {
+        return east(i, j) + 1;
+    }
+
+    int north(int i, int j) {
+        return 2 * gridSize * (gridSize - 1) + 2 * (i * (gridSize - 1) + j);
+    }
+
+    int south(int i, int j) {
+        return north(i, j) + 1;
+    }
+
+    /**
+     * @return from and to nodes of a link, as {i1, j1, i2, j2}
+     */
+    int[] linkNodes(int link) {
+        int horizontal = 2 * gridSize * (gridSize - 1);
+        boolean reverse = link % 2 == 1;
+        int[] nodes;
+        if (link < horizontal) {
+            int k = link / 2;
+            int i = k % (gridSize - 1);
+            int j = k / (gridSize - 1);
+            nodes = new int[]{i, j, i + 1, j};
+        }
+        else {
+            int k = (link - horizontal) / 2;
+            int i = k / (gridSize - 1);
+            int j = k % (gridSize - 1);
+            nodes = new int[]{i, j, i, j + 1};
+        }
+        return reverse ? new int[]{nodes[2], nodes[3], nodes[0], nodes[1]} : nodes;
+    }
+
+    static String linkId(int link) {
+        return "l" + link;
+    }
+
+    static String nodeId(int i, int j) {
+        return "n" + i + "_" + j;
+    }
+
+    double x(int i) {
+        return originX + i * spacing;
+    }
+
+    double y(int j) {
+        return originY + j * spacing;
+    }
+
+    /**
+     * Building k goes to block k modulo the block count, in a square of slots of that block, so that the blocks are
+     * filled evenly.
+     */
+    void placeBuildings(Random random) {
+        int cells = (gridSize - 1) * (gridSize - 1);
+        int perCell = (buildings + cells - 1) / cells;
+        int slots = (int) Math.ceil(Math.sqrt(perCell));
+        double inner = spacing - 2 * SETBACK;
+        double slot = inner / slots;
+        if (slot < MIN_BUILDING_SIDE * 1.5) {
+            throw new IllegalArgumentException(String.format(Locale.ROOT,
+                    "%d buildings do not fit in %d blocks of %.1f m, increase the side or reduce the links", buildings, cells, spacing));
+        }
+        buildingBoxes = new double[buildings][];
+        buildingCells = new int[buildings];
+        for (int k = 0; k < buildings; k++) {
+            int cell = k % cells;
+            int slotIndex = k / cells;
+            int ci = cell % (gridSize - 1);
+            int cj = cell / (gridSize - 1);
+            double slotX = x(ci) + SETBACK + (slotIndex % slots) * slot;
+            double slotY = y(cj) + SETBACK + (slotIndex / slots) * slot;
+            double width = Math.max(MIN_BUILDING_SIDE, slot * (0.5 + 0.35 * random.nextDouble()));
+            double height = Math.max(MIN_BUILDING_SIDE, slot * (0.5 + 0.35 * random.nextDouble()));
+            double minX = slotX + (slot - width) / 2;
+            double minY = slotY + (slot - height) / 2;
+            buildingBoxes[k] = new double[]{minX, minY, minX + width, minY + height};
+            buildingCells[k] = cell;
+        }
+    }
+
+    /**
+     * Link of the facility of building k : the east link along the south side of its block.
+     */
+    int facilityLink(int k) {
+        int cell = buildingCells[k];
+        return east(cell % (gridSize - 1), cell / (gridSize - 1));
+    }
+
+    double[] facilityCoordinates(int k) {
+        double[] box = buildingBoxes[k];
+        return new double[]{(box[0] + box[2]) / 2, (box[1] + box[3]) / 2};
+    }
+
+    static Writer gzipWriter(Path file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(file), 1 << 16), StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    static String time(int seconds) {
+        return String.format(Locale.ROOT, "%02d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    void writeNetwork(Path file) throws IOException {
+        try (Writer out = gzipWriter(file)) {
+            out.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+            out.write("<!DOCTYPE network SYSTEM \"http://www.matsim.org/files/dtd/network_v2.dtd\">\n");
+            out.write("<network>\n\t<nodes>\n");
+            for (int j = 0; j < gridSize; j++) {
+                for (int i = 0; i < gridSize; i++) {
+                    out.write("\t\t<node id=\"" + nodeId(i, j) + "\" x=\"" + format(x(i)) + "\" y=\"" + format(y(j)) + "\" />\n");
+                }
+            }
+            out.write("\t</nodes>\n\t<links capperiod=\"01:00:00\" effectivecellsize=\"7.5\" effectivelanewidth=\"3.75\">\n");
+            for (int link = 0; link < linkCount(); link++) {
+                int[] nodes = linkNodes(link);
+                out.write("\t\t<link id=\"" + linkId(link) + "\" from=\"" + nodeId(nodes[0], nodes[1]) + "\" to=\"" + nodeId(nodes[2], nodes[3])
+                        + "\" length=\"" + format(spacing) + "\" freespeed=\"" + FREE_SPEED + "\" capacity=\"1000.0\" permlanes=\"1.0\" oneway=\"1\" modes=\"car\" />\n");
+            }
+            out.write("\t</links>\n</network>\n");
+        }
+    }
+
+    void writeLinkGeometries(Path file) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("LINK_ID,GEOM\n");
+            for (int link = 0; link < linkCount(); link++) {
+                int[] nodes = linkNodes(link);
+                out.write(linkId(link) + ",\"LINESTRING (" + format(x(nodes[0])) + " " + format(y(nodes[1])) + ", "
+                        + format(x(nodes[2])) + " " + format(y(nodes[3])) + ")\"\n");
+            }
+        }
+    }
+
+    void writeFacilities(Path file) throws IOException {
+        try (Writer out = gzipWriter(file)) {
+            out.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+            out.write("<!DOCTYPE facilities SYSTEM \"http://www.matsim.org/files/dtd/facilities_v1.dtd\">\n");
+            out.write("<facilities name=\"synthetic\">\n");
+            for (int k = 0; k < buildings; k++) {
+                double[] coordinates = facilityCoordinates(k);
+                out.write("\t<facility id=\"f" + k + "\" linkId=\"" + linkId(facilityLink(k)) + "\" x=\"" + format(coordinates[0])
+                        + "\" y=\"" + format(coordinates[1]) + "\">\n");
+                out.write("\t\t<activity type=\"home\"/>\n\t\t<activity type=\"work\"/>\n\t</facility>\n");
+            }
+            out.write("</facilities>\n");
+        }
+    }
+
+    /**
+     * A car trip between two facilities, leaving at depart.
+     */
+    static class Trip {
+        final int from;
+        final int to;
+        final String fromType;
+        final String toType;
+        final int depart;
+        final int[] route;
+        final int arrival;
+
+        Trip(int from, int to, String fromType, String toType, int depart, int[] route, int travelTime) {
+            this.from = from;
+            this.to = to;
+            this.fromType = fromType;
+            this.toType = toType;
+            this.depart = depart;
+            this.route = route;
+            // the vehicle starts at the end of the first link, then drives through the others
+            this.arrival = depart + 1 + (route.length - 1) * travelTime;
+        }
+
+        /**
+         * Time at which the vehicle enters link route[index], index > 0.
+         */
+        int enter(int index, int travelTime) {
+            return depart + 1 + (index - 1) * travelTime;
+        }
+    }
+
+    Trip[][] drawTrips(Random random) {
+        List<List<Integer>> cellBuildings = new ArrayList<>();
+        int cells = (gridSize - 1) * (gridSize - 1);
+        for (int cell = 0; cell < cells; cell++) {
+            cellBuildings.add(new ArrayList<>());
+        }
+        for (int k = 0; k < buildings; k++) {
+            cellBuildings.get(buildingCells[k]).add(k);
+        }
+        Trip[][] trips = new Trip[agents][];
+        for (int agent = 0; agent < agents; agent++) {
+            int home = random.nextInt(buildings);
+            int homeCell = buildingCells[home];
+            int work = home;
+            for (int attempt = 0; attempt < 20 && (work == home || buildingCells[work] == homeCell && cells > 1); attempt++) {
+                int ci = clamp(homeCell % (gridSize - 1) + random.nextInt(2 * COMMUTE_BLOCKS + 1) - COMMUTE_BLOCKS, gridSize - 2);
+                int cj = clamp(homeCell / (gridSize - 1) + random.nextInt(2 * COMMUTE_BLOCKS + 1) - COMMUTE_BLOCKS, gridSize - 2);
+                List<Integer> candidates = cellBuildings.get(cj * (gridSize - 1) + ci);
+                work = candidates.isEmpty() ? random.nextInt(buildings) : candidates.get(random.nextInt(candidates.size()));
+            }
+            int leaveHome = 6 * 3600 + 1800 + random.nextInt(9000);
+            Trip toWork = new Trip(home, work, "home", "work", leaveHome, route(facilityLink(home), facilityLink(work)), travelTime);
+            int leaveWork = toWork.arrival + 7 * 3600 + random.nextInt(7200);
+            Trip toHome = new Trip(work, home, "work", "home", leaveWork, route(facilityLink(work), facilityLink(home)), travelTime);
+            trips[agent] = new Trip[]{toWork, toHome};
+        }
+        return trips;
+    }
+
+    static int clamp(int value, int max) {
+        return Math.max(0, Math.min(max, value));
+    }
+
+    /**
+     * Links from the start link to the end link, both included, along x then along y.
+     */
+    int[] route(int startLink, int endLink) {
+        List<Integer> route = new ArrayList<>();
+        route.add(startLink);
+        int[] start = linkNodes(startLink);
+        int[] end = linkNodes(endLink);
+        int i = start[2];
+        int j = start[3];
+        while (i != end[0]) {
+            if (end[0] > i) {
+                route.add(east(i, j));
+                i++;
+            }
+            else {
+                route.add(west(i - 1, j));
+                i--;
+            }
+        }
+        while (j != end[1]) {
+            if (end[1] > j) {
+                route.add(north(i, j));
+                j++;
+            }
+            else {
+                route.add(south(i, j - 1));
+                j--;
+            }
+        }
+        route.add(endLink);
+        return route.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    void writePlans(Path folder, Trip[][] trips) throws IOException {
+        try (Writer plans = gzipWriter(folder.resolve(PLANS_FILE));
+             Writer experienced = gzipWriter(folder.resolve(EXPERIENCED_PLANS_FILE));
+             Writer persons = gzipWriter(folder.resolve(PERSONS_FILE))) {
+            String header = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<!DOCTYPE population SYSTEM \"http://www.matsim.org/files/dtd/population_v6.dtd\">\n<population>\n";
+            plans.write(header);
+            experienced.write(header);
+            persons.write("person;executed_score;first_act_x;first_act_y;first_act_type;subpopulation\n");
+            StringBuilder person = new StringBuilder();
+            for (int agent = 0; agent < agents; agent++) {
+                person.setLength(0);
+                person.append("\t<person id=\"p").append(agent).append("\">\n");
+                person.append("\t\t<attributes>\n\t\t\t<attribute name=\"subpopulation\" class=\"java.lang.String\">person</attribute>\n\t\t</attributes>\n");
+                person.append("\t\t<plan score=\"0.0\" selected=\"yes\">\n");
+                int activityStart = -1;
+                for (Trip trip : trips[agent]) {
+                    activity(person, trip.fromType, trip.from, activityStart, trip.depart);
+                    int travel = trip.arrival - trip.depart;
+                    StringBuilder route = new StringBuilder();
+                    for (int link : trip.route) {
+                        route.append(route.length() > 0 ? " " : "").append(linkId(link));
+                    }
+                    person.append("\t\t\t<leg mode=\"car\" dep_time=\"").append(time(trip.depart)).append("\" trav_time=\"").append(time(travel)).append("\">\n");
+                    person.append("\t\t\t\t<route type=\"links\" start_link=\"").append(linkId(trip.route[0])).append("\" end_link=\"")
+                            .append(linkId(trip.route[trip.route.length - 1])).append("\" trav_time=\"").append(time(travel))
+                            .append("\" distance=\"").append(format((trip.route.length - 1) * spacing)).append("\" vehicleRefId=\"p").append(agent)
+                            .append("\">").append(route).append("</route>\n\t\t\t</leg>\n");
+                    activityStart = trip.arrival;
+                }
+                Trip last = trips[agent][trips[agent].length - 1];
+                activity(person, last.toType, last.to, activityStart, -1);
+                person.append("\t\t</plan>\n\t</person>\n");
+                plans.write(person.toString());
+                experienced.write(person.toString());
+
+                double[] home = facilityCoordinates(trips[agent][0].from);
+                persons.write("p" + agent + ";0.0;" + format(home[0]) + ";" + format(home[1]) + ";home;person\n");
+            }
+            plans.write("</population>\n");
+            experienced.write("</population>\n");
+        }
+    }
+
+    void activity(StringBuilder plan, String type, int facility, int start, int end) {
+        double[] coordinates = facilityCoordinates(facility);
+        plan.append("\t\t\t<activity type=\"").append(type).append("\" link=\"").append(linkId(facilityLink(facility)))
+                .append("\" facility=\"f").append(facility).append("\" x=\"").append(format(coordinates[0]))
+                .append("\" y=\"").append(format(coordinates[1])).append("\"");
+        if (start >= 0) {
+            plan.append(" start_time=\"").append(time(start)).append("\"");
+        }
+        if (end >= 0) {
+            plan.append(" end_time=\"").append(time(end)).append("\"");
+        }
+        plan.append(" >\n\t\t\t</activity>\n");
+    }
+
+    void writeVehicles(Path file) throws IOException {
+        try (Writer out = gzipWriter(file)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<vehicleDefinitions xmlns=\"http://www.matsim.org/files/dtd\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"" +
+                    " xsi:schemaLocation=\"http://www.matsim.org/files/dtd http://www.matsim.org/files/dtd/vehicleDefinitions_v2.0.xsd\">\n");
+            out.write("\t<vehicleType id=\"car\">\n\t\t<capacity seats=\"4\" standingRoomInPersons=\"0\"/>\n\t\t<length meter=\"7.5\"/>\n" +
+                    "\t\t<width meter=\"1.0\"/>\n\t\t<networkMode networkMode=\"car\"/>\n\t</vehicleType>\n");
+            for (int agent = 0; agent < agents; agent++) {
+                out.write("\t<vehicle id=\"p" + agent + "\" type=\"car\"/>\n");
+            }
+            out.write("</vehicleDefinitions>\n");
+        }
+    }
+
+    /**
+     * Position of an agent in its day, the events of all agents being merged in time order.
+     */
+    class EventCursor {
+        final int agent;
+        final Trip[] trips;
+        int trip = 0;
+        int step = 0;
+
+        EventCursor(int agent, Trip[] trips) {
+            this.agent = agent;
+            this.trips = trips;
+        }
+
+        boolean hasNext() {
+            return trip < trips.length;
+        }
+
+        // 4 events to start driving, 2 per link change, 4 events to stop
+        int steps(Trip current) {
+            return 8 + 2 * (current.route.length - 1);
+        }
+
+        int time() {
+            Trip current = trips[trip];
+            if (step < 4) {
+                return current.depart;
+            }
+            if (step >= steps(current) - 4) {
+                return current.arrival;
+            }
+            return current.enter((step - 4) / 2 + 1, travelTime);
+        }
+
+        void write(Writer out) throws IOException {
+            Trip current = trips[trip];
+            String person = "person=\"p" + agent + "\"";
+            String vehicle = "vehicle=\"p" + agent + "\"";
+            String first = "link=\"" + linkId(current.route[0]) + "\"";
+            String last = "link=\"" + linkId(current.route[current.route.length - 1]) + "\"";
+            int steps = steps(current);
+            String attributes;
+            String type;
+            if (step == 0) {
+                type = "actend";
+                attributes = person + " " + first + " facility=\"f" + current.from + "\" actType=\"" + current.fromType + "\"";
+            }
+            else if (step == 1) {
+                type = "departure";
+                attributes = person + " " + first + " legMode=\"car\"";
+            }
+            else if (step == 2) {
+                type = "PersonEntersVehicle";
+                attributes = person + " " + vehicle;
+            }
+            else if (step == 3) {
+                type = "vehicle enters traffic";
+                attributes = person + " " + first + " " + vehicle + " networkMode=\"car\" relativePosition=\"1.0\"";
+            }
+            else if (step == steps - 4) {
+                type = "vehicle leaves traffic";
+                attributes = person + " " + last + " " + vehicle + " networkMode=\"car\" relativePosition=\"1.0\"";
+            }
+            else if (step == steps - 3) {
+                type = "PersonLeavesVehicle";
+                attributes = person + " " + vehicle;
+            }
+            else if (step == steps - 2) {
+                type = "arrival";
+                attributes = person + " " + last + " legMode=\"car\"";
+            }
+            else if (step == steps - 1) {
+                type = "actstart";
+                attributes = person + " " + last + " facility=\"f" + current.to + "\" actType=\"" + current.toType + "\"";
+            }
+            else {
+                int index = (step - 4) / 2 + 1;
+                boolean left = (step - 4) % 2 == 0;
+                type = left ? "left link" : "entered link";
+                attributes = "link=\"" + linkId(current.route[left ? index - 1 : index]) + "\" " + vehicle;
+            }
+            out.write("\t<event time=\"" + time() + ".0\" type=\"" + type + "\" " + attributes + "  />\n");
+            if (++step == steps) {
+                step = 0;
+                trip++;
+            }
+        }
+    }
+
+    long writeEvents(Path file, Trip[][] trips) throws IOException {
+        PriorityQueue<EventCursor> cursors = new PriorityQueue<>(Comparator.comparingInt(EventCursor::time).thenComparingInt(cursor -> cursor.agent));
+        for (int agent = 0; agent < agents; agent++) {
+            cursors.add(new EventCursor(agent, trips[agent]));
+        }
+        long events = 0;
+        try (Writer out = gzipWriter(file)) {
+            out.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<events version=\"1.0\">\n");
+            while (!cursors.isEmpty()) {
+                EventCursor cursor = cursors.poll();
+                cursor.write(out);
+                events++;
+                if (cursor.hasNext()) {
+                    cursors.add(cursor);
+                }
+            }
+            out.write("</events>\n");
+        }
+        return events;
+    }
+
+    /**
+     * OSM PBF file of the grid roads (highway=residential) and of the buildings (building=yes and building:levels),
+     * node coordinates converted to WGS84.
+     */
+    void writeOsm(Path file, Random random) throws IOException {
+        int gridNodes = gridSize * gridSize;
+        long[] lons = new long[gridNodes + 4 * buildings];
+        long[] lats = new long[lons.length];
+        CoordinateOperation toWgs84 = toWgs84();
+        for (int j = 0; j < gridSize; j++) {
+            for (int i = 0; i < gridSize; i++) {
+                setNode(lons, lats, j * gridSize + i, x(i), y(j), toWgs84);
+            }
+        }
+        for (int k = 0; k < buildings; k++) {
+            double[] box = buildingBoxes[k];
+            int node = gridNodes + 4 * k;
+            setNode(lons, lats, node, box[0], box[1], toWgs84);
+            setNode(lons, lats, node + 1, box[2], box[1], toWgs84);
+            setNode(lons, lats, node + 2, box[2], box[3], toWgs84);
+            setNode(lons, lats, node + 3, box[0], box[3], toWgs84);
+        }
+
+        List<String> strings = List.of("", "highway", "residential", "building", "yes", "building:levels", "1", "2", "3", "4", "5");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            ProtoWriter header = new ProtoWriter();
+            ProtoWriter bbox = new ProtoWriter();
+            bbox.sint(1, Arrays.stream(lons).min().orElse(0) * 100);
+            bbox.sint(2, Arrays.stream(lons).max().orElse(0) * 100);
+            bbox.sint(3, Arrays.stream(lats).max().orElse(0) * 100);
+            bbox.sint(4, Arrays.stream(lats).min().orElse(0) * 100);
+            header.message(1, bbox);
+            header.string(4, "OsmSchema-V0.6");
+            header.string(4, "DenseNodes");
+            header.string(16, "matsim-noisemodelling");
+            writeBlob(out, "OSMHeader", header.toByteArray());
+
+            long[] ids = new long[PBF_BLOCK];
+            long[] blockLons = new long[PBF_BLOCK];
+            long[] blockLats = new long[PBF_BLOCK];
+            for (int from = 0; from < lons.length; from += PBF_BLOCK) {
+                int count = Math.min(PBF_BLOCK, lons.length - from);
+                for (int n = 0; n < count; n++) {
+                    ids[n] = from + n + 1;
+                    blockLons[n] = lons[from + n];
+                    blockLats[n] = lats[from + n];
+                }
+                ProtoWriter dense = new ProtoWriter();
+                dense.packedSint(1, ids, count, true);
+                dense.packedSint(8, blockLats, count, true);
+                dense.packedSint(9, blockLons, count, true);
+                ProtoWriter group = new ProtoWriter();
+                group.message(2, dense);
+                writeBlob(out, "OSMData", primitiveBlock(strings, group));
+            }
+
+            // roads along the grid lines, then the buildings
+            List<long[]> wayRefs = new ArrayList<>();
+            List<int[]> wayTags = new ArrayList<>();
+            for (int line = 0; line < gridSize; line++) {
+                long[] horizontal = new long[gridSize];
+                long[] vertical = new long[gridSize];
+                for (int k = 0; k < gridSize; k++) {
+                    horizontal[k] = (long) line * gridSize + k + 1;
+                    vertical[k] = (long) k * gridSize + line + 1;
+                }
+                wayRefs.add(horizontal);
+                wayTags.add(new int[]{1, 2});
+                wayRefs.add(vertical);
+                wayTags.add(new int[]{1, 2});
+            }
+            for (int k = 0; k < buildings; k++) {
+                long node = gridNodes + 4L * k + 1;
+                wayRefs.add(new long[]{node, node + 1, node + 2, node + 3, node});
+                wayTags.add(new int[]{3, 4, 5, 6 + random.nextInt(5)});
+            }
+            for (int from = 0; from < wayRefs.size(); from += PBF_BLOCK) {
+                ProtoWriter group = new ProtoWriter();
+                for (int w = from; w < Math.min(wayRefs.size(), from + PBF_BLOCK); w++) {
+                    int[] tags = wayTags.get(w);
+                    int[] keys = new int[tags.length / 2];
+                    int[] values = new int[tags.length / 2];
+                    for (int t = 0; t < keys.length; t++) {
+                        keys[t] = tags[2 * t];
+                        values[t] = tags[2 * t + 1];
+                    }
+                    ProtoWriter way = new ProtoWriter();
+                    way.uint(1, w + 1);
+                    way.packed(2, keys);
+                    way.packed(3, values);
+                    way.packedSint(8, wayRefs.get(w), wayRefs.get(w).length, true);
+                    group.message(3, way);
+                }
+                writeBlob(out, "OSMData", primitiveBlock(strings, group));
+            }
+        }
+    }
+
+    static byte[] primitiveBlock(List<String> strings, ProtoWriter group) {
+        ProtoWriter stringTable = new ProtoWriter();
+        for (String string : strings) {
+            stringTable.string(1, string);
+        }
+        ProtoWriter block = new ProtoWriter();
+        block.message(1, stringTable);
+        block.message(2, group);
+        return block.toByteArray();
+    }
+
+    /**
+     * File block : big endian length of the BlobHeader, the BlobHeader, then the zlib compressed Blob.
+     */
+    static void writeBlob(OutputStream out, String type, byte[] data) throws IOException {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+        byte[] buffer = new byte[1 << 16];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            compressed.write(buffer, 0, length);
+        }
+        deflater.end();
+        ProtoWriter blob = new ProtoWriter();
+        blob.uint(2, data.length);
+        blob.bytes(3, compressed.toByteArray());
+        byte[] blobBytes = blob.toByteArray();
+        ProtoWriter header = new ProtoWriter();
+        header.string(1, type);
+        header.uint(3, blobBytes.length);
+        byte[] headerBytes = header.toByteArray();
+        new DataOutputStream(out).writeInt(headerBytes.length);
+        out.write(headerBytes);
+        out.write(blobBytes);
+    }
+
+    /**
+     * @return the conversion of the scenario SRID to WGS84, null if it is WGS84 already
+     */
+    CoordinateOperation toWgs84() throws IOException {
+        if (srid == 4326) {
+            return null;
+        }
+        try {
+            CRSFactory factory = new CRSFactory();
+            factory.getRegistryManager().addRegistry(new EPSGRegistry());
+            GeodeticCRS source = (GeodeticCRS) factory.getCRS("EPSG:" + srid);
+            GeodeticCRS target = (GeodeticCRS) factory.getCRS("EPSG:4326");
+            return CoordinateOperationFactory.getMostPrecise(CoordinateOperationFactory.createCoordinateOperations(source, target));
+        }
+        catch (CRSException | CoordinateOperationException e) {
+            throw new IOException("Cannot convert EPSG:" + srid + " to WGS84 : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Stores the node in units of 100 nanodegrees, the default granularity of the PBF blocks.
+     */
+    static void setNode(long[] lons, long[] lats, int node, double x, double y, CoordinateOperation toWgs84) throws IOException {
+        double[] lonLat = {x, y};
+        if (toWgs84 != null) {
+            try {
+                lonLat = toWgs84.transform(new double[]{x, y});
+            }
+            catch (IllegalCoordinateException | CoordinateOperationException e) {
+                throw new IOException("Cannot convert " + x + " " + y + " to WGS84 : " + e.getMessage(), e);
+            }
+        }
+        lons[node] = Math.round(lonLat[0] * 1e7);
+        lats[node] = Math.round(lonLat[1] * 1e7);
+    }
+
+}